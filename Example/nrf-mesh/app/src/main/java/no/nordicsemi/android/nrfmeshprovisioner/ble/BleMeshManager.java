@@ -204,24 +204,12 @@ public class BleMeshManager extends BleManager<BleMeshManagerCallbacks> {
     /**
      * Sends the mesh pdu
      * <p>
-     *     The function will chunk the pdu to fit in to the mtu size supported by the node
+     *     The library segments pdus to fit in to the mtu size supported by the node, so the pdu is written as is
      * </p>
      * @param pdu mesh pdu
      */
     public void sendPdu(final byte[] pdu) {
-        final int chunks = (pdu.length + (mtuSize - 1)) / mtuSize;
-        int srcOffset = 0;
-        if(chunks > 1) {
-            for (int i = 0; i < chunks; i++) {
-                final int length = Math.min(pdu.length - srcOffset, mtuSize);
-                final byte[] segmentedBuffer = new byte[length];
-                System.arraycopy(pdu, srcOffset, segmentedBuffer, 0, length);
-                srcOffset += length;
-                send(segmentedBuffer);
-            }
-        } else {
-            send(pdu);
-        }
+        send(pdu);
     }
 
     /**
@@ -32,12 +32,10 @@ import android.os.ParcelUuid;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 import no.nordicsemi.android.nrfmeshprovisioner.ble.BleMeshManager;
 import no.nordicsemi.android.nrfmeshprovisioner.livedata.ScannerLiveData;
 import no.nordicsemi.android.nrfmeshprovisioner.utils.Utils;
@@ -245,16 +243,9 @@ public class ProvisionedNodesScannerRepository extends BaseMeshRepository {
     };
 
     private boolean checkIfNodeIdentityMatches(final byte[] serviceData){
-        if(mBinder != null) {
-            for(Map.Entry<Integer, ProvisionedMeshNode> node : mProvisionedNodesLiveData.getProvisionedNodes().entrySet()){
-                if(mMeshManagerApi != null) {
-                    if(mMeshManagerApi.nodeIdentityMatches(node.getValue(), serviceData)){
-                        return true;
-                    }
-                }
-            }
+        if(mBinder != null && mMeshManagerApi != null) {
+            return mMeshManagerApi.findNodeByIdentity(serviceData) != null;
         }
         return false;
-
     }
 }
\ No newline at end of file
@@ -54,6 +54,7 @@ import no.nordicsemi.android.meshprovisioner.MeshManagerApi;
 import no.nordicsemi.android.meshprovisioner.MeshManagerTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshProvisioningStatusCallbacks;
 import no.nordicsemi.android.meshprovisioner.ProvisioningSettings;
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
 import no.nordicsemi.android.meshprovisioner.configuration.MeshModel;
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 import no.nordicsemi.android.meshprovisioner.states.UnprovisionedMeshNode;
@@ -705,6 +706,11 @@ public class MeshService extends Service implements BleMeshManagerCallbacks,
         }
     }
 
+    @Override
+    public void onTransactionFailed(final ProvisionedMeshNode node, final ConfigMessage.MessageState state) {
+        Log.v(TAG, "No status received for " + state);
+    }
+
     private void handleConnectivityStates(final boolean connected) {
         //Check if provisioning is complete
         if (mIsProvisioningComplete) {
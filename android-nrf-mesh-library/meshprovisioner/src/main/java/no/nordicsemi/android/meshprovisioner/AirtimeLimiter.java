@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Limits the rate at which network pdus are injected in to the mesh through the proxy node.
+ * <p>
+ * Every network pdu written to the proxy is relayed by every relay node in the mesh, so the pdus are paced by a token bucket
+ * shared by all destinations and by a token bucket per destination. The rates adapt to the load the mesh can carry: a lost pdu,
+ * seen as a retransmitted segment or a missing status, halves the rate of the global bucket and of the bucket of the destination,
+ * while each delivered message increases both rates by a fixed step up to their configured limits.
+ * </p>
+ */
+public final class AirtimeLimiter {
+
+    private static final String TAG = AirtimeLimiter.class.getSimpleName();
+    public static final double DEFAULT_RATE = 20;
+    public static final int DEFAULT_BURST = 10;
+    public static final double DEFAULT_DESTINATION_RATE = 10;
+    public static final int DEFAULT_DESTINATION_BURST = 6;
+    public static final int NO_DESTINATION = -1;
+    private static final double MIN_RATE = 1;
+    private static final double RATE_INCREASE = 0.5; //Pdus per second added for each delivered message
+    private static final double RATE_DECREASE = 0.5;
+    private static final long DECREASE_HOLDOFF = 1000; //Losses of the same burst only decrease the rate once
+    private static final int MAX_DESTINATIONS = 64;
+
+    private final Map<Integer, TokenBucket> mDestinations;
+    private TokenBucket mGlobal;
+    private double mDestinationRate;
+    private int mDestinationBurst;
+
+    public AirtimeLimiter() {
+        this(DEFAULT_RATE, DEFAULT_BURST, DEFAULT_DESTINATION_RATE, DEFAULT_DESTINATION_BURST);
+    }
+
+    /**
+     * Creates a limiter
+     *
+     * @param rate             maximum rate of all pdus in pdus per second
+     * @param burst            number of pdus that may be sent at once after an idle period
+     * @param destinationRate  maximum rate of the pdus to a single destination in pdus per second
+     * @param destinationBurst number of pdus that may be sent at once to a single destination after an idle period
+     */
+    public AirtimeLimiter(final double rate, final int burst, final double destinationRate, final int destinationBurst) {
+        mDestinations = new LinkedHashMap<Integer, TokenBucket>(MAX_DESTINATIONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, TokenBucket> eldest) {
+                return size() > MAX_DESTINATIONS;
+            }
+        };
+        setLimits(rate, burst, destinationRate, destinationBurst);
+    }
+
+    /**
+     * Sets the maximum rates and bursts, restarting the adaptation from the new limits
+     *
+     * @param rate             maximum rate of all pdus in pdus per second
+     * @param burst            number of pdus that may be sent at once after an idle period
+     * @param destinationRate  maximum rate of the pdus to a single destination in pdus per second
+     * @param destinationBurst number of pdus that may be sent at once to a single destination after an idle period
+     */
+    public synchronized void setLimits(final double rate, final int burst, final double destinationRate, final int destinationBurst) {
+        if (rate < MIN_RATE || destinationRate < MIN_RATE)
+            throw new IllegalArgumentException(String.format(Locale.US, "Rates must be at least %.1f pdus per second", MIN_RATE));
+        if (burst <= 0 || destinationBurst <= 0)
+            throw new IllegalArgumentException("Bursts must be greater than zero");
+        mGlobal = new TokenBucket(rate, burst);
+        mDestinationRate = destinationRate;
+        mDestinationBurst = destinationBurst;
+        mDestinations.clear();
+    }
+
+    /**
+     * Takes a token for a pdu from the global bucket and the bucket of its destination if both have one
+     *
+     * @param dst destination address of the pdu or {@link #NO_DESTINATION} if only the global rate applies
+     * @param now current time in milliseconds
+     * @return 0 if the pdu may be sent now, otherwise the time in milliseconds until a token is available in both buckets
+     */
+    public synchronized long tryAcquire(final int dst, final long now) {
+        final TokenBucket destination = dst == NO_DESTINATION ? null : getDestination(dst);
+        final long delay = Math.max(mGlobal.getDelay(now), destination != null ? destination.getDelay(now) : 0);
+        if (delay > 0)
+            return delay;
+
+        mGlobal.tokens--;
+        if (destination != null) {
+            destination.tokens--;
+        }
+        return 0;
+    }
+
+    /**
+     * Increases the rates after a message was delivered to a destination
+     *
+     * @param dst destination address
+     * @param now current time in milliseconds
+     */
+    public synchronized void onDelivered(final int dst, final long now) {
+        mGlobal.increase(now);
+        getDestination(dst).increase(now);
+    }
+
+    /**
+     * Decreases the rates after a pdu to a destination was lost
+     *
+     * @param dst destination address or {@link #NO_DESTINATION} if only the global rate is decreased
+     * @param now current time in milliseconds
+     */
+    public synchronized void onLoss(final int dst, final long now) {
+        if (mGlobal.decrease(now)) {
+            Log.v(TAG, String.format(Locale.US, "Pdu to 0x%04X lost, rate decreased to %.1f pdus per second", dst & 0xFFFF, mGlobal.rate));
+        }
+        if (dst != NO_DESTINATION) {
+            getDestination(dst).decrease(now);
+        }
+    }
+
+    /**
+     * Returns the current rate of all pdus in pdus per second
+     */
+    public synchronized double getRate() {
+        return mGlobal.rate;
+    }
+
+    /**
+     * Returns the current rate of the pdus to a destination in pdus per second
+     *
+     * @param dst destination address
+     */
+    public synchronized double getRate(final int dst) {
+        final TokenBucket destination = mDestinations.get(dst & 0xFFFF);
+        return destination != null ? destination.rate : mDestinationRate;
+    }
+
+    /**
+     * Restores the configured rates and forgets the destinations
+     */
+    public synchronized void reset() {
+        mGlobal = new TokenBucket(mGlobal.maxRate, mGlobal.burst);
+        mDestinations.clear();
+    }
+
+    private TokenBucket getDestination(final int dst) {
+        TokenBucket destination = mDestinations.get(dst & 0xFFFF);
+        if (destination == null) {
+            destination = new TokenBucket(mDestinationRate, mDestinationBurst);
+            mDestinations.put(dst & 0xFFFF, destination);
+        }
+        return destination;
+    }
+
+    private static final class TokenBucket {
+        private final double maxRate;
+        private final int burst;
+        private double rate;
+        private double tokens;
+        private long refilledAt = -1;
+        private long decreasedAt = -1;
+
+        private TokenBucket(final double maxRate, final int burst) {
+            this.maxRate = maxRate;
+            this.burst = burst;
+            this.rate = maxRate;
+            this.tokens = burst;
+        }
+
+        private void refill(final long now) {
+            if (refilledAt >= 0 && now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1000);
+            }
+            refilledAt = now;
+        }
+
+        /**
+         * Returns the time in milliseconds until a token is available
+         */
+        private long getDelay(final long now) {
+            refill(now);
+            if (tokens >= 1)
+                return 0;
+            return (long) Math.ceil((1 - tokens) * 1000 / rate);
+        }
+
+        private void increase(final long now) {
+            refill(now);
+            rate = Math.min(maxRate, rate + RATE_INCREASE);
+        }
+
+        private boolean decrease(final long now) {
+            if (decreasedAt >= 0 && now - decreasedAt < DECREASE_HOLDOFF)
+                return false;
+            refill(now);
+            rate = Math.max(MIN_RATE, rate * RATE_DECREASE);
+            decreasedAt = now;
+            return true;
+        }
+    }
+}
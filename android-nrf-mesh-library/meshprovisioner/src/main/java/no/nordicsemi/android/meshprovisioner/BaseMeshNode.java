@@ -33,7 +33,7 @@ import java.util.List;
 import java.util.Map;
 
 import no.nordicsemi.android.meshprovisioner.utils.Element;
-import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
 
 
 public abstract class BaseMeshNode implements Parcelable {
@@ -92,7 +92,7 @@ public abstract class BaseMeshNode implements Parcelable {
     }
 
     public final void setIsProvisioned(final boolean isProvisioned) {
-        identityKey = SecureUtils.calculateIdentityKey(networkKey);
+        identityKey = KeyMaterial.forNetworkKey(networkKey).getIdentityKey();
         this.isProvisioned = isProvisioned;
     }
 
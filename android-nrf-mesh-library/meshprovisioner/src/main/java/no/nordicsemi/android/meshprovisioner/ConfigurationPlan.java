@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Desired configuration of a set of nodes, made up of the application keys, bindings, publications and subscriptions of each node.
+ * <p>
+ * A plan only describes the end state, it is executed by a {@link ConfigurationScheduler} which skips the steps already reflected
+ * in the state known for a node and runs the remaining steps of many nodes concurrently.
+ * </p>
+ */
+public final class ConfigurationPlan {
+
+    private final List<Step> mSteps;
+
+    private ConfigurationPlan(final List<Step> steps) {
+        mSteps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Returns the steps of the plan in the order they were added
+     */
+    public List<Step> getSteps() {
+        return mSteps;
+    }
+
+    /**
+     * Type of a configuration step, steps of a node are executed in the order of their types
+     */
+    public enum StepType {
+        APP_KEY_ADD,
+        MODEL_APP_BIND,
+        MODEL_PUBLICATION_SET,
+        MODEL_SUBSCRIPTION_ADD
+    }
+
+    /**
+     * Outcome of a configuration step
+     */
+    public enum StepResult {
+        //The node confirmed the configuration
+        SUCCESS,
+        //The node was already configured as requested so nothing was sent
+        SKIPPED,
+        //The node rejected the configuration or the node is not known
+        FAILED,
+        //The node did not respond in time
+        TIMED_OUT,
+        //The step was not sent because an earlier step of the node did not succeed or the plan was cancelled
+        CANCELLED
+    }
+
+    /**
+     * A single configuration message to be sent to a node
+     */
+    public static final class Step {
+        private final StepType type;
+        private final int nodeAddress;
+        private final int elementAddress;
+        private final int modelIdentifier;
+        private final int appKeyIndex;
+        private final String appKey;
+        private final int address;
+        private final int publishTtl;
+
+        private Step(final StepType type, final int nodeAddress, final int elementAddress, final int modelIdentifier,
+                     final int appKeyIndex, final String appKey, final int address, final int publishTtl) {
+            this.type = type;
+            this.nodeAddress = nodeAddress;
+            this.elementAddress = elementAddress;
+            this.modelIdentifier = modelIdentifier;
+            this.appKeyIndex = appKeyIndex;
+            this.appKey = appKey;
+            this.address = address;
+            this.publishTtl = publishTtl;
+        }
+
+        public StepType getType() {
+            return type;
+        }
+
+        /**
+         * Returns the unicast address of the node to be configured
+         */
+        public int getNodeAddress() {
+            return nodeAddress;
+        }
+
+        public int getElementAddress() {
+            return elementAddress;
+        }
+
+        public int getModelIdentifier() {
+            return modelIdentifier;
+        }
+
+        public int getAppKeyIndex() {
+            return appKeyIndex;
+        }
+
+        public String getAppKey() {
+            return appKey;
+        }
+
+        /**
+         * Returns the publish address of a publication step or the subscription address of a subscription step
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        public int getPublishTtl() {
+            return publishTtl;
+        }
+
+        @Override
+        public String toString() {
+            return type + " 0x" + Integer.toHexString(nodeAddress);
+        }
+    }
+
+    public static final class Builder {
+
+        private final List<Step> steps = new ArrayList<>();
+
+        /**
+         * Adds an application key to a node
+         *
+         * @param nodeAddress unicast address of the node
+         * @param appKeyIndex application key index
+         * @param appKey      application key
+         */
+        public Builder addAppKey(final int nodeAddress, final int appKeyIndex, final String appKey) {
+            if (appKey == null || appKey.isEmpty())
+                throw new IllegalArgumentException("Application key must not be empty");
+            steps.add(new Step(StepType.APP_KEY_ADD, nodeAddress, nodeAddress, 0, appKeyIndex, appKey, 0, 0));
+            return this;
+        }
+
+        /**
+         * Binds an application key to a model
+         *
+         * @param nodeAddress     unicast address of the node
+         * @param elementAddress  address of the element containing the model
+         * @param modelIdentifier identifier of the model
+         * @param appKeyIndex     application key index
+         */
+        public Builder bindAppKey(final int nodeAddress, final int elementAddress, final int modelIdentifier, final int appKeyIndex) {
+            steps.add(new Step(StepType.MODEL_APP_BIND, nodeAddress, elementAddress, modelIdentifier, appKeyIndex, null, 0, 0));
+            return this;
+        }
+
+        /**
+         * Sets the publish address of a model, the model publishes without periodic publishing or retransmissions
+         *
+         * @param nodeAddress     unicast address of the node
+         * @param elementAddress  address of the element containing the model
+         * @param modelIdentifier identifier of the model
+         * @param publishAddress  address the model publishes to
+         * @param appKeyIndex     application key index used for publishing
+         * @param publishTtl      ttl of the published messages
+         */
+        public Builder setPublication(final int nodeAddress, final int elementAddress, final int modelIdentifier,
+                                      final int publishAddress, final int appKeyIndex, final int publishTtl) {
+            steps.add(new Step(StepType.MODEL_PUBLICATION_SET, nodeAddress, elementAddress, modelIdentifier, appKeyIndex, null, publishAddress, publishTtl));
+            return this;
+        }
+
+        /**
+         * Adds a subscription address to a model
+         *
+         * @param nodeAddress         unicast address of the node
+         * @param elementAddress      address of the element containing the model
+         * @param modelIdentifier     identifier of the model
+         * @param subscriptionAddress address the model subscribes to
+         */
+        public Builder addSubscription(final int nodeAddress, final int elementAddress, final int modelIdentifier, final int subscriptionAddress) {
+            steps.add(new Step(StepType.MODEL_SUBSCRIPTION_ADD, nodeAddress, elementAddress, modelIdentifier, 0, null, subscriptionAddress, 0));
+            return this;
+        }
+
+        public ConfigurationPlan build() {
+            return new ConfigurationPlan(new ArrayList<>(steps));
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigAppKeyStatus;
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigModelAppStatus;
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigModelPublicationStatus;
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigModelSubscriptionStatus;
+import no.nordicsemi.android.meshprovisioner.configuration.MeshModel;
+import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
+import no.nordicsemi.android.meshprovisioner.utils.Element;
+
+/**
+ * Executes a {@link ConfigurationPlan} with a bounded number of outstanding requests.
+ * <p>
+ * Before a step is sent it is compared with the state known for the node and steps that are already in place are skipped.
+ * Steps of different nodes run concurrently, up to the number of requests allowed to be outstanding through the proxy, while
+ * the steps of a node are sent one type at a time so that an application key is added before it is bound and bound before it
+ * is used for publishing. Once a step of a node fails the remaining steps of that node are cancelled.
+ * </p>
+ * <p>
+ * Outstanding transactions are told apart by the node and the opcode of the status, so a node never has two steps of the same
+ * type outstanding. Subscriptions do not depend on the application keys and are sent alongside them when a node may have more
+ * than one request outstanding.
+ * </p>
+ * <p>
+ * Messages are sent through the {@link RequestDispatcher} without holding the lock of the scheduler, a step is reserved before
+ * it is sent and becomes outstanding once the dispatcher returns.
+ * </p>
+ */
+public final class ConfigurationScheduler {
+
+    private static final String TAG = ConfigurationScheduler.class.getSimpleName();
+    private static final ConfigurationPlan.StepType[] STEP_TYPES = ConfigurationPlan.StepType.values();
+    //Steps of a chain are sent one at a time in this order, chains of a node are independent of each other
+    private static final ConfigurationPlan.StepType[][] CHAINS = {
+            {ConfigurationPlan.StepType.APP_KEY_ADD, ConfigurationPlan.StepType.MODEL_APP_BIND, ConfigurationPlan.StepType.MODEL_PUBLICATION_SET},
+            {ConfigurationPlan.StepType.MODEL_SUBSCRIPTION_ADD}
+    };
+
+    /**
+     * Looks up nodes and sends the configuration messages of the plan
+     */
+    public interface RequestDispatcher {
+
+        /**
+         * Returns the provisioned node with the given unicast address or null if the node is not known
+         */
+        ProvisionedMeshNode getNode(final int unicastAddress);
+
+        /**
+         * Sends the configuration message of a step
+         *
+         * @param node node to be configured
+         * @param step step to be sent
+         * @return the message sent to the node, used to correlate the status with the step
+         */
+        ConfigMessage send(final ProvisionedMeshNode node, final ConfigurationPlan.Step step);
+    }
+
+    private final List<NodeSteps> mNodes;
+    private final Map<ConfigMessage, OutstandingStep> mOutstandingSteps = new IdentityHashMap<>();
+    //Results of requests whose status arrived before the dispatcher returned them
+    private final Map<ConfigMessage, ConfigurationPlan.StepResult> mEarlyResults = new IdentityHashMap<>();
+    private final RequestDispatcher mDispatcher;
+    private final Handler mHandler;
+    private final ConfigurationPlanCallbacks mCallbacks;
+    private final int mMaxOutstandingRequests;
+    private final int mMaxOutstandingRequestsPerNode;
+    private final long mTimeout;
+    private final int mTotalSteps;
+    private int mCompletedSteps;
+    private int mFailedSteps;
+    private int mDispatchingSteps;
+    private int mNextNode;
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mFinished;
+
+    /**
+     * Creates a scheduler for the given plan
+     *
+     * @param plan                          configuration plan
+     * @param dispatcher                    dispatcher sending the messages
+     * @param handler                       handler used to time out steps without a status
+     * @param maxOutstandingRequests        maximum number of requests outstanding through the proxy at any time
+     * @param maxOutstandingRequestsPerNode maximum number of requests outstanding to a single node at any time
+     * @param timeout                       time in milliseconds to wait for the status of a step
+     * @param callbacks                     callbacks reporting the progress of the plan
+     */
+    public ConfigurationScheduler(final ConfigurationPlan plan, final RequestDispatcher dispatcher, final Handler handler,
+                                  final int maxOutstandingRequests, final int maxOutstandingRequestsPerNode, final long timeout,
+                                  final ConfigurationPlanCallbacks callbacks) {
+        if (maxOutstandingRequests <= 0 || maxOutstandingRequestsPerNode <= 0)
+            throw new IllegalArgumentException("Number of outstanding requests must be greater than zero");
+        mDispatcher = dispatcher;
+        mHandler = handler;
+        mCallbacks = callbacks;
+        mMaxOutstandingRequests = maxOutstandingRequests;
+        mMaxOutstandingRequestsPerNode = maxOutstandingRequestsPerNode;
+        mTimeout = timeout;
+        mTotalSteps = plan.getSteps().size();
+        final Map<Integer, NodeSteps> nodes = new LinkedHashMap<>();
+        for (ConfigurationPlan.Step step : plan.getSteps()) {
+            NodeSteps nodeSteps = nodes.get(step.getNodeAddress());
+            if (nodeSteps == null) {
+                nodeSteps = new NodeSteps();
+                nodes.put(step.getNodeAddress(), nodeSteps);
+            }
+            nodeSteps.steps.get(step.getType().ordinal()).add(step);
+        }
+        mNodes = new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * Starts sending the steps of the plan
+     */
+    public void start() {
+        synchronized (this) {
+            if (mStarted)
+                return;
+            mStarted = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Cancels the steps of the plan that have not completed yet
+     */
+    public synchronized void cancel() {
+        if (mFinished)
+            return;
+        mCancelled = true;
+        for (OutstandingStep outstandingStep : mOutstandingSteps.values()) {
+            mHandler.removeCallbacks(outstandingStep.timeout);
+            complete(outstandingStep.step, ConfigurationPlan.StepResult.CANCELLED);
+        }
+        mOutstandingSteps.clear();
+        for (NodeSteps nodeSteps : mNodes) {
+            nodeSteps.outstanding = 0;
+            Arrays.fill(nodeSteps.chainOutstanding, false);
+            cancelRemainingSteps(nodeSteps);
+        }
+        finishIfDone();
+    }
+
+    /**
+     * Returns the number of requests waiting for a status
+     */
+    public synchronized int getOutstandingRequestCount() {
+        return mOutstandingSteps.size() + mDispatchingSteps;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Handles the completion of a transaction, invoked by the configuration handler once the status of a request has been parsed
+     *
+     * @param request  message that was sent
+     * @param response message that parsed the status
+     */
+    public void onTransactionCompleted(final ConfigMessage request, final ConfigMessage response) {
+        onTransactionCompleted(request, isSuccessful(response) ? ConfigurationPlan.StepResult.SUCCESS : ConfigurationPlan.StepResult.FAILED);
+    }
+
+    /**
+     * Handles a transaction that was given up on before the step timed out, e.g. once the message has been sent the maximum
+     * number of times without a status
+     *
+     * @param request message that was sent
+     */
+    public void onTransactionFailed(final ConfigMessage request) {
+        onTransactionCompleted(request, ConfigurationPlan.StepResult.TIMED_OUT);
+    }
+
+    private void onTransactionCompleted(final ConfigMessage request, final ConfigurationPlan.StepResult result) {
+        synchronized (this) {
+            final OutstandingStep outstandingStep = mOutstandingSteps.remove(request);
+            if (outstandingStep == null) {
+                if (mDispatchingSteps > 0) {
+                    mEarlyResults.put(request, result);
+                }
+                return;
+            }
+
+            mHandler.removeCallbacks(outstandingStep.timeout);
+            onStepCompleted(outstandingStep.nodeSteps, outstandingStep.step, result);
+        }
+        schedule();
+    }
+
+    private void onTimeout(final ConfigMessage request) {
+        synchronized (this) {
+            final OutstandingStep outstandingStep = mOutstandingSteps.remove(request);
+            if (outstandingStep == null)
+                return;
+
+            Log.v(TAG, "No status received for " + outstandingStep.step);
+            onStepCompleted(outstandingStep.nodeSteps, outstandingStep.step, ConfigurationPlan.StepResult.TIMED_OUT);
+        }
+        schedule();
+    }
+
+    private void onStepCompleted(final NodeSteps nodeSteps, final ConfigurationPlan.Step step, final ConfigurationPlan.StepResult result) {
+        nodeSteps.outstanding--;
+        nodeSteps.chainOutstanding[getChain(step.getType())] = false;
+        complete(step, result);
+        if (result != ConfigurationPlan.StepResult.SUCCESS) {
+            cancelRemainingSteps(nodeSteps);
+        }
+    }
+
+    /**
+     * Sends the next steps of every node until the limits of outstanding requests are reached
+     */
+    private void schedule() {
+        while (true) {
+            final ReservedStep reservedStep;
+            synchronized (this) {
+                reservedStep = reserveNextStep();
+                if (reservedStep == null) {
+                    finishIfDone();
+                    return;
+                }
+            }
+            //The dispatcher calls in to the configuration handler, which must not be done while holding the lock
+            final ConfigMessage request = mDispatcher.send(reservedStep.node, reservedStep.step);
+            synchronized (this) {
+                onStepSent(reservedStep, request);
+            }
+        }
+    }
+
+    /**
+     * Returns the next step to be sent and reserves its place among the outstanding requests, steps that are already in
+     * place or whose node is unknown are completed on the way
+     *
+     * @return the reserved step or null if no step may be sent now
+     */
+    private ReservedStep reserveNextStep() {
+        if (mCancelled || mNodes.isEmpty())
+            return null;
+
+        //Nodes take turns so that every node gets its share of the outstanding requests
+        int idleNodes = 0;
+        while (idleNodes < mNodes.size() && mOutstandingSteps.size() + mDispatchingSteps < mMaxOutstandingRequests) {
+            final NodeSteps nodeSteps = mNodes.get(mNextNode);
+            mNextNode = (mNextNode + 1) % mNodes.size();
+            final ConfigurationPlan.Step step = nextStep(nodeSteps);
+            if (step == null) {
+                idleNodes++;
+                continue;
+            }
+            idleNodes = 0;
+
+            final ProvisionedMeshNode node = mDispatcher.getNode(step.getNodeAddress());
+            if (node == null) {
+                Log.v(TAG, "Unknown node for " + step);
+                complete(step, ConfigurationPlan.StepResult.FAILED);
+                cancelRemainingSteps(nodeSteps);
+            } else if (isConfigured(node, step)) {
+                complete(step, ConfigurationPlan.StepResult.SKIPPED);
+            } else {
+                nodeSteps.outstanding++;
+                nodeSteps.chainOutstanding[getChain(step.getType())] = true;
+                mDispatchingSteps++;
+                return new ReservedStep(node, nodeSteps, step);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next step of a node that may be sent now or null if the node has to wait for outstanding steps
+     */
+    private ConfigurationPlan.Step nextStep(final NodeSteps nodeSteps) {
+        if (nodeSteps.outstanding >= mMaxOutstandingRequestsPerNode)
+            return null;
+
+        for (int chain = 0; chain < CHAINS.length; chain++) {
+            //A status could not be told apart from the status of another step of the same type, and steps of the
+            //next type depend on the outstanding step, so a chain waits until its outstanding step completes
+            if (nodeSteps.chainOutstanding[chain])
+                continue;
+            final ConfigurationPlan.StepType[] types = CHAINS[chain];
+            while (nodeSteps.chainPosition[chain] < types.length && nodeSteps.steps.get(types[nodeSteps.chainPosition[chain]].ordinal()).isEmpty()) {
+                nodeSteps.chainPosition[chain]++;
+            }
+            if (nodeSteps.chainPosition[chain] < types.length)
+                return nodeSteps.steps.get(types[nodeSteps.chainPosition[chain]].ordinal()).poll();
+        }
+        return null;
+    }
+
+    private static int getChain(final ConfigurationPlan.StepType type) {
+        for (int chain = 0; chain < CHAINS.length; chain++) {
+            for (ConfigurationPlan.StepType chainType : CHAINS[chain]) {
+                if (chainType == type)
+                    return chain;
+            }
+        }
+        throw new IllegalArgumentException("No chain for step type " + type);
+    }
+
+    /**
+     * Makes a reserved step outstanding once its message has been sent
+     *
+     * @param reservedStep step that was sent
+     * @param request      message sent
+     */
+    private void onStepSent(final ReservedStep reservedStep, final ConfigMessage request) {
+        mDispatchingSteps--;
+        final ConfigurationPlan.StepResult earlyResult = mEarlyResults.remove(request);
+        if (mDispatchingSteps == 0) {
+            mEarlyResults.clear();
+        }
+        if (mCancelled) {
+            //The plan was cancelled while the message was being sent, the counters of the node have been reset
+            complete(reservedStep.step, ConfigurationPlan.StepResult.CANCELLED);
+            finishIfDone();
+            return;
+        }
+        if (earlyResult != null) {
+            onStepCompleted(reservedStep.nodeSteps, reservedStep.step, earlyResult);
+            return;
+        }
+
+        final OutstandingStep outstandingStep = new OutstandingStep(reservedStep.step, reservedStep.nodeSteps, () -> onTimeout(request));
+        mOutstandingSteps.put(request, outstandingStep);
+        mHandler.postDelayed(outstandingStep.timeout, mTimeout);
+    }
+
+    private void cancelRemainingSteps(final NodeSteps nodeSteps) {
+        for (ArrayDeque<ConfigurationPlan.Step> steps : nodeSteps.steps) {
+            while (!steps.isEmpty()) {
+                complete(steps.poll(), ConfigurationPlan.StepResult.CANCELLED);
+            }
+        }
+    }
+
+    private void complete(final ConfigurationPlan.Step step, final ConfigurationPlan.StepResult result) {
+        mCompletedSteps++;
+        if (result != ConfigurationPlan.StepResult.SUCCESS && result != ConfigurationPlan.StepResult.SKIPPED) {
+            mFailedSteps++;
+        }
+        if (mCallbacks != null)
+            mCallbacks.onConfigurationStepCompleted(step, result, mCompletedSteps, mTotalSteps);
+    }
+
+    private void finishIfDone() {
+        if (mFinished || mCompletedSteps < mTotalSteps)
+            return;
+        mFinished = true;
+        if (mCallbacks != null)
+            mCallbacks.onConfigurationPlanCompleted(mFailedSteps);
+    }
+
+    /**
+     * Checks if the state known for the node already reflects the step
+     *
+     * @param node node to be configured
+     * @param step configuration step
+     * @return true if the step does not need to be sent
+     */
+    static boolean isConfigured(final ProvisionedMeshNode node, final ConfigurationPlan.Step step) {
+        if (step.getType() == ConfigurationPlan.StepType.APP_KEY_ADD)
+            return node.getAddedAppKeys().containsKey(step.getAppKeyIndex());
+
+        final Element element = node.getElements().get(step.getElementAddress());
+        final MeshModel model = element == null ? null : element.getMeshModels().get(step.getModelIdentifier());
+        if (model == null)
+            return false;
+
+        switch (step.getType()) {
+            case MODEL_APP_BIND:
+                return model.getBoundAppKeyIndexes().contains(step.getAppKeyIndex());
+            case MODEL_PUBLICATION_SET:
+                return model.getPublishAddress() != null && model.getPublishAddressInt() == step.getAddress();
+            case MODEL_SUBSCRIPTION_ADD:
+                for (byte[] subscriptionAddress : model.getSubscriptionAddresses()) {
+                    if (AddressUtils.getUnicastAddressInt(subscriptionAddress) == step.getAddress())
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSuccessful(final ConfigMessage response) {
+        if (response instanceof ConfigAppKeyStatus)
+            return ((ConfigAppKeyStatus) response).isSuccessful();
+        if (response instanceof ConfigModelAppStatus)
+            return ((ConfigModelAppStatus) response).isSuccessful();
+        if (response instanceof ConfigModelPublicationStatus)
+            return ((ConfigModelPublicationStatus) response).isSuccessful();
+        if (response instanceof ConfigModelSubscriptionStatus)
+            return ((ConfigModelSubscriptionStatus) response).isSuccessful();
+        return true;
+    }
+
+    /**
+     * Steps of a node that have not been sent yet, grouped by type
+     */
+    private static final class NodeSteps {
+        private final List<ArrayDeque<ConfigurationPlan.Step>> steps = new ArrayList<>(STEP_TYPES.length);
+        private final int[] chainPosition = new int[CHAINS.length];
+        private final boolean[] chainOutstanding = new boolean[CHAINS.length];
+        private int outstanding;
+
+        private NodeSteps() {
+            for (int i = 0; i < STEP_TYPES.length; i++) {
+                steps.add(new ArrayDeque<ConfigurationPlan.Step>());
+            }
+        }
+    }
+
+    /**
+     * Step reserved among the outstanding requests while its message is being sent
+     */
+    private static final class ReservedStep {
+        private final ProvisionedMeshNode node;
+        private final NodeSteps nodeSteps;
+        private final ConfigurationPlan.Step step;
+
+        private ReservedStep(final ProvisionedMeshNode node, final NodeSteps nodeSteps, final ConfigurationPlan.Step step) {
+            this.node = node;
+            this.nodeSteps = nodeSteps;
+            this.step = step;
+        }
+    }
+
+    private static final class OutstandingStep {
+        private final ConfigurationPlan.Step step;
+        private final NodeSteps nodeSteps;
+        private final Runnable timeout;
+
+        private OutstandingStep(final ConfigurationPlan.Step step, final NodeSteps nodeSteps, final Runnable timeout) {
+            this.step = step;
+            this.nodeSteps = nodeSteps;
+            this.timeout = timeout;
+        }
+    }
+}
@@ -24,16 +24,39 @@ package no.nordicsemi.android.meshprovisioner;
 
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 import no.nordicsemi.android.meshprovisioner.configuration.ConfigNodeResetStatus;
+import no.nordicsemi.android.meshprovisioner.transport.ApplicationKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.DeviceKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.ReplayProtectionList;
+import no.nordicsemi.android.meshprovisioner.transport.SubnetTable;
+import no.nordicsemi.android.meshprovisioner.transport.TransportStatistics;
 
 public interface InternalTransportCallbacks {
 
     /**
      * Send mesh pdu
      * @param meshNode mesh node to send to
-     * @param pdu mesh pdu to be sent,
+     * @param pdu mesh pdu to be sent, queued with {@link OutgoingPduScheduler.Priority#CONTROL} priority
      */
     void sendPdu(final BaseMeshNode meshNode, final byte[] pdu);
 
+    /**
+     * Send mesh pdu
+     * @param meshNode mesh node to send to
+     * @param pdu mesh pdu to be sent
+     * @param priority priority class the pdu is queued with
+     */
+    void sendPdu(final BaseMeshNode meshNode, final byte[] pdu, final OutgoingPduScheduler.Priority priority);
+
+    /**
+     * Send mesh pdu
+     * @param meshNode mesh node to send to
+     * @param dst destination address of the pdu, which selects the rate the pdu is paced with
+     * @param pdu mesh pdu to be sent
+     * @param priority priority class the pdu is queued with
+     * @param onReleased invoked once the pdu has been released from the queue and written to the proxy
+     */
+    void sendPdu(final BaseMeshNode meshNode, final int dst, final byte[] pdu, final OutgoingPduScheduler.Priority priority, final Runnable onReleased);
+
     /**
      * Update mesh node
      * @param meshNode mesh to be updated
@@ -45,4 +68,34 @@ public interface InternalTransportCallbacks {
      * @param meshNode mesh to be updated
      */
     void onMeshNodeReset(final ProvisionedMeshNode meshNode);
+
+    /**
+     * Returns the table of network keys known to the provisioner, used to filter and decrypt received pdus
+     */
+    SubnetTable getSubnetTable();
+
+    /**
+     * Returns the counters of pdus dropped on the receive path
+     */
+    TransportStatistics getTransportStatistics();
+
+    /**
+     * Returns the replay protection list of the provisioner
+     */
+    ReplayProtectionList getReplayProtectionList();
+
+    /**
+     * Returns the device keys of the provisioned nodes indexed by element address
+     */
+    DeviceKeyTable getDeviceKeyTable();
+
+    /**
+     * Returns the application keys added to the provisioned nodes indexed by AID
+     */
+    ApplicationKeyTable getApplicationKeyTable();
+
+    /**
+     * Returns the limiter pacing the pdus injected in to the mesh, to be told about delivered and lost messages
+     */
+    AirtimeLimiter getAirtimeLimiter();
 }
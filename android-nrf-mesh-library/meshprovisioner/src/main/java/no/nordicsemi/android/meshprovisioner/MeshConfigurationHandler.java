@@ -23,6 +23,15 @@
 package no.nordicsemi.android.meshprovisioner;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import no.nordicsemi.android.meshprovisioner.configuration.ConfigAppKeyAdd;
 import no.nordicsemi.android.meshprovisioner.configuration.ConfigAppKeyStatus;
@@ -42,133 +51,355 @@ import no.nordicsemi.android.meshprovisioner.configuration.GenericOnOffGet;
 import no.nordicsemi.android.meshprovisioner.configuration.GenericOnOffSet;
 import no.nordicsemi.android.meshprovisioner.configuration.GenericOnOffSetUnacknowledged;
 import no.nordicsemi.android.meshprovisioner.configuration.GenericOnOffStatus;
+import no.nordicsemi.android.meshprovisioner.configuration.MeshMessageReceiver;
 import no.nordicsemi.android.meshprovisioner.configuration.MeshModel;
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
+import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
+import no.nordicsemi.android.meshprovisioner.messages.Message;
+import no.nordicsemi.android.meshprovisioner.opcodes.ApplicationMessageOpCodes;
 import no.nordicsemi.android.meshprovisioner.opcodes.ConfigMessageOpCodes;
+import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
 
 class MeshConfigurationHandler {
 
     private static final String TAG = MeshConfigurationHandler.class.getSimpleName();
+    private static final long FIRST_ATTEMPT = -2;
 
     private final Context mContext;
     private final InternalTransportCallbacks mInternalTransportCallbacks;
     private final InternalMeshManagerCallbacks mInternalMeshManagerCallbacks;
     private MeshConfigurationStatusCallbacks mStatusCallbacks;
-    private ConfigMessage configMessage;
+    private final MeshTransactionTable mTransactions = new MeshTransactionTable(MeshTransactionTable.DEFAULT_TIMEOUT);
+    private final RetransmissionManager mRetransmissionManager = new RetransmissionManager(RetransmissionManager.DEFAULT_MAX_ATTEMPTS);
+    private final Map<ProvisionedMeshNode, MeshMessageReceiver> mReceivers = new WeakHashMap<>();
+    //Retransmission timeouts to be started once the pdus of a message have been written to the proxy
+    private final Map<ConfigMessage, Long> mPendingRetransmissionTimeouts = Collections.synchronizedMap(new IdentityHashMap<ConfigMessage, Long>());
+    private final Map<ConfigMessage, Runnable> mRetransmissionTimers = Collections.synchronizedMap(new IdentityHashMap<ConfigMessage, Runnable>());
+    private final Handler mHandler;
+    private final MessageCoalescer mMessageCoalescer;
+    private final Runnable mExpiryCheck = this::onExpiryCheck;
+    //Message most recently sent, only kept for the deprecated getConfigurationState
+    private ConfigMessage mLastSentMessage;
+    private ConfigurationScheduler mConfigurationScheduler;
 
     MeshConfigurationHandler(final Context context, final InternalTransportCallbacks internalTransportCallbacks, final InternalMeshManagerCallbacks internalMeshManagerCallbacks) {
         this.mContext = context;
         this.mInternalTransportCallbacks = internalTransportCallbacks;
         this.mInternalMeshManagerCallbacks = internalMeshManagerCallbacks;
+        this.mHandler = new Handler(context.getMainLooper());
+        this.mMessageCoalescer = new MessageCoalescer(mHandler, MessageCoalescer.DEFAULT_WINDOW);
     }
 
     public void setConfigurationCallbacks(final MeshConfigurationStatusCallbacks statusCallbacks) {
         this.mStatusCallbacks = statusCallbacks;
+        for (MeshMessageReceiver receiver : mReceivers.values()) {
+            receiver.setConfigurationStatusCallbacks(statusCallbacks);
+        }
+    }
+
+    /**
+     * Parses a network pdu received from the proxy node and passes it on to the outstanding message it belongs to.
+     * <p>
+     * Access messages are matched by their source address and opcode, or by their opcode alone for messages sent to a group address,
+     * and block acknowledgements by their source address, with the transactions added when sending. Messages that do not belong to
+     * any outstanding transaction are reported as unknown.
+     * </p>
+     *
+     * @param meshNode proxy node the pdu was received from
+     * @param pdu      buffer containing the network pdu
+     * @param length   length of the network pdu
+     */
+    protected void parseConfigurationNotifications(final ProvisionedMeshNode meshNode, final byte[] pdu, final int length) {
+        final Message message = getReceiver(meshNode).parsePdu(pdu, length);
+        if (message == null) {
+            Log.v(TAG, "Message reassembly may not be complete yet");
+            return;
+        }
+
+        final int src = AddressUtils.getUnicastAddressInt(message.getSrc());
+        final long now = SystemClock.elapsedRealtime();
+        if (message instanceof AccessMessage) {
+            final MeshTransactionTable.Transaction transaction = mTransactions.remove(src, message.getOpCode(), now);
+            reportExpiredTransactions(now);
+            if (transaction == null) {
+                Log.v(TAG, "No outstanding transaction for opcode " + Integer.toHexString(message.getOpCode()) + " from " + src);
+                if (mStatusCallbacks != null)
+                    mStatusCallbacks.onUnknownPduReceived(meshNode);
+                return;
+            }
+            final ConfigMessage request = transaction.getRequest();
+            mRetransmissionManager.onStatusReceived(request, request.getMeshNode().getTtl(), message.getTtl(), now);
+            cancelRetransmission(request);
+            mInternalTransportCallbacks.getAirtimeLimiter().onDelivered(src, SystemClock.uptimeMillis());
+            final ConfigMessage response = transaction.getResponse();
+            response.onMessageReceived(message);
+            if (response instanceof ConfigCompositionDataStatus) {
+                mInternalMeshManagerCallbacks.onUnicastAddressChanged(((ConfigCompositionDataStatus) response).getUnicastAddress());
+            }
+            if (mConfigurationScheduler != null) {
+                mConfigurationScheduler.onTransactionCompleted(transaction.getRequest(), response);
+            }
+            sendNextTransaction(transaction);
+        } else {
+            for (ConfigMessage request : mTransactions.getRequests(src, now)) {
+                if (request.onBlockAcknowledgementReceived((ControlMessage) message))
+                    return;
+            }
+            Log.v(TAG, "No outstanding segmented message for the control message from " + src);
+        }
+    }
+
+    /**
+     * Returns the receiver parsing the pdus received through the given proxy node
+     *
+     * @param meshNode proxy node
+     */
+    private MeshMessageReceiver getReceiver(final ProvisionedMeshNode meshNode) {
+        MeshMessageReceiver receiver = mReceivers.get(meshNode);
+        if (receiver == null) {
+            receiver = new MeshMessageReceiver(mContext, meshNode, mInternalTransportCallbacks);
+            receiver.setConfigurationStatusCallbacks(mStatusCallbacks);
+            mReceivers.put(meshNode, receiver);
+        }
+        return receiver;
+    }
+
+    /**
+     * Adds a transaction for an acknowledged message and sends it, unless a message waiting for the same status from the same
+     * destination is outstanding, in which case it is sent once that message completes.
+     * <p>
+     * Messages sent to a unicast address are sent again if the status is not received within the retransmission timeout of the
+     * destination, counted from when the pdus of the message have been written to the proxy. Messages sent to a group address
+     * are sent once as any number of nodes may respond.
+     * </p>
+     *
+     * @param dst          destination address of the message
+     * @param statusOpCode opcode of the status expected back
+     * @param request      message to be sent
+     * @param response     message parsing the status
+     * @param sender       sends the message
+     */
+    private void addTransaction(final byte[] dst, final int statusOpCode, final ConfigMessage request, final ConfigMessage response, final Runnable sender) {
+        final int address = AddressUtils.getUnicastAddressInt(dst);
+        final long now = SystemClock.elapsedRealtime();
+        mLastSentMessage = response;
+        final boolean outstanding = mTransactions.add(address, statusOpCode, request, response, sender, now);
+        mHandler.removeCallbacks(mExpiryCheck);
+        mHandler.postDelayed(mExpiryCheck, MeshTransactionTable.DEFAULT_TIMEOUT);
+        reportExpiredTransactions(now);
+        if (outstanding) {
+            startTransaction(address, request, sender);
+        }
+    }
+
+    private void startTransaction(final int dst, final ConfigMessage request, final Runnable sender) {
+        if ((dst & 0x8000) == 0) {
+            mPendingRetransmissionTimeouts.put(request, FIRST_ATTEMPT);
+            request.setOnSentListener(() -> onRequestSent(request, dst));
+        }
+        sender.run();
+    }
+
+    /**
+     * Sends the message queued behind a transaction that completed, failed or expired
+     *
+     * @param transaction transaction that is no longer outstanding
+     */
+    private void sendNextTransaction(final MeshTransactionTable.Transaction transaction) {
+        final MeshTransactionTable.Transaction next = mTransactions.promote(transaction, SystemClock.elapsedRealtime());
+        if (next == null)
+            return;
+        //The message was encrypted when it was queued, its sequence numbers may since have been overtaken by other messages
+        next.getRequest().recreateAccessMessage();
+        startTransaction(next.getDst(), next.getRequest(), next::send);
+    }
+
+    /**
+     * Reports the transactions that expired without a status and sends the messages queued behind them
+     *
+     * @param now current time in milliseconds
+     */
+    private void reportExpiredTransactions(final long now) {
+        for (MeshTransactionTable.Transaction transaction : mTransactions.pollExpired(now)) {
+            final ConfigMessage request = transaction.getRequest();
+            cancelRetransmission(request);
+            if (mStatusCallbacks != null)
+                mStatusCallbacks.onTransactionFailed(request.getMeshNode(), request.getState());
+            if (mConfigurationScheduler != null) {
+                mConfigurationScheduler.onTransactionFailed(request);
+            }
+            sendNextTransaction(transaction);
+        }
+    }
+
+    private void onExpiryCheck() {
+        final long now = SystemClock.elapsedRealtime();
+        reportExpiredTransactions(now);
+        if (mTransactions.size() > 0) {
+            mHandler.postDelayed(mExpiryCheck, MeshTransactionTable.DEFAULT_TIMEOUT);
+        }
+    }
+
+    /**
+     * Starts the retransmission timer of a message once its pdus have been written to the proxy
+     *
+     * @param request message sent
+     * @param dst     destination address of the message
+     */
+    private void onRequestSent(final ConfigMessage request, final int dst) {
+        final Long pendingTimeout = mPendingRetransmissionTimeouts.remove(request);
+        if (pendingTimeout == null)
+            return;
+
+        final long timeout = pendingTimeout == FIRST_ATTEMPT ?
+                mRetransmissionManager.onMessageSent(request, dst, request.getMeshNode().getTtl(), SystemClock.elapsedRealtime()) : pendingTimeout;
+        scheduleRetransmission(request, timeout);
+    }
+
+    private void scheduleRetransmission(final ConfigMessage request, final long timeout) {
+        final Runnable timer = () -> onRetransmissionTimeout(request);
+        final Runnable previous = mRetransmissionTimers.put(request, timer);
+        if (previous != null) {
+            mHandler.removeCallbacks(previous);
+        }
+        mHandler.postDelayed(timer, timeout);
+    }
+
+    /**
+     * Stops retransmitting a message that has completed or is no longer waited for
+     *
+     * @param request message sent
+     */
+    private void cancelRetransmission(final ConfigMessage request) {
+        request.setOnSentListener(null);
+        mPendingRetransmissionTimeouts.remove(request);
+        final Runnable timer = mRetransmissionTimers.remove(request);
+        if (timer != null) {
+            mHandler.removeCallbacks(timer);
+        }
+        mRetransmissionManager.cancel(request);
     }
 
-    protected void handleConfigurationWriteCallbacks(final ProvisionedMeshNode meshNode, final byte[] pdu) {
-        switch (configMessage.getState()) {
-            case COMPOSITION_DATA_GET:
-                //Composition data get complete,
-                //We directly switch to next state because there is no acknowledgements involved
-                //configMessage = new ConfigCompositionDataStatus(mContext, mMeshNode, mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case APP_KEY_ADD:
-                break;
-            case APP_KEY_STATUS:
-                //TODO check app key status block ack
-                //Block ack for app key status sent
-                break;
-            case CONFIG_MODEL_APP_BIND:
-                configMessage = new ConfigModelAppStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case CONFIG_MODEL_APP_STATUS:
-                break;
-            case CONFIG_MODEL_PUBLICATION_SET:
-                break;
-            case CONFIG_MODEL_SUBSCRIPTION_ADD:
-                break;
-            case GENERIC_ON_OFF_GET:
-                //Switch the state to Generic on off status generic on off get is an acknowledged message.
-                configMessage = new GenericOnOffStatus(mContext, configMessage.getMeshNode(), configMessage.getMeshModel(), configMessage.getAppKeyIndex(), mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case GENERIC_ON_OFF_SET:
-                //Switch the state to Generic on off status generic on off set is an acknowledged message.
-                configMessage = new GenericOnOffStatus(mContext, configMessage.getMeshNode(), configMessage.getMeshModel(), configMessage.getAppKeyIndex(), mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case GENERIC_ON_OFF_SET_UNACKNOWLEDGED:
-                //We don't expect a generic on off status as this is an unacknowledged message
-                break;
-            case CONFIG_NODE_RESET:
-                //Switch to config node reset status since we are expecting a status back
-                configMessage = new ConfigNodeResetStatus(mContext, configMessage.getMeshNode(), mInternalTransportCallbacks, mStatusCallbacks);
-                break;
+    /**
+     * Gives up on a message that did not receive a status after being sent the maximum number of times, so that the
+     * configuration scheduler does not wait for the transaction timeout
+     *
+     * @param request message sent
+     */
+    private void onTransactionFailed(final ConfigMessage request) {
+        cancelRetransmission(request);
+        final MeshTransactionTable.Transaction transaction = mTransactions.remove(request);
+        if (transaction == null)
+            return;
+
+        Log.v(TAG, "No status received for " + request.getState() + ", giving up");
+        if (mStatusCallbacks != null)
+            mStatusCallbacks.onTransactionFailed(request.getMeshNode(), request.getState());
+        if (mConfigurationScheduler != null) {
+            mConfigurationScheduler.onTransactionFailed(request);
+        }
+        sendNextTransaction(transaction);
+    }
+
+    /**
+     * Sends a message again if it is still waiting for a status when its retransmission timer expires
+     *
+     * @param request message sent
+     */
+    private void onRetransmissionTimeout(final ConfigMessage request) {
+        mRetransmissionTimers.remove(request);
+        if (request.hasQueuedPayloads()) {
+            //Segments sent again are still queued, the message is not lost and the timer starts again once they are written
+            final long timeout = mRetransmissionManager.getTimeout(request, request.getMeshNode().getTtl());
+            if (timeout != RetransmissionManager.NO_RETRANSMISSION) {
+                mPendingRetransmissionTimeouts.put(request, timeout);
+            }
+            return;
+        }
+
+        final long timeout = mRetransmissionManager.onTimeout(request, request.getMeshNode().getTtl(), SystemClock.elapsedRealtime());
+        if (timeout == RetransmissionManager.NO_RETRANSMISSION) {
+            onTransactionFailed(request);
+            return;
+        }
+
+        mInternalTransportCallbacks.getAirtimeLimiter().onLoss(request.getDst(), SystemClock.uptimeMillis());
+        Log.v(TAG, "No status received for " + request.getState() + ", retransmitting with a timeout of " + String.format(Locale.US, "%d ms", timeout));
+        mPendingRetransmissionTimeouts.put(request, timeout);
+        if (!request.retransmit()) {
+            onTransactionFailed(request);
         }
     }
 
-    protected void parseConfigurationNotifications(final ProvisionedMeshNode meshNode, final byte[] pdu) {
-        switch (configMessage.getState()) {
-            case COMPOSITION_DATA_STATUS:
-                final ConfigCompositionDataStatus compositionDataStatus = (ConfigCompositionDataStatus) configMessage;
-                compositionDataStatus.parseData(pdu);
-                mInternalMeshManagerCallbacks.onUnicastAddressChanged(compositionDataStatus.getUnicastAddress());
-                break;
-            case APP_KEY_ADD:
-                //TODO check for acknowledged message if the peer has received everything.
-                // Since we don't check right now the app may try to decrypt the appkey status message in the app key add message causing the decryption to fail
-                // but that does not matter here because when the node retransmits we have changed the status to appkeystatus and it will parse the status message
-                final ConfigAppKeyAdd configAppKeyAdd = ((ConfigAppKeyAdd) configMessage);
-                configAppKeyAdd.parseData(pdu);
-
-                //App key add block ack received, switch to next app key add status state.
-                configMessage = new ConfigAppKeyStatus(mContext, meshNode, configAppKeyAdd.getSrc(), configAppKeyAdd.getAppKey(), mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case APP_KEY_STATUS:
-                ((ConfigAppKeyStatus) configMessage).parseData(pdu);
-                break;
-            case CONFIG_MODEL_APP_BIND:
-                final ConfigModelAppBind configModelAppBind = ((ConfigModelAppBind) configMessage);
-                configModelAppBind.parseData(pdu);
-                //publication set block ack received, switch to next state.
-                configMessage = new ConfigModelAppStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks);
-            case CONFIG_MODEL_APP_STATUS:
-                ((ConfigModelAppStatus) configMessage).parseData(pdu);
-                break;
-            case CONFIG_MODEL_PUBLICATION_SET:
-                final ConfigModelPublicationSet configModelPublicationSet = ((ConfigModelPublicationSet) configMessage);
-                configModelPublicationSet.parseData(pdu);
-                //TODO check for acknowledged message if the peer has received everything
-                //publication set block ack received, switch to next state.
-                configMessage = new ConfigModelPublicationStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case CONFIG_MODEL_PUBLICATION_STATUS:
-                final ConfigModelPublicationStatus configModelPublicationStatus = (ConfigModelPublicationStatus) configMessage;
-                configModelPublicationStatus.parseData(pdu);
-                break;
-            case CONFIG_MODEL_SUBSCRIPTION_ADD:
-                //TODO check for acknowledged message if the peer has received everything
-                //subscription add block ack received, switch to next state.
-                //configMessage = new ConfigModelSubscriptionStatus(mContext, meshNode, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_ADD, mInternalTransportCallbacks, mStatusCallbacks);
-                break;
-            case CONFIG_MODEL_SUBSCRIPTION_DELETE:
-                break;
-            case CONFIG_MODEL_SUBSCRIPTION_STATUS:
-                final ConfigModelSubscriptionStatus configModelSubscriptionStatus = (ConfigModelSubscriptionStatus) configMessage;
-                configModelSubscriptionStatus.parseData(pdu);
-                break;
-            case GENERIC_ON_OFF_STATUS:
-                final GenericOnOffStatus genericOnOffStatus = (GenericOnOffStatus) configMessage;
-                genericOnOffStatus.parseData(pdu);
-                break;
-            case CONFIG_NODE_RESET_STATUS:
-                final ConfigNodeResetStatus configNodeResetStatus = (ConfigNodeResetStatus) configMessage;
-                configNodeResetStatus.parseData(pdu);
-                break;
+    /**
+     * Returns the round trip estimate of a destination
+     *
+     * @param dst destination address
+     * @return the estimate or null if no acknowledged message has been sent to the destination
+     */
+    RetransmissionManager.Estimate getRoundTripEstimate(final int dst) {
+        return mRetransmissionManager.getEstimate(dst);
+    }
+
+    /**
+     * Drops the state sets held back, stops retransmitting outstanding messages and forgets the round trip estimates of all destinations
+     */
+    void clearOutgoingMessages() {
+        mRetransmissionManager.clear();
+        mPendingRetransmissionTimeouts.clear();
+        synchronized (mRetransmissionTimers) {
+            for (Runnable timer : mRetransmissionTimers.values()) {
+                mHandler.removeCallbacks(timer);
+            }
+            mRetransmissionTimers.clear();
         }
+        mMessageCoalescer.cancel();
+    }
+
+    /**
+     * Sets the time during which state sets to the same model are coalesced
+     *
+     * @param window time in milliseconds, 0 sends every set
+     */
+    void setCoalescingWindow(final long window) {
+        mMessageCoalescer.setWindow(window);
+    }
+
+    /**
+     * Returns the number of state sets that were replaced by a later set before being sent
+     */
+    int getCoalescedMessageCount() {
+        return mMessageCoalescer.getCoalescedCount();
+    }
+
+    /**
+     * Sets the scheduler to be notified when transactions complete
+     *
+     * @param scheduler scheduler executing a configuration plan, or null
+     */
+    void setConfigurationScheduler(final ConfigurationScheduler scheduler) {
+        mConfigurationScheduler = scheduler;
+    }
+
+    /**
+     * Returns the number of acknowledged messages waiting for a status
+     */
+    int getOutstandingTransactionCount() {
+        return mTransactions.size();
     }
 
+    /**
+     * Returns the state of the message most recently sent, which is the status expected back for an acknowledged message
+     *
+     * @return the state or null if no message has been sent
+     * @deprecated several messages may be outstanding at the same time, so this does not tell which of them a status belongs to.
+     * Use the {@link MeshConfigurationStatusCallbacks} of each message instead.
+     */
+    @Deprecated
     public ConfigMessage.MessageState getConfigurationState() {
-        return configMessage.getState();
+        final ConfigMessage lastSentMessage = mLastSentMessage;
+        return lastSentMessage != null ? lastSentMessage.getState() : null;
     }
 
     /**
@@ -180,20 +411,24 @@ class MeshConfigurationHandler {
     public void sendCompositionDataGet(final ProvisionedMeshNode meshNode, final int aszmic) {
         final ConfigCompositionDataGet compositionDataGet = new ConfigCompositionDataGet(mContext,
                 meshNode, aszmic, mInternalTransportCallbacks, mStatusCallbacks);
-        configMessage = compositionDataGet;
-        compositionDataGet.executeSend();
-        configMessage = new ConfigCompositionDataStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks);
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_COMPOSITION_DATA_STATUS, compositionDataGet,
+                new ConfigCompositionDataStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks),
+                compositionDataGet::executeSend);
     }
 
     /**
      * Send App key add message to the node.
+     *
+     * @return the message sent to the node
      */
-    public void sendAppKeyAdd(final ProvisionedMeshNode meshNode, final int appKeyIndex, final String appKey, final int aszmic) {
+    public ConfigMessage sendAppKeyAdd(final ProvisionedMeshNode meshNode, final int appKeyIndex, final String appKey, final int aszmic) {
         final ConfigAppKeyAdd configAppKeyAdd = new ConfigAppKeyAdd(mContext, meshNode, aszmic, appKey, appKeyIndex);
         configAppKeyAdd.setTransportCallbacks(mInternalTransportCallbacks);
         configAppKeyAdd.setConfigurationStatusCallbacks(mStatusCallbacks);
-        configMessage = configAppKeyAdd;
-        configAppKeyAdd.executeSend();
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_APPKEY_STATUS, configAppKeyAdd,
+                new ConfigAppKeyStatus(mContext, meshNode, configAppKeyAdd.getSrc(), appKey, mInternalTransportCallbacks, mStatusCallbacks),
+                configAppKeyAdd::executeSend);
+        return configAppKeyAdd;
     }
 
     /**
@@ -204,15 +439,18 @@ class MeshConfigurationHandler {
      * @param elementAddress  address of the element containing the model
      * @param modelIdentifier identifier of the model. This could be 16-bit SIG Model or a 32-bit Vendor model identifier
      * @param appKeyIndex     application key index
+     * @return the message sent to the node
      */
-    public void bindAppKey(final ProvisionedMeshNode meshNode, final int aszmic,
+    public ConfigMessage bindAppKey(final ProvisionedMeshNode meshNode, final int aszmic,
                            final byte[] elementAddress, final int modelIdentifier, final int appKeyIndex) {
         final ConfigModelAppBind configModelAppBind = new ConfigModelAppBind(mContext, meshNode, aszmic,
                 elementAddress, modelIdentifier, appKeyIndex);
         configModelAppBind.setTransportCallbacks(mInternalTransportCallbacks);
         configModelAppBind.setConfigurationStatusCallbacks(mStatusCallbacks);
-        configMessage = configModelAppBind;
-        configModelAppBind.executeSend();
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_MODEL_APP_STATUS, configModelAppBind,
+                new ConfigModelAppStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks),
+                configModelAppBind::executeSend);
+        return configModelAppBind;
     }
 
     /**
@@ -228,8 +466,9 @@ class MeshConfigurationHandler {
      * @param publishPeriod                  Period for periodic status publishing
      * @param publishRetransmitCount         Number of retransmissions for each published message
      * @param publishRetransmitIntervalSteps Number of 50-millisecond steps between retransmissions
+     * @return the message sent to the node
      */
-    public void setConfigModelPublishAddress(final ProvisionedMeshNode meshNode, final int aszmic,
+    public ConfigMessage setConfigModelPublishAddress(final ProvisionedMeshNode meshNode, final int aszmic,
                                              final byte[] elementAddress, final byte[] publishAddress,
                                              final int appKeyIndex, final int modelIdentifier, final int credentialFlag, final int publishTtl,
                                              final int publishPeriod, final int publishRetransmitCount, final int publishRetransmitIntervalSteps) {
@@ -246,20 +485,26 @@ class MeshConfigurationHandler {
                 withPublishRetransmitCount(publishRetransmitCount).
                 withPublishRetransmitIntervalSteps(publishRetransmitIntervalSteps).
                 build();
-        configMessage = configModelPublicationSet;
-        configModelPublicationSet.executeSend();
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_MODEL_PUBLICATION_STATUS, configModelPublicationSet,
+                new ConfigModelPublicationStatus(mContext, meshNode, mInternalTransportCallbacks, mStatusCallbacks),
+                configModelPublicationSet::executeSend);
+        return configModelPublicationSet;
     }
 
     /**
      * Send App key add message to the node.
+     *
+     * @return the message sent to the node
      */
-    public void addSubscriptionAddress(final ProvisionedMeshNode meshNode, final int aszmic, final byte[] elementAddress, final byte[] subscriptionAddress,
+    public ConfigMessage addSubscriptionAddress(final ProvisionedMeshNode meshNode, final int aszmic, final byte[] elementAddress, final byte[] subscriptionAddress,
                                        final int modelIdentifier) {
         final ConfigModelSubscriptionAdd configModelSubscriptionAdd = new ConfigModelSubscriptionAdd(mContext, meshNode, aszmic, elementAddress, subscriptionAddress, modelIdentifier);
         configModelSubscriptionAdd.setTransportCallbacks(mInternalTransportCallbacks);
         configModelSubscriptionAdd.setConfigurationStatusCallbacks(mStatusCallbacks);
-        configModelSubscriptionAdd.executeSend();
-        configMessage = new ConfigModelSubscriptionStatus(mContext, meshNode, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_ADD, mInternalTransportCallbacks, mStatusCallbacks);
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_STATUS, configModelSubscriptionAdd,
+                new ConfigModelSubscriptionStatus(mContext, meshNode, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_ADD, mInternalTransportCallbacks, mStatusCallbacks),
+                configModelSubscriptionAdd::executeSend);
+        return configModelSubscriptionAdd;
     }
 
     /**
@@ -270,8 +515,9 @@ class MeshConfigurationHandler {
         final ConfigModelSubscriptionDelete configModelSubscriptionDelete = new ConfigModelSubscriptionDelete(mContext, meshNode, aszmic, elementAddress, subscriptionAddress, modelIdentifier);
         configModelSubscriptionDelete.setTransportCallbacks(mInternalTransportCallbacks);
         configModelSubscriptionDelete.setConfigurationStatusCallbacks(mStatusCallbacks);
-        configModelSubscriptionDelete.executeSend();
-        configMessage = new ConfigModelSubscriptionStatus(mContext, meshNode, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_DELETE, mInternalTransportCallbacks, mStatusCallbacks);
+        addTransaction(meshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_STATUS, configModelSubscriptionDelete,
+                new ConfigModelSubscriptionStatus(mContext, meshNode, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_DELETE, mInternalTransportCallbacks, mStatusCallbacks),
+                configModelSubscriptionDelete::executeSend);
     }
 
     /**
@@ -287,12 +533,16 @@ class MeshConfigurationHandler {
         final GenericOnOffGet genericOnOffSet = new GenericOnOffGet(mContext, node, model, aszmic, address, appKeyIndex);
         genericOnOffSet.setTransportCallbacks(mInternalTransportCallbacks);
         genericOnOffSet.setConfigurationStatusCallbacks(mStatusCallbacks);
-        genericOnOffSet.executeSend();
-        configMessage = genericOnOffSet;
+        addTransaction(address, ApplicationMessageOpCodes.GENERIC_ON_OFF_STATUS, genericOnOffSet,
+                new GenericOnOffStatus(mContext, node, model, appKeyIndex, mInternalTransportCallbacks, mStatusCallbacks),
+                genericOnOffSet::executeSend);
     }
 
     /**
      * Send generic on off set to mesh node, this message sent is an acknowledged message.
+     * <p>
+     * Sets to the same model in quick succession are coalesced so that only the latest state is sent.
+     * </p>
      *
      * @param node                 mesh node to send to
      * @param model                Mesh model to control
@@ -305,15 +555,21 @@ class MeshConfigurationHandler {
      * @param state                on off state
      */
     public void setGenericOnOff(final ProvisionedMeshNode node, final MeshModel model, final byte[] address, final boolean aszmic, final int appKeyIndex, final Integer transitionSteps, final Integer transitionResolution, final Integer delay, final boolean state) {
+        mMessageCoalescer.submit(AddressUtils.getUnicastAddressInt(address), model.getModelId(), ApplicationMessageOpCodes.GENERIC_ON_OFF_SET,
+                () -> sendGenericOnOffSet(node, model, address, aszmic, appKeyIndex, transitionSteps, transitionResolution, delay, state));
+    }
+
+    private void sendGenericOnOffSet(final ProvisionedMeshNode node, final MeshModel model, final byte[] address, final boolean aszmic, final int appKeyIndex, final Integer transitionSteps, final Integer transitionResolution, final Integer delay, final boolean state) {
         final GenericOnOffSet genericOnOffSet = new GenericOnOffSet(mContext, node, model, aszmic, address, appKeyIndex, transitionSteps, transitionResolution, delay, state);
         genericOnOffSet.setTransportCallbacks(mInternalTransportCallbacks);
         genericOnOffSet.setConfigurationStatusCallbacks(mStatusCallbacks);
-        genericOnOffSet.executeSend();
-        configMessage = genericOnOffSet;
+        addTransaction(address, ApplicationMessageOpCodes.GENERIC_ON_OFF_STATUS, genericOnOffSet,
+                new GenericOnOffStatus(mContext, node, model, appKeyIndex, mInternalTransportCallbacks, mStatusCallbacks),
+                genericOnOffSet::executeSend);
     }
 
     /**
-     * Send generic on off to mesh node
+     * Send generic on off to mesh node, sets to the same model in quick succession are coalesced so that only the latest state is sent
      *
      * @param node                 mesh node to send to
      * @param model                Mesh model to control
@@ -326,11 +582,17 @@ class MeshConfigurationHandler {
      * @param state                on off state
      */
     public void setGenericOnOffUnacknowledged(final ProvisionedMeshNode node, final MeshModel model, final byte[] address, final boolean aszmic, final int appKeyIndex, final Integer transitionSteps, final Integer transitionResolution, final Integer delay, final boolean state) {
+        //Keyed by the acknowledged set so that either kind of set replaces the other
+        mMessageCoalescer.submit(AddressUtils.getUnicastAddressInt(address), model.getModelId(), ApplicationMessageOpCodes.GENERIC_ON_OFF_SET,
+                () -> sendGenericOnOffSetUnacknowledged(node, model, address, aszmic, appKeyIndex, transitionSteps, transitionResolution, delay, state));
+    }
+
+    private void sendGenericOnOffSetUnacknowledged(final ProvisionedMeshNode node, final MeshModel model, final byte[] address, final boolean aszmic, final int appKeyIndex, final Integer transitionSteps, final Integer transitionResolution, final Integer delay, final boolean state) {
         final GenericOnOffSetUnacknowledged genericOnOffSet = new GenericOnOffSetUnacknowledged(mContext, node, model, aszmic, address, appKeyIndex, transitionSteps, transitionResolution, delay, state);
         genericOnOffSet.setTransportCallbacks(mInternalTransportCallbacks);
         genericOnOffSet.setConfigurationStatusCallbacks(mStatusCallbacks);
         genericOnOffSet.executeSend();
-        configMessage = genericOnOffSet;
+        mLastSentMessage = genericOnOffSet;
     }
 
 
@@ -341,7 +603,8 @@ class MeshConfigurationHandler {
      */
     public void resetMeshNode(final ProvisionedMeshNode provisionedMeshNode) {
        final ConfigNodeReset configNodeReset = new ConfigNodeReset(mContext, provisionedMeshNode, false, mInternalTransportCallbacks, mStatusCallbacks);
-       configNodeReset.executeSend();
-       configMessage = configNodeReset;
+       addTransaction(provisionedMeshNode.getUnicastAddress(), ConfigMessageOpCodes.CONFIG_NODE_RESET_STATUS, configNodeReset,
+               new ConfigNodeResetStatus(mContext, provisionedMeshNode, mInternalTransportCallbacks, mStatusCallbacks),
+               configNodeReset::executeSend);
     }
 }
@@ -22,6 +22,7 @@
 
 package no.nordicsemi.android.meshprovisioner;
 
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 
 public interface MeshConfigurationStatusCallbacks {
@@ -56,4 +57,12 @@ public interface MeshConfigurationStatusCallbacks {
     void onMeshNodeResetSent(final ProvisionedMeshNode node);
 
     void onMeshNodeResetStatusReceived(final ProvisionedMeshNode node);
+
+    /**
+     * Invoked when an acknowledged message is given up on without receiving its status
+     *
+     * @param node  node the message was sent to
+     * @param state state of the message that failed
+     */
+    void onTransactionFailed(final ProvisionedMeshNode node, final ConfigMessage.MessageState state);
 }
@@ -24,6 +24,8 @@ package no.nordicsemi.android.meshprovisioner;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -31,25 +33,38 @@ import android.util.Log;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
 import no.nordicsemi.android.meshprovisioner.configuration.MeshModel;
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 import no.nordicsemi.android.meshprovisioner.configuration.SequenceNumber;
+import no.nordicsemi.android.meshprovisioner.transport.ApplicationKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.DeviceKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.ReplayProtectionList;
+import no.nordicsemi.android.meshprovisioner.transport.SubnetTable;
+import no.nordicsemi.android.meshprovisioner.transport.TransportStatistics;
 import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
+import no.nordicsemi.android.meshprovisioner.utils.ElementAddressIndex;
 import no.nordicsemi.android.meshprovisioner.utils.InterfaceAdapter;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+import no.nordicsemi.android.meshprovisioner.utils.MeshCipherContext;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+import no.nordicsemi.android.meshprovisioner.utils.ProxyProtocolReassembler;
+import no.nordicsemi.android.meshprovisioner.utils.ProxyProtocolSegmenter;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 
@@ -62,21 +77,13 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
     public final static UUID MESH_PROXY_UUID = UUID.fromString("00001828-0000-1000-8000-00805F9B34FB");
     private static final String TAG = MeshManagerApi.class.getSimpleName();
     private static final String PROVISIONED_NODES_FILE = "PROVISIONED_FILES";
+    private static final String MESH_STORE_FILE = "mesh_nodes.log";
     private static final String CONFIGURATION_SRC = "CONFIGURATION_SRC";
     private static final String SRC = "SRC";
     //PDU types
     private static final byte PDU_TYPE_NETWORK = 0x00;
     private static final byte PDU_TYPE_MESH_BEACON = 0x01;
     private static final byte PDU_TYPE_PROXY_CONFIGURATION = 0x02;
-    //GATT level segmentation
-    private static final byte SAR_COMPLETE = 0b00;
-    private static final byte GATT_SAR_START = 0b01;
-    private static final byte GATT_SAR_CONTINUATION = 0b10;
-    private static final byte GATT_SAR_END = 0b11;
-    //GATT level segmentation mask
-    private static final int GATT_SAR_MASK = 0xC0;
-    private static final int GATT_SAR_UNMASK = 0x3F;
-    private static final int SAR_BIT_OFFSET = 6;
     /**
      * Length of the random number required to calculate the hash containing the node id
      */
@@ -107,27 +114,83 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
      * Length of the network id contained in the advertisement service data
      */
     private final static int ADVERTISED_NETWWORK_ID_LENGTH = 8;
-    private final Map<Integer, ProvisionedMeshNode> mProvisionedNodes = new LinkedHashMap<>();
+    /**
+     * Number of Node Identity advertisements for which the resolved node is remembered
+     */
+    private final static int MAX_RESOLVED_NODE_IDENTITIES = 64;
+    private final Map<Integer, ProvisionedMeshNode> mProvisionedNodes = new TreeMap<>();
+    private final Map<Integer, MeshNodeSummary> mNodeSummaries = new TreeMap<>();
+    private final ElementAddressIndex mElementAddressIndex = new ElementAddressIndex();
+    private volatile boolean mProvisionedNodesLoaded;
+    private final Object mProvisionedNodesLoadingLock = new Object();
+    private final NodeIdentityResolver mNodeIdentityResolver = new NodeIdentityResolver(MAX_RESOLVED_NODE_IDENTITIES);
+    private volatile boolean mNodeIdentitiesChanged = true;
     private final ProvisioningSettings mProvisioningSettings;
+    private final SubnetTable mSubnetTable = new SubnetTable();
+    private final DeviceKeyTable mDeviceKeyTable = new DeviceKeyTable(this::loadDeviceKey);
+    private final ApplicationKeyTable mApplicationKeyTable = new ApplicationKeyTable();
+    private final NetworkIdClassifier mNetworkIdClassifier = new NetworkIdClassifier();
+    private final TransportStatistics mTransportStatistics = new TransportStatistics();
+    private final AirtimeLimiter mAirtimeLimiter = new AirtimeLimiter();
+    private final ReplayProtectionList mReplayProtectionList;
     private Context mContext;
     private Gson mGson;
+    private MeshStore mMeshStore;
     private byte[] mConfigurationSrc = {0x07, (byte) 0xFF}; //0x07FF;
     private MeshManagerTransportCallbacks mTransportCallbacks;
     private MeshProvisioningHandler mMeshProvisioningHandler;
     private MeshConfigurationHandler mMeshConfigurationHandler;
-    private byte[] mIncomingBuffer;
-    private int mIncomingBufferOffset;
-    private byte[] mOutgoingBuffer;
-    private int mOutgoingBufferOffset;
+    private ConfigurationScheduler mConfigurationScheduler;
+    //Proxy pdus segmented at the gatt layer are reassembled per direction of the proxy connection
+    private final ProxyProtocolReassembler mIncomingReassembler = new ProxyProtocolReassembler();
+    private final ProxyProtocolReassembler mOutgoingReassembler = new ProxyProtocolReassembler();
+    private final OutgoingPduScheduler mOutgoingPduScheduler;
 
     public MeshManagerApi(final Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Creates the mesh manager without waiting for the provisioned nodes to be loaded.
+     * <p>
+     * Only the {@link MeshNodeSummary} of every node is read while constructing, the nodes are loaded on a background thread.
+     * A node that is accessed before then, through {@link #getProvisionedNode(int)} or by a pdu that requires its device key,
+     * is loaded on the calling thread, while {@link #getProvisionedNodes()} waits for the background thread to finish.
+     * </p>
+     *
+     * @param context   context
+     * @param callbacks callbacks invoked once all nodes have been loaded, if null the nodes are loaded while constructing
+     */
+    public MeshManagerApi(final Context context, final MeshNodesLoadingCallbacks callbacks) {
         this.mContext = context;
         this.mProvisioningSettings = new ProvisioningSettings(context);
+        this.mReplayProtectionList = new ReplayProtectionList(context);
         initGson();
+        mMeshStore = new MeshStoreLog(new File(context.getFilesDir(), MESH_STORE_FILE), mGson);
         initProvisionedNodes();
+        addProvisionerKeys();
         intiConfigurationSrc();
         mMeshProvisioningHandler = new MeshProvisioningHandler(context, this, this);
         mMeshConfigurationHandler = new MeshConfigurationHandler(context, this, this);
+        mOutgoingPduScheduler = new OutgoingPduScheduler(new Handler(context.getMainLooper()), this::writePdu);
+        mOutgoingPduScheduler.setAirtimeLimiter(mAirtimeLimiter);
+        if (callbacks == null) {
+            loadProvisionedNodes();
+        } else {
+            final Handler handler = new Handler(context.getMainLooper());
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loadProvisionedNodes();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callbacks.onProvisionedNodesLoaded();
+                        }
+                    });
+                }
+            }, "MeshNodeLoader").start();
+        }
     }
 
     private void intiConfigurationSrc() {
@@ -149,14 +212,84 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         mMeshConfigurationHandler.setConfigurationCallbacks(callbacks);
     }
 
+    /**
+     * Returns the state of the configuration message most recently sent, which is the status expected back for an acknowledged message
+     *
+     * @return the state or null if no message has been sent
+     * @deprecated several messages may be outstanding at the same time, so this does not tell which of them a status belongs to.
+     * Use the {@link MeshConfigurationStatusCallbacks} instead.
+     */
+    @Deprecated
     public ConfigMessage.MessageState getConfigurationState() {
         return mMeshConfigurationHandler.getConfigurationState();
     }
 
+    /**
+     * Returns the provisioned nodes, loading the ones that have not been loaded yet
+     */
     public Map<Integer, ProvisionedMeshNode> getProvisionedNodes() {
+        loadProvisionedNodes();
         return mProvisionedNodes;
     }
 
+    /**
+     * Returns the summaries of the provisioned nodes, these are available without loading the nodes
+     */
+    public Collection<MeshNodeSummary> getProvisionedNodeSummaries() {
+        synchronized (mProvisionedNodes) {
+            return new ArrayList<>(mNodeSummaries.values());
+        }
+    }
+
+    /**
+     * Returns true once all provisioned nodes have been loaded
+     */
+    public boolean isProvisionedNodesLoaded() {
+        return mProvisionedNodesLoaded;
+    }
+
+    /**
+     * Returns the provisioned node owning the given element address, which may be the address of any of its elements
+     *
+     * @param elementAddress element address
+     * @return provisioned mesh node or null if no node owns the address
+     */
+    public ProvisionedMeshNode findNodeByElementAddress(final int elementAddress) {
+        final int unicastAddress = findNodeUnicastAddress(elementAddress);
+        return unicastAddress == -1 ? null : getProvisionedNode(unicastAddress);
+    }
+
+    /**
+     * Returns the provisioned node with the given unicast address, loading it if it has not been loaded yet
+     *
+     * @param unicastAddress unicast address of the primary element of the node
+     * @return provisioned mesh node or null if there is no such node
+     */
+    public ProvisionedMeshNode getProvisionedNode(final int unicastAddress) {
+        synchronized (mProvisionedNodes) {
+            final ProvisionedMeshNode node = mProvisionedNodes.get(unicastAddress);
+            if (node != null || mProvisionedNodesLoaded || !mNodeSummaries.containsKey(unicastAddress))
+                return node;
+        }
+
+        //The node is read from the store without holding the lock so that lookups of loaded nodes are not blocked meanwhile
+        final ProvisionedMeshNode loadedNode = mMeshStore.loadNode(unicastAddress);
+        if (loadedNode == null)
+            return null;
+
+        synchronized (mProvisionedNodes) {
+            final ProvisionedMeshNode node = mProvisionedNodes.get(unicastAddress);
+            //Another thread may have loaded the node, or the node may have been reset, while it was being read
+            if (node != null || !mNodeSummaries.containsKey(unicastAddress))
+                return node;
+            mProvisionedNodes.put(unicastAddress, loadedNode);
+            addNodeKeys(loadedNode);
+            //The node may use a network key other than the one its identity was assumed to be derived from
+            mNodeIdentitiesChanged = true;
+            return loadedNode;
+        }
+    }
+
     /**
      * Returns the default provisioning settings from {@link ProvisioningSettings}
      *
@@ -183,12 +316,12 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
     public boolean setConfiguratorSrc(final byte[] configurationSrc) throws IllegalArgumentException {
         final int tempSrc = (configurationSrc[0] & 0xFF) << 8 | (configurationSrc[1] & 0xFF);
         if(MeshParserUtils.validateUnicastAddressInput(mContext, tempSrc)) {
-            if(!mProvisionedNodes.containsKey(tempSrc)){
+            if(findNodeUnicastAddress(tempSrc) == -1){
                 mConfigurationSrc = configurationSrc;
                 saveSrc();
 
                 //Set the configuration source for all provisioned nodes
-                for(Map.Entry<Integer, ProvisionedMeshNode> entry : mProvisionedNodes.entrySet()) {
+                for(Map.Entry<Integer, ProvisionedMeshNode> entry : getProvisionedNodes().entrySet()) {
                     entry.getValue().setConfigurationSrc(mConfigurationSrc);
                 }
 
@@ -206,29 +339,156 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         final GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.enableComplexMapKeySerialization();
         gsonBuilder.registerTypeAdapter(MeshModel.class, new InterfaceAdapter<MeshModel>());
-        gsonBuilder.setPrettyPrinting();
         mGson = gsonBuilder.create();
     }
 
     /**
-     * Load serialized provisioned nodes from preferences
+     * Load the summaries of the serialized provisioned nodes from the mesh store
      */
     private void initProvisionedNodes() {
+        migrateProvisionedNodes();
+        mProvisionedNodes.clear();
+        mNodeSummaries.clear();
+        mElementAddressIndex.clear();
+        for (MeshNodeSummary summary : mMeshStore.loadSummaries()) {
+            putNodeSummary(summary);
+        }
+        mNodeIdentitiesChanged = true;
+    }
+
+    /**
+     * Adds the summary of a node and indexes its element addresses, replacing the previous summary of the node
+     *
+     * @param summary node summary
+     */
+    private void putNodeSummary(final MeshNodeSummary summary) {
+        mNodeSummaries.put(summary.getUnicastAddress(), summary);
+        mElementAddressIndex.put(summary.getUnicastAddress(), summary.getElementCount());
+    }
+
+    /**
+     * Returns the unicast address of the node owning the given element address
+     *
+     * @param elementAddress element address
+     * @return unicast address of the primary element of the node or -1 if no node owns the address
+     */
+    private int findNodeUnicastAddress(final int elementAddress) {
+        synchronized (mProvisionedNodes) {
+            return mElementAddressIndex.find(elementAddress);
+        }
+    }
+
+    /**
+     * Loads every provisioned node that has not been loaded yet
+     */
+    private void loadProvisionedNodes() {
+        if (mProvisionedNodesLoaded)
+            return;
+
+        //A load in progress, e.g. on the background thread, is waited for instead of reading the nodes a second time
+        synchronized (mProvisionedNodesLoadingLock) {
+            if (mProvisionedNodesLoaded)
+                return;
+
+            final List<Integer> unicastAddresses;
+            synchronized (mProvisionedNodes) {
+                unicastAddresses = new ArrayList<>(mNodeSummaries.keySet());
+            }
+            //Each node is published as soon as it has been read so that lookups only wait for the node they ask for
+            for (int unicastAddress : unicastAddresses) {
+                getProvisionedNode(unicastAddress);
+            }
+            mProvisionedNodesLoaded = true;
+        }
+    }
+
+    /**
+     * Loads the node owning the source address of a received message whose device key is not known yet
+     *
+     * @param src source address of the received message
+     * @return device key of the node or null if no node owns the address
+     */
+    private byte[] loadDeviceKey(final int src) {
+        final ProvisionedMeshNode node = findNodeByElementAddress(src);
+        return node != null ? node.getDeviceKey() : null;
+    }
+
+    /**
+     * Moves the nodes saved in preferences by earlier versions of the library in to the mesh store
+     */
+    private void migrateProvisionedNodes() {
         final SharedPreferences preferences = mContext.getSharedPreferences(PROVISIONED_NODES_FILE, Context.MODE_PRIVATE);
         final Map<String, ?> nodes = preferences.getAll();
-
         if (!nodes.isEmpty()) {
             final List<Integer> orderedKeys = reOrderProvisionedNodes(nodes);
-            mProvisionedNodes.clear();
+            final List<ProvisionedMeshNode> migratedNodes = new ArrayList<>();
             for (int orderedKey : orderedKeys) {
                 final String key = String.format(Locale.US, "0x%04X", orderedKey);
                 final String json = preferences.getString(key, null);
                 if (json != null) {
-                    final ProvisionedMeshNode node = mGson.fromJson(json, ProvisionedMeshNode.class);
-                    final int unicastAddress = AddressUtils.getUnicastAddressInt(node.getUnicastAddress());
-                    mProvisionedNodes.put(unicastAddress, node);
+                    migratedNodes.add(mGson.fromJson(json, ProvisionedMeshNode.class));
                 }
             }
+            mMeshStore.saveNodes(migratedNodes);
+            preferences.edit().clear().apply();
+            Log.v(TAG, "Migrated " + migratedNodes.size() + " provisioned nodes from preferences");
+        }
+    }
+
+    /**
+     * Adds the network key, the device key and the application keys of the node to the tables used on the receive path
+     *
+     * @param node provisioned mesh node
+     */
+    private void addNodeKeys(final ProvisionedMeshNode node) {
+        if (node.getK2Output() != null) {
+            mSubnetTable.add(node.getK2Output());
+        }
+        if (node.getNetworkKey() != null && node.getKeyIndex() != null) {
+            final byte[] keyIndex = node.getKeyIndex();
+            mNetworkIdClassifier.add(KeyMaterial.forNetworkKey(node.getNetworkKey()).getNetworkId(), ((keyIndex[0] & 0x0F) << 8) | (keyIndex[1] & 0xFF));
+        }
+        if (node.getDeviceKey() != null) {
+            mDeviceKeyTable.put(AddressUtils.getUnicastAddressInt(node.getUnicastAddress()), node.getElements().size(), node.getDeviceKey());
+        }
+        for (String applicationKey : node.getAddedAppKeys().values()) {
+            mApplicationKeyTable.add(MeshParserUtils.toByteArray(applicationKey));
+        }
+    }
+
+    /**
+     * Adds the keys used when provisioning to the subnet, application key and network id tables.
+     * <p>
+     * Nodes are provisioned with these keys, so pdus of nodes that have not been loaded yet are decrypted and proxies of the
+     * network are found without loading every node. Keys of the nodes are added as the nodes are loaded.
+     * </p>
+     */
+    private void addProvisionerKeys() {
+        final byte[] networkKey = MeshParserUtils.toByteArray(mProvisioningSettings.getNetworkKey());
+        final KeyMaterial.NetworkKeyMaterial networkKeyMaterial = KeyMaterial.forNetworkKey(networkKey);
+        mSubnetTable.add(networkKeyMaterial.getK2Output());
+        mNetworkIdClassifier.add(networkKeyMaterial.getNetworkId(), mProvisioningSettings.getKeyIndex());
+        for (String applicationKey : mProvisioningSettings.getAppKeys()) {
+            mApplicationKeyTable.add(MeshParserUtils.toByteArray(applicationKey));
+        }
+    }
+
+    /**
+     * Rebuilds the subnet, device key, application key and network id tables from the keys used when provisioning and the
+     * keys of the loaded nodes
+     */
+    private void rebuildKeyTables() {
+        mSubnetTable.clear();
+        mDeviceKeyTable.clear();
+        mApplicationKeyTable.clear();
+        mNetworkIdClassifier.clear();
+        addProvisionerKeys();
+        final List<ProvisionedMeshNode> nodes;
+        synchronized (mProvisionedNodes) {
+            nodes = new ArrayList<>(mProvisionedNodes.values());
+        }
+        for (ProvisionedMeshNode node : nodes) {
+            addNodeKeys(node);
         }
     }
 
@@ -252,7 +512,12 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
     @Override
     public void onNodeProvisioned(final ProvisionedMeshNode meshNode) {
         final int unicastAddress = AddressUtils.getUnicastAddressInt(meshNode.getUnicastAddress());
-        mProvisionedNodes.put(unicastAddress, meshNode);
+        synchronized (mProvisionedNodes) {
+            mProvisionedNodes.put(unicastAddress, meshNode);
+            putNodeSummary(new MeshNodeSummary(meshNode));
+        }
+        mNodeIdentitiesChanged = true;
+        addNodeKeys(meshNode);
         saveProvisionedNode(meshNode);
     }
 
@@ -267,48 +532,28 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
      * Serialize and save provisioned node
      */
     private void saveProvisionedNode(final ProvisionedMeshNode node) {
-        final SharedPreferences preferences = mContext.getSharedPreferences(PROVISIONED_NODES_FILE, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = preferences.edit();
-        final String unicastAddress = MeshParserUtils.bytesToHex(node.getUnicastAddress(), true);
-        final String provisionedNode = mGson.toJson(node);
-        editor.putString(unicastAddress, provisionedNode);
-        editor.apply();
+        mMeshStore.saveNode(node);
     }
 
     /**
      * Serialize and save all provisioned nodes
      */
     private void saveProvisionedNodes() {
-        final SharedPreferences preferences = mContext.getSharedPreferences(PROVISIONED_NODES_FILE, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = preferences.edit();
-        for(Map.Entry<Integer, ProvisionedMeshNode> entry : mProvisionedNodes.entrySet()) {
-            final ProvisionedMeshNode node = entry.getValue();
-            final String unicastAddress = MeshParserUtils.bytesToHex(node.getUnicastAddress(), true);
-            final String provisionedNode = mGson.toJson(node);
-            editor.putString(unicastAddress, provisionedNode);
-        }
-        editor.apply();
+        mMeshStore.saveNodes(mProvisionedNodes.values());
     }
 
     /**
-     * Serialize and save provisioned node
+     * Delete provisioned node
      */
     private void deleteProvisionedNode(final ProvisionedMeshNode node) {
-        final SharedPreferences preferences = mContext.getSharedPreferences(PROVISIONED_NODES_FILE, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = preferences.edit();
-        final String unicastAddress = MeshParserUtils.bytesToHex(node.getUnicastAddress(), true);
-        editor.remove(unicastAddress);
-        editor.apply();
+        mMeshStore.deleteNode(node);
     }
 
     /**
-     * Clear provisioned ndoes
+     * Clear provisioned nodes
      */
     private void clearProvisionedNodes() {
-        final SharedPreferences preferences = mContext.getSharedPreferences(PROVISIONED_NODES_FILE, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = preferences.edit();
-        editor.clear();
-        editor.apply();
+        mMeshStore.clear();
     }
 
     @Override
@@ -316,10 +561,12 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         //Now that we have received the unicast addresses assigned to element addresses,
         //increment it here again so the next node to be provisioned will have the next available address in the network
         int unicastAdd = unicastAddress + 1;
-        //We check if the incremented unicast address is already taken by the app/configurator
+        //We check if the incremented unicast address is already taken by the app/configurator or by the elements of another node
         final int tempSrc = (mConfigurationSrc[0] & 0xFF) << 8 | (mConfigurationSrc[1] & 0xFF);
-        if(unicastAdd == tempSrc) {
-            unicastAdd = unicastAddress + 1;
+        synchronized (mProvisionedNodes) {
+            while (unicastAdd == tempSrc || mElementAddressIndex.find(unicastAdd) != -1) {
+                unicastAdd = unicastAdd == tempSrc ? unicastAdd + 1 : mElementAddressIndex.getRangeEnd(unicastAdd);
+            }
         }
         mProvisioningSettings.setUnicastAddress(unicastAdd);
 
@@ -329,96 +576,89 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
      * Handles notifications received by the client.
      * <p>
      * This method will check if the library should wait for more data in case of a gatt layer segmentation.
-     * If its required the method will remove the segmentation bytes and combine the data together.
+     * Segments are reassembled in to a buffer kept for the proxy connection until the segment carrying the SAR end marker is
+     * received, and the pdu is parsed straight out of that buffer.
      * </p>
      *
      * @param meshNode mesh node that the pdu was received from
+     * @param mtuSize  mtu size of the connection
      * @param data     pdu received by the client
      */
     public final void handleNotifications(BaseMeshNode meshNode, final int mtuSize, final byte[] data) {
-        byte[] unsegmentedPdu;
-        if (!shouldWaitForMoreData(data)) {
-            unsegmentedPdu = data;
-        } else {
-            final byte[] combinedPdu = appendPdu(mtuSize, data);
-            if (combinedPdu == null)
-                return;
-            else {
-                unsegmentedPdu = removeSegmentation(mtuSize, combinedPdu);
-            }
+        //Network pdus are decrypted with the keys used when provisioning, only the node sending a message is loaded if required
+        if (ProxyProtocolReassembler.getSar(data) == ProxyProtocolReassembler.SAR_COMPLETE) {
+            parseNotifications(meshNode, data, data.length);
+        } else if (mIncomingReassembler.append(data)) {
+            parseNotifications(meshNode, mIncomingReassembler.getBuffer(), mIncomingReassembler.getLength());
         }
-        parseNotifications(meshNode, unsegmentedPdu);
     }
 
 
     /**
      * Parses notifications received by the client.
      *
-     * @param meshNode       mesh node that the pdu was received from
-     * @param unsegmentedPdu pdu received by the client.
+     * @param meshNode mesh node that the pdu was received from
+     * @param pdu      buffer containing the pdu received by the client
+     * @param length   length of the pdu
      */
-    private void parseNotifications(final BaseMeshNode meshNode, final byte[] unsegmentedPdu) {
-        switch (unsegmentedPdu[0]) {
+    private void parseNotifications(final BaseMeshNode meshNode, final byte[] pdu, final int length) {
+        switch (pdu[0]) {
             case PDU_TYPE_NETWORK:
                 //Network PDU
-                Log.v(TAG, "Received network pdu: " + MeshParserUtils.bytesToHex(unsegmentedPdu, true));
-                mMeshConfigurationHandler.parseConfigurationNotifications((ProvisionedMeshNode) meshNode, unsegmentedPdu);
+                Log.v(TAG, "Received network pdu: " + MeshParserUtils.bytesToHex(pdu, 0, length, true));
+                mMeshConfigurationHandler.parseConfigurationNotifications((ProvisionedMeshNode) meshNode, pdu, length);
                 break;
             case PDU_TYPE_MESH_BEACON:
                 //Mesh beacon
-                Log.v(TAG, "Received mesh beacon: " + MeshParserUtils.bytesToHex(unsegmentedPdu, true));
+                Log.v(TAG, "Received mesh beacon: " + MeshParserUtils.bytesToHex(pdu, 0, length, true));
                 break;
             case PDU_TYPE_PROXY_CONFIGURATION:
                 //Proxy configuration
-                Log.v(TAG, "Received proxy configuration message: " + MeshParserUtils.bytesToHex(unsegmentedPdu, true));
+                Log.v(TAG, "Received proxy configuration message: " + MeshParserUtils.bytesToHex(pdu, 0, length, true));
                 break;
             case PDU_TYPE_PROVISIONING:
-                //Provisioning PDU
-                Log.v(TAG, "Received provisioning message: " + MeshParserUtils.bytesToHex(unsegmentedPdu, true));
-                mMeshProvisioningHandler.parseProvisioningNotifications(unsegmentedPdu);
+                //Provisioning PDU, the provisioning states parse the pdu up to the end of the array so they are given an exact copy
+                Log.v(TAG, "Received provisioning message: " + MeshParserUtils.bytesToHex(pdu, 0, length, true));
+                mMeshProvisioningHandler.parseProvisioningNotifications(Arrays.copyOf(pdu, length));
                 break;
         }
     }
 
     public final void handleWrites(BaseMeshNode meshNode, final int mtuSize, final byte[] data) {
-        byte[] unsegmentedPdu;
-        if (!shouldWaitForMoreData(data)) {
-            unsegmentedPdu = data;
+        if (ProxyProtocolReassembler.getSar(data) == ProxyProtocolReassembler.SAR_COMPLETE) {
+            handleWriteCallbacks(meshNode, data, data.length);
+        } else if (mOutgoingReassembler.append(data)) {
+            handleWriteCallbacks(meshNode, mOutgoingReassembler.getBuffer(), mOutgoingReassembler.getLength());
         } else {
-            final byte[] combinedPdu = appendWritePdu(mtuSize, data);
-            if (combinedPdu == null)
-                return;
-            else {
-                unsegmentedPdu = removeSegmentation(mtuSize, combinedPdu);
-            }
+            return;
         }
-        handleWriteCallbacks(meshNode, unsegmentedPdu);
+        mOutgoingPduScheduler.onPduWritten(SystemClock.uptimeMillis());
     }
 
     /**
      * Handles callbacks after writing to characteristics to maintain/update the state machine
      *
      * @param meshNode mesh node
-     * @param data     written to the peripheral
+     * @param data     buffer containing the pdu written to the peripheral
+     * @param length   length of the pdu
      */
-    private void handleWriteCallbacks(final BaseMeshNode meshNode, final byte[] data) {
+    private void handleWriteCallbacks(final BaseMeshNode meshNode, final byte[] data, final int length) {
         switch (data[0]) {
             case PDU_TYPE_NETWORK:
                 //Network PDU
-                Log.v(TAG, "Network pdu sent: " + MeshParserUtils.bytesToHex(data, true));
-                mMeshConfigurationHandler.handleConfigurationWriteCallbacks((ProvisionedMeshNode) meshNode, data);
+                Log.v(TAG, "Network pdu sent: " + MeshParserUtils.bytesToHex(data, 0, length, true));
                 break;
             case PDU_TYPE_MESH_BEACON:
                 //Mesh beacon
-                Log.v(TAG, "Mesh beacon pdu sent: " + MeshParserUtils.bytesToHex(data, true));
+                Log.v(TAG, "Mesh beacon pdu sent: " + MeshParserUtils.bytesToHex(data, 0, length, true));
                 break;
             case PDU_TYPE_PROXY_CONFIGURATION:
                 //Proxy configuration
-                Log.v(TAG, "Proxy configuration pdu sent: " + MeshParserUtils.bytesToHex(data, true));
+                Log.v(TAG, "Proxy configuration pdu sent: " + MeshParserUtils.bytesToHex(data, 0, length, true));
                 break;
             case PDU_TYPE_PROVISIONING:
                 //Provisioning PDU
-                Log.v(TAG, "Provisioning pdu sent: " + MeshParserUtils.bytesToHex(data, true));
+                Log.v(TAG, "Provisioning pdu sent: " + MeshParserUtils.bytesToHex(data, 0, length, true));
                 mMeshProvisioningHandler.handleProvisioningWriteCallbacks();
                 break;
         }
@@ -426,8 +666,32 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
 
     @Override
     public void sendPdu(final BaseMeshNode meshNode, byte[] pdu) {
+        sendPdu(meshNode, pdu, OutgoingPduScheduler.Priority.CONTROL);
+    }
+
+    @Override
+    public void sendPdu(final BaseMeshNode meshNode, final byte[] pdu, final OutgoingPduScheduler.Priority priority) {
+        mOutgoingPduScheduler.enqueue(meshNode, AirtimeLimiter.NO_DESTINATION, pdu, priority, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void sendPdu(final BaseMeshNode meshNode, final int dst, final byte[] pdu, final OutgoingPduScheduler.Priority priority, final Runnable onReleased) {
+        mOutgoingPduScheduler.enqueue(meshNode, dst, pdu, priority, SystemClock.uptimeMillis(), onReleased);
+    }
+
+    /**
+     * Writes a pdu released by the outgoing pdu scheduler to the proxy node
+     *
+     * @param meshNode mesh node the pdu is written to
+     * @param pdu      proxy pdu
+     */
+    private void writePdu(final BaseMeshNode meshNode, final byte[] pdu) {
         final int mtu = mTransportCallbacks.getMtu();
-        mTransportCallbacks.sendPdu(meshNode, applySegmentation(mtu, pdu));
+        //Each segment is created with its final size and passed on to be written as is
+        final int segments = ProxyProtocolSegmenter.getSegmentCount(pdu.length, mtu);
+        for (int i = 0; i < segments; i++) {
+            mTransportCallbacks.sendPdu(meshNode, ProxyProtocolSegmenter.getSegment(pdu, i, mtu));
+        }
     }
 
     @Override
@@ -435,7 +699,11 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         if (meshNode != null) {
             final int unicast = AddressUtils.getUnicastAddressInt(meshNode.getUnicastAddress());
             //We update the mesh node in our map of mesh nodes
-            mProvisionedNodes.put(unicast, meshNode);
+            synchronized (mProvisionedNodes) {
+                mProvisionedNodes.put(unicast, meshNode);
+                putNodeSummary(new MeshNodeSummary(meshNode));
+            }
+            addNodeKeys(meshNode);
             saveProvisionedNode(meshNode);
         }
     }
@@ -445,138 +713,56 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         if (meshNode != null) {
             final int unicast = AddressUtils.getUnicastAddressInt(meshNode.getUnicastAddress());
             deleteProvisionedNode(meshNode);
-            mProvisionedNodes.remove(unicast);
+            synchronized (mProvisionedNodes) {
+                mProvisionedNodes.remove(unicast);
+                mNodeSummaries.remove(unicast);
+                mElementAddressIndex.remove(unicast);
+            }
+            mNodeIdentitiesChanged = true;
+            //Only the addresses of the reset node may be reused, every other source is still protected against replays
+            mReplayProtectionList.remove(unicast, Math.max(1, meshNode.getElements().size()));
+            rebuildKeyTables();
         }
     }
 
-    private boolean shouldWaitForMoreData(final byte[] pdu) {
-        final int gattSar = (pdu[0] & GATT_SAR_MASK) >> SAR_BIT_OFFSET;
-        switch (gattSar) {
-            case GATT_SAR_START:
-            case GATT_SAR_CONTINUATION:
-            case GATT_SAR_END:
-                return true;
-            default:
-                return false;
-        }
+    @Override
+    public SubnetTable getSubnetTable() {
+        return mSubnetTable;
     }
 
     /**
-     * Appends the PDUs that are segmented at gatt layer.
+     * Returns the counters of pdus dropped on the receive path, i.e. pdus with an unknown NID or a network or transport mic failure
      *
-     * @param mtuSize mtu size supported by the device/node
-     * @param pdu     pdu received by the provisioner
-     * @return the combine pdu or returns null if not complete.
+     * @return transport statistics
      */
-    private byte[] appendPdu(final int mtuSize, final byte[] pdu) {
-        if (mIncomingBuffer == null) {
-            final int length = Math.min(pdu.length, mtuSize);
-            mIncomingBufferOffset = 0;
-            mIncomingBufferOffset += length;
-            mIncomingBuffer = pdu;
-        } else {
-            final int length = Math.min(pdu.length, mtuSize);
-            final byte[] buffer = new byte[mIncomingBuffer.length + length];
-            System.arraycopy(mIncomingBuffer, 0, buffer, 0, mIncomingBufferOffset);
-            System.arraycopy(pdu, 0, buffer, mIncomingBufferOffset, length);
-            mIncomingBufferOffset += length;
-            mIncomingBuffer = buffer;
-            if (length < mtuSize) {
-                final byte packet[] = mIncomingBuffer;
-                mIncomingBuffer = null;
-                return packet;
-            }
-        }
-        return null;
+    @Override
+    public TransportStatistics getTransportStatistics() {
+        return mTransportStatistics;
     }
 
     /**
-     * Appends the PDUs that are segmented at gatt layer.
+     * Returns the limiter pacing the pdus injected in to the mesh, which may be used to observe the current rates
      *
-     * @param mtuSize mtu size supported by the device/node
-     * @param pdu     pdu received by the provisioner
-     * @return the combine pdu or returns null if not complete.
+     * @return airtime limiter
      */
-    private byte[] appendWritePdu(final int mtuSize, final byte[] pdu) {
-        if (mOutgoingBuffer == null) {
-            final int length = Math.min(pdu.length, mtuSize);
-            mOutgoingBufferOffset = 0;
-            mOutgoingBufferOffset += length;
-            mOutgoingBuffer = pdu;
-        } else {
-            final int length = Math.min(pdu.length, mtuSize);
-            final byte[] buffer = new byte[mOutgoingBuffer.length + length];
-            System.arraycopy(mOutgoingBuffer, 0, buffer, 0, mOutgoingBufferOffset);
-            System.arraycopy(pdu, 0, buffer, mOutgoingBufferOffset, length);
-            mOutgoingBufferOffset += length;
-            mOutgoingBuffer = buffer;
-            if (length < mtuSize) {
-                final byte packet[] = mOutgoingBuffer;
-                mOutgoingBuffer = null;
-                return packet;
-            }
-        }
-        return null;
-    }
-
-    private byte[] applySegmentation(final int mtuSize, final byte[] pdu) {
-        int srcOffset = 0;
-        int dstOffset = 0;
-        final int chunks = (pdu.length + (mtuSize - 1)) / mtuSize;
-
-        final int pduType = pdu[0];
-        if (chunks > 1) {
-            final byte[] segmentedBuffer = new byte[pdu.length + chunks - 1];
-            int length;
-            for (int i = 0; i < chunks; i++) {
-                if (i == 0) {
-                    length = Math.min(pdu.length - srcOffset, mtuSize);
-                    System.arraycopy(pdu, srcOffset, segmentedBuffer, dstOffset, length);
-                    segmentedBuffer[0] = (byte) ((GATT_SAR_START << 6) | pduType);
-                } else if (i == chunks - 1) {
-                    length = Math.min(pdu.length - srcOffset, mtuSize);
-                    segmentedBuffer[dstOffset] = (byte) ((GATT_SAR_END << 6) | pduType);
-                    System.arraycopy(pdu, srcOffset, segmentedBuffer, dstOffset + 1, length);
-                } else {
-                    length = Math.min(pdu.length - srcOffset, mtuSize - 1);
-                    segmentedBuffer[dstOffset] = (byte) ((GATT_SAR_CONTINUATION << 6) | pduType);
-                    System.arraycopy(pdu, srcOffset, segmentedBuffer, dstOffset + 1, length);
-                }
-                srcOffset += length;
-                dstOffset += mtuSize;
-            }
-            return segmentedBuffer;
-        }
-        return pdu;
-    }
-
-    private byte[] removeSegmentation(final int mtuSize, final byte[] data) {
-        int srcOffset = 0;
-        int dstOffset = 0;
-        final int chunks = (data.length + (mtuSize - 1)) / mtuSize;
-        if (chunks > 1) {
-            final byte[] buffer = new byte[data.length - (chunks - 1)];
-            int length;
-            for (int i = 0; i < chunks; i++) {
-                // when removing segmentation bits we only remove the start because the pdu type would be the same for each segment.
-                // Therefore we can ignore this pdu type byte as they are already put together in the ble
-                if (i == 0) {
-                    length = Math.min(buffer.length - dstOffset, mtuSize);
-                    System.arraycopy(data, srcOffset, buffer, dstOffset, length);
-                    buffer[0] = (byte) (buffer[0] & GATT_SAR_UNMASK);
-                } else if (i == chunks - 1) {
-                    length = Math.min(buffer.length - dstOffset, mtuSize);
-                    System.arraycopy(data, srcOffset + 1, buffer, dstOffset, length);
-                } else {
-                    length = Math.min(buffer.length - dstOffset, mtuSize) - 1;
-                    System.arraycopy(data, srcOffset + 1, buffer, dstOffset, length);
-                }
-                srcOffset += mtuSize;
-                dstOffset += length;
-            }
-            return buffer;
-        }
-        return data;
+    @Override
+    public AirtimeLimiter getAirtimeLimiter() {
+        return mAirtimeLimiter;
+    }
+
+    @Override
+    public ReplayProtectionList getReplayProtectionList() {
+        return mReplayProtectionList;
+    }
+
+    @Override
+    public DeviceKeyTable getDeviceKeyTable() {
+        return mDeviceKeyTable;
+    }
+
+    @Override
+    public ApplicationKeyTable getApplicationKeyTable() {
+        return mApplicationKeyTable;
     }
 
     /**
@@ -608,7 +794,7 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
      * @return network id
      */
     public String generateNetworkId(final byte[] networkKey) {
-        return MeshParserUtils.bytesToHex(SecureUtils.calculateK3(networkKey), false);
+        return MeshParserUtils.bytesToHex(KeyMaterial.forNetworkKey(networkKey).getNetworkId(), false);
     }
 
     /**
@@ -641,6 +827,47 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         return flag;
     }
 
+    /**
+     * Returns the provisioned node advertising with Node Identity
+     * <p>
+     * The advertised hash is matched against the nodes until the first match, and the result is remembered for the advertised
+     * hash and random so that repeated advertisements of the same node, or of nodes not belonging to this network, are resolved
+     * without recalculating the hashes. Prefer this to calling {@link #nodeIdentityMatches(ProvisionedMeshNode, byte[])} for each node.
+     * </p>
+     *
+     * @param serviceData advertised service data
+     * @return the node that generated the advertised hash or null if none of the provisioned nodes match
+     */
+    public ProvisionedMeshNode findNodeByIdentity(final byte[] serviceData) {
+        if (!isAdvertisedWithNodeIdentity(serviceData))
+            return null;
+
+        if (mNodeIdentitiesChanged) {
+            //Nodes that have not been loaded yet are resolved with the identity key of the network key used when provisioning
+            final byte[] networkKey = MeshParserUtils.toByteArray(mProvisioningSettings.getNetworkKey());
+            final byte[] provisionerIdentityKey = KeyMaterial.forNetworkKey(networkKey).getIdentityKey();
+            final Map<Integer, byte[]> identityKeys = new LinkedHashMap<>();
+            synchronized (mProvisionedNodes) {
+                mNodeIdentitiesChanged = false;
+                for (int unicastAddress : mNodeSummaries.keySet()) {
+                    final ProvisionedMeshNode node = mProvisionedNodes.get(unicastAddress);
+                    identityKeys.put(unicastAddress, node != null && node.getIdentityKey() != null ? node.getIdentityKey() : provisionerIdentityKey);
+                }
+            }
+            mNodeIdentityResolver.setIdentityKeys(identityKeys);
+        }
+
+        final int unicastAddress = mNodeIdentityResolver.resolve(serviceData, ADVERTISED_HASH_OFFSET);
+        if (unicastAddress == NodeIdentityResolver.NO_MATCH)
+            return null;
+
+        final ProvisionedMeshNode meshNode = getProvisionedNode(unicastAddress);
+        if (meshNode != null) {
+            meshNode.setNodeIdentifier(MeshParserUtils.bytesToHex(getAdvertisedHash(serviceData), false));
+        }
+        return meshNode;
+    }
+
     /**
      * Checks if the node is advertising with Node Identity
      *
@@ -688,32 +915,43 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
      * @return returns true if the network ids match or false otherwise
      */
     public boolean networkIdMatches(final String networkId, final byte[] serviceData) {
-        final byte[] advertisedNetworkId = getAdvertisedNetworkId(serviceData);
-        return advertisedNetworkId != null && networkId.equals(MeshParserUtils.bytesToHex(advertisedNetworkId, false).toUpperCase());
+        if (serviceData == null || networkId == null || serviceData.length < ADVERTISED_NETWWORK_ID_OFFSET + ADVERTISED_NETWWORK_ID_LENGTH
+                || networkId.length() != ADVERTISED_NETWWORK_ID_LENGTH * 2)
+            return false;
+
+        //The hex digits are compared to the advertised octets directly to avoid converting every advertisement to a string
+        for (int i = 0; i < ADVERTISED_NETWWORK_ID_LENGTH; i++) {
+            final int octet = serviceData[ADVERTISED_NETWWORK_ID_OFFSET + i] & 0xFF;
+            if (Character.digit(networkId.charAt(i * 2), 16) != octet >> 4 || Character.digit(networkId.charAt(i * 2 + 1), 16) != (octet & 0x0F))
+                return false;
+        }
+        return true;
     }
 
     /**
-     * Returns the advertised hash
+     * Returns the key index of the network key the advertised network id was derived from.
+     * <p>
+     * Network ids of the network key used for provisioning and of the network keys of the provisioned nodes are known, which
+     * allows matching proxies of any of the subnets with a single lookup.
+     * </p>
      *
      * @param serviceData advertised service data
-     * @return returns the advertised hash
+     * @return global key index of the network key or {@link NetworkIdClassifier#UNKNOWN_NETWORK} if the network is not known
      */
-    public boolean isAdvertisingWithNetworkIdentity(final byte[] serviceData) {
-        return serviceData != null && serviceData[ADVERTISED_NETWWORK_ID_OFFSET - 1] == ADVERTISEMENT_TYPE_NETWORK_ID;
+    public int classifyNetworkId(final byte[] serviceData) {
+        if (!isAdvertisingWithNetworkIdentity(serviceData))
+            return NetworkIdClassifier.UNKNOWN_NETWORK;
+        return mNetworkIdClassifier.classify(serviceData, ADVERTISED_NETWWORK_ID_OFFSET);
     }
 
     /**
-     * Returns the advertised network identity
+     * Returns the advertised hash
      *
      * @param serviceData advertised service data
-     * @return returns the advertised network identity
+     * @return returns the advertised hash
      */
-    private byte[] getAdvertisedNetworkId(final byte[] serviceData) {
-        if (serviceData == null)
-            return null;
-        final ByteBuffer advertisedNetowrkID = ByteBuffer.allocate(ADVERTISED_NETWWORK_ID_LENGTH).order(ByteOrder.BIG_ENDIAN);
-        advertisedNetowrkID.put(serviceData, ADVERTISED_NETWWORK_ID_OFFSET, ADVERTISED_HASH_LENGTH);
-        return advertisedNetowrkID.array();
+    public boolean isAdvertisingWithNetworkIdentity(final byte[] serviceData) {
+        return serviceData != null && serviceData[ADVERTISED_NETWWORK_ID_OFFSET - 1] == ADVERTISEMENT_TYPE_NETWORK_ID;
     }
 
     /**
@@ -798,12 +1036,151 @@ public class MeshManagerApi implements InternalTransportCallbacks, InternalMeshM
         mMeshConfigurationHandler.deleteSubscriptionAddress(meshNode, 0, elementAddress, subscriptionAddress, modelIdentifier);
     }
 
+    /**
+     * Returns the round trip estimate of a node, used to decide when acknowledged messages sent to the node are sent again
+     *
+     * @param unicastAddress unicast address of the node or of one of its elements
+     * @return the estimate or null if no acknowledged message has been sent to the address
+     */
+    public RetransmissionManager.Estimate getRoundTripEstimate(final int unicastAddress) {
+        return mMeshConfigurationHandler.getRoundTripEstimate(unicastAddress);
+    }
+
+    /**
+     * Sets the minimum interval between the pdus of a priority class written to the proxy node.
+     * <p>
+     * Pdus of higher classes are always written first, the interval limits how much of the link a class may take while
+     * pdus of lower classes are waiting. By default no class is limited.
+     * </p>
+     *
+     * @param priority priority class
+     * @param interval interval in milliseconds, 0 to remove the limit
+     */
+    public void setOutgoingPduInterval(@NonNull final OutgoingPduScheduler.Priority priority, final long interval) {
+        mOutgoingPduScheduler.setMinInterval(priority, interval);
+    }
+
+    /**
+     * Sets the maximum rates at which pdus other than control pdus are injected in to the mesh.
+     * <p>
+     * The rates start at these limits and are halved when pdus are lost, then increase again as messages are delivered.
+     * </p>
+     *
+     * @param rate             maximum rate of all pdus in pdus per second
+     * @param burst            number of pdus that may be sent at once after an idle period
+     * @param destinationRate  maximum rate of the pdus to a single node in pdus per second
+     * @param destinationBurst number of pdus that may be sent at once to a single node after an idle period
+     */
+    public void setAirtimeLimits(final double rate, final int burst, final double destinationRate, final int destinationBurst) {
+        mAirtimeLimiter.setLimits(rate, burst, destinationRate, destinationBurst);
+    }
+
+    /**
+     * Returns the number of pdus of a priority class waiting to be written to the proxy node
+     *
+     * @param priority priority class
+     */
+    public int getQueuedPduCount(@NonNull final OutgoingPduScheduler.Priority priority) {
+        return mOutgoingPduScheduler.getQueuedPduCount(priority);
+    }
+
+    /**
+     * Sets the time during which generic on off sets to the same model are coalesced.
+     * <p>
+     * The first set is sent right away, while later sets within the window replace each other and only the latest is sent when
+     * the window closes. Defaults to {@link MessageCoalescer#DEFAULT_WINDOW}.
+     * </p>
+     *
+     * @param window time in milliseconds, 0 sends every set
+     */
+    public void setCoalescingWindow(final long window) {
+        mMeshConfigurationHandler.setCoalescingWindow(window);
+    }
+
+    /**
+     * Returns the number of generic on off sets that were replaced by a later set before being sent
+     */
+    public int getCoalescedMessageCount() {
+        return mMeshConfigurationHandler.getCoalescedMessageCount();
+    }
+
+    /**
+     * Executes a configuration plan, cancelling the plan that is being executed if any.
+     * <p>
+     * Steps already reflected in the known state of a node are skipped, the remaining steps are sent to many nodes at the same
+     * time without exceeding the given number of outstanding requests. Progress and failures are reported per step.
+     * </p>
+     *
+     * @param plan                          configuration plan
+     * @param maxOutstandingRequests        maximum number of requests waiting for a status at any time
+     * @param maxOutstandingRequestsPerNode maximum number of requests waiting for a status from a single node at any time
+     * @param callbacks                     callbacks reporting the progress of the plan
+     * @return scheduler executing the plan, which may be used to cancel it
+     */
+    public ConfigurationScheduler executeConfigurationPlan(@NonNull final ConfigurationPlan plan, final int maxOutstandingRequests,
+                                                           final int maxOutstandingRequestsPerNode, final ConfigurationPlanCallbacks callbacks) {
+        if (mConfigurationScheduler != null) {
+            mConfigurationScheduler.cancel();
+        }
+        final ConfigurationScheduler scheduler = new ConfigurationScheduler(plan, mConfigurationRequestDispatcher, new Handler(mContext.getMainLooper()),
+                maxOutstandingRequests, maxOutstandingRequestsPerNode, MeshTransactionTable.DEFAULT_TIMEOUT, callbacks);
+        mConfigurationScheduler = scheduler;
+        mMeshConfigurationHandler.setConfigurationScheduler(scheduler);
+        scheduler.start();
+        return scheduler;
+    }
+
+    private final ConfigurationScheduler.RequestDispatcher mConfigurationRequestDispatcher = new ConfigurationScheduler.RequestDispatcher() {
+        @Override
+        public ProvisionedMeshNode getNode(final int unicastAddress) {
+            return getProvisionedNode(unicastAddress);
+        }
+
+        @Override
+        public ConfigMessage send(final ProvisionedMeshNode node, final ConfigurationPlan.Step step) {
+            final byte[] elementAddress = AddressUtils.getUnicastAddressBytes(step.getElementAddress());
+            final byte[] address = AddressUtils.getUnicastAddressBytes(step.getAddress());
+            switch (step.getType()) {
+                case APP_KEY_ADD:
+                    return mMeshConfigurationHandler.sendAppKeyAdd(node, step.getAppKeyIndex(), step.getAppKey(), 0);
+                case MODEL_APP_BIND:
+                    return mMeshConfigurationHandler.bindAppKey(node, 0, elementAddress, step.getModelIdentifier(), step.getAppKeyIndex());
+                case MODEL_PUBLICATION_SET:
+                    return mMeshConfigurationHandler.setConfigModelPublishAddress(node, 0, elementAddress, address,
+                            step.getAppKeyIndex(), step.getModelIdentifier(), 0, step.getPublishTtl(), 0, 0, 0);
+                default:
+                    return mMeshConfigurationHandler.addSubscriptionAddress(node, 0, elementAddress, address, step.getModelIdentifier());
+            }
+        }
+    };
+
     public void resetMeshNetwork() {
-        mProvisionedNodes.clear();
+        if (mConfigurationScheduler != null) {
+            mConfigurationScheduler.cancel();
+        }
+        mMeshConfigurationHandler.clearOutgoingMessages();
+        mOutgoingPduScheduler.clear();
+        mIncomingReassembler.reset();
+        mOutgoingReassembler.reset();
+        mAirtimeLimiter.reset();
+        synchronized (mProvisionedNodes) {
+            mProvisionedNodes.clear();
+            mNodeSummaries.clear();
+            mElementAddressIndex.clear();
+        }
+        mNodeIdentitiesChanged = true;
+        mSubnetTable.clear();
+        mDeviceKeyTable.clear();
+        mApplicationKeyTable.clear();
+        mNetworkIdClassifier.clear();
+        mReplayProtectionList.clear();
+        KeyMaterial.clear();
+        MeshCipherContext.clear();
         clearProvisionedNodes();
         SequenceNumber.resetSequenceNumber(mContext);
         mProvisioningSettings.clearProvisioningData();
         mProvisioningSettings.generateProvisioningData();
+        addProvisionerKeys();
     }
 
     /**
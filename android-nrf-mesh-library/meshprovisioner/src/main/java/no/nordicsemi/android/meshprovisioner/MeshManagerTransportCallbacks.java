@@ -28,7 +28,12 @@ package no.nordicsemi.android.meshprovisioner;
 public interface MeshManagerTransportCallbacks {
     /**
      * Passes the pdu to the ble module of the app
-     *  @param meshNode peripheral mesh node to send to
+     * <p>
+     * Pdus larger than the mtu size are segmented by the library and passed on one segment at a time,
+     * so the pdu always fits in to a single write
+     * </p>
+     *
+     * @param meshNode peripheral mesh node to send to
      * @param pdu      mesh pdu to be sent out to the node
      */
     void sendPdu(final BaseMeshNode meshNode, final byte[] pdu);
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
+
+/**
+ * Lightweight description of a provisioned node that is available before the node itself has been loaded
+ */
+public final class MeshNodeSummary {
+
+    private final int unicastAddress;
+    private final int elementCount;
+    private final String nodeName;
+    private final byte[] networkId;
+
+    MeshNodeSummary(final int unicastAddress, final int elementCount, final String nodeName, final byte[] networkId) {
+        this.unicastAddress = unicastAddress;
+        this.elementCount = elementCount;
+        this.nodeName = nodeName;
+        this.networkId = networkId;
+    }
+
+    MeshNodeSummary(final ProvisionedMeshNode node) {
+        this(AddressUtils.getUnicastAddressInt(node.getUnicastAddress()), node.getElements().size(), node.getNodeName(), node.getGeneratedNetworkId());
+    }
+
+    /**
+     * Returns the unicast address of the primary element of the node
+     */
+    public int getUnicastAddress() {
+        return unicastAddress;
+    }
+
+    /**
+     * Returns the number of elements of the node, this is 0 until the composition data of the node has been received
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * Returns the name of the node
+     */
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * Returns the network id generated for the node or null if it has not been generated yet
+     */
+    public byte[] getNetworkId() {
+        return networkId;
+    }
+
+    /**
+     * Returns true if the given address is the address of one of the elements of the node
+     *
+     * @param address unicast address
+     */
+    public boolean containsAddress(final int address) {
+        return address >= unicastAddress && address < unicastAddress + Math.max(1, elementCount);
+    }
+}
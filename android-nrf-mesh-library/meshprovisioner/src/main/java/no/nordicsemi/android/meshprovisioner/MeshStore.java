@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import java.util.Collection;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+
+/**
+ * Persistent storage for the provisioned nodes of the mesh network
+ */
+public interface MeshStore {
+
+    /**
+     * Loads all provisioned nodes
+     *
+     * @return nodes ordered by unicast address
+     */
+    List<ProvisionedMeshNode> loadNodes();
+
+    /**
+     * Loads the summaries of all provisioned nodes without loading the nodes themselves
+     *
+     * @return summaries ordered by unicast address
+     */
+    List<MeshNodeSummary> loadSummaries();
+
+    /**
+     * Loads a single node
+     *
+     * @param unicastAddress unicast address of the node
+     * @return provisioned mesh node or null if no node is stored with the given address
+     */
+    ProvisionedMeshNode loadNode(final int unicastAddress);
+
+    /**
+     * Saves a single node, replacing the node previously stored with the same unicast address
+     *
+     * @param node provisioned mesh node
+     */
+    void saveNode(final ProvisionedMeshNode node);
+
+    /**
+     * Saves the given nodes in one go
+     *
+     * @param nodes provisioned mesh nodes
+     */
+    void saveNodes(final Collection<ProvisionedMeshNode> nodes);
+
+    /**
+     * Deletes the node stored with the unicast address of the given node
+     *
+     * @param node provisioned mesh node
+     */
+    void deleteNode(final ProvisionedMeshNode node);
+
+    /**
+     * Deletes all nodes
+     */
+    void clear();
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+
+/**
+ * {@link MeshStore} keeping the provisioned nodes in an append-only log file.
+ * <p>
+ * Every save appends one record per node and a delete appends a tombstone, so a change to one node writes only that node
+ * instead of rewriting the whole network. A record is framed as length | crc32 | operation | unicast address | summary | payload
+ * where the summary holds the fields of {@link MeshNodeSummary} and the payload is the node serialized as compact json.
+ * Replaying the log only decodes the summaries and remembers where each payload is, so the json of a node is parsed
+ * when the node is loaded. A record that was only partially written, e.g. when the process died, fails the crc check
+ * and the log is truncated there on the next load. Once the records that have been superseded take up more space than
+ * the live ones, the log is compacted in to a new file.
+ * </p>
+ */
+public final class MeshStoreLog implements MeshStore {
+
+    private static final String TAG = MeshStoreLog.class.getSimpleName();
+    private static final int MAGIC = 0x4D455348; //MESH
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_LENGTH = 5;
+    private static final int RECORD_HEADER_LENGTH = 8; //length and crc
+    private static final byte OPERATION_PUT = 0x01;
+    private static final byte OPERATION_DELETE = 0x02;
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final Gson mGson;
+    private final Map<Integer, Entry> mEntries = new TreeMap<>();
+    private long mLiveSize;
+    private long mFileSize;
+
+    public MeshStoreLog(final File file, final Gson gson) {
+        mFile = file;
+        mGson = gson;
+    }
+
+    @Override
+    public synchronized List<ProvisionedMeshNode> loadNodes() {
+        final Map<Integer, byte[]> payloads = new TreeMap<>();
+        readLog(payloads);
+        final List<ProvisionedMeshNode> nodes = new ArrayList<>(payloads.size());
+        for (byte[] payload : payloads.values()) {
+            nodes.add(fromJson(payload));
+        }
+        return nodes;
+    }
+
+    @Override
+    public synchronized List<MeshNodeSummary> loadSummaries() {
+        readLog(null);
+        final List<MeshNodeSummary> summaries = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            summaries.add(entry.summary);
+        }
+        return summaries;
+    }
+
+    @Override
+    public synchronized ProvisionedMeshNode loadNode(final int unicastAddress) {
+        ensureIndexed();
+        final Entry entry = mEntries.get(unicastAddress);
+        if (entry == null)
+            return null;
+
+        final byte[] payload = new byte[entry.payloadLength];
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(entry.payloadOffset);
+            file.readFully(payload);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read node " + unicastAddress + " from " + mFile + ": " + e.getMessage());
+            return null;
+        }
+        return fromJson(payload);
+    }
+
+    @Override
+    public synchronized void saveNode(final ProvisionedMeshNode node) {
+        saveNodes(Collections.singletonList(node));
+    }
+
+    @Override
+    public synchronized void saveNodes(final Collection<ProvisionedMeshNode> nodes) {
+        ensureIndexed();
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        if (mFileSize == 0) {
+            writeFileHeader(records);
+        }
+        final long offset = mFileSize;
+        final List<Entry> entries = new ArrayList<>(nodes.size());
+        for (ProvisionedMeshNode node : nodes) {
+            final MeshNodeSummary summary = new MeshNodeSummary(node);
+            final byte[] payload = mGson.toJson(node).getBytes(UTF_8);
+            final int recordStart = records.size();
+            final int payloadOffset = writeRecord(records, summary, payload);
+            entries.add(new Entry(summary, offset + payloadOffset, payload.length, records.size() - recordStart));
+        }
+        if (append(records)) {
+            for (Entry entry : entries) {
+                setEntry(entry.summary.getUnicastAddress(), entry);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized void deleteNode(final ProvisionedMeshNode node) {
+        ensureIndexed();
+        final MeshNodeSummary summary = new MeshNodeSummary(node);
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        if (mFileSize == 0) {
+            writeFileHeader(records);
+        }
+        writeRecord(records, OPERATION_DELETE, summary.getUnicastAddress(), null, null);
+        if (append(records)) {
+            setEntry(summary.getUnicastAddress(), null);
+            compactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mEntries.clear();
+        mLiveSize = 0;
+        mFileSize = 0;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Unable to delete " + mFile);
+        }
+    }
+
+    /**
+     * Returns true if the log does not contain any node
+     */
+    public synchronized boolean isEmpty() {
+        ensureIndexed();
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Replays the log if it has not been read yet
+     */
+    private void ensureIndexed() {
+        if (mFileSize == 0 && mFile.exists()) {
+            readLog(null);
+        }
+    }
+
+    private ProvisionedMeshNode fromJson(final byte[] payload) {
+        return mGson.fromJson(new String(payload, UTF_8), ProvisionedMeshNode.class);
+    }
+
+    private void setEntry(final int unicastAddress, final Entry entry) {
+        final Entry previous = entry != null ? mEntries.put(unicastAddress, entry) : mEntries.remove(unicastAddress);
+        if (previous != null) {
+            mLiveSize -= previous.recordSize;
+        }
+        if (entry != null) {
+            mLiveSize += entry.recordSize;
+        }
+    }
+
+    private boolean append(final ByteArrayOutputStream records) {
+        try (FileOutputStream outputStream = new FileOutputStream(mFile, true)) {
+            records.writeTo(outputStream);
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to append to " + mFile + ": " + e.getMessage());
+            return false;
+        }
+        mFileSize = mFile.length();
+        return true;
+    }
+
+    private void compactIfNeeded() {
+        if (mFileSize > MIN_COMPACTION_SIZE && mFileSize > 2 * (mLiveSize + FILE_HEADER_LENGTH)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest record of every node
+     */
+    private void compact() {
+        final Map<Integer, byte[]> payloads = new TreeMap<>();
+        readLog(payloads);
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        writeFileHeader(records);
+        for (Map.Entry<Integer, byte[]> payload : payloads.entrySet()) {
+            writeRecord(records, mEntries.get(payload.getKey()).summary, payload.getValue());
+        }
+
+        final File compacted = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(compacted, false)) {
+            records.writeTo(outputStream);
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact " + mFile + ": " + e.getMessage());
+            return;
+        }
+        if (!compacted.renameTo(mFile)) {
+            Log.e(TAG, "Unable to replace " + mFile + " with the compacted log");
+            return;
+        }
+        //Payload offsets have changed
+        readLog(null);
+    }
+
+    /**
+     * Replays the log, indexing every live node and truncating the log after the last valid record
+     *
+     * @param payloads if not null, receives the payload of every live node
+     */
+    private void readLog(final Map<Integer, byte[]> payloads) {
+        mEntries.clear();
+        mLiveSize = 0;
+        mFileSize = 0;
+        if (!mFile.exists())
+            return;
+
+        if (!hasFileHeader()) {
+            moveAside();
+            return;
+        }
+
+        long validLength = FILE_HEADER_LENGTH;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            inputStream.skipBytes(FILE_HEADER_LENGTH);
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length = inputStream.readInt();
+                final int checksum = inputStream.readInt();
+                if (length < 3 || length > mFile.length())
+                    break;
+                final byte[] record = new byte[length];
+                inputStream.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                final int unicastAddress = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+                if (record[0] == OPERATION_PUT) {
+                    final int elementCount = record[3] & 0xFF;
+                    final int networkIdLength = record[4] & 0xFF;
+                    final byte[] networkId = networkIdLength == 0 ? null : copyOfRange(record, 5, 5 + networkIdLength);
+                    final int nameOffset = 5 + networkIdLength;
+                    final int nameLength = ((record[nameOffset] & 0xFF) << 8) | (record[nameOffset + 1] & 0xFF);
+                    final String nodeName = new String(record, nameOffset + 2, nameLength, UTF_8);
+                    final int payloadOffset = nameOffset + 2 + nameLength;
+
+                    final MeshNodeSummary summary = new MeshNodeSummary(unicastAddress, elementCount, nodeName, networkId);
+                    final long recordOffset = validLength + RECORD_HEADER_LENGTH;
+                    setEntry(unicastAddress, new Entry(summary, recordOffset + payloadOffset, length - payloadOffset, RECORD_HEADER_LENGTH + length));
+                    if (payloads != null) {
+                        payloads.put(unicastAddress, copyOfRange(record, payloadOffset, length));
+                    }
+                } else {
+                    setEntry(unicastAddress, null);
+                    if (payloads != null) {
+                        payloads.remove(unicastAddress);
+                    }
+                }
+                validLength += RECORD_HEADER_LENGTH + length;
+            }
+        } catch (EOFException e) {
+            //End of the log
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile + ": " + e.getMessage());
+        }
+
+        if (validLength < mFile.length()) {
+            Log.v(TAG, "Truncating incomplete records at the end of " + mFile);
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(validLength);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to truncate " + mFile + ": " + e.getMessage());
+            }
+        }
+        mFileSize = mFile.length();
+    }
+
+    /**
+     * Returns true if the log starts with the magic and version of this format
+     */
+    private boolean hasFileHeader() {
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(mFile))) {
+            if (inputStream.readInt() != MAGIC) {
+                Log.e(TAG, "Unknown log format in " + mFile);
+                return false;
+            }
+            final int version = inputStream.readUnsignedByte();
+            if (version != VERSION) {
+                Log.e(TAG, "Unknown log version " + version + " in " + mFile);
+                return false;
+            }
+            return true;
+        } catch (EOFException e) {
+            Log.e(TAG, "Incomplete header in " + mFile);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Moves a log that can not be read out of the way, so that the next save starts a new log with a valid header
+     * instead of appending records that would be ignored on the next load
+     */
+    private void moveAside() {
+        final File unreadable = new File(mFile.getPath() + ".unreadable");
+        if (unreadable.exists() && !unreadable.delete()) {
+            Log.e(TAG, "Unable to delete " + unreadable);
+        }
+        if (mFile.renameTo(unreadable)) {
+            Log.v(TAG, "Moved " + mFile + " to " + unreadable);
+        } else if (!mFile.delete()) {
+            Log.e(TAG, "Unable to move aside " + mFile);
+        }
+    }
+
+    private static byte[] copyOfRange(final byte[] data, final int from, final int to) {
+        final byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    private static void writeFileHeader(final ByteArrayOutputStream records) {
+        records.write((MAGIC >> 24) & 0xFF);
+        records.write((MAGIC >> 16) & 0xFF);
+        records.write((MAGIC >> 8) & 0xFF);
+        records.write(MAGIC & 0xFF);
+        records.write(VERSION);
+    }
+
+    /**
+     * Writes a put record
+     *
+     * @return offset of the payload from the start of the buffer
+     */
+    private static int writeRecord(final ByteArrayOutputStream records, final MeshNodeSummary summary, final byte[] payload) {
+        final byte[] networkId = summary.getNetworkId() != null ? summary.getNetworkId() : new byte[0];
+        final byte[] name = summary.getNodeName() != null ? summary.getNodeName().getBytes(UTF_8) : new byte[0];
+        final int nameLength = Math.min(name.length, 0xFFFF);
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(3 + networkId.length + 2 + nameLength);
+        header.write(Math.min(summary.getElementCount(), 0xFF));
+        header.write(networkId.length);
+        header.write(networkId, 0, networkId.length);
+        header.write((nameLength >> 8) & 0xFF);
+        header.write(nameLength & 0xFF);
+        header.write(name, 0, nameLength);
+        return writeRecord(records, OPERATION_PUT, summary.getUnicastAddress(), header.toByteArray(), payload);
+    }
+
+    /**
+     * Writes a record
+     *
+     * @return offset of the payload from the start of the buffer
+     */
+    private static int writeRecord(final ByteArrayOutputStream records, final byte operation, final int unicastAddress,
+                                   final byte[] summary, final byte[] payload) {
+        final int summaryLength = summary != null ? summary.length : 0;
+        final int payloadLength = payload != null ? payload.length : 0;
+        final byte[] record = new byte[3 + summaryLength + payloadLength];
+        record[0] = operation;
+        record[1] = (byte) ((unicastAddress >> 8) & 0xFF);
+        record[2] = (byte) (unicastAddress & 0xFF);
+        if (summary != null) {
+            System.arraycopy(summary, 0, record, 3, summaryLength);
+        }
+        if (payload != null) {
+            System.arraycopy(payload, 0, record, 3 + summaryLength, payloadLength);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        final DataOutputStream outputStream = new DataOutputStream(records);
+        try {
+            outputStream.writeInt(record.length);
+            outputStream.writeInt((int) crc.getValue());
+            outputStream.write(record);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return records.size() - payloadLength;
+    }
+
+    private static final class Entry {
+        final MeshNodeSummary summary;
+        final long payloadOffset;
+        final int payloadLength;
+        final int recordSize;
+
+        Entry(final MeshNodeSummary summary, final long payloadOffset, final int payloadLength, final int recordSize) {
+            this.summary = summary;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+            this.recordSize = recordSize;
+        }
+    }
+}
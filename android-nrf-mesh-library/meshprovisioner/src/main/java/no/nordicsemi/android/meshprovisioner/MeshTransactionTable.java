@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
+
+/**
+ * Outstanding acknowledged messages, keyed by their destination address and the opcode of the status message expected back.
+ * <p>
+ * Any number of messages may be outstanding at the same time, to the same or to different nodes. A received access message is
+ * correlated with the transaction matching its source address and opcode, so that a response is only ever parsed by the message
+ * that asked for it and a late response to a transaction that already completed or timed out is not mistaken for another one.
+ * </p>
+ * <p>
+ * As the status would not tell them apart, a message waiting for the same status from the same destination as an outstanding
+ * message is queued behind it and becomes outstanding once the first one completes or expires. Transactions that expire without
+ * a status are kept until they are collected with {@link #pollExpired(long)}, so that they can be reported.
+ * </p>
+ * <p>
+ * The statuses of a message sent to a group or virtual address come from the unicast addresses of the nodes subscribed to it, so
+ * such a transaction is matched by the opcode of the status alone. It stays outstanding until it expires, as any number of nodes
+ * may respond, and it is replaced rather than queued by a later message waiting for the same status.
+ * </p>
+ */
+public final class MeshTransactionTable {
+
+    private static final String TAG = MeshTransactionTable.class.getSimpleName();
+    public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+    private final Map<Long, Transaction> mTransactions = new LinkedHashMap<>();
+    private final Map<Long, ArrayDeque<Transaction>> mWaitingTransactions = new HashMap<>();
+    private final Map<Integer, Transaction> mGroupTransactions = new LinkedHashMap<>();
+    private final List<Transaction> mExpiredTransactions = new ArrayList<>();
+    private final long mTimeout;
+
+    public MeshTransactionTable(final long timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Transaction timeout must be greater than zero");
+        mTimeout = timeout;
+    }
+
+    /**
+     * Adds a transaction, which is queued if a transaction is already waiting for the same status from the same unicast destination
+     *
+     * @param dst          destination address of the request
+     * @param statusOpCode opcode of the status message expected from the destination
+     * @param request      message sent to the destination
+     * @param response     message parsing the expected status
+     * @param sender       sends the request once the transaction becomes outstanding
+     * @param now          current time in milliseconds
+     * @return true if the transaction is outstanding and the request may be sent now, false if it has been queued
+     */
+    public synchronized boolean add(final int dst, final int statusOpCode, final ConfigMessage request, final ConfigMessage response,
+                                    final Runnable sender, final long now) {
+        expire(now);
+        final long key = getKey(dst, statusOpCode);
+        final Transaction transaction = new Transaction(key, dst, request, response, sender);
+        if (isGroupAddress(dst)) {
+            transaction.expiresAt = now + mTimeout;
+            mGroupTransactions.put(getUnsignedOpCode(statusOpCode), transaction);
+            return true;
+        }
+        if (mTransactions.containsKey(key)) {
+            Log.v(TAG, "Queueing transaction to " + String.format(Locale.US, "0x%04X", dst) + " behind the outstanding one for opcode " + Integer.toHexString(statusOpCode));
+            ArrayDeque<Transaction> waitingTransactions = mWaitingTransactions.get(key);
+            if (waitingTransactions == null) {
+                waitingTransactions = new ArrayDeque<>();
+                mWaitingTransactions.put(key, waitingTransactions);
+            }
+            waitingTransactions.add(transaction);
+            return false;
+        }
+        transaction.expiresAt = now + mTimeout;
+        mTransactions.put(key, transaction);
+        return true;
+    }
+
+    /**
+     * Makes the next transaction queued for the same status as a completed transaction outstanding
+     *
+     * @param transaction completed, failed or expired transaction
+     * @param now         current time in milliseconds
+     * @return the transaction whose request is to be sent now, or null if none is queued or a transaction is still outstanding
+     */
+    public synchronized Transaction promote(final Transaction transaction, final long now) {
+        if (mTransactions.containsKey(transaction.key))
+            return null;
+        final ArrayDeque<Transaction> waitingTransactions = mWaitingTransactions.get(transaction.key);
+        if (waitingTransactions == null)
+            return null;
+
+        final Transaction next = waitingTransactions.poll();
+        if (waitingTransactions.isEmpty()) {
+            mWaitingTransactions.remove(transaction.key);
+        }
+        next.expiresAt = now + mTimeout;
+        mTransactions.put(next.key, next);
+        return next;
+    }
+
+    /**
+     * Returns the transactions that expired without a status since this method was last invoked
+     *
+     * @param now current time in milliseconds
+     */
+    public synchronized List<Transaction> pollExpired(final long now) {
+        expire(now);
+        final List<Transaction> expiredTransactions = new ArrayList<>(mExpiredTransactions);
+        mExpiredTransactions.clear();
+        return expiredTransactions;
+    }
+
+    /**
+     * Removes the transaction a received access message completes.
+     * <p>
+     * If no message to the source is waiting for the status, the message is matched with a transaction to a group address
+     * waiting for the same status. That transaction is returned but stays outstanding, so that the statuses of the other
+     * nodes in the group are matched as well.
+     * </p>
+     *
+     * @param src    source address of the received message
+     * @param opCode opcode of the received message
+     * @param now    current time in milliseconds
+     * @return the completed transaction or null if no transaction is waiting for the message
+     */
+    public synchronized Transaction remove(final int src, final int opCode, final long now) {
+        expire(now);
+        final Transaction transaction = mTransactions.remove(getKey(src, opCode));
+        if (transaction != null)
+            return transaction;
+
+        final Transaction groupTransaction = mGroupTransactions.get(getUnsignedOpCode(opCode));
+        if (groupTransaction != null) {
+            groupTransaction.statusCount++;
+        }
+        return groupTransaction;
+    }
+
+    /**
+     * Removes the transaction of a request that is no longer waited for
+     *
+     * @param request message sent
+     * @return the removed transaction or null if the request has no outstanding transaction
+     */
+    public synchronized Transaction remove(final ConfigMessage request) {
+        final Transaction transaction = remove(mTransactions.values().iterator(), request);
+        return transaction != null ? transaction : remove(mGroupTransactions.values().iterator(), request);
+    }
+
+    private static Transaction remove(final Iterator<Transaction> iterator, final ConfigMessage request) {
+        while (iterator.hasNext()) {
+            final Transaction transaction = iterator.next();
+            if (transaction.request == request) {
+                iterator.remove();
+                return transaction;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the requests of the outstanding transactions to the given destination, oldest first
+     *
+     * @param dst destination address
+     * @param now current time in milliseconds
+     */
+    public synchronized List<ConfigMessage> getRequests(final int dst, final long now) {
+        expire(now);
+        final List<ConfigMessage> requests = new ArrayList<>();
+        for (Transaction transaction : mTransactions.values()) {
+            if (transaction.dst == dst) {
+                requests.add(transaction.request);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Returns the number of outstanding transactions
+     */
+    public synchronized int size() {
+        return mTransactions.size() + mGroupTransactions.size();
+    }
+
+    /**
+     * Returns the number of transactions queued behind an outstanding transaction
+     */
+    public synchronized int getWaitingCount() {
+        int count = 0;
+        for (ArrayDeque<Transaction> waitingTransactions : mWaitingTransactions.values()) {
+            count += waitingTransactions.size();
+        }
+        return count;
+    }
+
+    /**
+     * Removes all outstanding and queued transactions
+     */
+    public synchronized void clear() {
+        mTransactions.clear();
+        mGroupTransactions.clear();
+        mWaitingTransactions.clear();
+        mExpiredTransactions.clear();
+    }
+
+    private static long getKey(final int address, final int opCode) {
+        return ((long) (address & 0xFFFF) << 32) | getUnsignedOpCode(opCode);
+    }
+
+    private static int getUnsignedOpCode(final int opCode) {
+        //Two octet opcodes are declared as shorts and may have been sign extended
+        return opCode < 0 ? opCode & 0xFFFF : opCode;
+    }
+
+    private static boolean isGroupAddress(final int address) {
+        return (address & 0x8000) != 0;
+    }
+
+    private void expire(final long now) {
+        //Transactions are kept in the order they were added so only the oldest need to be looked at
+        final Iterator<Transaction> iterator = mTransactions.values().iterator();
+        while (iterator.hasNext()) {
+            final Transaction transaction = iterator.next();
+            if (transaction.expiresAt > now)
+                break;
+            Log.v(TAG, "No status received from " + String.format(Locale.US, "0x%04X", transaction.dst) + " for " + transaction.request.getState());
+            iterator.remove();
+            mExpiredTransactions.add(transaction);
+        }
+
+        //Transactions to group addresses are only reported if no node in the group responded
+        final Iterator<Transaction> groupIterator = mGroupTransactions.values().iterator();
+        while (groupIterator.hasNext()) {
+            final Transaction transaction = groupIterator.next();
+            if (transaction.expiresAt > now)
+                continue;
+            groupIterator.remove();
+            if (transaction.statusCount == 0) {
+                Log.v(TAG, "No status received from group " + String.format(Locale.US, "0x%04X", transaction.dst) + " for " + transaction.request.getState());
+                mExpiredTransactions.add(transaction);
+            }
+        }
+    }
+
+    /**
+     * Acknowledged message waiting for a status
+     */
+    public static final class Transaction {
+        private final long key;
+        private final int dst;
+        private final ConfigMessage request;
+        private final ConfigMessage response;
+        private final Runnable sender;
+        private long expiresAt;
+        private int statusCount;
+
+        private Transaction(final long key, final int dst, final ConfigMessage request, final ConfigMessage response, final Runnable sender) {
+            this.key = key;
+            this.dst = dst;
+            this.request = request;
+            this.response = response;
+            this.sender = sender;
+        }
+
+        /**
+         * Returns the destination address of the request
+         */
+        public int getDst() {
+            return dst;
+        }
+
+        /**
+         * Sends the request
+         */
+        public void send() {
+            if (sender != null) {
+                sender.run();
+            }
+        }
+
+        /**
+         * Returns the message that was sent
+         */
+        public ConfigMessage getRequest() {
+            return request;
+        }
+
+        /**
+         * Returns the message parsing the status
+         */
+        public ConfigMessage getResponse() {
+            return response;
+        }
+    }
+}
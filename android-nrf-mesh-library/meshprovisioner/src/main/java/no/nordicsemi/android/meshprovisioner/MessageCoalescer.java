@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Coalesces state set messages that are sent in quick succession to the same model.
+ * <p>
+ * The first set for a destination, model and state is sent right away and opens a window. Sets submitted for the same state
+ * while the window is open are not sent, each replacing the one submitted before it, and the last of them is sent when the
+ * window closes, opening a new window. Messages are only created when they are sent, so sets that are replaced never consume
+ * a sequence number or airtime.
+ * </p>
+ */
+public final class MessageCoalescer {
+
+    private static final String TAG = MessageCoalescer.class.getSimpleName();
+    public static final long DEFAULT_WINDOW = 100;
+
+    private final Map<Key, Window> mWindows = new HashMap<>();
+    private final Handler mHandler;
+    private long mWindow;
+    private int mCoalescedCount;
+
+    /**
+     * Creates a coalescer
+     *
+     * @param handler handler used to close the windows
+     * @param window  time in milliseconds during which sets for the same state are coalesced, 0 sends every set
+     */
+    public MessageCoalescer(final Handler handler, final long window) {
+        mHandler = handler;
+        setWindow(window);
+    }
+
+    /**
+     * Sets the time during which sets for the same state are coalesced, applied to windows opened from now on
+     *
+     * @param window time in milliseconds, 0 sends every set
+     */
+    public synchronized void setWindow(final long window) {
+        if (window < 0)
+            throw new IllegalArgumentException("Coalescing window must not be negative");
+        mWindow = window;
+    }
+
+    public synchronized long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Sends a state set message, or holds it back until the window of the state closes if a set for the same state was sent recently
+     *
+     * @param dst             destination address of the message
+     * @param modelIdentifier identifier of the model whose state is set
+     * @param opCode          opcode identifying the state that is set
+     * @param send            creates and sends the message
+     */
+    public void submit(final int dst, final int modelIdentifier, final int opCode, final Runnable send) {
+        synchronized (this) {
+            if (mWindow > 0) {
+                final Key key = new Key(dst, modelIdentifier, opCode);
+                final Window window = mWindows.get(key);
+                if (window != null) {
+                    if (window.pending != null) {
+                        mCoalescedCount++;
+                    }
+                    window.pending = send;
+                    return;
+                }
+                openWindow(key);
+            }
+        }
+        send.run();
+    }
+
+    /**
+     * Returns the number of sets held back until their window closes
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Window window : mWindows.values()) {
+            if (window.pending != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of sets that were replaced by a later set before being sent
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Drops the sets held back and closes all windows
+     */
+    public synchronized void cancel() {
+        for (Window window : mWindows.values()) {
+            mHandler.removeCallbacks(window.timer);
+        }
+        mWindows.clear();
+    }
+
+    private void openWindow(final Key key) {
+        final Window window = new Window(() -> onWindowClosed(key));
+        mWindows.put(key, window);
+        mHandler.postDelayed(window.timer, mWindow);
+    }
+
+    /**
+     * Sends the last set held back for a state, keeping the state in a new window, or forgets the state if no set was held back
+     *
+     * @param key state whose window closed
+     */
+    private void onWindowClosed(final Key key) {
+        final Runnable send;
+        synchronized (this) {
+            final Window window = mWindows.remove(key);
+            if (window == null || window.pending == null)
+                return;
+
+            send = window.pending;
+            if (mWindow > 0) {
+                openWindow(key);
+            }
+        }
+        Log.v(TAG, String.format(Locale.US, "Sending latest set for opcode 0x%04X to 0x%04X", key.opCode, key.dst));
+        send.run();
+    }
+
+    private static final class Window {
+        private final Runnable timer;
+        private Runnable pending;
+
+        private Window(final Runnable timer) {
+            this.timer = timer;
+        }
+    }
+
+    private static final class Key {
+        private final int dst;
+        private final int modelIdentifier;
+        private final int opCode;
+
+        private Key(final int dst, final int modelIdentifier, final int opCode) {
+            this.dst = dst & 0xFFFF;
+            this.modelIdentifier = modelIdentifier;
+            this.opCode = opCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return dst == key.dst && modelIdentifier == key.modelIdentifier && opCode == key.opCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * dst + modelIdentifier) * 31 + opCode;
+        }
+    }
+}
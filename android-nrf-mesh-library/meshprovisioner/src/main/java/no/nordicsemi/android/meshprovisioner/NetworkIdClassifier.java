@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import java.util.Arrays;
+
+/**
+ * Classifies Network Identity advertisements by the network they belong to.
+ * <p>
+ * The network ids of the known network keys are held as primitive longs in an open addressing table, so that an advertisement
+ * is classified by reading the advertised network id as a long and probing the table, without any allocation. Any number of
+ * networks may be added which allows a single scan to find proxies of every subnet managed by the provisioner.
+ * </p>
+ */
+public final class NetworkIdClassifier {
+
+    public static final int UNKNOWN_NETWORK = -1;
+    private static final int NETWORK_ID_LENGTH = 8;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mNetworkIds = new long[INITIAL_CAPACITY];
+    private int[] mKeyIndexes = new int[INITIAL_CAPACITY];
+    private boolean[] mOccupied = new boolean[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Adds the network id of a network key, replacing the key index if the network id was already added
+     *
+     * @param networkId network id derived from the network key
+     * @param keyIndex  global key index of the network key
+     */
+    public synchronized void add(final byte[] networkId, final int keyIndex) {
+        if (networkId == null || networkId.length != NETWORK_ID_LENGTH)
+            throw new IllegalArgumentException("Network id must be " + NETWORK_ID_LENGTH + " octets");
+
+        if ((mSize + 1) * 2 > mNetworkIds.length) {
+            resize(mNetworkIds.length * 2);
+        }
+        if (put(readLong(networkId, 0), keyIndex)) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Removes all network ids
+     */
+    public synchronized void clear() {
+        Arrays.fill(mOccupied, false);
+        mSize = 0;
+    }
+
+    /**
+     * Returns the number of network ids
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the key index of the network the advertised network id belongs to
+     *
+     * @param serviceData advertised service data
+     * @param offset      offset of the network id in the service data
+     * @return global key index of the network key or {@link #UNKNOWN_NETWORK} if the network id is not known
+     */
+    public synchronized int classify(final byte[] serviceData, final int offset) {
+        if (serviceData == null || serviceData.length < offset + NETWORK_ID_LENGTH)
+            return UNKNOWN_NETWORK;
+
+        final long networkId = readLong(serviceData, offset);
+        final int mask = mNetworkIds.length - 1;
+        for (int slot = hash(networkId) & mask; mOccupied[slot]; slot = (slot + 1) & mask) {
+            if (mNetworkIds[slot] == networkId)
+                return mKeyIndexes[slot];
+        }
+        return UNKNOWN_NETWORK;
+    }
+
+    private boolean put(final long networkId, final int keyIndex) {
+        final int mask = mNetworkIds.length - 1;
+        int slot = hash(networkId) & mask;
+        while (mOccupied[slot]) {
+            if (mNetworkIds[slot] == networkId) {
+                mKeyIndexes[slot] = keyIndex;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mOccupied[slot] = true;
+        mNetworkIds[slot] = networkId;
+        mKeyIndexes[slot] = keyIndex;
+        return true;
+    }
+
+    private void resize(final int capacity) {
+        final long[] networkIds = mNetworkIds;
+        final int[] keyIndexes = mKeyIndexes;
+        final boolean[] occupied = mOccupied;
+        mNetworkIds = new long[capacity];
+        mKeyIndexes = new int[capacity];
+        mOccupied = new boolean[capacity];
+        for (int i = 0; i < occupied.length; i++) {
+            if (occupied[i]) {
+                put(networkIds[i], keyIndexes[i]);
+            }
+        }
+    }
+
+    private static int hash(final long networkId) {
+        final int hash = (int) (networkId ^ (networkId >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    private static long readLong(final byte[] data, final int offset) {
+        long value = 0;
+        for (int i = 0; i < NETWORK_ID_LENGTH; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
+import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
+import no.nordicsemi.android.meshprovisioner.utils.MeshCipherContext;
+
+/**
+ * Resolves the node advertising with Node Identity from the advertised hash and random.
+ * <p>
+ * The identity key of every node is expanded once in to a {@link MeshCipherContext}, and each unseen advertisement is matched by
+ * calculating the hash for the nodes in turn until one matches. Nodes keep advertising the same hash and random for a while, so
+ * the result of every advertisement, including advertisements not matching any node, is remembered in a bounded LRU cache and
+ * repeated advertisements are resolved without any AES operation.
+ * </p>
+ */
+public final class NodeIdentityResolver {
+
+    public static final int NO_MATCH = -1;
+    private static final int BLOCK_SIZE = 16;
+    private static final int HASH_LENGTH = 8;
+    private static final int RANDOM_LENGTH = 8;
+    private static final int RANDOM_OFFSET = 6; //Hash input is padding(6) | random(8) | unicast address(2)
+    private static final int HASH_OFFSET = 8; //Hash is the least significant 64 bits of the output
+
+    private final Map<ByteBuffer, Integer> mResolved;
+    private final byte[] mHashInput = new byte[BLOCK_SIZE];
+    private final byte[] mHashOutput = new byte[BLOCK_SIZE];
+    private int[] mUnicastAddresses = new int[0];
+    private MeshCipherContext[] mIdentityKeys = new MeshCipherContext[0];
+
+    public NodeIdentityResolver(final int maxCachedAdvertisements) {
+        mResolved = new LinkedHashMap<ByteBuffer, Integer>(maxCachedAdvertisements, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Integer> eldest) {
+                return size() > maxCachedAdvertisements;
+            }
+        };
+    }
+
+    /**
+     * Sets the nodes to resolve advertisements against, cached results are discarded
+     *
+     * @param nodes provisioned nodes
+     */
+    public void setNodes(final Collection<ProvisionedMeshNode> nodes) {
+        final Map<Integer, byte[]> identityKeys = new LinkedHashMap<>();
+        for (ProvisionedMeshNode node : nodes) {
+            if (node.getIdentityKey() == null || node.getUnicastAddress() == null)
+                continue;
+            identityKeys.put(AddressUtils.getUnicastAddressInt(node.getUnicastAddress()), node.getIdentityKey());
+        }
+        setIdentityKeys(identityKeys);
+    }
+
+    /**
+     * Sets the identity keys of the nodes to resolve advertisements against, cached results are discarded
+     *
+     * @param identityKeys identity keys keyed by the unicast address of the node
+     */
+    public synchronized void setIdentityKeys(final Map<Integer, byte[]> identityKeys) {
+        final int[] unicastAddresses = new int[identityKeys.size()];
+        final MeshCipherContext[] contexts = new MeshCipherContext[identityKeys.size()];
+        int count = 0;
+        for (Map.Entry<Integer, byte[]> entry : identityKeys.entrySet()) {
+            unicastAddresses[count] = entry.getKey();
+            contexts[count] = MeshCipherContext.obtain(entry.getValue());
+            count++;
+        }
+        mUnicastAddresses = unicastAddresses;
+        mIdentityKeys = contexts;
+        mResolved.clear();
+    }
+
+    /**
+     * Returns the unicast address of the node that generated the advertised hash
+     *
+     * @param serviceData advertised service data
+     * @param hashOffset  offset of the hash in the service data, the random follows the hash
+     * @return unicast address or {@link #NO_MATCH} if the advertisement was not generated by any of the nodes
+     */
+    public synchronized int resolve(final byte[] serviceData, final int hashOffset) {
+        if (serviceData == null || serviceData.length < hashOffset + HASH_LENGTH + RANDOM_LENGTH)
+            return NO_MATCH;
+
+        final ByteBuffer advertisement = ByteBuffer.wrap(serviceData, hashOffset, HASH_LENGTH + RANDOM_LENGTH).slice();
+        final Integer resolved = mResolved.get(advertisement);
+        if (resolved != null)
+            return resolved;
+
+        int unicastAddress = NO_MATCH;
+        System.arraycopy(serviceData, hashOffset + HASH_LENGTH, mHashInput, RANDOM_OFFSET, RANDOM_LENGTH);
+        for (int i = 0; i < mIdentityKeys.length; i++) {
+            mHashInput[BLOCK_SIZE - 2] = (byte) (mUnicastAddresses[i] >> 8);
+            mHashInput[BLOCK_SIZE - 1] = (byte) mUnicastAddresses[i];
+            mIdentityKeys[i].encryptBlock(mHashInput, 0, mHashOutput, 0);
+            if (matches(mHashOutput, serviceData, hashOffset)) {
+                unicastAddress = mUnicastAddresses[i];
+                break;
+            }
+        }
+
+        final byte[] key = new byte[HASH_LENGTH + RANDOM_LENGTH];
+        System.arraycopy(serviceData, hashOffset, key, 0, key.length);
+        mResolved.put(ByteBuffer.wrap(key), unicastAddress);
+        return unicastAddress;
+    }
+
+    private static boolean matches(final byte[] hashOutput, final byte[] serviceData, final int hashOffset) {
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (hashOutput[HASH_OFFSET + i] != serviceData[hashOffset + i])
+                return false;
+        }
+        return true;
+    }
+}
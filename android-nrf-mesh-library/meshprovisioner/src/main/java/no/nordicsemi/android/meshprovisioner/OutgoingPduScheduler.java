@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+
+/**
+ * Orders the pdus written to the proxy node by priority.
+ * <p>
+ * Pdus are queued per priority class and only a few pdus are handed to the bluetooth module at a time, the next pdu being
+ * released when a written pdu is reported back. A pdu of a higher class is always released before a pdu of a lower class, so
+ * segment acknowledgements are not held up behind a burst of segments of configuration messages and the sender of a segmented
+ * message does not time out and retransmit all of its segments. Each class may also be limited to a minimum interval between
+ * its pdus, during which pdus of lower classes may be released. Pdus other than control pdus are in addition paced by an
+ * {@link AirtimeLimiter} if one is set, and a pdu to a destination that has used up its rate lets pdus to other destinations
+ * go first.
+ * </p>
+ */
+public final class OutgoingPduScheduler {
+
+    private static final String TAG = OutgoingPduScheduler.class.getSimpleName();
+    public static final int DEFAULT_MAX_PDUS_IN_FLIGHT = 2;
+    private static final long WRITE_TIMEOUT = 1000;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * Priority classes of outgoing pdus, highest first
+     */
+    public enum Priority {
+        /**
+         * Transport control messages such as segment acknowledgements, and provisioning pdus
+         */
+        CONTROL,
+        /**
+         * Application messages sent in response to user interaction
+         */
+        INTERACTIVE,
+        /**
+         * Configuration messages
+         */
+        BULK
+    }
+
+    /**
+     * Writes a pdu to the proxy node
+     */
+    public interface PduSender {
+
+        /**
+         * Writes the pdu, segmenting it if it does not fit in to a single write
+         *
+         * @param meshNode node the pdu is written to
+         * @param pdu      proxy pdu
+         */
+        void sendPdu(final BaseMeshNode meshNode, final byte[] pdu);
+    }
+
+    private final PduQueue[] mQueues = new PduQueue[PRIORITIES.length];
+    private final Handler mHandler;
+    private final PduSender mSender;
+    private final Runnable mDispatchTimer = this::onDispatchTimer;
+    private final Runnable mWriteTimer = this::onWriteTimeout;
+    private int mMaxPdusInFlight = DEFAULT_MAX_PDUS_IN_FLIGHT;
+    private int mPdusInFlight;
+    private long mDispatchAt = Long.MAX_VALUE;
+    private AirtimeLimiter mAirtimeLimiter;
+
+    public OutgoingPduScheduler(final Handler handler, final PduSender sender) {
+        mHandler = handler;
+        mSender = sender;
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new PduQueue();
+        }
+    }
+
+    /**
+     * Sets the number of pdus handed to the bluetooth module before they are reported as written
+     *
+     * @param maxPdusInFlight number of pdus
+     */
+    public synchronized void setMaxPdusInFlight(final int maxPdusInFlight) {
+        if (maxPdusInFlight <= 0)
+            throw new IllegalArgumentException("Number of pdus in flight must be greater than zero");
+        mMaxPdusInFlight = maxPdusInFlight;
+    }
+
+    /**
+     * Sets the minimum interval between the pdus of a priority class
+     *
+     * @param priority priority class
+     * @param interval interval in milliseconds, 0 to release the pdus of the class as fast as they are written
+     */
+    public synchronized void setMinInterval(final Priority priority, final long interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Interval must not be negative");
+        mQueues[priority.ordinal()].minInterval = interval;
+    }
+
+    /**
+     * Sets the limiter pacing the pdus injected in to the mesh
+     *
+     * @param airtimeLimiter limiter or null to release pdus as fast as they are written
+     */
+    public synchronized void setAirtimeLimiter(final AirtimeLimiter airtimeLimiter) {
+        mAirtimeLimiter = airtimeLimiter;
+    }
+
+    /**
+     * Queues a pdu and releases the pdus that may be written now
+     *
+     * @param meshNode node the pdu is written to
+     * @param dst      destination address of the pdu or {@link AirtimeLimiter#NO_DESTINATION} if only the global rate applies
+     * @param pdu      proxy pdu
+     * @param priority priority class of the pdu
+     * @param now      current time in milliseconds
+     */
+    public void enqueue(final BaseMeshNode meshNode, final int dst, final byte[] pdu, final Priority priority, final long now) {
+        enqueue(meshNode, dst, pdu, priority, now, null);
+    }
+
+    /**
+     * Queues a pdu and releases the pdus that may be written now
+     *
+     * @param meshNode   node the pdu is written to
+     * @param dst        destination address of the pdu or {@link AirtimeLimiter#NO_DESTINATION} if only the global rate applies
+     * @param pdu        proxy pdu
+     * @param priority   priority class of the pdu
+     * @param now        current time in milliseconds
+     * @param onReleased invoked once the pdu has been handed to the bluetooth module, or null
+     */
+    public void enqueue(final BaseMeshNode meshNode, final int dst, final byte[] pdu, final Priority priority, final long now, final Runnable onReleased) {
+        synchronized (this) {
+            mQueues[priority.ordinal()].pdus.add(new QueuedPdu(meshNode, dst, pdu, onReleased));
+        }
+        dispatch(now);
+    }
+
+    /**
+     * Releases the next pdus, invoked when the bluetooth module reports a complete pdu as written
+     *
+     * @param now current time in milliseconds
+     */
+    public void onPduWritten(final long now) {
+        synchronized (this) {
+            if (mPdusInFlight > 0) {
+                mPdusInFlight--;
+            }
+            mHandler.removeCallbacks(mWriteTimer);
+            if (mPdusInFlight > 0) {
+                mHandler.postDelayed(mWriteTimer, WRITE_TIMEOUT);
+            }
+        }
+        dispatch(now);
+    }
+
+    /**
+     * Returns the number of pdus waiting to be released
+     *
+     * @param priority priority class
+     */
+    public synchronized int getQueuedPduCount(final Priority priority) {
+        return mQueues[priority.ordinal()].pdus.size();
+    }
+
+    /**
+     * Returns the number of pdus handed to the bluetooth module that have not been reported as written
+     */
+    public synchronized int getPdusInFlight() {
+        return mPdusInFlight;
+    }
+
+    /**
+     * Drops the queued pdus and forgets the pdus in flight
+     */
+    public synchronized void clear() {
+        for (PduQueue queue : mQueues) {
+            queue.pdus.clear();
+        }
+        mPdusInFlight = 0;
+        mDispatchAt = Long.MAX_VALUE;
+        mHandler.removeCallbacks(mDispatchTimer);
+        mHandler.removeCallbacks(mWriteTimer);
+    }
+
+    /**
+     * Releases queued pdus, highest priority first, until the pdus in flight reach the limit or the remaining pdus are held back
+     * by the interval of their class
+     *
+     * @param now current time in milliseconds
+     */
+    private void dispatch(final long now) {
+        while (true) {
+            final QueuedPdu next;
+            synchronized (this) {
+                next = poll(now);
+                if (next == null)
+                    return;
+                mPdusInFlight++;
+                mHandler.removeCallbacks(mWriteTimer);
+                mHandler.postDelayed(mWriteTimer, WRITE_TIMEOUT);
+            }
+            //Sent outside of the lock as the bluetooth module may report the write before returning
+            mSender.sendPdu(next.meshNode, next.pdu);
+            if (next.onReleased != null) {
+                next.onReleased.run();
+            }
+        }
+    }
+
+    private QueuedPdu poll(final long now) {
+        if (mPdusInFlight >= mMaxPdusInFlight)
+            return null;
+
+        long nextRelease = Long.MAX_VALUE;
+        for (int i = 0; i < mQueues.length; i++) {
+            final PduQueue queue = mQueues[i];
+            if (queue.pdus.isEmpty())
+                continue;
+            if (queue.nextReleaseAt > now) {
+                nextRelease = Math.min(nextRelease, queue.nextReleaseAt);
+                continue;
+            }
+
+            if (mAirtimeLimiter == null || PRIORITIES[i] == Priority.CONTROL) {
+                queue.nextReleaseAt = now + queue.minInterval;
+                return queue.pdus.poll();
+            }
+
+            //Pdus to the same destination share a bucket so they stay in order when others are released first
+            final Iterator<QueuedPdu> iterator = queue.pdus.iterator();
+            while (iterator.hasNext()) {
+                final QueuedPdu pdu = iterator.next();
+                final long delay = mAirtimeLimiter.tryAcquire(pdu.dst, now);
+                if (delay == 0) {
+                    iterator.remove();
+                    queue.nextReleaseAt = now + queue.minInterval;
+                    return pdu;
+                }
+                nextRelease = Math.min(nextRelease, now + delay);
+            }
+        }
+
+        if (nextRelease < mDispatchAt) {
+            mHandler.removeCallbacks(mDispatchTimer);
+            mHandler.postDelayed(mDispatchTimer, nextRelease - now);
+            mDispatchAt = nextRelease;
+        }
+        return null;
+    }
+
+    private void onDispatchTimer() {
+        synchronized (this) {
+            mDispatchAt = Long.MAX_VALUE;
+        }
+        dispatch(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Assumes the pdus in flight were written if the bluetooth module has not reported them, so that the queue does not stall
+     */
+    private void onWriteTimeout() {
+        synchronized (this) {
+            Log.v(TAG, String.format(Locale.US, "%d pdus not reported as written, releasing queued pdus", mPdusInFlight));
+            mPdusInFlight = 0;
+        }
+        dispatch(SystemClock.uptimeMillis());
+    }
+
+    private static final class PduQueue {
+        private final ArrayDeque<QueuedPdu> pdus = new ArrayDeque<>();
+        private long minInterval;
+        private long nextReleaseAt;
+    }
+
+    private static final class QueuedPdu {
+        private final BaseMeshNode meshNode;
+        private final byte[] pdu;
+        private final int dst;
+        private final Runnable onReleased;
+
+        private QueuedPdu(final BaseMeshNode meshNode, final int dst, final byte[] pdu, final Runnable onReleased) {
+            this.meshNode = meshNode;
+            this.dst = dst;
+            this.pdu = pdu;
+            this.onReleased = onReleased;
+        }
+    }
+}
@@ -29,6 +29,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 public class ProvisioningSettings extends NetworkSettings {
@@ -95,8 +97,12 @@ public class ProvisioningSettings extends NetworkSettings {
     }
 
     public void setNetworkKey(final String networkKey) {
+        final String previousNetworkKey = this.networkKey;
         this.networkKey = networkKey;
         saveNetowrkKey();
+        if (previousNetworkKey != null && !previousNetworkKey.equalsIgnoreCase(networkKey)) {
+            KeyMaterial.invalidate(MeshParserUtils.toByteArray(previousNetworkKey));
+        }
     }
 
     /**
@@ -145,8 +151,9 @@ public class ProvisioningSettings extends NetworkSettings {
         if(this.appKeys.contains(applicationKey))
             throw new IllegalArgumentException("App key already exists");
 
-        this.appKeys.set(position, applicationKey);
+        final String previousApplicationKey = this.appKeys.set(position, applicationKey);
         saveApplicationKeys();
+        KeyMaterial.invalidate(MeshParserUtils.toByteArray(previousApplicationKey));
     }
 
     /**
@@ -159,6 +166,7 @@ public class ProvisioningSettings extends NetworkSettings {
             final int index = appKeys.indexOf(appKey);
             appKeys.remove(index);
             saveApplicationKeys();
+            KeyMaterial.invalidate(MeshParserUtils.toByteArray(appKey));
         }
     }
 
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.configuration.ConfigMessage;
+
+/**
+ * Decides when acknowledged messages that have not received a status are sent again.
+ * <p>
+ * The round trip time to each destination is smoothed as in TCP, so that the retransmission timeout follows the smoothed round
+ * trip time plus four times its variation. Round trips of messages that were sent more than once are not measured since the status
+ * may belong to any of the attempts. Until a destination has been measured, the timeout is derived from the number of hops to the
+ * destination, taken from the ttl of the messages received from it. Each timeout doubles the timeout of the destination until a new
+ * round trip is measured.
+ * </p>
+ */
+public final class RetransmissionManager {
+
+    private static final String TAG = RetransmissionManager.class.getSimpleName();
+    public static final long MIN_TIMEOUT = 500;
+    public static final long MAX_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long NO_RETRANSMISSION = -1;
+    private static final long INITIAL_TIMEOUT = 1000;
+    private static final long HOP_DELAY = 50; //Relay delay of a single hop in each direction
+    private static final long CLOCK_GRANULARITY = 10;
+    private static final int MAX_BACKOFF = 5;
+
+    private final Map<Integer, Estimate> mEstimates = new HashMap<>();
+    private final Map<ConfigMessage, PendingMessage> mPendingMessages = new IdentityHashMap<>();
+    private final int mMaxAttempts;
+
+    public RetransmissionManager(final int maxAttempts) {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("Number of attempts must be greater than zero");
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Starts tracking an acknowledged message that is about to be sent
+     *
+     * @param request    message to be sent
+     * @param dst        destination address of the message
+     * @param defaultTtl ttl used by the destination, used as the number of hops until the hops to the destination are known
+     * @param now        current time in milliseconds
+     * @return the time in milliseconds to wait for the status before sending the message again
+     */
+    public synchronized long onMessageSent(final ConfigMessage request, final int dst, final int defaultTtl, final long now) {
+        final Estimate estimate = getOrCreateEstimate(dst);
+        mPendingMessages.put(request, new PendingMessage(estimate, now));
+        return estimate.getTimeout(defaultTtl);
+    }
+
+    /**
+     * Stops tracking a message whose status was received, and measures the round trip to its destination
+     *
+     * @param request     message the status was received for
+     * @param initialTtl  ttl the destination sends its messages with
+     * @param receivedTtl ttl of the received status
+     * @param now         current time in milliseconds
+     * @return true if the round trip was measured, false if the message was not tracked or was sent more than once
+     */
+    public synchronized boolean onStatusReceived(final ConfigMessage request, final int initialTtl, final int receivedTtl, final long now) {
+        final PendingMessage pendingMessage = mPendingMessages.remove(request);
+        if (pendingMessage == null)
+            return false;
+
+        final Estimate estimate = pendingMessage.estimate;
+        if (receivedTtl >= 0 && receivedTtl <= initialTtl) {
+            estimate.hopCount = initialTtl - receivedTtl;
+        }
+        if (pendingMessage.attempts > 1)
+            return false;
+
+        estimate.addSample(now - pendingMessage.sentAt);
+        Log.v(TAG, String.format(Locale.US, "Round trip to 0x%04X measured, srtt: %d ms, rttvar: %d ms, rto: %d ms",
+                estimate.dst, estimate.smoothedRoundTripTime, estimate.roundTripTimeVariation, estimate.getTimeout(initialTtl)));
+        return true;
+    }
+
+    /**
+     * Backs off the timeout of the destination of a message that did not receive a status in time
+     *
+     * @param request    message that timed out
+     * @param defaultTtl ttl used by the destination
+     * @param now        current time in milliseconds
+     * @return the time in milliseconds to wait for the status after sending the message again, or {@link #NO_RETRANSMISSION}
+     * if the message is no longer tracked or has been sent the maximum number of times
+     */
+    public synchronized long onTimeout(final ConfigMessage request, final int defaultTtl, final long now) {
+        final PendingMessage pendingMessage = mPendingMessages.get(request);
+        if (pendingMessage == null)
+            return NO_RETRANSMISSION;
+
+        final Estimate estimate = pendingMessage.estimate;
+        if (estimate.backoff < MAX_BACKOFF) {
+            estimate.backoff++;
+        }
+        if (pendingMessage.attempts >= mMaxAttempts) {
+            Log.v(TAG, "Giving up on " + request.getState() + " to " + String.format(Locale.US, "0x%04X", estimate.dst) + " after " + pendingMessage.attempts + " attempts");
+            mPendingMessages.remove(request);
+            return NO_RETRANSMISSION;
+        }
+        pendingMessage.attempts++;
+        pendingMessage.sentAt = now;
+        return estimate.getTimeout(defaultTtl);
+    }
+
+    /**
+     * Returns the time to wait for the status of a message that is being tracked
+     *
+     * @param request    message sent
+     * @param defaultTtl ttl used by the destination
+     * @return the time in milliseconds or {@link #NO_RETRANSMISSION} if the message is not tracked
+     */
+    public synchronized long getTimeout(final ConfigMessage request, final int defaultTtl) {
+        final PendingMessage pendingMessage = mPendingMessages.get(request);
+        return pendingMessage == null ? NO_RETRANSMISSION : pendingMessage.estimate.getTimeout(defaultTtl);
+    }
+
+    /**
+     * Stops tracking a message
+     *
+     * @param request message sent
+     */
+    public synchronized void cancel(final ConfigMessage request) {
+        mPendingMessages.remove(request);
+    }
+
+    /**
+     * Returns the number of messages waiting for a status
+     */
+    public synchronized int getPendingMessageCount() {
+        return mPendingMessages.size();
+    }
+
+    /**
+     * Returns the round trip estimate of a destination
+     *
+     * @param dst destination address
+     * @return the estimate or null if no message has been sent to the destination
+     */
+    public synchronized Estimate getEstimate(final int dst) {
+        final Estimate estimate = mEstimates.get(dst & 0xFFFF);
+        return estimate != null ? new Estimate(estimate) : null;
+    }
+
+    /**
+     * Removes the pending messages and the estimates of all destinations
+     */
+    public synchronized void clear() {
+        mPendingMessages.clear();
+        mEstimates.clear();
+    }
+
+    private Estimate getOrCreateEstimate(final int dst) {
+        Estimate estimate = mEstimates.get(dst & 0xFFFF);
+        if (estimate == null) {
+            estimate = new Estimate(dst & 0xFFFF);
+            mEstimates.put(dst & 0xFFFF, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Round trip estimate of a destination
+     */
+    public static final class Estimate {
+        private final int dst;
+        private long smoothedRoundTripTime;
+        private long roundTripTimeVariation;
+        private int sampleCount;
+        private int hopCount = -1;
+        private int backoff;
+
+        private Estimate(final int dst) {
+            this.dst = dst;
+        }
+
+        private Estimate(final Estimate estimate) {
+            this.dst = estimate.dst;
+            this.smoothedRoundTripTime = estimate.smoothedRoundTripTime;
+            this.roundTripTimeVariation = estimate.roundTripTimeVariation;
+            this.sampleCount = estimate.sampleCount;
+            this.hopCount = estimate.hopCount;
+            this.backoff = estimate.backoff;
+        }
+
+        private void addSample(final long roundTripTime) {
+            if (sampleCount == 0) {
+                smoothedRoundTripTime = roundTripTime;
+                roundTripTimeVariation = roundTripTime / 2;
+            } else {
+                roundTripTimeVariation = (3 * roundTripTimeVariation + Math.abs(smoothedRoundTripTime - roundTripTime)) / 4;
+                smoothedRoundTripTime = (7 * smoothedRoundTripTime + roundTripTime) / 8;
+            }
+            sampleCount++;
+            backoff = 0;
+        }
+
+        /**
+         * Returns the retransmission timeout of the destination in milliseconds
+         *
+         * @param defaultTtl ttl used by the destination, used as the number of hops until the hops to the destination are known
+         */
+        public long getTimeout(final int defaultTtl) {
+            final long timeout;
+            if (sampleCount == 0) {
+                final int hops = hopCount >= 0 ? hopCount : Math.max(defaultTtl, 0);
+                timeout = INITIAL_TIMEOUT + 2 * HOP_DELAY * hops;
+            } else {
+                timeout = smoothedRoundTripTime + Math.max(CLOCK_GRANULARITY, 4 * roundTripTimeVariation);
+            }
+            return Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, timeout) << backoff);
+        }
+
+        /**
+         * Returns the destination address
+         */
+        public int getDst() {
+            return dst;
+        }
+
+        /**
+         * Returns the smoothed round trip time in milliseconds
+         */
+        public long getSmoothedRoundTripTime() {
+            return smoothedRoundTripTime;
+        }
+
+        /**
+         * Returns the round trip time variation in milliseconds
+         */
+        public long getRoundTripTimeVariation() {
+            return roundTripTimeVariation;
+        }
+
+        /**
+         * Returns the number of round trips measured
+         */
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Returns the number of hops to the destination or -1 if no message has been received from it
+         */
+        public int getHopCount() {
+            return hopCount;
+        }
+    }
+
+    private static final class PendingMessage {
+        private final Estimate estimate;
+        private long sentAt;
+        private int attempts = 1;
+
+        private PendingMessage(final Estimate estimate, final long sentAt) {
+            this.estimate = estimate;
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
@@ -70,13 +71,14 @@ public class ConfigAppKeyAdd extends ConfigMessage {
     }
 
     public void parseData(final byte[] pdu) {
-        parseMessage(pdu);
+        parseMessage(mMeshTransport.parsePdu(mSrc, pdu));
     }
 
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() {
+    @Override
+    void createAccessMessage() {
         final byte[] networkKeyIndex = mProvisionedMeshNode.getKeyIndex();
         final byte[] appKeyBytes = MeshParserUtils.toByteArray(mAppKey);
         final byte[] applicationKeyIndex = MeshParserUtils.addKeyIndexPadding(mAppKeyIndex);
@@ -93,7 +95,7 @@ public class ConfigAppKeyAdd extends ConfigMessage {
         final int akf = 0;
         final int aid = 0;
         final AccessMessage accessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, key, akf, aid, mAszmic, ConfigMessageOpCodes.CONFIG_APPKEY_ADD, parameters);
-        mPayloads.putAll(accessMessage.getNetworkPdu());
+        addPayloads(accessMessage);
     }
 
     /**
@@ -101,17 +103,15 @@ public class ConfigAppKeyAdd extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onAppKeyAddSent(mProvisionedMeshNode);
         }
     }
 
-    private void parseMessage(final byte[] pdu) {
-        final Message message = mMeshTransport.parsePdu(mSrc, pdu);
+    @Override
+    void parseMessage(final Message message) {
         if (message != null) {
             if (message instanceof AccessMessage) {
                 final byte[] accessPayload = ((AccessMessage) message).getAccessPdu();
@@ -126,7 +126,7 @@ public class ConfigAppKeyAdd extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 
@@ -30,6 +30,7 @@ import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.R;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
@@ -107,11 +108,11 @@ public class ConfigAppKeyStatus extends ConfigMessage {
     }
 
     public final void parseData(final byte[] pdu) {
-        parseMessage(pdu);
+        parseMessage(mMeshTransport.parsePdu(mSrc, pdu));
     }
 
-    private void parseMessage(final byte[] pdu) {
-        final Message message = mMeshTransport.parsePdu(mSrc, pdu);
+    @Override
+    void parseMessage(final Message message) {
         if (message != null) {
             if (message instanceof AccessMessage) {
                 final byte[] accessPayload = ((AccessMessage) message).getAccessPdu();
@@ -157,7 +158,7 @@ public class ConfigAppKeyStatus extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 
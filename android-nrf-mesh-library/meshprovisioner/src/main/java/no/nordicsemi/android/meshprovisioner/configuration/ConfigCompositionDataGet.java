@@ -55,11 +55,12 @@ public class ConfigCompositionDataGet extends ConfigMessage {
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() {
+    @Override
+    void createAccessMessage() {
         final AccessMessage accessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, mProvisionedMeshNode.getDeviceKey(),
                 akf, aid, mAszmic, ConfigMessageOpCodes.CONFIG_COMPOSITION_DATA_GET,
                 new byte[]{(byte) 0xFF});
-        mPayloads.putAll(accessMessage.getNetworkPdu());
+        addPayloads(accessMessage);
 
     }
 
@@ -68,11 +69,7 @@ public class ConfigCompositionDataGet extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                if (mInternalTransportCallbacks != null) {
-                    mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-                }
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onGetCompositionDataSent(mProvisionedMeshNode);
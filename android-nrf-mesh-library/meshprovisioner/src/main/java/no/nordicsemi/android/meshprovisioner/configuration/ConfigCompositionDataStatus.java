@@ -33,6 +33,7 @@ import java.util.Map;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
@@ -76,11 +77,11 @@ public final class ConfigCompositionDataStatus extends ConfigMessage {
     }
 
     public void parseData(final byte[] pdu) {
-        parseMessage(pdu);
+        parseMessage(mMeshTransport.parsePdu(mSrc, pdu));
     }
 
-    private void parseMessage(final byte[] pdu) {
-        final Message message = mMeshTransport.parsePdu(mSrc, pdu);
+    @Override
+    void parseMessage(final Message message) {
         if (message != null) {
             if (message instanceof AccessMessage) {
                 final AccessMessage accessMessage = ((AccessMessage) message);
@@ -264,7 +265,7 @@ public final class ConfigCompositionDataStatus extends ConfigMessage {
     public final void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 
@@ -23,21 +23,33 @@
 package no.nordicsemi.android.meshprovisioner.configuration;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.HashMap;
 import java.util.Map;
 
+import no.nordicsemi.android.meshprovisioner.AirtimeLimiter;
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.control.BlockAcknowledgementMessage;
 import no.nordicsemi.android.meshprovisioner.control.TransportControlMessage;
+import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
+import no.nordicsemi.android.meshprovisioner.messages.Message;
 import no.nordicsemi.android.meshprovisioner.opcodes.ApplicationMessageOpCodes;
 import no.nordicsemi.android.meshprovisioner.opcodes.ConfigMessageOpCodes;
+import no.nordicsemi.android.meshprovisioner.transport.ApplicationKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.DeviceKeyTable;
 import no.nordicsemi.android.meshprovisioner.transport.LowerTransportLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.NetworkLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.ReplayProtectionList;
+import no.nordicsemi.android.meshprovisioner.transport.SubnetTable;
+import no.nordicsemi.android.meshprovisioner.transport.TransportStatistics;
+import no.nordicsemi.android.meshprovisioner.utils.AddressUtils;
 
-public abstract class ConfigMessage implements LowerTransportLayerCallbacks {
+public abstract class ConfigMessage implements LowerTransportLayerCallbacks, NetworkLayerCallbacks {
 
     private static final String TAG = ConfigCompositionDataStatus.class.getSimpleName();
     protected final Context mContext;
@@ -49,6 +61,9 @@ public abstract class ConfigMessage implements LowerTransportLayerCallbacks {
     MeshConfigurationStatusCallbacks mConfigStatusCallbacks;
     protected MeshModel mMeshModel;
     protected int mAppKeyIndex;
+    private int mQueuedPayloads;
+    private int mDst = AirtimeLimiter.NO_DESTINATION;
+    private Runnable mOnSentListener;
 
     public ConfigMessage(final Context context, final ProvisionedMeshNode provisionedMeshNode) {
         this.mContext = context;
@@ -56,9 +71,196 @@ public abstract class ConfigMessage implements LowerTransportLayerCallbacks {
         this.mSrc = mProvisionedMeshNode.getConfigurationSrc();
         this.mMeshTransport = new MeshTransport(context, provisionedMeshNode);
         this.mMeshTransport.setLowerTransportLayerCallbacks(this);
+        this.mMeshTransport.setNetworkLayerCallbacks(this);
     }
+
+    @Override
+    public SubnetTable getSubnetTable() {
+        return mInternalTransportCallbacks != null ? mInternalTransportCallbacks.getSubnetTable() : null;
+    }
+
+    @Override
+    public TransportStatistics getTransportStatistics() {
+        return mInternalTransportCallbacks != null ? mInternalTransportCallbacks.getTransportStatistics() : null;
+    }
+
+    @Override
+    public ReplayProtectionList getReplayProtectionList() {
+        return mInternalTransportCallbacks != null ? mInternalTransportCallbacks.getReplayProtectionList() : null;
+    }
+
+    @Override
+    public DeviceKeyTable getDeviceKeyTable() {
+        return mInternalTransportCallbacks != null ? mInternalTransportCallbacks.getDeviceKeyTable() : null;
+    }
+
+    @Override
+    public ApplicationKeyTable getApplicationKeyTable() {
+        return mInternalTransportCallbacks != null ? mInternalTransportCallbacks.getApplicationKeyTable() : null;
+    }
+
+    @Override
+    public void sendSegmentRetransmission(final byte[] networkPdu) {
+        if (mInternalTransportCallbacks != null) {
+            //Segments are only retransmitted when they were not acknowledged in time, unless earlier pdus are still queued
+            if (!hasQueuedPayloads()) {
+                mInternalTransportCallbacks.getAirtimeLimiter().onLoss(mDst, SystemClock.uptimeMillis());
+            }
+            sendPayload(networkPdu);
+        }
+    }
+
+    /**
+     * Sets the listener invoked each time the pdus queued by this message have all been written to the proxy
+     * <p>
+     * Pdus may wait in the outgoing queue for some time before they are written, so timers waiting for the destination are
+     * started by this listener rather than when the message is sent.
+     * </p>
+     *
+     * @param listener listener or null
+     */
+    public final void setOnSentListener(final Runnable listener) {
+        mOnSentListener = listener;
+    }
+
+    /**
+     * Returns true if pdus of this message are still waiting in the outgoing queue
+     */
+    public final synchronized boolean hasQueuedPayloads() {
+        return mQueuedPayloads > 0;
+    }
+
+    /**
+     * Keeps the network pdus of an access message to be sent, together with the destination they are paced by
+     *
+     * @param accessMessage access message containing the network pdus
+     */
+    final void addPayloads(final AccessMessage accessMessage) {
+        mDst = AddressUtils.getUnicastAddressInt(accessMessage.getDst());
+        addPayloads(accessMessage);
+    }
+
+    /**
+     * Returns the destination address of the access message or {@link AirtimeLimiter#NO_DESTINATION} if it has not been created
+     */
+    public final int getDst() {
+        return mDst;
+    }
+
+    /**
+     * Queues the pdus of the access message to be written to the proxy
+     */
+    final void sendPayloads() {
+        for (int i = 0; i < mPayloads.size(); i++) {
+            sendPayload(mPayloads.get(i));
+        }
+    }
+
+    private void sendPayload(final byte[] pdu) {
+        if (mInternalTransportCallbacks == null)
+            return;
+        synchronized (this) {
+            mQueuedPayloads++;
+        }
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mDst, pdu, getPriority(), this::onPayloadReleased);
+    }
+
+    private void onPayloadReleased() {
+        synchronized (this) {
+            if (mQueuedPayloads == 0 || --mQueuedPayloads > 0)
+                return;
+        }
+        mMeshTransport.onOutgoingSegmentsReleased();
+        final Runnable listener = mOnSentListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     public abstract MessageState getState();
 
+    /**
+     * Returns the priority the pdus of this message are queued with, configuration messages are sent as bulk traffic
+     */
+    OutgoingPduScheduler.Priority getPriority() {
+        return OutgoingPduScheduler.Priority.BULK;
+    }
+
+    /**
+     * Creates the access message to be sent to the node, messages that are only received do not create one
+     */
+    void createAccessMessage() {
+    }
+
+    /**
+     * Creates the access message again and sends it to the node.
+     * <p>
+     * The message is encrypted again with new sequence numbers, as the destination would otherwise discard it as a replayed
+     * message. Segments of the previous attempt that are still waiting for an acknowledgement are no longer retransmitted.
+     * </p>
+     *
+     * @return true if the message was sent again
+     */
+    public final boolean retransmit() {
+        if (mPayloads.isEmpty() || mInternalTransportCallbacks == null)
+            return false;
+
+        mMeshTransport.cancelOutgoingSegmentedMessages();
+        recreateAccessMessage();
+        sendPayloads();
+        return true;
+    }
+
+    /**
+     * Creates the access message again with new sequence numbers, e.g. for a message that has been waiting to be sent
+     */
+    public final void recreateAccessMessage() {
+        mPayloads.clear();
+        createAccessMessage();
+    }
+
+    /**
+     * Handles a message that was correlated with this message by its source address and opcode
+     *
+     * @param message message parsed by the transport that received it
+     */
+    public final void onMessageReceived(final Message message) {
+        parseMessage(message);
+    }
+
+    /**
+     * Handles a block acknowledgement received from the destination of this message
+     *
+     * @param controlMessage control message parsed by the transport that received it
+     * @return true if the acknowledgement belonged to a segmented message sent by this message
+     */
+    public final boolean onBlockAcknowledgementReceived(final ControlMessage controlMessage) {
+        if (!(controlMessage.getTransportControlMessage() instanceof BlockAcknowledgementMessage))
+            return false;
+
+        final BlockAcknowledgementMessage acknowledgement = (BlockAcknowledgementMessage) controlMessage.getTransportControlMessage();
+        final int src = AddressUtils.getUnicastAddressInt(controlMessage.getSrc());
+        if (!mMeshTransport.onBlockAcknowledgement(src, acknowledgement.getSeqZero(), acknowledgement.getBlockAck()))
+            return false;
+
+        parseControlMessage(controlMessage);
+        return true;
+    }
+
+    /**
+     * Parses a message received for this message, messages that are not expected are reported as unknown
+     *
+     * @param message parsed message or null if the message is not complete yet
+     */
+    void parseMessage(final Message message) {
+        if (message instanceof AccessMessage) {
+            Log.v(TAG, "Unexpected access message received");
+            mConfigStatusCallbacks.onUnknownPduReceived(mProvisionedMeshNode);
+        } else if (message instanceof ControlMessage) {
+            parseControlMessage((ControlMessage) message);
+        }
+    }
+
     /**
      * Parses control message and returns the underlying configuration message
      *
@@ -31,6 +31,7 @@ import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
@@ -81,7 +82,8 @@ public class ConfigModelPublicationSet extends ConfigMessage {
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() throws IllegalArgumentException {
+    @Override
+    void createAccessMessage() throws IllegalArgumentException {
         ByteBuffer paramsBuffer;
         byte[] parameters;
         final byte[] applicationKeyIndex = MeshParserUtils.addKeyIndexPadding(appKeyIndex);
@@ -127,7 +129,7 @@ public class ConfigModelPublicationSet extends ConfigMessage {
         final int aid = 0b000;
         final int aszmic = 0;
         mAccessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, key, akf, aid, aszmic, ConfigMessageOpCodes.CONFIG_MODEL_PUBLICATION_SET, parameters);
-        mPayloads.putAll(mAccessMessage.getNetworkPdu());
+        addPayloads(mAccessMessage);
     }
 
     /**
@@ -135,9 +137,7 @@ public class ConfigModelPublicationSet extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onPublicationSetSent(mProvisionedMeshNode);
@@ -145,11 +145,11 @@ public class ConfigModelPublicationSet extends ConfigMessage {
     }
 
     public void parseData(final byte[] pdu) {
-        parseMessage(pdu);
+        parseMessage(mMeshTransport.parsePdu(mSrc, pdu));
     }
 
-    private void parseMessage(final byte[] pdu) {
-        final Message message = mMeshTransport.parsePdu(mSrc, pdu);
+    @Override
+    void parseMessage(final Message message) {
         if (message != null) {
             if (message instanceof AccessMessage) {
                 final byte[] accessPayload = ((AccessMessage) message).getAccessPdu();
@@ -166,7 +166,7 @@ public class ConfigModelPublicationSet extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 
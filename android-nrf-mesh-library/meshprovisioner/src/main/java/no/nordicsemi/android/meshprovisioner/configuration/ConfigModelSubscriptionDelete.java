@@ -30,6 +30,7 @@ import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
@@ -82,7 +83,8 @@ public final class ConfigModelSubscriptionDelete extends ConfigMessage {
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() {
+    @Override
+    void createAccessMessage() {
         ByteBuffer paramsBuffer;
         byte[] parameters;
         //We check if the model identifier value is within the range of a 16-bit value here. If it is then it is a sigmodel
@@ -110,7 +112,7 @@ public final class ConfigModelSubscriptionDelete extends ConfigMessage {
 
         final byte[] key = mProvisionedMeshNode.getDeviceKey();
         final AccessMessage accessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, key, akf, aid, mAszmic, ConfigMessageOpCodes.CONFIG_MODEL_SUBSCRIPTION_DELETE, parameters);
-        mPayloads.putAll(accessMessage.getNetworkPdu());
+        addPayloads(accessMessage);
     }
 
     /**
@@ -118,11 +120,7 @@ public final class ConfigModelSubscriptionDelete extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                if (mInternalTransportCallbacks != null) {
-                    mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-                }
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onAppKeyBindSent(mProvisionedMeshNode);
@@ -130,18 +128,18 @@ public final class ConfigModelSubscriptionDelete extends ConfigMessage {
     }
 
     public void parseData(final byte[] pdu) {
-        parseMessage(pdu);
+        parseMessage(mMeshTransport.parsePdu(mSrc, pdu));
     }
 
-    private void parseMessage(final byte[] pdu) {
-        final Message message = mMeshTransport.parsePdu(mSrc, pdu);
+    @Override
+    void parseMessage(final Message message) {
         if (message != null) {
             if (message instanceof AccessMessage) {
                 final byte[] accessPayload = ((AccessMessage) message).getAccessPdu();
                 Log.v(TAG, "Unexpected access message received: " + MeshParserUtils.bytesToHex(accessPayload, false));
             } else {
                 final ControlMessage controlMessage = (ControlMessage) message;
-                Log.v(TAG, "Control message received: " + MeshParserUtils.bytesToHex(pdu, false));
+                Log.v(TAG, "Control message received: " + MeshParserUtils.bytesToHex(controlMessage.getTransportControlPdu(), false));
                 parseControlMessage(controlMessage);
             }
         } else {
@@ -153,7 +151,7 @@ public final class ConfigModelSubscriptionDelete extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 
@@ -6,11 +6,12 @@ import android.util.Log;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.opcodes.ApplicationMessageOpCodes;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
-import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 public class GenericOnOffGet extends ConfigMessage {
 
@@ -35,6 +36,11 @@ public class GenericOnOffGet extends ConfigMessage {
         return MessageState.GENERIC_ON_OFF_GET;
     }
 
+    @Override
+    OutgoingPduScheduler.Priority getPriority() {
+        return OutgoingPduScheduler.Priority.INTERACTIVE;
+    }
+
     public void setTransportCallbacks(final InternalTransportCallbacks callbacks) {
         this.mInternalTransportCallbacks = callbacks;
     }
@@ -45,13 +51,15 @@ public class GenericOnOffGet extends ConfigMessage {
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() {
-        final byte[] key = MeshParserUtils.toByteArray(mMeshModel.getBoundAppkeys().get(mAppKeyIndex));
+    @Override
+    void createAccessMessage() {
+        final KeyMaterial.ApplicationKeyMaterial applicationKey = KeyMaterial.forApplicationKey(mMeshModel.getBoundAppkeys().get(mAppKeyIndex));
+        final byte[] key = applicationKey.getKey();
         int akf = 1;
-        int aid = SecureUtils.calculateK4(key);
+        int aid = applicationKey.getAid();
         final AccessMessage accessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, dstAddress, key, akf, aid, mAszmic,
                 ApplicationMessageOpCodes.GENERIC_ON_OFF_GET, null);
-        mPayloads.putAll(accessMessage.getNetworkPdu());
+        addPayloads(accessMessage);
     }
 
     /**
@@ -59,9 +67,7 @@ public class GenericOnOffGet extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onAppKeyAddSent(mProvisionedMeshNode);
@@ -72,7 +78,7 @@ public class GenericOnOffGet extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 }
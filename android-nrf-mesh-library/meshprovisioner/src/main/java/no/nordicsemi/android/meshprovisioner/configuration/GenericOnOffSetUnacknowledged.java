@@ -9,11 +9,12 @@ import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
 import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.opcodes.ApplicationMessageOpCodes;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
-import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 public class GenericOnOffSetUnacknowledged extends ConfigMessage {
 
@@ -33,6 +34,8 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
     private final Integer mTransitionResolution;
     private final Integer mDelay;
     private final boolean mState;
+    //Transaction identifier, kept when the message is sent again so that the node does not treat it as a new transaction
+    private final int mTransactionIdentifier;
 
     public GenericOnOffSetUnacknowledged(final Context context, final ProvisionedMeshNode provisionedMeshNode, final MeshModel model, final boolean aszmic,
                                          final byte[] dstAddress, final int appKeyIndex, final Integer transitionSteps, final Integer transitionResolution, final Integer delay, final boolean state) {
@@ -45,6 +48,7 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
         this.mTransitionResolution = transitionResolution;
         this.mDelay = delay;
         this.mState = state;
+        this.mTransactionIdentifier = provisionedMeshNode.getSequenceNumber() & 0xFF;
         createAccessMessage();
     }
 
@@ -53,6 +57,11 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
         return MessageState.GENERIC_ON_OFF_SET_UNACKNOWLEDGED;
     }
 
+    @Override
+    OutgoingPduScheduler.Priority getPriority() {
+        return OutgoingPduScheduler.Priority.INTERACTIVE;
+    }
+
     public void setTransportCallbacks(final InternalTransportCallbacks callbacks) {
         this.mInternalTransportCallbacks = callbacks;
     }
@@ -63,28 +72,30 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
     /**
      * Creates the access message to be sent to the node
      */
-    private void createAccessMessage() {
+    @Override
+    void createAccessMessage() {
         ByteBuffer paramsBuffer;
         byte[] parameters;
         if(mTransitionSteps == null || mTransitionResolution == null || mDelay == null) {
             paramsBuffer = ByteBuffer.allocate(GENERIC_ON_OFF_SET_PARAMS_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
             paramsBuffer.put((byte) (mState ? 0x01 : 0x00));
-            paramsBuffer.put((byte) mProvisionedMeshNode.getSequenceNumber());
+            paramsBuffer.put((byte) mTransactionIdentifier);
         } else {
             paramsBuffer = ByteBuffer.allocate(GENERIC_ON_OFF_SET_TRANSITION_PARAMS_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
             paramsBuffer.put((byte) (mState ? 0x01 : 0x00));
-            paramsBuffer.put((byte) mProvisionedMeshNode.getSequenceNumber());
+            paramsBuffer.put((byte) mTransactionIdentifier);
             paramsBuffer.put((byte) (mTransitionSteps << 6 | mTransitionResolution));
             final int delay = mDelay;
             paramsBuffer.put((byte) delay);
         }
         parameters = paramsBuffer.array();
 
-        final byte[] key = MeshParserUtils.toByteArray(mMeshModel.getBoundAppkeys().get(mAppKeyIndex));
+        final KeyMaterial.ApplicationKeyMaterial applicationKey = KeyMaterial.forApplicationKey(mMeshModel.getBoundAppkeys().get(mAppKeyIndex));
+        final byte[] key = applicationKey.getKey();
         int akf = 1;
-        int aid = SecureUtils.calculateK4(key);
+        int aid = applicationKey.getAid();
         final AccessMessage accessMessage = mMeshTransport.createMeshMessage(mProvisionedMeshNode, mSrc, dstAddress, key, akf, aid, mAszmic, ApplicationMessageOpCodes.GENERIC_ON_OFF_SET_UNACKNOWLEDGED, parameters);
-        mPayloads.putAll(accessMessage.getNetworkPdu());
+        addPayloads(accessMessage);
     }
 
     /**
@@ -92,9 +103,7 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
      */
     public void executeSend() {
         if (!mPayloads.isEmpty()) {
-            for (int i = 0; i < mPayloads.size(); i++) {
-                mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, mPayloads.get(i));
-            }
+            sendPayloads();
 
             if (mConfigStatusCallbacks != null)
                 mConfigStatusCallbacks.onAppKeyAddSent(mProvisionedMeshNode);
@@ -105,7 +114,7 @@ public class GenericOnOffSetUnacknowledged extends ConfigMessage {
     public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
         final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
         Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
-        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
         mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import android.content.Context;
+import android.util.Log;
+
+import no.nordicsemi.android.meshprovisioner.InternalTransportCallbacks;
+import no.nordicsemi.android.meshprovisioner.MeshConfigurationStatusCallbacks;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
+import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
+import no.nordicsemi.android.meshprovisioner.messages.Message;
+import no.nordicsemi.android.meshprovisioner.transport.ApplicationKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.DeviceKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.LowerTransportLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.NetworkLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.ReplayProtectionList;
+import no.nordicsemi.android.meshprovisioner.transport.SubnetTable;
+import no.nordicsemi.android.meshprovisioner.transport.TransportStatistics;
+import no.nordicsemi.android.meshprovisioner.transport.UpperTransportLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+
+/**
+ * Parses the pdus received through a proxy node before it is known which outstanding message they belong to.
+ * <p>
+ * Received pdus are decrypted with the keys resolved from the receive side tables, so that the source address and opcode of
+ * the message are available to correlate it with an outstanding message. Segmented messages are reassembled and acknowledged
+ * here as well since the segments of a message may arrive interleaved with other messages.
+ * </p>
+ */
+public final class MeshMessageReceiver implements LowerTransportLayerCallbacks, NetworkLayerCallbacks, UpperTransportLayerCallbacks {
+
+    private static final String TAG = MeshMessageReceiver.class.getSimpleName();
+    private final ProvisionedMeshNode mProvisionedMeshNode;
+    private final MeshTransport mMeshTransport;
+    private final InternalTransportCallbacks mInternalTransportCallbacks;
+    private MeshConfigurationStatusCallbacks mConfigStatusCallbacks;
+
+    public MeshMessageReceiver(final Context context, final ProvisionedMeshNode proxyNode, final InternalTransportCallbacks internalTransportCallbacks) {
+        this.mProvisionedMeshNode = proxyNode;
+        this.mInternalTransportCallbacks = internalTransportCallbacks;
+        this.mMeshTransport = new MeshTransport(context, proxyNode);
+        this.mMeshTransport.setLowerTransportLayerCallbacks(this);
+        this.mMeshTransport.setNetworkLayerCallbacks(this);
+        this.mMeshTransport.setUpperTransportLayerCallbacks(this);
+    }
+
+    public void setConfigurationStatusCallbacks(final MeshConfigurationStatusCallbacks callbacks) {
+        mConfigStatusCallbacks = callbacks;
+    }
+
+    /**
+     * Parses a network pdu received from the proxy node
+     *
+     * @param pdu network pdu
+     * @return the complete message or null if the pdu could not be decrypted or more segments are expected
+     */
+    public Message parsePdu(final byte[] pdu) {
+        return parsePdu(pdu, pdu.length);
+    }
+
+    /**
+     * Parses a network pdu received from the proxy node
+     *
+     * @param pdu    buffer containing the network pdu
+     * @param length length of the network pdu
+     * @return the complete message or null if the pdu could not be decrypted or more segments are expected
+     */
+    public Message parsePdu(final byte[] pdu, final int length) {
+        return mMeshTransport.parsePdu(mProvisionedMeshNode.getConfigurationSrc(), pdu, length);
+    }
+
+    @Override
+    public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
+        final ControlMessage message = mMeshTransport.createSegmentBlockAcknowledgementMessage(controlMessage);
+        Log.v(TAG, "Sending acknowledgement: " + MeshParserUtils.bytesToHex(message.getNetworkPdu().get(0), false));
+        mInternalTransportCallbacks.sendPdu(mProvisionedMeshNode, message.getNetworkPdu().get(0), OutgoingPduScheduler.Priority.CONTROL);
+        if (mConfigStatusCallbacks != null)
+            mConfigStatusCallbacks.onBlockAcknowledgementSent(mProvisionedMeshNode);
+    }
+
+    @Override
+    public void sendSegmentRetransmission(final byte[] networkPdu) {
+        //Only acknowledgements are sent through the receiver and these are never segmented
+    }
+
+    @Override
+    public SubnetTable getSubnetTable() {
+        return mInternalTransportCallbacks.getSubnetTable();
+    }
+
+    @Override
+    public TransportStatistics getTransportStatistics() {
+        return mInternalTransportCallbacks.getTransportStatistics();
+    }
+
+    @Override
+    public ReplayProtectionList getReplayProtectionList() {
+        return mInternalTransportCallbacks.getReplayProtectionList();
+    }
+
+    @Override
+    public DeviceKeyTable getDeviceKeyTable() {
+        return mInternalTransportCallbacks.getDeviceKeyTable();
+    }
+
+    @Override
+    public ApplicationKeyTable getApplicationKeyTable() {
+        return mInternalTransportCallbacks.getApplicationKeyTable();
+    }
+
+    @Override
+    public byte[] getApplicationKey() {
+        //The application key is resolved from the AID of the received message
+        return null;
+    }
+}
@@ -31,6 +31,7 @@ import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
 import no.nordicsemi.android.meshprovisioner.transport.LowerTransportLayerCallbacks;
 import no.nordicsemi.android.meshprovisioner.transport.NetworkLayer;
+import no.nordicsemi.android.meshprovisioner.transport.NetworkLayerCallbacks;
 import no.nordicsemi.android.meshprovisioner.transport.UpperTransportLayerCallbacks;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
 
@@ -50,11 +51,36 @@ final class MeshTransport extends NetworkLayer {
         this.mHandler = new Handler(mContext.getMainLooper());
     }
 
+    @Override
+    public final void setNetworkLayerCallbacks(final NetworkLayerCallbacks callbacks) {
+        super.setNetworkLayerCallbacks(callbacks);
+    }
+
     @Override
     public final void setLowerTransportLayerCallbacks(final LowerTransportLayerCallbacks callbacks) {
         super.setLowerTransportLayerCallbacks(callbacks);
     }
 
+    @Override
+    public final void setSegmentRetransmissionAttempts(final int attempts) {
+        super.setSegmentRetransmissionAttempts(attempts);
+    }
+
+    @Override
+    public final boolean onBlockAcknowledgement(final int src, final int seqZero, final int blockAck) {
+        return super.onBlockAcknowledgement(src, seqZero, blockAck);
+    }
+
+    @Override
+    public final void cancelOutgoingSegmentedMessages() {
+        super.cancelOutgoingSegmentedMessages();
+    }
+
+    @Override
+    public final void onOutgoingSegmentsReleased() {
+        super.onOutgoingSegmentsReleased();
+    }
+
     @Override
     public final void setUpperTransportLayerCallbacks(final UpperTransportLayerCallbacks callbacks) {
         super.setUpperTransportLayerCallbacks(callbacks);
@@ -175,6 +201,18 @@ final class MeshTransport extends NetworkLayer {
         return parseMeshMessage(configurationSrc, pdu);
     }
 
+    /**
+     * Parses the received pdu
+     *
+     * @param configurationSrc Src address where the original message was sent from
+     * @param pdu              buffer containing the pdu received
+     * @param length           length of the pdu received
+     * @return Message
+     */
+    public Message parsePdu(final byte[] configurationSrc, final byte[] pdu, final int length) {
+        return parseMeshMessage(configurationSrc, pdu, length);
+    }
+
     /**
      * Parses the received pdu
      *
@@ -35,6 +35,7 @@ import java.util.Set;
 import no.nordicsemi.android.meshprovisioner.BaseMeshNode;
 import no.nordicsemi.android.meshprovisioner.states.UnprovisionedMeshNode;
 import no.nordicsemi.android.meshprovisioner.utils.Element;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 public class ProvisionedMeshNode extends BaseMeshNode {
@@ -58,7 +59,7 @@ public class ProvisionedMeshNode extends BaseMeshNode {
         unicastAddress = unprovisionedMeshNode.getUnicastAddress();
         deviceKey = unprovisionedMeshNode.getDeviceKey();
         ttl = unprovisionedMeshNode.getTtl();
-        k2Output = SecureUtils.calculateK2(networkKey, SecureUtils.K2_MASTER_INPUT);
+        k2Output = KeyMaterial.forNetworkKey(networkKey).getK2Output();
         mTimeStampInMillis = unprovisionedMeshNode.getTimeStamp();
         mConfigurationSrc = unprovisionedMeshNode.getConfigurationSrc();
     }
@@ -240,6 +241,10 @@ public class ProvisionedMeshNode extends BaseMeshNode {
         this.mAddedAppKeys.put(index, appKey);
     }
 
+    public final byte[] getNetworkKey() {
+        return networkKey;
+    }
+
     public final byte[] getGeneratedNetworkId() {
         return generatedNetworkId;
     }
@@ -25,53 +25,100 @@ package no.nordicsemi.android.meshprovisioner.configuration;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates the sequence numbers used by the provisioner.
+ * <p>
+ * Sequence numbers are handed out from an atomic counter. Instead of storing every sequence number, a block of
+ * {@link #RESERVATION_BLOCK_SIZE} numbers is reserved by persisting its upper bound before the first number of the block
+ * is handed out. On restart the counter resumes from the persisted bound, so a sequence number is never reused even if
+ * the process died in the middle of a block.
+ * </p>
+ */
 public final class SequenceNumber {
 
     private static final String PREFS_SEQUENCE_NUMBER = "PREFS_SEQUENCE_NUMBER";
     private static final String KEY = "NRF_MESH_SEQUENCE_NUMBER";
+    private static final int RESERVATION_BLOCK_SIZE = 1000;
+    private static final int MAX_SEQUENCE_NUMBER = 0xFFFFFF;
 
-    private static Integer mSequenceNumber;
+    private static final AtomicInteger mSequenceNumber = new AtomicInteger();
+    private static volatile int mReservedSequenceNumber;
+    private static volatile boolean mInitialized;
 
-    //TODO check this class
     private static void initSequenceNumber(final Context context) {
-        if (mSequenceNumber == null) {
-            final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
-            if(preferences == null) { // Unit test started fail being unable to fetch preferences
-                mSequenceNumber = 0;
-            } else {
-                mSequenceNumber = preferences.getInt(KEY, 0);
+        synchronized (SequenceNumber.class) {
+            if (!mInitialized) {
+                final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
+                if(preferences == null) { // Unit test started fail being unable to fetch preferences
+                    mReservedSequenceNumber = 0;
+                } else {
+                    mReservedSequenceNumber = preferences.getInt(KEY, 0);
+                }
+                //Numbers up to the persisted reservation may already have been used
+                mSequenceNumber.set(mReservedSequenceNumber);
+                mInitialized = true;
             }
         }
     }
 
     public static int getSequenceNumber() {
-        return mSequenceNumber;
+        return mSequenceNumber.get();
     }
 
     static int incrementAndStore(final Context context) {
-        if(mSequenceNumber == null)
+        if (!mInitialized)
             initSequenceNumber(context);
 
-        mSequenceNumber++;
-        SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
-        if(preferences != null) { // Unit test started fail being unable to fetch preferences
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putInt(KEY, mSequenceNumber);
-            editor.apply();
+        final int sequenceNumber = mSequenceNumber.incrementAndGet();
+        if (sequenceNumber > mReservedSequenceNumber) {
+            reserve(context, sequenceNumber);
         }
-        return mSequenceNumber;
+        return sequenceNumber;
     }
 
+    /**
+     * Returns the sequence number following the given one, or the next free sequence number if it has already been handed out
+     *
+     * @param context        context
+     * @param sequenceNumber sequence number to be incremented
+     */
     static int incrementAndStore(final Context context, final byte[] sequenceNumber) {
-        final int tempSeq = getSequenceNumber(sequenceNumber) + 1; //Increment it here
-        mSequenceNumber = tempSeq;
-        final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
-        if(preferences != null) { // Unit test started fail being unable to fetch preferences
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putInt(KEY, tempSeq);
-            editor.apply();
+        if (!mInitialized)
+            initSequenceNumber(context);
+
+        final int next = getSequenceNumber(sequenceNumber) + 1; //Increment it here
+        int current;
+        do {
+            current = mSequenceNumber.get();
+            if (current >= next)
+                return incrementAndStore(context);
+        } while (!mSequenceNumber.compareAndSet(current, next));
+
+        if (next > mReservedSequenceNumber) {
+            reserve(context, next);
+        }
+        return next;
+    }
+
+    /**
+     * Persists the upper bound of the block containing the given sequence number
+     */
+    private static void reserve(final Context context, final int sequenceNumber) {
+        synchronized (SequenceNumber.class) {
+            if (sequenceNumber <= mReservedSequenceNumber)
+                return;
+
+            final int reservedSequenceNumber = Math.min(sequenceNumber + RESERVATION_BLOCK_SIZE - 1, MAX_SEQUENCE_NUMBER);
+            final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
+            if(preferences != null) { // Unit test started fail being unable to fetch preferences
+                final SharedPreferences.Editor editor = preferences.edit();
+                editor.putInt(KEY, reservedSequenceNumber);
+                editor.commit(); //The reservation must be on disk before any number of the block is used
+            }
+            mReservedSequenceNumber = reservedSequenceNumber;
         }
-        return mSequenceNumber;
     }
 
     private static int getSequenceNumber(final byte[] sequenceNumber) {
@@ -79,10 +126,14 @@ public final class SequenceNumber {
     }
 
     public static void resetSequenceNumber(final Context context) {
-        mSequenceNumber = 0;
-        final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
-        final SharedPreferences.Editor editor = preferences.edit();
-        editor.putInt(KEY, mSequenceNumber);
-        editor.apply();
+        synchronized (SequenceNumber.class) {
+            mSequenceNumber.set(0);
+            mReservedSequenceNumber = 0;
+            mInitialized = true;
+            final SharedPreferences preferences = context.getSharedPreferences(PREFS_SEQUENCE_NUMBER, Context.MODE_PRIVATE);
+            final SharedPreferences.Editor editor = preferences.edit();
+            editor.putInt(KEY, 0);
+            editor.apply();
+        }
     }
 }
@@ -30,6 +30,9 @@ public class BlockAcknowledgementMessage extends TransportControlMessage {
 
 
     private static final String TAG = BlockAcknowledgementMessage.class.getSimpleName();
+    private int obo;
+    private int seqZero;
+    private int blockAck;
 
     public BlockAcknowledgementMessage(final byte[] accessPayload, final int offset) {
         parseBlockAcknowledgement(accessPayload, offset);
@@ -54,5 +57,30 @@ public class BlockAcknowledgementMessage extends TransportControlMessage {
 
     private void parseBlockAcknowledgement(final byte[] transportPayload, final int offset) {
         Log.v(TAG, "Acknowledgement received from node: " + MeshParserUtils.bytesToHex(transportPayload, false));
+        obo = (transportPayload[offset] >> 7) & 0x01;
+        seqZero = ((transportPayload[offset] & 0x7F) << 6) | ((transportPayload[offset + 1] & 0xFC) >> 2);
+        blockAck = ((transportPayload[offset + 2] & 0xFF) << 24) | ((transportPayload[offset + 3] & 0xFF) << 16)
+                | ((transportPayload[offset + 4] & 0xFF) << 8) | (transportPayload[offset + 5] & 0xFF);
+    }
+
+    /**
+     * Returns true if the acknowledgement was sent by a friend node on behalf of a low power node
+     */
+    public boolean isObo() {
+        return obo == 1;
+    }
+
+    /**
+     * Returns the SeqZero of the segmented message being acknowledged
+     */
+    public int getSeqZero() {
+        return seqZero;
+    }
+
+    /**
+     * Returns the block acknowledgement where bit n is set if segment n was received
+     */
+    public int getBlockAck() {
+        return blockAck;
     }
 }
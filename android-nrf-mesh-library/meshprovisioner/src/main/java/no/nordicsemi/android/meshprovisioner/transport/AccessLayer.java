@@ -28,7 +28,6 @@ import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import no.nordicsemi.android.meshprovisioner.configuration.ProvisionedMeshNode;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
@@ -102,10 +101,9 @@ public abstract class AccessLayer {
 
         final int opcode = MeshParserUtils.getOpCode(accessPayload, opCodeLength);
         message.setOpCode(opcode);
-        final int length = accessPayload.length - opCodeLength;
-        final ByteBuffer paramsBuffer = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
-        paramsBuffer.put(accessPayload, opCodeLength, length);
-        message.setParameters(paramsBuffer.array());
+        final byte[] parameters = new byte[accessPayload.length - opCodeLength];
+        System.arraycopy(accessPayload, opCodeLength, parameters, 0, parameters.length);
+        message.setParameters(parameters);
         Log.v("AccessLayer", "Access PDU " + MeshParserUtils.bytesToHex(accessPayload, false));
     }
 }
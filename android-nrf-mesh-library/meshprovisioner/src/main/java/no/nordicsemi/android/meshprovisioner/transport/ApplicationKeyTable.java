@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import java.util.Arrays;
+
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+
+/**
+ * Receive side table of the application keys known to the provisioner, indexed by the 6-bit AID.
+ * <p>
+ * The AID of every key is taken from {@link KeyMaterial} when the key is added, so the upper transport layer can pick the candidate keys
+ * for a received access message from its AID and only try the keys sharing that AID, in the order they were added.
+ * </p>
+ */
+public final class ApplicationKeyTable {
+
+    private static final int AID_MASK = 0x3F;
+    private static final byte[][] EMPTY = new byte[0][];
+
+    private final byte[][][] mApplicationKeys = new byte[AID_MASK + 1][][];
+
+    public ApplicationKeyTable() {
+        Arrays.fill(mApplicationKeys, EMPTY);
+    }
+
+    /**
+     * Adds an application key to the table, the same key is only added once
+     *
+     * @param applicationKey application key
+     */
+    public synchronized void add(final byte[] applicationKey) {
+        final int aid = KeyMaterial.forApplicationKey(applicationKey).getAid() & AID_MASK;
+        final byte[][] applicationKeys = mApplicationKeys[aid];
+        for (byte[] key : applicationKeys) {
+            if (Arrays.equals(key, applicationKey))
+                return;
+        }
+        final byte[][] newApplicationKeys = Arrays.copyOf(applicationKeys, applicationKeys.length + 1);
+        newApplicationKeys[applicationKeys.length] = applicationKey;
+        mApplicationKeys[aid] = newApplicationKeys;
+    }
+
+    /**
+     * Removes all application keys from the table
+     */
+    public synchronized void clear() {
+        Arrays.fill(mApplicationKeys, EMPTY);
+    }
+
+    /**
+     * Returns the application keys matching the given AID.
+     * <p>
+     * The returned array is shared and must not be modified, an empty array is returned if there are no matching keys.
+     * </p>
+     *
+     * @param aid AID of the received message
+     */
+    public synchronized byte[][] getApplicationKeys(final int aid) {
+        return mApplicationKeys[aid & AID_MASK];
+    }
+}
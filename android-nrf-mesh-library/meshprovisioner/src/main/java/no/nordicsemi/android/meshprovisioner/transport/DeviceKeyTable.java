@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.utils.ElementAddressIndex;
+
+/**
+ * Receive side table of the device keys of the provisioned nodes, indexed by element address.
+ * <p>
+ * The upper transport layer uses this table to pick the device key for a received access message from its source address,
+ * so that messages sent by any element of any node, e.g. config status messages relayed through the proxy node, can be decrypted
+ * regardless of the node the transport was created for.
+ * </p>
+ * <p>
+ * Nodes are loaded on demand, so the device key of a node that has not been loaded yet is requested from the
+ * {@link DeviceKeyLoader}, which is expected to load the node and add its device key to the table.
+ * </p>
+ */
+public final class DeviceKeyTable {
+
+    public interface DeviceKeyLoader {
+
+        /**
+         * Loads the device key of the node owning the given element address, which is not in the table yet
+         *
+         * @param src source address of the received message
+         * @return device key or null if no node owns the address
+         */
+        byte[] loadDeviceKey(final int src);
+    }
+
+    private final ElementAddressIndex mElementAddressIndex = new ElementAddressIndex();
+    private final Map<Integer, byte[]> mDeviceKeys = new HashMap<>();
+    private final DeviceKeyLoader mDeviceKeyLoader;
+
+    public DeviceKeyTable() {
+        this(null);
+    }
+
+    /**
+     * Creates a device key table loading the keys missing from the table through the given loader
+     *
+     * @param deviceKeyLoader loader of the device keys of nodes that have not been loaded, or null
+     */
+    public DeviceKeyTable(final DeviceKeyLoader deviceKeyLoader) {
+        mDeviceKeyLoader = deviceKeyLoader;
+    }
+
+    /**
+     * Adds or replaces the device key of a node
+     *
+     * @param unicastAddress unicast address of the primary element of the node
+     * @param elementCount   number of elements of the node
+     * @param deviceKey      device key of the node
+     */
+    public synchronized void put(final int unicastAddress, final int elementCount, final byte[] deviceKey) {
+        mElementAddressIndex.put(unicastAddress, elementCount);
+        mDeviceKeys.put(unicastAddress, deviceKey);
+    }
+
+    /**
+     * Removes the device key of a node
+     *
+     * @param unicastAddress unicast address of the primary element of the node
+     */
+    public synchronized void remove(final int unicastAddress) {
+        mElementAddressIndex.remove(unicastAddress);
+        mDeviceKeys.remove(unicastAddress);
+    }
+
+    /**
+     * Removes all device keys from the table
+     */
+    public synchronized void clear() {
+        mElementAddressIndex.clear();
+        mDeviceKeys.clear();
+    }
+
+    /**
+     * Returns the device key of the node owning the given element address
+     *
+     * @param src source address of the received message
+     * @return device key or null if no node owns the address
+     */
+    public byte[] get(final int src) {
+        synchronized (this) {
+            final int unicastAddress = mElementAddressIndex.find(src);
+            if (unicastAddress != -1)
+                return mDeviceKeys.get(unicastAddress);
+        }
+        //The loader adds the key it loads to the table, so it is invoked without holding the lock
+        return mDeviceKeyLoader != null ? mDeviceKeyLoader.loadDeviceKey(src) : null;
+    }
+}
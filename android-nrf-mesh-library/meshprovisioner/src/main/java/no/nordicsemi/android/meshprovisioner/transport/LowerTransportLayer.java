@@ -27,8 +27,8 @@ import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 
 import no.nordicsemi.android.meshprovisioner.control.BlockAcknowledgementMessage;
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
@@ -49,21 +49,23 @@ public abstract class LowerTransportLayer extends UpperTransportLayer {
 
     private static final int UNSEGMENTED_ACK_MESSAGE_HEADER_LENGTH = 3;
 
-    private final Map<Integer, byte[]> segmentedAccessMessageMap = new HashMap<>();
-    private final Map<Integer, byte[]> segmentedControlMessageMap = new HashMap<>();
-
     private LowerTransportLayerCallbacks mLowerTransportLayerCallbacks;
-
-    private boolean mSegmentedAccessAcknowledgementTimerStarted;
-    private Integer mSegmentedAccessBlockAck;
-
-    private boolean mSegmentedControlAcknowledgementTimerStarted;
-    private Integer mSegmentedControlBlockAck;
+    private SegmentedMessageReassembler mSegmentedMessageReassembler;
+    private SegmentedMessageTransmitter mSegmentedMessageTransmitter;
 
     protected void setLowerTransportLayerCallbacks(final LowerTransportLayerCallbacks callbacks) {
         mLowerTransportLayerCallbacks = callbacks;
     }
 
+    /**
+     * Sets the number of times the unacknowledged segments of an outgoing segmented message are retransmitted
+     *
+     * @param attempts retransmission attempts
+     */
+    protected void setSegmentRetransmissionAttempts(final int attempts) {
+        getSegmentedMessageTransmitter().setRetransmissionAttempts(attempts);
+    }
+
     @Override
     void createMeshMessage(final Message message) {
         if(message instanceof AccessMessage) {
@@ -206,6 +208,77 @@ public abstract class LowerTransportLayer extends UpperTransportLayer {
      */
     protected abstract Message createNetworkLayerPDU(final Message message);
 
+    /**
+     * Creates the network layer pdu for a single lower transport pdu
+     * @param message           message with underlying data
+     * @param lowerTransportPdu lower transport pdu
+     * @param sequenceNumber    sequence number to be used for the network pdu
+     * @return network pdu
+     */
+    abstract byte[] createNetworkLayerPDU(final Message message, final byte[] lowerTransportPdu, final int sequenceNumber);
+
+    /**
+     * Keeps the segments of an outgoing segmented access message until the destination acknowledges them.
+     * @param message access message containing the lower transport pdus.
+     * @param seqZero SeqZero of the message.
+     */
+    final void addOutgoingSegmentedMessage(final AccessMessage message, final int seqZero) {
+        final byte[] dst = message.getDst();
+        getSegmentedMessageTransmitter().add(message, ((dst[0] & 0xFF) << 8) | (dst[1] & 0xFF), seqZero, message.getLowerTransportAccessPdu());
+    }
+
+    /**
+     * Passes a block acknowledgement on to the outgoing segmented messages sent through this layer
+     * @param src      source address of the acknowledgement.
+     * @param seqZero  SeqZero of the acknowledged message.
+     * @param blockAck block acknowledgement.
+     * @return true if the acknowledgement belonged to an outgoing segmented message sent through this layer.
+     */
+    protected boolean onBlockAcknowledgement(final int src, final int seqZero, final int blockAck) {
+        return mSegmentedMessageTransmitter != null && mSegmentedMessageTransmitter.onBlockAcknowledgement(src, seqZero, blockAck);
+    }
+
+    /**
+     * Stops retransmitting the segments of the outgoing segmented messages sent through this layer
+     */
+    protected void cancelOutgoingSegmentedMessages() {
+        if (mSegmentedMessageTransmitter != null) {
+            mSegmentedMessageTransmitter.clear();
+        }
+    }
+
+    /**
+     * Starts the acknowledgement timers of the outgoing segmented messages sent through this layer, once their queued segments
+     * have been written to the proxy
+     */
+    protected void onOutgoingSegmentsReleased() {
+        if (mSegmentedMessageTransmitter != null) {
+            mSegmentedMessageTransmitter.onSegmentsReleased();
+        }
+    }
+
+    private SegmentedMessageTransmitter getSegmentedMessageTransmitter() {
+        if (mSegmentedMessageTransmitter == null) {
+            mSegmentedMessageTransmitter = new SegmentedMessageTransmitter(mHandler, this::resendSegment);
+        }
+        return mSegmentedMessageTransmitter;
+    }
+
+    /**
+     * Encodes a segment of an outgoing segmented message with a new sequence number and sends it.
+     * @param transaction outgoing segmented message.
+     * @param segO        segment to be sent.
+     */
+    private void resendSegment(final SegmentedMessageTransmitter.Transaction transaction, final int segO) {
+        if (mLowerTransportLayerCallbacks == null)
+            return;
+
+        final int sequenceNumber = incrementSequenceNumber();
+        final byte[] networkPdu = createNetworkLayerPDU(transaction.message, transaction.lowerTransportPdus.get(segO), sequenceNumber);
+        Log.v(TAG, "Retransmitting segment " + segO + " of SeqZero " + transaction.seqZero);
+        mLowerTransportLayerCallbacks.sendSegmentRetransmission(networkPdu);
+    }
+
     /**
      * Creates an unsegmented access message.
      * @param message access message.
@@ -336,231 +409,128 @@ public abstract class LowerTransportLayer extends UpperTransportLayer {
     /**
      * Parses a unsegmented lower transport access pdu
      *
-     * @param pdu The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param pdu    The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param length length of the pdu excluding the network mic
      */
     /*package*/
-    final void parseUnsegmentedAccessLowerTransportPDU(final AccessMessage message, final byte[] pdu) {
+    final void parseUnsegmentedAccessLowerTransportPDU(final AccessMessage message, final byte[] pdu, final int length) {
 
         final byte header = pdu[10]; //Lower transport pdu starts here
-        final int seg = (header >> 7) & 0x01;
         final int akf = (header >> 6) & 0x01;
         final int aid = header & 0x3F;
-        if (seg == 0) { //Unsegmented message
-            if (akf == 0) {// device key was used to encrypt
-                final int lowerTransportPduLength = pdu.length - 10;
-                final ByteBuffer lowerTransportBuffer = ByteBuffer.allocate(lowerTransportPduLength).order(ByteOrder.BIG_ENDIAN);
-                lowerTransportBuffer.put(pdu, 10, lowerTransportPduLength);
-                final byte[] lowerTransportPDU = lowerTransportBuffer.array();
-                final HashMap<Integer, byte[]> messages = new HashMap<>();
-                messages.put(0, lowerTransportPDU);
-                message.setSegmented(false);
-                message.setAszmic(0); //aszmic is always 0 for unsegmented access messages
-                message.setAkf(akf);
-                message.setAid(aid);
-                message.setLowerTransportAccessPdu(messages);
-            } else {
-                final int lowerTransportPduLength = pdu.length - 10;
-                final ByteBuffer lowerTransportBuffer = ByteBuffer.allocate(lowerTransportPduLength).order(ByteOrder.BIG_ENDIAN);
-                lowerTransportBuffer.put(pdu, 10, lowerTransportPduLength);
-                final byte[] lowerTransportPDU = lowerTransportBuffer.array();
-                final HashMap<Integer, byte[]> messages = new HashMap<>();
-                messages.put(0, lowerTransportPDU);
-                message.setSegmented(false);
-                message.setAszmic(0); //aszmic is always 0 for unsegmented access messages
-                message.setAkf(akf);
-                message.setAid(aid);
-                message.setLowerTransportAccessPdu(messages);
-            }
-        }
+        message.setSegmented(false);
+        message.setAszmic(0); //aszmic is always 0 for unsegmented access messages
+        message.setAkf(akf);
+        message.setAid(aid);
     }
 
     /**
      * Parses a segmented lower transport access pdu.
-     * @param pdu The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param data   pdu received from the mesh node.
+     * @param pdu    The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param length length of the pdu excluding the network mic
+     * @return access message containing the reassembled upper transport pdu once all segments have been received, null otherwise
      */
     /*package*/
-    final AccessMessage parseSegmentedAccessLowerTransportPDU(final byte[] pdu) {
-
-        final byte header = pdu[10]; //Lower transport pdu starts here
-        final int akf = (header >> 6) & 0x01;
-        final int aid = header & 0x3F;
-
-        final int szmic = (pdu[11] >> 7) & 0x01;
-        final int seqZero = ((pdu[11] & 0x7F) << 6) | ((pdu[12] & 0xFC) >> 2);
-        final int segO = ((pdu[12] & 0x03) << 3) | ((pdu[13] & 0xE0) >> 5);
-        final int segN = ((pdu[13]) & 0x1F);
-
-        final int ttl = pdu[2] & 0x7F;
-        final byte[] src = MeshParserUtils.getDstAddress(pdu); //Destination of the received packet would be the source for the ack
-        final byte[] dst = MeshParserUtils.getSrcAddress(pdu); //Source of the received packet would be the destination for the ack
-
-        Log.v(TAG, "SEGO: " + segO);
-        Log.v(TAG, "SEGN: " + segN);
-
-        //Start the timer irrespective of which segment was received first
-        initSegmentedAccessAcknowledgementTimer(seqZero, ttl, src, dst);
-        mSegmentedAccessBlockAck = BlockAcknowledgementMessage.calculateBlockAcknowledgement(mSegmentedAccessBlockAck, segO);
-
-        final int payloadLength = pdu.length - 10;
-
-        final ByteBuffer payloadBuffer = ByteBuffer.allocate(payloadLength);
-        payloadBuffer.put(pdu, 10, payloadLength);
-        segmentedAccessMessageMap.put(segO, payloadBuffer.array());
-
-        //Check the message count against the zero-based segN;
-        final int receivedSegmentedMessageCount = segmentedAccessMessageMap.size() - 1;
-        if (segN == receivedSegmentedMessageCount) {
-            final int upperTransportSequenceNumber = getTransportLayerSequenceNumber(MeshParserUtils.getSequenceNumberFromPDU(pdu), seqZero);
-            final byte[] sequenceNumber = MeshParserUtils.getSequenceNumberBytes(upperTransportSequenceNumber);
-            final AccessMessage accessMessage = new AccessMessage();
-            accessMessage.setAszmic(szmic);
-            accessMessage.setSequenceNumber(sequenceNumber);
-            accessMessage.setAkf(akf);
-            accessMessage.setAid(aid);
-            accessMessage.setSegmented(true);
-            final HashMap<Integer, byte[]> segmentedMessages = new HashMap<>();
-            segmentedMessages.putAll(segmentedAccessMessageMap);
-            segmentedAccessMessageMap.clear();
-            accessMessage.setLowerTransportAccessPdu(segmentedMessages);
-            return accessMessage;
-        }
-
-        return null;
+    final AccessMessage parseSegmentedAccessLowerTransportPDU(final byte[] data, final byte[] pdu, final int length) {
+        final SegmentedMessageReassembler.Session session = getSegmentedMessageReassembler().addSegment(data, pdu, length, 0, MAX_SEGMENTED_ACCESS_PAYLOAD_LENGTH);
+        if (session == null)
+            return null;
+
+        final int upperTransportSequenceNumber = getTransportLayerSequenceNumber(session.sequenceNumber, session.seqZero);
+        final AccessMessage accessMessage = new AccessMessage();
+        accessMessage.setAszmic(session.szmic);
+        accessMessage.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(upperTransportSequenceNumber));
+        accessMessage.setAkf((session.header >> 6) & 0x01);
+        accessMessage.setAid(session.header & 0x3F);
+        accessMessage.setSegmented(true);
+        accessMessage.setUpperTransportPdu(getReassembledPayload(session));
+        accessMessage.setNetworkPdu(session.networkPdus);
+        return accessMessage;
     }
 
     /**
      * Parses a unsegmented lower transport control pdu.
-     * @param pdu The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param pdu    The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param length length of the pdu excluding the network mic
      */
     /*package*/
-    final void parseUnsegmentedControlLowerTransportPDU(final ControlMessage controlMessage, final byte[] pdu) {
+    final void parseUnsegmentedControlLowerTransportPDU(final ControlMessage controlMessage, final byte[] pdu, final int length) {
 
         final byte header = pdu[10]; //Lower transport pdu starts here
         final int opCode = header & 0x7F;
-        final int lowerTransportPduLength = pdu.length - 10;
-        final ByteBuffer lowerTransportBuffer = ByteBuffer.allocate(lowerTransportPduLength).order(ByteOrder.BIG_ENDIAN);
-        lowerTransportBuffer.put(pdu, 10, lowerTransportPduLength);
-        final byte[] lowerTransportPDU = lowerTransportBuffer.array();
-        final HashMap<Integer, byte[]> segmentedMessages = new HashMap<>();
-        segmentedMessages.put(0, lowerTransportPDU);
+        //Unsegmented control messages carry the transport control pdu right after the header
+        final byte[] transportControlPdu = new byte[length - 11];
+        System.arraycopy(pdu, 11, transportControlPdu, 0, transportControlPdu.length);
         controlMessage.setSegmented(false);
         controlMessage.setAszmic(0);
         controlMessage.setOpCode(opCode);
-        controlMessage.setLowerTransportControlPdu(segmentedMessages);
-        parseLowerTransportLayerPDU(controlMessage);
+        controlMessage.setTransportControlPdu(transportControlPdu);
+        parseLowerTransportLayerPDU(controlMessage, ((pdu[6] & 0xFF) << 8) | (pdu[7] & 0xFF));
     }
 
     /**
      * Parses a segmented lower transport control pdu.
-     * @param pdu The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param data   pdu received from the mesh node.
+     * @param pdu    The complete pdu was received from the node. This is already de-obfuscated and decrypted at network layer.
+     * @param length length of the pdu excluding the network mic
+     * @return control message containing the reassembled transport control pdu once all segments have been received, null otherwise
      */
     /*package*/
-    final ControlMessage parseSegmentedControlLowerTransportPDU(final byte[] pdu) {
-
-        final byte header = pdu[10]; //Lower transport pdu starts here
-        final int akf = (header >> 6) & 0x01;
-        final int aid = header & 0x3F;
+    final ControlMessage parseSegmentedControlLowerTransportPDU(final byte[] data, final byte[] pdu, final int length) {
+        final SegmentedMessageReassembler.Session session = getSegmentedMessageReassembler().addSegment(data, pdu, length, 1, MAX_SEGMENTED_CONTROL_PAYLOAD_LENGTH);
+        if (session == null)
+            return null;
+
+        final int upperTransportSequenceNumber = getTransportLayerSequenceNumber(session.sequenceNumber, session.seqZero);
+        final ControlMessage controlMessage = new ControlMessage();
+        controlMessage.setAszmic(session.szmic);
+        controlMessage.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(upperTransportSequenceNumber));
+        controlMessage.setOpCode(session.header & 0x7F);
+        controlMessage.setSegmented(true);
+        controlMessage.setTransportControlPdu(getReassembledPayload(session));
+        controlMessage.setNetworkPdu(session.networkPdus);
+        return controlMessage;
+    }
 
-        final int szmic = (pdu[11] >> 7) & 0x01;
-        final int seqZero = ((pdu[11] & 0x7F) << 6) | ((pdu[12] & 0xFC) >> 2);
-        final int segO = ((pdu[12] & 0x3) << 3) | ((pdu[13] & 0xe0) >> 5);
-        final int segN = ((pdu[13]) & 0x1F);
-
-        final int ttl = pdu[2] & 0x7F;
-        final byte[] src = MeshParserUtils.getDstAddress(pdu); //Destination of the received packet would be the source for the ack
-        final byte[] dst = MeshParserUtils.getSrcAddress(pdu); //Source of the received packet would be the destination for the ack
-
-        //Start the timer irrespective of which segment was received first
-        initSegmentedControlAcknowledgementTimer(seqZero, ttl, src, dst);
-        mSegmentedControlBlockAck = BlockAcknowledgementMessage.calculateBlockAcknowledgement(mSegmentedControlBlockAck, segO);
-
-        final int payloadLength = pdu.length - 10;
-
-        final ByteBuffer payloadBuffer = ByteBuffer.allocate(payloadLength);
-        payloadBuffer.put(pdu, 10, payloadLength);
-        segmentedControlMessageMap.put(segO, payloadBuffer.array());
-
-        if (segO == segN) {
-            final int upperTransportSequenceNumber = getTransportLayerSequenceNumber(MeshParserUtils.getSequenceNumberFromPDU(pdu), seqZero);
-            final byte[] sequenceNumber = MeshParserUtils.getSequenceNumberBytes(upperTransportSequenceNumber);
-            final ControlMessage accessMessage = new ControlMessage();
-            accessMessage.setAszmic(szmic);
-            accessMessage.setSequenceNumber(sequenceNumber);
-            accessMessage.setAkf(akf);
-            accessMessage.setAid(aid);
-            accessMessage.setSegmented(true);
-            final HashMap<Integer, byte[]> segmentedMessages = new HashMap<>();
-            segmentedMessages.putAll(segmentedControlMessageMap);
-            segmentedControlMessageMap.clear();
-            accessMessage.setLowerTransportControlPdu(segmentedMessages);
-            return accessMessage;
+    private SegmentedMessageReassembler getSegmentedMessageReassembler() {
+        if (mSegmentedMessageReassembler == null) {
+            mSegmentedMessageReassembler = new SegmentedMessageReassembler(mHandler, this::sendBlockAcknowledgement);
         }
-
-        return null;
+        return mSegmentedMessageReassembler;
     }
 
     /**
-     * Start acknowledgement timer for segmented messages.
-     * @param seqZero seqzero of the segmented messages.
-     * @param ttl     ttl of the segmented messages.
-     * @param dst     destination address.
+     * Returns the payload of a completed session, trimmed to the length of the last segment
      */
-    private void initSegmentedAccessAcknowledgementTimer(final int seqZero, final int ttl, final byte[] src, final byte[] dst) {
-        if (!mSegmentedAccessAcknowledgementTimerStarted) {
-            final int duration = (150 + (50 * ttl));
-            mHandler.postDelayed(() -> {
-                final int blockAck = mSegmentedAccessBlockAck;
-                final byte[] upperTransportControlPdu = createAcknowledgementPayload(seqZero, blockAck);
-                Log.v(TAG, "Block acknowledgement payload: " + MeshParserUtils.bytesToHex(upperTransportControlPdu, false));
-                final ControlMessage controlMessage = new ControlMessage();
-                controlMessage.setOpCode(TransportLayerOpCodes.SAR_ACK_OPCODE);
-                controlMessage.setTransportControlPdu(upperTransportControlPdu);
-                controlMessage.setTtl(ttl);
-                controlMessage.setPduType(NETWORK_PDU);
-                controlMessage.setSrc(src);
-                controlMessage.setDst(dst);
-                controlMessage.setIvIndex(mMeshNode.getIvIndex());
-                final int sequenceNumber = incrementSequenceNumber();
-                final byte[] sequenceNum = MeshParserUtils.getSequenceNumberBytes(sequenceNumber);
-                controlMessage.setSequenceNumber(sequenceNum);
-                mLowerTransportLayerCallbacks.sendSegmentAcknowledgementMessage(controlMessage);
-                mSegmentedAccessAcknowledgementTimerStarted = false;
-                mSegmentedAccessBlockAck = null;
-            }, duration);
-            mSegmentedAccessAcknowledgementTimerStarted = true;
-        }
+    private static byte[] getReassembledPayload(final SegmentedMessageReassembler.Session session) {
+        if (session.length == session.payload.length)
+            return session.payload;
+        return Arrays.copyOf(session.payload, session.length);
     }
 
     /**
-     * Start acknowledgement timer for segmented messages.
-     * @param seqZero seqzero of the segmented messages.
-     * @param ttl     ttl of the segmented messages.
-     * @param dst     destination address.
+     * Sends a block acknowledgement for the segments received so far in the given session.
+     * @param session segmented transaction in flight.
      */
-    private void initSegmentedControlAcknowledgementTimer(final int seqZero, final int ttl, final byte[] src, final byte[] dst) {
-        if (!mSegmentedControlAcknowledgementTimerStarted) {
-            final int duration = (150 + (50 * ttl));
-            mHandler.postDelayed(() -> {
-                final int blockAck = mSegmentedControlBlockAck;
-                final byte[] lowerTransportControlPdu = createAcknowledgementPayload(seqZero, blockAck);
-                Log.v(TAG, "Block acknowledgement payload: " + MeshParserUtils.bytesToHex(lowerTransportControlPdu, false));
-                final ControlMessage controlMessage = new ControlMessage();
-                controlMessage.setOpCode(TransportLayerOpCodes.SAR_ACK_OPCODE);
-                controlMessage.setTransportControlPdu(lowerTransportControlPdu);
-                controlMessage.setTtl(ttl);
-                controlMessage.setPduType(NETWORK_PDU);
-                controlMessage.setSrc(src);
-                controlMessage.setDst(dst);
-                controlMessage.setIvIndex(mMeshNode.getIvIndex());
-                final int sequenceNumber = incrementSequenceNumber();
-                final byte[] sequenceNum = MeshParserUtils.getSequenceNumberBytes(sequenceNumber);
-                controlMessage.setSequenceNumber(sequenceNum);
-                mLowerTransportLayerCallbacks.sendSegmentAcknowledgementMessage(controlMessage);
-                mSegmentedControlAcknowledgementTimerStarted = false;
-                mSegmentedAccessBlockAck = null;
-            }, duration);
-            mSegmentedControlAcknowledgementTimerStarted = true;
-        }
+    private void sendBlockAcknowledgement(final SegmentedMessageReassembler.Session session) {
+        if (mLowerTransportLayerCallbacks == null)
+            return;
+
+        final byte[] upperTransportControlPdu = createAcknowledgementPayload(session.seqZero, session.blockAck);
+        Log.v(TAG, "Block acknowledgement payload: " + MeshParserUtils.bytesToHex(upperTransportControlPdu, false));
+        final ControlMessage controlMessage = new ControlMessage();
+        controlMessage.setOpCode(TransportLayerOpCodes.SAR_ACK_OPCODE);
+        controlMessage.setTransportControlPdu(upperTransportControlPdu);
+        controlMessage.setTtl(session.ttl);
+        controlMessage.setPduType(NETWORK_PDU);
+        //Destination of the received segments is the source of the acknowledgement and vice versa
+        controlMessage.setSrc(new byte[]{(byte) (session.dst >> 8), (byte) session.dst});
+        controlMessage.setDst(new byte[]{(byte) (session.src >> 8), (byte) session.src});
+        controlMessage.setIvIndex(mMeshNode.getIvIndex());
+        final int sequenceNumber = incrementSequenceNumber();
+        controlMessage.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(sequenceNumber));
+        mLowerTransportLayerCallbacks.sendSegmentAcknowledgementMessage(controlMessage);
     }
 
     /**
@@ -582,10 +552,9 @@ public abstract class LowerTransportLayer extends UpperTransportLayer {
     /**
      * Parse transport layer control pdu.
      * @param controlMessage underlying message containing the access pdu.
+     * @param src            source address of the control message.
      */
-    private void parseLowerTransportLayerPDU(final ControlMessage controlMessage) {
-        //First we reassemble the transport layer message in its a segmented message
-        reassembleLowerTransportControlPDU(controlMessage);
+    private void parseLowerTransportLayerPDU(final ControlMessage controlMessage, final int src) {
         final byte[] transportControlPdu = controlMessage.getTransportControlPdu();
         final int opCode = controlMessage.getOpCode();
 
@@ -595,6 +564,7 @@ public abstract class LowerTransportLayer extends UpperTransportLayer {
                 offset = 0;
                 final BlockAcknowledgementMessage acknowledgement = new BlockAcknowledgementMessage(transportControlPdu, offset);
                 controlMessage.setTransportControlMessage(acknowledgement);
+                onBlockAcknowledgement(src, acknowledgement.getSeqZero(), acknowledgement.getBlockAck());
             default:
                 break;
         }
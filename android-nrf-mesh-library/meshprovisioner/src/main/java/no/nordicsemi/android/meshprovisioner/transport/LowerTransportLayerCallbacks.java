@@ -33,4 +33,11 @@ public interface LowerTransportLayerCallbacks {
      */
     void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage);
 
+    /**
+     * Sends a segment of a segmented message that was not acknowledged by the node
+     *
+     * @param networkPdu network pdu of the segment
+     */
+    void sendSegmentRetransmission(final byte[] networkPdu);
+
 }
@@ -26,11 +26,8 @@ import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
@@ -44,11 +41,23 @@ public abstract class NetworkLayer extends LowerTransportLayer {
     protected static final int MESH_BEACON_PDU = 0x01;
     private static final int PROXY_CONFIGURATION_PDU = 0x02;
     private static final String TAG = NetworkLayer.class.getSimpleName();
-    private byte[] mEncryptionKey;
-    private byte[] mPrivacyKey;
-    private int key;
-    private HashMap<Integer, byte[]> segmentedAccessMessagesMessages;
-    private HashMap<Integer, byte[]> segmentedControlMessagesMessages;
+    private static final int NETWORK_PDU_HEADER_LENGTH = 8; //pdu type, ivi | nid, obfuscated ctl | ttl | seq | src
+    private static final int DST_ADDRESS_LENGTH = 2;
+    private static final int MIN_NETWORK_PDU_LENGTH = 15; //header, dst, one octet of lower transport pdu and a 32-bit mic
+    private static final int NID_MASK = 0x7F;
+    private static final SecureUtils.K2Output[] NO_SUBNETS = new SecureUtils.K2Output[0];
+    //Pdus are encoded and decoded on different threads, each direction has its own scratch buffers
+    private final byte[] mEncodeNonce = new byte[13];
+    private final byte[] mEncodePecb = new byte[16];
+    private final byte[] mDecodeNonce = new byte[13];
+    private final byte[] mDecodePecb = new byte[16];
+    private final SecureUtils.K2Output[] mNodeSubnet = new SecureUtils.K2Output[1];
+    private byte[] mReceiveBuffer = new byte[32]; //Working buffer for received pdus, grown if a larger pdu is received
+    private NetworkLayerCallbacks mNetworkLayerCallbacks;
+
+    protected void setNetworkLayerCallbacks(final NetworkLayerCallbacks callbacks) {
+        mNetworkLayerCallbacks = callbacks;
+    }
 
     /**
      * Creates a mesh message
@@ -66,20 +75,7 @@ public abstract class NetworkLayer extends LowerTransportLayer {
     @Override
     @VisibleForTesting(otherwise = VisibleForTesting.PROTECTED)
     public final Message createNetworkLayerPDU(final Message message) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-        final int nid = k2Output.getNid();
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        Log.v(TAG, "Encryption key: " + MeshParserUtils.bytesToHex(encryptionKey, false));
-
-        final byte[] privacyKey = mPrivacyKey = k2Output.getPrivacyKey();
-        Log.v(TAG, "Privacy key: " + MeshParserUtils.bytesToHex(privacyKey, false));
         final int ctl = message.getCtl();
-        final int ttl = message.getTtl();
-        final int ivi = message.getIvIndex()[3] & 0x01; // least significant bit of IV Index
-        final byte iviNID = (byte) ((ivi << 7) | nid);
-        final byte ctlTTL = (byte) ((ctl << 7) | ttl);
-
-        final byte[] src = message.getSrc();
         final Map<Integer, byte[]> lowerTransportPduMap;
         if (ctl == 0) {
             lowerTransportPduMap = message.getLowerTransportAccessPdu();
@@ -87,240 +83,289 @@ public abstract class NetworkLayer extends LowerTransportLayer {
             lowerTransportPduMap = message.getLowerTransportControlPdu();
         }
 
-        final HashMap<Integer, byte[]> encryptedNetworkPduPayloadMap = new HashMap<>();
-        final List<byte[]> sequenceNumbers = new ArrayList<>();
-
         final int pduType = message.getPduType();
-        switch (message.getPduType()) {
-            case NETWORK_PDU:
-                for (int i = 0; i < lowerTransportPduMap.size(); i++) {
-                    final byte[] lowerTransportPdu = lowerTransportPduMap.get(i);
-                    if (i != 0) {
-                        final int sequenceNumber = incrementSequenceNumber(message.getSequenceNumber());
-                        final byte[] sequenceNum = MeshParserUtils.getSequenceNumberBytes(sequenceNumber);
-                        message.setSequenceNumber(sequenceNum);
-                    }
-                    sequenceNumbers.add(message.getSequenceNumber());
-                    Log.v(TAG, "Sequence Number: " + MeshParserUtils.bytesToHex(sequenceNumbers.get(i), false));
-                    final byte[] encryptedPayload = encryptNetworkPduPayload(message, sequenceNumbers.get(i), lowerTransportPdu, encryptionKey);
-                    encryptedNetworkPduPayloadMap.put(i, encryptedPayload);
-                    Log.v(TAG, "Encrypted Network payload: " + MeshParserUtils.bytesToHex(encryptedPayload, false));
-                }
-                break;
-            case PROXY_CONFIGURATION_PDU:
-                for (int i = 0; i < lowerTransportPduMap.size(); i++) {
-                    final byte[] lowerTransportPdu = lowerTransportPduMap.get(i);
-                    final int sequenceNumber = incrementSequenceNumber();
-                    final byte[] sequenceNum = MeshParserUtils.getSequenceNumberBytes(sequenceNumber);
-                    message.setSequenceNumber(sequenceNum);
-                    final byte[] encryptedPayload = encryptProxyConfigurationPduPayload(message, lowerTransportPdu, encryptionKey);
-                    encryptedNetworkPduPayloadMap.put(i, encryptedPayload);
-                    Log.v(TAG, "Encrypted Network payload: " + MeshParserUtils.bytesToHex(encryptedPayload, false));
-                }
-                break;
-        }
-
+        final int micLength = SecureUtils.getNetMicLength(ctl);
+        final int seqZero = MeshParserUtils.calculateSeqZero(message.getSequenceNumber());
         final HashMap<Integer, byte[]> networkPduMap = new HashMap<>();
-        for (int i = 0; i < encryptedNetworkPduPayloadMap.size(); i++) {
-            //Create the privacy random
-            final byte[] encryptedPayload = encryptedNetworkPduPayloadMap.get(i);
-            final byte[] privacyRandom = createPrivacyRandom(encryptedPayload);
-            //Next we create the PECB
-            final byte[] pecb = createPECB(message.getIvIndex(), privacyRandom, privacyKey);
-
-
-            final byte[] header = obfuscateNetworkHeader(ctlTTL, sequenceNumbers.get(i), src, pecb);
-            final byte[] networkPdu = ByteBuffer.allocate(1 + 1 + header.length + encryptedPayload.length).order(ByteOrder.BIG_ENDIAN)
-                    .put((byte) pduType)
-                    .put(iviNID)
-                    .put(header)
-                    .put(encryptedPayload)
-                    .array();
+        for (int i = 0; i < lowerTransportPduMap.size(); i++) {
+            final byte[] lowerTransportPdu = lowerTransportPduMap.get(i);
+            final int sequenceNumber;
+            if (pduType == PROXY_CONFIGURATION_PDU) {
+                sequenceNumber = incrementSequenceNumber();
+                message.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(sequenceNumber));
+            } else if (i != 0) {
+                sequenceNumber = incrementSequenceNumber(message.getSequenceNumber());
+                message.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(sequenceNumber));
+            } else {
+                sequenceNumber = MeshParserUtils.getSequenceNumber(message.getSequenceNumber());
+            }
+            Log.v(TAG, "Sequence Number: " + MeshParserUtils.bytesToHex(message.getSequenceNumber(), false));
+
+            final byte[] networkPdu = new byte[NETWORK_PDU_HEADER_LENGTH + DST_ADDRESS_LENGTH + lowerTransportPdu.length + micLength];
+            encodeNetworkPdu(pduType, ctl, message.getTtl(), sequenceNumber, message.getSrc(), message.getDst(), message.getIvIndex(),
+                    lowerTransportPdu, 0, lowerTransportPdu.length, networkPdu, 0);
             networkPduMap.put(i, networkPdu);
-            message.setNetworkPdu(networkPduMap);
         }
-
-
+        message.setNetworkPdu(networkPduMap);
+        if (ctl == 0 && pduType == NETWORK_PDU && message.isSegmented()) {
+            addOutgoingSegmentedMessage((AccessMessage) message, seqZero);
+        }
         return message;
     }
 
+    @Override
+    final byte[] createNetworkLayerPDU(final Message message, final byte[] lowerTransportPdu, final int sequenceNumber) {
+        final int ctl = message.getCtl();
+        final byte[] networkPdu = new byte[getNetworkPduLength(ctl, lowerTransportPdu.length)];
+        encodeNetworkPdu(message.getPduType(), ctl, message.getTtl(), sequenceNumber, message.getSrc(), message.getDst(), message.getIvIndex(),
+                lowerTransportPdu, 0, lowerTransportPdu.length, networkPdu, 0);
+        return networkPdu;
+    }
+
     /**
-     * Encrypts the network payload of a network pdu
+     * Encodes a network pdu directly in to the given buffer.
+     * <p>
+     * The nonce and pecb are built in preallocated scratch buffers and the payload is encrypted in place, so no objects are
+     * allocated per pdu once the cipher contexts of the network key have been created. The output buffer must have room for
+     * {@link #getNetworkPduLength(int, int)} octets. The lower transport pdu may already be placed in the output buffer at
+     * outOff + 10, in which case it is encrypted in place.
+     * </p>
      *
-     * @param message mesh message containing network layer pdu
-     * @param lowerTransportPdu lower transport pdu to be encrypted
-     * @param encryptionKey     key used to encrypt the payload.
-     * @return encrypted payload
+     * @param pduType           pdu type, network pdu or proxy configuration pdu
+     * @param ctl               message type
+     * @param ttl               time to live
+     * @param sequenceNumber    24-bit sequence number
+     * @param src               source address
+     * @param dst               destination address
+     * @param ivIndex           iv index
+     * @param lowerTransportPdu buffer containing the lower transport pdu
+     * @param lowerOff          offset of the lower transport pdu
+     * @param lowerLength       length of the lower transport pdu
+     * @param out               output buffer
+     * @param outOff            offset in the output buffer
+     * @return number of octets written in to the output buffer
      */
-    private byte[] encryptNetworkPduPayload(final Message message, final byte[] sequenceNumber, final byte[] lowerTransportPdu, final byte[] encryptionKey) {
-
-        final byte ctlTTL = (byte) ((message.getCtl() << 7) | message.getTtl());
-        final byte[] networkNonce = createNetworkNonce(ctlTTL, sequenceNumber, message.getSrc(), message.getIvIndex());
-        Log.v(TAG, "Network nonce: " + MeshParserUtils.bytesToHex(networkNonce, false));
-
-        final byte[] dst = message.getDst();
-        //Adding the destination address on network layer
-        final byte[] unencryptedNetworkPayload = ByteBuffer.allocate(dst.length + lowerTransportPdu.length).order(ByteOrder.BIG_ENDIAN).put(dst).put(lowerTransportPdu).array();
-
-        //Network layer encryption
-        return SecureUtils.encryptCCM(unencryptedNetworkPayload, encryptionKey, networkNonce, SecureUtils.getNetMicLength(message.getCtl()));
+    public final int encodeNetworkPdu(final int pduType, final int ctl, final int ttl, final int sequenceNumber,
+                                      final byte[] src, final byte[] dst, final byte[] ivIndex,
+                                      final byte[] lowerTransportPdu, final int lowerOff, final int lowerLength,
+                                      final byte[] out, final int outOff) {
+        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
+        final int micLength = SecureUtils.getNetMicLength(ctl);
+        final byte ctlTTL = (byte) ((ctl << 7) | ttl);
+        final int ivi = ivIndex[3] & 0x01; // least significant bit of IV Index
+        final int payloadOffset = outOff + NETWORK_PDU_HEADER_LENGTH;
+
+        //Network payload is the destination address followed by the lower transport pdu
+        System.arraycopy(lowerTransportPdu, lowerOff, out, payloadOffset + DST_ADDRESS_LENGTH, lowerLength);
+        out[payloadOffset] = dst[0];
+        out[payloadOffset + 1] = dst[1];
+
+        final byte[] nonce = mEncodeNonce;
+        if (pduType == PROXY_CONFIGURATION_PDU) {
+            nonce[0] = NONCE_TYPE_PROXY;
+            nonce[1] = PAD_PROXY_NONCE;
+        } else {
+            nonce[0] = NONCE_TYPE_NETWORK;
+            nonce[1] = ctlTTL;
+        }
+        nonce[2] = (byte) ((sequenceNumber >> 16) & 0xFF);
+        nonce[3] = (byte) ((sequenceNumber >> 8) & 0xFF);
+        nonce[4] = (byte) (sequenceNumber & 0xFF);
+        nonce[5] = src[0];
+        nonce[6] = src[1];
+        nonce[7] = PAD_NETWORK_NONCE;
+        nonce[8] = PAD_NETWORK_NONCE;
+        System.arraycopy(ivIndex, 0, nonce, 9, 4);
+        final int encryptedLength = k2Output.getEncryptionCipher().encryptCCM(out, payloadOffset, DST_ADDRESS_LENGTH + lowerLength,
+                nonce, 0, micLength, out, payloadOffset);
+
+        //PECB = e(privacy key, 0x0000000000 | iv index | privacy random)
+        final byte[] pecb = mEncodePecb;
+        pecb[0] = pecb[1] = pecb[2] = pecb[3] = pecb[4] = 0x00;
+        System.arraycopy(ivIndex, 0, pecb, 5, 4);
+        System.arraycopy(out, payloadOffset, pecb, 9, 7);
+        k2Output.getPrivacyCipher().encryptBlock(pecb, 0, pecb, 0);
+
+        out[outOff] = (byte) pduType;
+        out[outOff + 1] = (byte) ((ivi << 7) | k2Output.getNid());
+        //Obfuscated header, ctl | ttl | sequence number | src which are already laid out in the nonce
+        out[outOff + 2] = (byte) (ctlTTL ^ pecb[0]);
+        for (int i = 1; i < 6; i++) {
+            out[outOff + 2 + i] = (byte) (nonce[1 + i] ^ pecb[i]);
+        }
+        return NETWORK_PDU_HEADER_LENGTH + encryptedLength;
     }
 
     /**
-     * Encrypts the network of a proxy configuration pdu.
+     * Encodes a network pdu in to the given buffer starting at its current position, which is advanced past the pdu.
      *
-     * @param message mesh message containing network layer pdu
-     * @param lowerTransportPdu lower transport pdu to be encrypted
-     * @param encryptionKey     key used to encrypt the payload
-     * @return encrypted payload
+     * @see #encodeNetworkPdu(int, int, int, int, byte[], byte[], byte[], byte[], int, int, byte[], int)
      */
-    private byte[] encryptProxyConfigurationPduPayload(final Message message, final byte[] lowerTransportPdu, final byte[] encryptionKey) {
-
-        final byte[] proxyNonce = createProxyNonce(message.getSequenceNumber(), message.getSrc(), message.getIvIndex());
-        Log.v(TAG, "Proxy nonce: " + MeshParserUtils.bytesToHex(proxyNonce, false));
-
-        final byte[] dst = message.getDst();
-        //Adding the destination address on network layer
-        final byte[] unencryptedNetworkPayload = ByteBuffer.allocate(dst.length + lowerTransportPdu.length).order(ByteOrder.BIG_ENDIAN).put(dst).put(lowerTransportPdu).array();
-        //Network layer encryption
-        return SecureUtils.encryptCCM(unencryptedNetworkPayload, encryptionKey, proxyNonce, SecureUtils.getNetMicLength(message.getCtl()));
+    public final int encodeNetworkPdu(final int pduType, final int ctl, final int ttl, final int sequenceNumber,
+                                      final byte[] src, final byte[] dst, final byte[] ivIndex,
+                                      final byte[] lowerTransportPdu, final int lowerOff, final int lowerLength,
+                                      final ByteBuffer out) {
+        if (!out.hasArray() || out.remaining() < getNetworkPduLength(ctl, lowerLength))
+            throw new IllegalArgumentException("Buffer must be array backed and large enough to hold the network pdu");
+
+        final int length = encodeNetworkPdu(pduType, ctl, ttl, sequenceNumber, src, dst, ivIndex,
+                lowerTransportPdu, lowerOff, lowerLength, out.array(), out.arrayOffset() + out.position());
+        out.position(out.position() + length);
+        return length;
     }
 
     /**
-     * Obfuscates the network header
+     * Returns the length of a network pdu carrying a lower transport pdu of the given length
      *
-     * @param ctlTTL         message type and ttl bit
-     * @param sequenceNumber sequence number of the message
-     * @param src            source address
-     * @param pecb           value derived from the privacy random
-     * @return obfuscted network header
+     * @param ctl         message type
+     * @param lowerLength length of the lower transport pdu
      */
-    private byte[] obfuscateNetworkHeader(final byte ctlTTL, final byte[] sequenceNumber, final byte[] src, final byte[] pecb) {
-
-        final ByteBuffer buffer = ByteBuffer.allocate(1 + sequenceNumber.length + src.length).order(ByteOrder.BIG_ENDIAN);
-        buffer.put(ctlTTL);
-        buffer.put(sequenceNumber);   //sequence number
-        buffer.put(src);       //source address
-
-        final byte[] headerBuffer = buffer.array();
-
-        final ByteBuffer bufferPECB = ByteBuffer.allocate(6);
-        bufferPECB.put(pecb, 0, 6);
-
-        final byte[] obfuscated = new byte[6];
-        for (int i = 0; i < 6; i++)
-            obfuscated[i] = (byte) (headerBuffer[i] ^ pecb[i]);
-
-        return obfuscated;
+    public static int getNetworkPduLength(final int ctl, final int lowerLength) {
+        return NETWORK_PDU_HEADER_LENGTH + DST_ADDRESS_LENGTH + lowerLength + SecureUtils.getNetMicLength(ctl);
     }
 
     /**
-     * De-obfuscates the network header
+     * Authenticates the received pdu against the network keys sharing its NID.
+     * <p>
+     * Pdus with an NID that does not match any known network key are rejected without any AES operation.
+     * On success the receive buffer contains the pdu with a plain text header and network payload.
+     * </p>
      *
-     * @param pdu received from the node
-     * @return obfuscted network header
+     * @param data       pdu received from the mesh node
+     * @param dataLength length of the received pdu
+     * @return length of the pdu excluding the network mic, or -1 if none of the keys authenticated the pdu
      */
-    private byte[] deobfuscateNetworkHeader(final byte[] pdu) {
-        final byte[] privacyKey = mMeshNode.getK2Output().getPrivacyKey();
-        final ByteBuffer obfuscatedNetworkBuffer = ByteBuffer.allocate(6);
-        obfuscatedNetworkBuffer.order(ByteOrder.BIG_ENDIAN);
-        obfuscatedNetworkBuffer.put(pdu, 2, 6);
-        final byte[] obfuscatedData = obfuscatedNetworkBuffer.array();
-
-        final ByteBuffer privacyRandomBuffer = ByteBuffer.allocate(7);
-        privacyRandomBuffer.order(ByteOrder.BIG_ENDIAN);
-        privacyRandomBuffer.put(pdu, 8, 7);
-        final byte[] privacyRandom = createPrivacyRandom(privacyRandomBuffer.array());
+    private int decodeNetworkPdu(final byte[] data, final int dataLength) {
+        final TransportStatistics statistics = getTransportStatistics();
+        if (statistics != null) {
+            statistics.incrementReceivedPdus();
+        }
+        if (dataLength < MIN_NETWORK_PDU_LENGTH) {
+            Log.v(TAG, "Received pdu is too short, let's drop it");
+            return -1;
+        }
+        final SecureUtils.K2Output[] subnets = getSubnets(data[1] & NID_MASK);
+        if (subnets.length == 0) {
+            if (statistics != null) {
+                statistics.incrementUnknownNidDrops();
+            }
+            return -1;
+        }
+        for (SecureUtils.K2Output k2Output : subnets) {
+            deobfuscateNetworkHeader(data, dataLength, k2Output);
+            final int length = decryptNetworkPayload(mReceiveBuffer, dataLength, k2Output);
+            if (length > 0) {
+                return length;
+            }
+        }
+        Log.v(TAG, "Network mic did not match the received pdu, let's drop it");
+        if (statistics != null) {
+            statistics.incrementNetMicFailures();
+        }
+        return -1;
+    }
 
-        final byte[] pecb = createPECB(privacyRandom, privacyKey);
-        final byte[] deobfuscatedData = new byte[6];
+    private TransportStatistics getTransportStatistics() {
+        return mNetworkLayerCallbacks != null ? mNetworkLayerCallbacks.getTransportStatistics() : null;
+    }
 
-        for (int i = 0; i < 6; i++)
-            deobfuscatedData[i] = (byte) (obfuscatedData[i] ^ pecb[i]);
+    @Override
+    final DeviceKeyTable getDeviceKeyTable() {
+        return mNetworkLayerCallbacks != null ? mNetworkLayerCallbacks.getDeviceKeyTable() : null;
+    }
 
-        return deobfuscatedData;
+    @Override
+    final ApplicationKeyTable getApplicationKeyTable() {
+        return mNetworkLayerCallbacks != null ? mNetworkLayerCallbacks.getApplicationKeyTable() : null;
     }
 
     /**
-     * Creates the network nonce
+     * Drops an access message whose transport mic did not match
      *
-     * @param ctlTTL         combined ctl and ttl value
-     * @param sequenceNumber sequence number of the message
-     * @param src            source address
-     * @return Network nonce
+     * @return null
      */
-    private byte[] createNetworkNonce(final byte ctlTTL, final byte[] sequenceNumber, final byte[] src, final byte[] ivIndex) {
-        final ByteBuffer networkNonce = ByteBuffer.allocate(13);
-        networkNonce.put((byte) NONCE_TYPE_NETWORK); //Nonce type
-        networkNonce.put(ctlTTL); // CTL and TTL
-        networkNonce.put(sequenceNumber);
-        networkNonce.put(src);
-        networkNonce.put(new byte[]{PAD_NETWORK_NONCE, PAD_NETWORK_NONCE}); //PAD
-        networkNonce.put(ivIndex);
-        return networkNonce.array();
-    }
-
-    private byte[] createNetworkNonce(final byte ctlTTL, final byte[] sequenceNumber, final byte[] srcAddress) {
-        final ByteBuffer networkNonce = ByteBuffer.allocate(13);
-        networkNonce.put((byte) 0x00); //Nonce type
-        networkNonce.put(ctlTTL); // CTL and TTL
-        networkNonce.put(sequenceNumber);
-        networkNonce.put(srcAddress);
-        networkNonce.put(new byte[]{0x00, 0x00}); //PAD
-        networkNonce.put(mMeshNode.getIvIndex());
-        return networkNonce.array();
+    private AccessMessage dropTransMicFailure() {
+        Log.v(TAG, "Transport mic did not match the received message, let's drop it");
+        final TransportStatistics statistics = getTransportStatistics();
+        if (statistics != null) {
+            statistics.incrementTransMicFailures();
+        }
+        return null;
     }
 
     /**
-     * Creates the proxy nonce
+     * Returns the candidate network keys for the given NID
      *
-     * @param sequenceNumber sequence number of the message
-     * @param src            source address
-     * @return Proxy nonce
+     * @param nid NID of the received pdu
      */
-    private byte[] createProxyNonce(final byte[] sequenceNumber, final byte[] src, final byte[] ivIndex) {
-        final ByteBuffer applicationNonceBuffer = ByteBuffer.allocate(13);
-        applicationNonceBuffer.put((byte) NONCE_TYPE_PROXY); //Nonce type
-        applicationNonceBuffer.put((byte) PAD_PROXY_NONCE); //PAD
-        applicationNonceBuffer.put(sequenceNumber);
-        applicationNonceBuffer.put(src);
-        applicationNonceBuffer.put(new byte[]{PAD_PROXY_NONCE, PAD_PROXY_NONCE});
-        applicationNonceBuffer.put(ivIndex);
-        return applicationNonceBuffer.array();
+    private SecureUtils.K2Output[] getSubnets(final int nid) {
+        if (mNetworkLayerCallbacks != null) {
+            final SubnetTable subnetTable = mNetworkLayerCallbacks.getSubnetTable();
+            if (subnetTable != null) {
+                final SecureUtils.K2Output[] subnets = subnetTable.getSubnets(nid);
+                if (subnets.length > 0)
+                    return subnets;
+            }
+        }
+
+        //Fall back to the network key of the node
+        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
+        if (k2Output == null || (k2Output.getNid() & NID_MASK) != nid)
+            return NO_SUBNETS;
+        mNodeSubnet[0] = k2Output;
+        return mNodeSubnet;
     }
 
     /**
-     * Creates the privacy random.
+     * Copies the received pdu in to the receive buffer and de-obfuscates the network header in place.
      *
-     * @param encryptedUpperTransportPDU encrypted transport pdu
-     * @return Privacy random
+     * @param data       pdu received from the mesh node
+     * @param dataLength length of the received pdu
+     * @param k2Output   key material of the network key
      */
-    private byte[] createPrivacyRandom(final byte[] encryptedUpperTransportPDU) {
-        final byte[] privacyRandom = new byte[7];
-        System.arraycopy(encryptedUpperTransportPDU, 0, privacyRandom, 0, privacyRandom.length);
-        return privacyRandom;
-    }
+    private void deobfuscateNetworkHeader(final byte[] data, final int dataLength, final SecureUtils.K2Output k2Output) {
+        if (mReceiveBuffer.length < dataLength) {
+            mReceiveBuffer = new byte[dataLength];
+        }
+        final byte[] pdu = mReceiveBuffer;
+        System.arraycopy(data, 0, pdu, 0, dataLength);
+
+        //PECB = e(privacy key, 0x0000000000 | iv index | privacy random)
+        final byte[] pecb = mDecodePecb;
+        pecb[0] = pecb[1] = pecb[2] = pecb[3] = pecb[4] = 0x00;
+        System.arraycopy(mMeshNode.getIvIndex(), 0, pecb, 5, 4);
+        System.arraycopy(pdu, NETWORK_PDU_HEADER_LENGTH, pecb, 9, 7);
+        k2Output.getPrivacyCipher().encryptBlock(pecb, 0, pecb, 0);
 
-    private byte[] createPECB(final byte[] privacyRandom, final byte[] privacyKey) {
-        final byte[] ivIndex = mMeshNode.getIvIndex();
-        final ByteBuffer buffer = ByteBuffer.allocate(5 + privacyRandom.length + ivIndex.length);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.put(new byte[]{0x00, 0x00, 0x00, 0x00, 0x00});
-        buffer.put(ivIndex);
-        buffer.put(privacyRandom);
-        final byte[] temp = buffer.array();
-        Log.v(TAG, "Privacy Random: " + MeshParserUtils.bytesToHex(temp, false));
-        return SecureUtils.encryptWithAES(temp, privacyKey);
+        for (int i = 0; i < 6; i++)
+            pdu[2 + i] ^= pecb[i];
     }
 
-    private byte[] createPECB(final byte[] ivIndex, final byte[] privacyRandom, final byte[] privacyKey) {
-        final ByteBuffer buffer = ByteBuffer.allocate(5 + privacyRandom.length + ivIndex.length);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.put(new byte[]{0x00, 0x00, 0x00, 0x00, 0x00});
-        buffer.put(ivIndex);
-        buffer.put(privacyRandom);
-        final byte[] temp = buffer.array();
-        return SecureUtils.encryptWithAES(temp, privacyKey);
+    /**
+     * Decrypts the network payload of a de-obfuscated pdu in place.
+     *
+     * @param pdu      receive buffer containing the de-obfuscated pdu
+     * @param length   length of the received pdu
+     * @param k2Output key material of the network key
+     * @return length of the pdu without the network mic, or -1 if the network mic did not match
+     */
+    private int decryptNetworkPayload(final byte[] pdu, final int length, final SecureUtils.K2Output k2Output) {
+        final int ctl = (pdu[2] >> 7) & 0x01;
+        final int micLength = SecureUtils.getNetMicLength(ctl);
+
+        //Network nonce = nonce type | ctl ttl | seq | src | pad | iv index, the header already has the middle part laid out
+        final byte[] nonce = mDecodeNonce;
+        nonce[0] = NONCE_TYPE_NETWORK;
+        System.arraycopy(pdu, 2, nonce, 1, 6);
+        nonce[7] = PAD_NETWORK_NONCE;
+        nonce[8] = PAD_NETWORK_NONCE;
+        System.arraycopy(mMeshNode.getIvIndex(), 0, nonce, 9, 4);
+
+        if (!k2Output.getEncryptionCipher().decryptCCM(pdu, NETWORK_PDU_HEADER_LENGTH, length - NETWORK_PDU_HEADER_LENGTH,
+                nonce, 0, micLength, pdu, NETWORK_PDU_HEADER_LENGTH)) {
+            return -1;
+        }
+        return length - micLength;
     }
 
     /**
@@ -334,197 +379,121 @@ public abstract class NetworkLayer extends LowerTransportLayer {
      * @return complete {@link Message} that was successfully parsed or null otherwise
      */
     protected final Message parseMeshMessage(final byte[] configurationSrc, final byte[] data) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-        mEncryptionKey = k2Output.getEncryptionKey();
-        mPrivacyKey = k2Output.getPrivacyKey();
-
-        //D-eobfuscate network header
-        final byte[] networkHeader = deobfuscateNetworkHeader(data);
-        final int ctlTtl = networkHeader[0];
-        final int ctl = (ctlTtl >> 7) & 0x01;
-        final int ttl = ctlTtl & 0x7F;
-        Log.v(TAG, "TTL for received message: " + ttl);
+        return parseMeshMessage(configurationSrc, data, data.length);
+    }
 
-        final int micLength = SecureUtils.getNetMicLength(ctl);
-        final byte[] sequenceNumber = ByteBuffer.allocate(3).order(ByteOrder.BIG_ENDIAN).put(networkHeader, 1, 3).array();
-        final byte[] src = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(networkHeader, 4, 2).array();
-        final byte[] networkNonce = createNetworkNonce((byte) ctlTtl, sequenceNumber, src);
+    /**
+     * Parse received mesh message
+     * <p>
+     * The pdu is decoded from the start of the given buffer up to its length, so a buffer reused between pdus may be passed in.
+     * </p>
+     *
+     * @param configurationSrc source address of the configurator
+     * @param data             buffer containing the pdu received from the mesh node
+     * @param dataLength       length of the received pdu
+     * @return complete {@link Message} that was successfully parsed or null otherwise
+     */
+    protected final Message parseMeshMessage(final byte[] configurationSrc, final byte[] data, final int dataLength) {
+        final int length = decodeNetworkPdu(data, dataLength);
+        if (length < 0)
+            return null;
+
+        final byte[] pdu = mReceiveBuffer;
+        final int ttl = pdu[2] & 0x7F;
+        Log.v(TAG, "TTL for received message: " + ttl);
 
         //Check if the sequence number has been incremented since the last message sent and return null if not
-        final int sequenceNo = MeshParserUtils.getSequenceNumber(sequenceNumber);
-        Log.v(TAG, "Sequence number of received access message: " + MeshParserUtils.getSequenceNumber(sequenceNumber));
+        final int sequenceNo = MeshParserUtils.getSequenceNumberFromPDU(pdu);
+        Log.v(TAG, "Sequence number of received access message: " + sequenceNo);
         if (sequenceNo > mMeshNode.getSequenceNumber()) {
             if (!MeshParserUtils.isValidSequenceNumber(sequenceNo)) {
                 return null;
             }
             mMeshNode.setSequenceNumber(sequenceNo);
         }
-
-        if (ctl == 1) {
-            return parseControlMessage(configurationSrc, data, networkHeader, networkNonce, src, sequenceNumber, micLength);
-        } else {
-            return parseAccessMessage(configurationSrc, data, networkHeader, networkNonce, src, sequenceNumber, micLength);
-        }
+        return parseNetworkPayload(configurationSrc, data, dataLength, pdu, length);
     }
 
     @VisibleForTesting
     protected final Message parseMeshMessage(final byte[] data) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        final byte[] privacyKey = mPrivacyKey = k2Output.getPrivacyKey();
-
-        //D-eobfuscate network header
-        final byte[] networkHeader = deobfuscateNetworkHeader(data);
-        final int ctlTtl = networkHeader[0];
-        final int ctl = (ctlTtl >> 7) & 0x01;
-        final int ttl = ctlTtl & 0x7F;
-        Log.v(TAG, "TTL for received message: " + ttl);
-
-        final int micLength = SecureUtils.getNetMicLength(ctl);
-        final byte[] sequenceNumber = ByteBuffer.allocate(3).order(ByteOrder.BIG_ENDIAN).put(networkHeader, 1, 3).array();
-        final byte[] src = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(networkHeader, 4, 2).array();
-        final byte[] networkNonce = createNetworkNonce((byte) ctlTtl, sequenceNumber, src);
+        final int length = decodeNetworkPdu(data, data.length);
+        if (length < 0)
+            return null;
 
-        if (ctl == 1) {
-            return parseControlMessage(data, networkHeader, networkNonce, src, sequenceNumber, micLength);
-        } else {
-            Log.v(TAG, "Sequence number of received access message: " + MeshParserUtils.getSequenceNumber(sequenceNumber));
-            return parseAccessMessage(data, networkHeader, networkNonce, src, sequenceNumber, micLength);
-        }
+        Log.v(TAG, "TTL for received message: " + (mReceiveBuffer[2] & 0x7F));
+        return parseNetworkPayload(null, data, data.length, mReceiveBuffer, length);
     }
 
     /**
-     * Parses access message
+     * Filters the decrypted network pdu on replays and its destination and passes the lower transport pdu up the stack
      *
-     * @param configurationSrc source address of the configurator
-     * @param data             receieved from the node
-     * @param networkHeader    de-obfuscated network header
-     * @param networkNonce     network nonce
-     * @param src              source address
-     * @param sequenceNumber   sequence number of the received message
-     * @param micLength        network mic length of the received message
-     * @return access message
+     * @param configurationSrc source address of the configurator, messages not directed to it are dropped. May be null to accept any destination
+     * @param data             buffer containing the pdu received from the mesh node
+     * @param dataLength       length of the received pdu
+     * @param pdu              receive buffer containing the de-obfuscated and decrypted pdu
+     * @param length           length of the decrypted pdu excluding the network mic
+     * @return complete {@link Message} that was successfully parsed or null otherwise
      */
-    private AccessMessage parseAccessMessage(final byte[] configurationSrc, final byte[] data, final byte[] networkHeader, final byte[] networkNonce, final byte[] src, final byte[] sequenceNumber, final int micLength) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        mPrivacyKey = k2Output.getPrivacyKey();
-
-        final int ttl = networkHeader[0] & 0x7F;
-
-        final int networkPayloadLength = data.length - (2 + networkHeader.length);
-        final byte[] transportPdu = new byte[networkPayloadLength];
-        System.arraycopy(data, 8, transportPdu, 0, networkPayloadLength);
-        final byte[] decryptedNetworkPayload = SecureUtils.decryptCCM(transportPdu, encryptionKey, networkNonce, micLength);
-        final byte[] dst = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(decryptedNetworkPayload, 0, 2).array();
+    private Message parseNetworkPayload(final byte[] configurationSrc, final byte[] data, final int dataLength, final byte[] pdu, final int length) {
+        final int ctl = (pdu[2] >> 7) & 0x01;
+
+        //The header is authenticated at this point, so it is safe to record the sequence number in the replay protection list
+        final ReplayProtectionList replayProtectionList = mNetworkLayerCallbacks != null ? mNetworkLayerCallbacks.getReplayProtectionList() : null;
+        if (replayProtectionList != null) {
+            final byte[] ivIndex = mMeshNode.getIvIndex();
+            final int src = ((pdu[6] & 0xFF) << 8) | (pdu[7] & 0xFF);
+            if (!replayProtectionList.accept(src, MeshParserUtils.getIvIndex(ivIndex), MeshParserUtils.getSequenceNumberFromPDU(pdu))) {
+                Log.v(TAG, "Received a replayed message, let's drop it");
+                final TransportStatistics statistics = getTransportStatistics();
+                if (statistics != null) {
+                    statistics.incrementReplayDrops();
+                }
+                return null;
+            }
+        }
 
         //Check if the message is directed to us, if its not ignore the message
-        if (!Arrays.equals(configurationSrc, dst)) {
-            Log.v(TAG, "Received an access message that was not directed to us, let's drop it");
+        if (configurationSrc != null && (pdu[8] != configurationSrc[0] || pdu[9] != configurationSrc[1])) {
+            Log.v(TAG, "Received a message that was not directed to us, let's drop it");
             return null;
         }
 
-        if (isSegmentedMessage(decryptedNetworkPayload[2])) {
-
-            if (segmentedAccessMessagesMessages == null) {
-                segmentedAccessMessagesMessages = new HashMap<>();
-                segmentedAccessMessagesMessages.put(0, data);
-            } else {
-                final int k = segmentedAccessMessagesMessages.size();
-                segmentedAccessMessagesMessages.put(k, data);
-            }
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            final AccessMessage message = parseSegmentedAccessLowerTransportPDU(pdu);
-            if (message != null) {
-                final HashMap<Integer, byte[]> segmentedMessages = segmentedAccessMessagesMessages;
-                segmentedAccessMessagesMessages = null;
-                key = 0;
-                message.setIvIndex(mMeshNode.getIvIndex());
-                message.setNetworkPdu(segmentedMessages);
-                message.setCtl(0);
-                message.setTtl(ttl);
-                message.setSrc(src);
-                message.setDst(dst);
-
-                parseUpperTransportPDU(message);
-                parseAccessLayerPDU(message);
-            }
-            return message;
-
+        //The received pdu is kept with the message, so it is only copied out of the buffer once the pdu has been accepted
+        final byte[] networkPdu = Arrays.copyOf(data, dataLength);
+        if (ctl == 1) {
+            return parseControlMessage(networkPdu, pdu, length);
         } else {
-            final AccessMessage message = new AccessMessage();
-            message.setIvIndex(mMeshNode.getIvIndex());
-            final HashMap<Integer, byte[]> networkPduMap = new HashMap<>();
-            networkPduMap.put(0, data);
-            message.setNetworkPdu(networkPduMap);
-            message.setTtl(ttl);
-            message.setSrc(src);
-            message.setDst(dst);
-            message.setSequenceNumber(sequenceNumber);
-
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            parseUnsegmentedAccessLowerTransportPDU(message, pdu);
-            parseUpperTransportPDU(message);
-            parseAccessLayerPDU(message);
-
-            return message;
+            return parseAccessMessage(networkPdu, pdu, length);
         }
     }
 
     /**
      * Parses access message
      *
-     * @param data           received from the node
-     * @param networkHeader  deobfuscated network header
-     * @param networkNonce   network nonce
-     * @param src            source address
-     * @param sequenceNumber sequence number of the received message
-     * @param micLength      network mic length of the received message
+     * @param data   received from the node
+     * @param pdu    receive buffer containing the de-obfuscated and decrypted pdu
+     * @param length length of the decrypted pdu excluding the network mic
      * @return access message
      */
-    @VisibleForTesting
-    private AccessMessage parseAccessMessage(final byte[] data, final byte[] networkHeader, final byte[] networkNonce, final byte[] src, final byte[] sequenceNumber, final int micLength) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        mPrivacyKey = k2Output.getPrivacyKey();
-
-        final int ttl = networkHeader[0] & 0x7F;
+    private AccessMessage parseAccessMessage(final byte[] data, final byte[] pdu, final int length) {
+        final int ttl = pdu[2] & 0x7F;
+        final byte[] src = MeshParserUtils.getSrcAddress(pdu);
+        final byte[] dst = MeshParserUtils.getDstAddress(pdu);
 
-        final int networkPayloadLength = data.length - (2 + networkHeader.length);
-        final byte[] transportPdu = new byte[networkPayloadLength];
-        System.arraycopy(data, 8, transportPdu, 0, networkPayloadLength);
-        final byte[] decryptedNetworkPayload = SecureUtils.decryptCCM(transportPdu, encryptionKey, networkNonce, micLength);
-        final byte[] dst = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(decryptedNetworkPayload, 0, 2).array();
+        if (isSegmentedMessage(pdu[10])) {
 
-        if (isSegmentedMessage(decryptedNetworkPayload[2])) {
-
-            if (segmentedAccessMessagesMessages == null) {
-                segmentedAccessMessagesMessages = new HashMap<>();
-                segmentedAccessMessagesMessages.put(0, data);
-            } else {
-                final int k = segmentedAccessMessagesMessages.size();
-                segmentedAccessMessagesMessages.put(k, data);
-            }
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            final AccessMessage message = parseSegmentedAccessLowerTransportPDU(pdu);
+            final AccessMessage message = parseSegmentedAccessLowerTransportPDU(data, pdu, length);
             if (message != null) {
-                final HashMap<Integer, byte[]> segmentedMessages = segmentedAccessMessagesMessages;
-                segmentedAccessMessagesMessages = null;
-                key = 0;
                 message.setIvIndex(mMeshNode.getIvIndex());
-                message.setNetworkPdu(segmentedMessages);
                 message.setCtl(0);
                 message.setTtl(ttl);
                 message.setSrc(src);
                 message.setDst(dst);
 
-                parseUpperTransportPDU(message);
+                final byte[] upperTransportPdu = message.getUpperTransportPdu();
+                if (!parseUpperTransportPDU(message, upperTransportPdu, 0, upperTransportPdu.length)) {
+                    return dropTransMicFailure();
+                }
                 parseAccessLayerPDU(message);
             }
             return message;
@@ -538,89 +507,14 @@ public abstract class NetworkLayer extends LowerTransportLayer {
             message.setTtl(ttl);
             message.setSrc(src);
             message.setDst(dst);
-            message.setSequenceNumber(sequenceNumber);
-
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            parseUnsegmentedAccessLowerTransportPDU(message, pdu);
-            parseUpperTransportPDU(message);
-
-            return message;
-        }
-    }
-
-    /**
-     * Parses control message
-     *
-     * @param configurationSrc source address of the configurator
-     * @param data             data receieved from the node
-     * @param networkHeader    de-obfuscated network header
-     * @param networkNonce     network nonce
-     * @param src              source address
-     * @param sequenceNumber   sequence number of the received message
-     * @param micLength        network mic length of the received message
-     * @return access message
-     */
-    private ControlMessage parseControlMessage(final byte[] configurationSrc, final byte[] data, final byte[] networkHeader, final byte[] networkNonce, final byte[] src, final byte[] sequenceNumber, final int micLength) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
-
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        mPrivacyKey = k2Output.getPrivacyKey();
-
-        final int ttl = networkHeader[0] & 0x7F;
-
-        final int networkPayloadLength = data.length - (2 + networkHeader.length);
-        final byte[] transportPdu = new byte[networkPayloadLength];
-        System.arraycopy(data, 8, transportPdu, 0, networkPayloadLength);
-        final byte[] decryptedNetworkPayload = SecureUtils.decryptCCM(transportPdu, encryptionKey, networkNonce, micLength);
-        final byte[] dst = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(decryptedNetworkPayload, 0, 2).array();
-
-        //Check if the message is directed to us, if its not ignore the message
-        if (!Arrays.equals(configurationSrc, dst)) {
-            Log.v(TAG, "Received a control message that was not directed to us, so we drop it");
-            return null;
-        }
-
-        if (isSegmentedMessage(decryptedNetworkPayload[2])) {
-
-            if (segmentedControlMessagesMessages == null) {
-                segmentedControlMessagesMessages = new HashMap<>();
-                segmentedControlMessagesMessages.put(0, data);
-            } else {
-                final int k = segmentedControlMessagesMessages.size();
-                segmentedAccessMessagesMessages.put(k, data);
-            }
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            final ControlMessage message = parseSegmentedControlLowerTransportPDU(pdu);
-            if (message != null) {
-                final HashMap<Integer, byte[]> segmentedMessages = segmentedControlMessagesMessages;
-                segmentedControlMessagesMessages = null;
-                key = 0;
-                message.setIvIndex(mMeshNode.getIvIndex());
-                message.setNetworkPdu(segmentedMessages);
-                message.setCtl(1);
-                message.setTtl(ttl);
-                message.setSrc(src);
-                message.setDst(dst);
+            message.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(MeshParserUtils.getSequenceNumberFromPDU(pdu)));
 
+            parseUnsegmentedAccessLowerTransportPDU(message, pdu, length);
+            //The upper transport pdu is decrypted straight out of the receive buffer, skipping the lower transport header
+            if (!parseUpperTransportPDU(message, pdu, 11, length - 11)) {
+                return dropTransMicFailure();
             }
-            return message;
-
-        } else {
-            final ControlMessage message = new ControlMessage();
-            message.setIvIndex(mMeshNode.getIvIndex());
-            final HashMap<Integer, byte[]> networkPduMap = new HashMap<>();
-            networkPduMap.put(0, data);
-            message.setNetworkPdu(networkPduMap);
-            message.setTtl(ttl);
-            message.setSrc(src);
-            message.setDst(dst);
-            message.setSequenceNumber(sequenceNumber);
-
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            parseUnsegmentedControlLowerTransportPDU(message, pdu);
+            parseAccessLayerPDU(message);
 
             return message;
         }
@@ -629,52 +523,25 @@ public abstract class NetworkLayer extends LowerTransportLayer {
     /**
      * Parses control message
      *
-     * @param data           data received from the node
-     * @param networkHeader  de-obfuscated network header
-     * @param networkNonce   network nonce
-     * @param src            source address
-     * @param sequenceNumber sequence number of the received message
-     * @param micLength      network mic length of the received message
-     * @return access message
+     * @param data   data received from the node
+     * @param pdu    receive buffer containing the de-obfuscated and decrypted pdu
+     * @param length length of the decrypted pdu excluding the network mic
+     * @return control message
      */
-    @VisibleForTesting
-    private ControlMessage parseControlMessage(final byte[] data, final byte[] networkHeader, final byte[] networkNonce, final byte[] src, final byte[] sequenceNumber, final int micLength) {
-        final SecureUtils.K2Output k2Output = mMeshNode.getK2Output();
+    private ControlMessage parseControlMessage(final byte[] data, final byte[] pdu, final int length) {
+        final int ttl = pdu[2] & 0x7F;
+        final byte[] src = MeshParserUtils.getSrcAddress(pdu);
+        final byte[] dst = MeshParserUtils.getDstAddress(pdu);
 
-        final byte[] encryptionKey = mEncryptionKey = k2Output.getEncryptionKey();
-        mPrivacyKey = k2Output.getPrivacyKey();
+        if (isSegmentedMessage(pdu[10])) {
 
-        final int ttl = networkHeader[0] & 0x7F;
-
-        final int networkPayloadLength = data.length - (2 + networkHeader.length);
-        final byte[] transportPdu = new byte[networkPayloadLength];
-        System.arraycopy(data, 8, transportPdu, 0, networkPayloadLength);
-        final byte[] decryptedNetworkPayload = SecureUtils.decryptCCM(transportPdu, encryptionKey, networkNonce, micLength);
-        final byte[] dst = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).put(decryptedNetworkPayload, 0, 2).array();
-
-        if (isSegmentedMessage(decryptedNetworkPayload[2])) {
-
-            if (segmentedControlMessagesMessages == null) {
-                segmentedControlMessagesMessages = new HashMap<>();
-                segmentedControlMessagesMessages.put(0, data);
-            } else {
-                final int k = segmentedControlMessagesMessages.size();
-                segmentedAccessMessagesMessages.put(k, data);
-            }
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            final ControlMessage message = parseSegmentedControlLowerTransportPDU(pdu);
+            final ControlMessage message = parseSegmentedControlLowerTransportPDU(data, pdu, length);
             if (message != null) {
-                final HashMap<Integer, byte[]> segmentedMessages = segmentedControlMessagesMessages;
-                segmentedControlMessagesMessages = null;
-                key = 0;
                 message.setIvIndex(mMeshNode.getIvIndex());
-                message.setNetworkPdu(segmentedMessages);
                 message.setCtl(1);
                 message.setTtl(ttl);
                 message.setSrc(src);
                 message.setDst(dst);
-
             }
             return message;
 
@@ -687,11 +554,9 @@ public abstract class NetworkLayer extends LowerTransportLayer {
             message.setTtl(ttl);
             message.setSrc(src);
             message.setDst(dst);
-            message.setSequenceNumber(sequenceNumber);
+            message.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(MeshParserUtils.getSequenceNumberFromPDU(pdu)));
 
-            //Removing the dst here
-            final byte[] pdu = ByteBuffer.allocate(2 + networkHeader.length + decryptedNetworkPayload.length).order(ByteOrder.BIG_ENDIAN).put(data, 0, 2).put(networkHeader).put(decryptedNetworkPayload).array();
-            parseUnsegmentedControlLowerTransportPDU(message, pdu);
+            parseUnsegmentedControlLowerTransportPDU(message, pdu, length);
 
             return message;
         }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+public interface NetworkLayerCallbacks {
+
+    /**
+     * Returns the table of network keys used to pick the keys for a received pdu
+     *
+     * @return subnet table or null if only the key of the node should be used
+     */
+    SubnetTable getSubnetTable();
+
+    /**
+     * Returns the counters updated when received pdus are dropped
+     *
+     * @return transport statistics or null if drops should not be counted
+     */
+    TransportStatistics getTransportStatistics();
+
+    /**
+     * Returns the replay protection list used to drop replayed pdus
+     *
+     * @return replay protection list or null if replays should not be checked
+     */
+    ReplayProtectionList getReplayProtectionList();
+
+    /**
+     * Returns the table of device keys used to decrypt access messages sent by any node
+     *
+     * @return device key table or null if only the device key of the node should be used
+     */
+    DeviceKeyTable getDeviceKeyTable();
+
+    /**
+     * Returns the table of application keys used to decrypt access messages by AID
+     *
+     * @return application key table or null if only the application key of the message should be used
+     */
+    ApplicationKeyTable getApplicationKeyTable();
+
+}
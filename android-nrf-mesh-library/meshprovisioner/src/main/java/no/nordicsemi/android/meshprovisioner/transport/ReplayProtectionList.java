@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replay protection list keeping the last sequence number and iv index received from every unicast source address.
+ * <p>
+ * Entries are kept in an open addressing table over primitive int arrays so that a lookup on the receive path neither allocates
+ * nor boxes. The table grows up to the size of the unicast address space. Modified entries are tracked in a bitmap and only
+ * those are written to the shared preferences, batched after {@link #PERSIST_DELAY} ms.
+ * </p>
+ */
+public final class ReplayProtectionList {
+
+    private static final String PREFS_REPLAY_PROTECTION_LIST = "PREFS_REPLAY_PROTECTION_LIST";
+    private static final long PERSIST_DELAY = 1000;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_UNICAST_ADDRESS = 0x7FFF;
+    private static final int EMPTY = 0; //0x0000 is the unassigned address and never a valid source
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final int[] mDirty = new int[(MAX_UNICAST_ADDRESS + 1) / 32];
+    private final Runnable mPersistRunnable = this::persist;
+    private int[] mSources;
+    private int[] mSequenceNumbers;
+    private int[] mIvIndexes;
+    private int mSize;
+    private boolean mPersistScheduled;
+
+    public ReplayProtectionList(final Context context) {
+        mContext = context;
+        mHandler = new Handler(context.getMainLooper());
+        allocate(INITIAL_CAPACITY);
+        load();
+    }
+
+    private void allocate(final int capacity) {
+        mSources = new int[capacity];
+        mSequenceNumbers = new int[capacity];
+        mIvIndexes = new int[capacity];
+    }
+
+    private int index(final int src) {
+        return (src * 0x9E3779B1) >>> (32 - Integer.numberOfTrailingZeros(mSources.length));
+    }
+
+    /**
+     * Checks a received pdu against the list and records its sequence number if it is not a replay.
+     *
+     * @param src            unicast source address of the pdu
+     * @param ivIndex        iv index used to authenticate the pdu
+     * @param sequenceNumber sequence number of the pdu
+     * @return true if the pdu is new, false if it is a replay or the source is not a unicast address
+     */
+    public synchronized boolean accept(final int src, final int ivIndex, final int sequenceNumber) {
+        if (src == EMPTY || src > MAX_UNICAST_ADDRESS)
+            return false;
+
+        final int mask = mSources.length - 1;
+        int i = index(src);
+        while (mSources[i] != EMPTY) {
+            if (mSources[i] == src) {
+                final int lastIvIndex = mIvIndexes[i];
+                if ((ivIndex ^ Integer.MIN_VALUE) < (lastIvIndex ^ Integer.MIN_VALUE) || (ivIndex == lastIvIndex && sequenceNumber <= mSequenceNumbers[i])) //Unsigned iv index comparison
+                    return false;
+                mIvIndexes[i] = ivIndex;
+                mSequenceNumbers[i] = sequenceNumber;
+                markDirty(src);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        insert(src, ivIndex, sequenceNumber);
+        markDirty(src);
+        return true;
+    }
+
+    private void insert(final int src, final int ivIndex, final int sequenceNumber) {
+        if ((mSize + 1) * 2 > mSources.length) {
+            grow();
+        }
+        final int mask = mSources.length - 1;
+        int i = index(src);
+        while (mSources[i] != EMPTY && mSources[i] != src) {
+            i = (i + 1) & mask;
+        }
+        if (mSources[i] == EMPTY) {
+            mSize++;
+        }
+        mSources[i] = src;
+        mIvIndexes[i] = ivIndex;
+        mSequenceNumbers[i] = sequenceNumber;
+    }
+
+    private void grow() {
+        final int[] sources = mSources;
+        final int[] sequenceNumbers = mSequenceNumbers;
+        final int[] ivIndexes = mIvIndexes;
+        allocate(sources.length * 2);
+        mSize = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] != EMPTY) {
+                insert(sources[i], ivIndexes[i], sequenceNumbers[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of source addresses in the list
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes the entries of a range of source addresses from the list and the persisted copy, used when a node is reset so that
+     * the addresses of its elements may be assigned to another node
+     *
+     * @param firstAddress first unicast address of the range
+     * @param count        number of addresses in the range
+     */
+    public synchronized void remove(final int firstAddress, final int count) {
+        final SharedPreferences preferences = mContext.getSharedPreferences(PREFS_REPLAY_PROTECTION_LIST, Context.MODE_PRIVATE);
+        final SharedPreferences.Editor editor = preferences != null ? preferences.edit() : null;
+        for (int src = firstAddress; src < firstAddress + count && src <= MAX_UNICAST_ADDRESS; src++) {
+            if (src == EMPTY)
+                continue;
+            //The entry is no longer there to be written by the pending persist
+            mDirty[src >>> 5] &= ~(1 << (src & 0x1F));
+            delete(src);
+            if (editor != null) {
+                editor.remove(String.format(Locale.US, "0x%04X", src));
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Removes an entry, moving the entries probed after it back so that they are still found
+     *
+     * @param src source address
+     */
+    private void delete(final int src) {
+        final int mask = mSources.length - 1;
+        int i = index(src);
+        while (mSources[i] != src) {
+            if (mSources[i] == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mSources[j] == EMPTY)
+                break;
+            final int home = index(mSources[j]);
+            //The entry at j may fill the gap at i unless its home slot lies cyclically in (i, j]
+            final boolean homeBetween = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!homeBetween) {
+                mSources[i] = mSources[j];
+                mIvIndexes[i] = mIvIndexes[j];
+                mSequenceNumbers[i] = mSequenceNumbers[j];
+                i = j;
+            }
+        }
+        mSources[i] = EMPTY;
+        mSize--;
+    }
+
+    /**
+     * Removes all entries from the list and the persisted copy
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mPersistRunnable);
+        mPersistScheduled = false;
+        Arrays.fill(mDirty, 0);
+        allocate(INITIAL_CAPACITY);
+        mSize = 0;
+        final SharedPreferences preferences = mContext.getSharedPreferences(PREFS_REPLAY_PROTECTION_LIST, Context.MODE_PRIVATE);
+        if (preferences != null) {
+            preferences.edit().clear().apply();
+        }
+    }
+
+    private void markDirty(final int src) {
+        mDirty[src >>> 5] |= 1 << (src & 0x1F);
+        if (!mPersistScheduled) {
+            mPersistScheduled = true;
+            mHandler.postDelayed(mPersistRunnable, PERSIST_DELAY);
+        }
+    }
+
+    /**
+     * Writes the entries modified since the last call to the shared preferences
+     */
+    public synchronized void persist() {
+        mPersistScheduled = false;
+        final SharedPreferences preferences = mContext.getSharedPreferences(PREFS_REPLAY_PROTECTION_LIST, Context.MODE_PRIVATE);
+        if (preferences == null)
+            return;
+
+        final SharedPreferences.Editor editor = preferences.edit();
+        final int mask = mSources.length - 1;
+        for (int word = 0; word < mDirty.length; word++) {
+            int bits = mDirty[word];
+            while (bits != 0) {
+                final int src = (word << 5) | Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int i = index(src);
+                while (mSources[i] != src) {
+                    i = (i + 1) & mask;
+                }
+                editor.putLong(String.format(Locale.US, "0x%04X", src), ((mIvIndexes[i] & 0xFFFFFFFFL) << 24) | mSequenceNumbers[i]);
+            }
+            mDirty[word] = 0;
+        }
+        editor.apply();
+    }
+
+    private void load() {
+        final SharedPreferences preferences = mContext.getSharedPreferences(PREFS_REPLAY_PROTECTION_LIST, Context.MODE_PRIVATE);
+        if (preferences == null)
+            return;
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                final int src = Integer.decode(entry.getKey());
+                final long value = (Long) entry.getValue();
+                insert(src, (int) (value >>> 24), (int) (value & 0xFFFFFF));
+            }
+        }
+    }
+}
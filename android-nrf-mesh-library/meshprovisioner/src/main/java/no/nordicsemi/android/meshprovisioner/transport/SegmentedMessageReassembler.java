@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+
+/**
+ * Reassembles segmented lower transport pdus.
+ * <p>
+ * Every segmented transaction in flight is tracked in its own session keyed by the source address and SeqZero, so segments of
+ * messages from different nodes may arrive interleaved. A session keeps a bitmap of the received segments and a payload buffer
+ * sized from SegN when the first segment arrives, in to which each segment is copied at its final position. Each session runs
+ * its own acknowledgement timer and incomplete timer.
+ * </p>
+ * <p>
+ * The last completed session of each source is remembered, so that a segment of a message that was already delivered, which the
+ * sender retransmits with a new sequence number when the acknowledgement was lost, is acknowledged again with the complete block
+ * instead of starting a new session and delivering the message twice. Segments sent to a group or virtual address are never
+ * acknowledged.
+ * </p>
+ * <p>
+ * Segments are added on the thread delivering the notifications while the timers expire on the thread of the handler, so all
+ * access to the sessions is synchronized on the reassembler.
+ * </p>
+ */
+final class SegmentedMessageReassembler {
+
+    private static final String TAG = SegmentedMessageReassembler.class.getSimpleName();
+    private static final long INCOMPLETE_TIMER_DELAY = 10 * 1000; //Minimum incomplete timer defined by the spec
+    private static final int SEGMENTED_MESSAGE_HEADER_LENGTH = 4;
+
+    interface AcknowledgementCallback {
+
+        /**
+         * Sends a block acknowledgement for the segments received so far
+         *
+         * @param session session to be acknowledged
+         */
+        void sendBlockAcknowledgement(final Session session);
+    }
+
+    private final Map<Integer, Session> mSessions = new HashMap<>();
+    private final Map<Integer, Session> mCompletedSessions = new HashMap<>();
+    private final Handler mHandler;
+    private final AcknowledgementCallback mCallback;
+
+    SegmentedMessageReassembler(final Handler handler, final AcknowledgementCallback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Adds a segment to the session it belongs to, creating the session on the first segment received
+     *
+     * @param data          pdu received from the mesh node
+     * @param pdu           receive buffer containing the de-obfuscated and decrypted network pdu
+     * @param length        length of the pdu excluding the network mic
+     * @param ctl           message type, this selects the segment size
+     * @param segmentLength maximum payload length of a segment
+     * @return the completed session once all segments have been received, null otherwise
+     */
+    synchronized Session addSegment(final byte[] data, final byte[] pdu, final int length, final int ctl, final int segmentLength) {
+        final int src = ((pdu[6] & 0xFF) << 8) | (pdu[7] & 0xFF);
+        final int seqZero = ((pdu[11] & 0x7F) << 6) | ((pdu[12] & 0xFC) >> 2);
+        final int segO = ((pdu[12] & 0x03) << 3) | ((pdu[13] & 0xE0) >> 5);
+        final int segN = pdu[13] & 0x1F;
+        final int payloadLength = length - 10 - SEGMENTED_MESSAGE_HEADER_LENGTH;
+        if (segO > segN || payloadLength <= 0 || payloadLength > segmentLength || (segO < segN && payloadLength != segmentLength)) {
+            Log.v(TAG, "Received an invalid segment, let's drop it");
+            return null;
+        }
+
+        final int key = getKey(ctl, src, seqZero);
+        Session session = mSessions.get(key);
+        if (session == null) {
+            final Session completed = mCompletedSessions.get(getSourceKey(ctl, src));
+            if (completed != null && completed.seqZero == seqZero) {
+                Log.v(TAG, "Received a segment of an already delivered message with SeqZero " + seqZero + ", acknowledging it again");
+                if (completed.isAcknowledged()) {
+                    mCallback.sendBlockAcknowledgement(completed);
+                }
+                return null;
+            }
+
+            session = new Session(key, ctl, src, seqZero, segN, segmentLength, pdu);
+            mSessions.put(key, session);
+        } else if (session.segN != segN) {
+            Log.v(TAG, "Received a segment with a different SegN for an ongoing session, let's drop it");
+            return null;
+        }
+
+        final int segment = 1 << segO;
+        if ((session.blockAck & segment) == 0) {
+            session.blockAck |= segment;
+            session.networkPdus.put(segO, data);
+            System.arraycopy(pdu, 10 + SEGMENTED_MESSAGE_HEADER_LENGTH, session.payload, segO * segmentLength, payloadLength);
+            if (segO == segN) {
+                session.length = segN * segmentLength + payloadLength;
+            }
+        }
+        restartIncompleteTimer(session);
+
+        if (session.isComplete()) {
+            remove(session);
+            mCompletedSessions.put(getSourceKey(ctl, src), session);
+            if (session.isAcknowledged()) {
+                mCallback.sendBlockAcknowledgement(session);
+            }
+            return session;
+        }
+
+        if (session.isAcknowledged() && !session.acknowledgementTimerStarted) {
+            session.acknowledgementTimerStarted = true;
+            mHandler.postDelayed(session.acknowledgementTimer, 150 + (50 * session.ttl));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of sessions in flight
+     */
+    synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Cancels all sessions in flight
+     */
+    synchronized void clear() {
+        for (Session session : mSessions.values()) {
+            cancelTimers(session);
+        }
+        mSessions.clear();
+        mCompletedSessions.clear();
+    }
+
+    private static int getKey(final int ctl, final int src, final int seqZero) {
+        return (ctl << 29) | (src << 13) | seqZero;
+    }
+
+    private static int getSourceKey(final int ctl, final int src) {
+        return (ctl << 16) | src;
+    }
+
+    private void restartIncompleteTimer(final Session session) {
+        mHandler.removeCallbacks(session.incompleteTimer);
+        mHandler.postDelayed(session.incompleteTimer, INCOMPLETE_TIMER_DELAY);
+    }
+
+    private void remove(final Session session) {
+        cancelTimers(session);
+        mSessions.remove(session.key);
+    }
+
+    private void cancelTimers(final Session session) {
+        mHandler.removeCallbacks(session.acknowledgementTimer);
+        mHandler.removeCallbacks(session.incompleteTimer);
+        session.acknowledgementTimerStarted = false;
+    }
+
+    private synchronized void onAcknowledgementTimerExpired(final Session session) {
+        session.acknowledgementTimerStarted = false;
+        if (mSessions.get(session.key) == session) {
+            mCallback.sendBlockAcknowledgement(session);
+        }
+    }
+
+    private synchronized void onIncompleteTimerExpired(final Session session) {
+        Log.v(TAG, "Incomplete timer expired for SeqZero " + session.seqZero + ", dropping the segments received");
+        remove(session);
+    }
+
+    /**
+     * State of a segmented transaction in flight
+     */
+    final class Session {
+        private final int key;
+        final int ctl;
+        final int src;
+        final int dst;
+        final int seqZero;
+        final int segN;
+        final int ttl;
+        final int header;
+        final int szmic;
+        final byte[] payload;
+        final HashMap<Integer, byte[]> networkPdus = new HashMap<>();
+        final int sequenceNumber;
+        int length;
+        int blockAck;
+        private boolean acknowledgementTimerStarted;
+        private final Runnable acknowledgementTimer = () -> onAcknowledgementTimerExpired(this);
+        private final Runnable incompleteTimer = () -> onIncompleteTimerExpired(this);
+
+        private Session(final int key, final int ctl, final int src, final int seqZero, final int segN, final int segmentLength, final byte[] pdu) {
+            this.key = key;
+            this.ctl = ctl;
+            this.src = src;
+            this.dst = ((pdu[8] & 0xFF) << 8) | (pdu[9] & 0xFF);
+            this.seqZero = seqZero;
+            this.segN = segN;
+            this.ttl = pdu[2] & 0x7F;
+            this.header = pdu[10] & 0xFF;
+            this.szmic = (pdu[11] >> 7) & 0x01;
+            this.sequenceNumber = MeshParserUtils.getSequenceNumberFromPDU(pdu);
+            this.payload = new byte[(segN + 1) * segmentLength];
+        }
+
+        private boolean isComplete() {
+            return Integer.bitCount(blockAck) == segN + 1;
+        }
+
+        /**
+         * Returns true if the segments are acknowledged, which is only the case for segments sent to a unicast address
+         */
+        private boolean isAcknowledged() {
+            return (dst & 0x8000) == 0;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.messages.Message;
+
+/**
+ * Keeps track of outgoing segmented messages until every segment has been acknowledged by the destination.
+ * <p>
+ * Each outstanding message is keyed by its destination address and SeqZero. A block acknowledgement marks the segments it
+ * covers as delivered and only the segments still missing are sent again. If no acknowledgement arrives within
+ * 200 + 50 * ttl ms the missing segments are retransmitted. Retransmissions requested by a partial acknowledgement and those
+ * triggered by the timer share the same budget, once it is used up the message is given up on. Group and virtual destinations
+ * never acknowledge segments, so messages sent to them are not tracked and are sent only once.
+ * </p>
+ * <p>
+ * Outgoing pdus may be held back in a queue before they are written to the proxy, so the acknowledgement timer of a message
+ * only starts once its segments have been released, and segments that are still queued are not sent again.
+ * </p>
+ * <p>
+ * Acknowledgements arrive on the thread delivering the notifications while the timers expire and segments are released on the
+ * thread of the handler, so all access to the outstanding messages is synchronized on the transmitter.
+ * </p>
+ */
+final class SegmentedMessageTransmitter {
+
+    private static final String TAG = SegmentedMessageTransmitter.class.getSimpleName();
+    static final int DEFAULT_RETRANSMISSION_ATTEMPTS = 4;
+
+    interface Callbacks {
+
+        /**
+         * Sends a segment of an outstanding message again, encoded with a new sequence number
+         *
+         * @param transaction outstanding message
+         * @param segO        segment to be sent
+         */
+        void resendSegment(final Transaction transaction, final int segO);
+    }
+
+    private final Map<Integer, Transaction> mTransactions = new HashMap<>();
+    private final Handler mHandler;
+    private final Callbacks mCallbacks;
+    private int mRetransmissionAttempts = DEFAULT_RETRANSMISSION_ATTEMPTS;
+
+    SegmentedMessageTransmitter(final Handler handler, final Callbacks callbacks) {
+        mHandler = handler;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Sets the number of times the missing segments are retransmitted before a message is given up on
+     *
+     * @param attempts retransmission attempts
+     */
+    synchronized void setRetransmissionAttempts(final int attempts) {
+        if (attempts < 0)
+            throw new IllegalArgumentException("Retransmission attempts must not be negative");
+        mRetransmissionAttempts = attempts;
+    }
+
+    /**
+     * Starts tracking a segmented message that is about to be sent
+     *
+     * @param message            message containing the lower transport pdus
+     * @param dst                destination address
+     * @param seqZero            SeqZero of the message
+     * @param lowerTransportPdus lower transport pdus keyed by SegO
+     */
+    synchronized void add(final Message message, final int dst, final int seqZero, final Map<Integer, byte[]> lowerTransportPdus) {
+        if ((dst & 0x8000) != 0) {
+            Log.v(TAG, "Segments sent to a group or virtual address are not acknowledged, SeqZero " + seqZero + " is not tracked");
+            return;
+        }
+        final int key = getKey(dst, seqZero);
+        final Transaction previous = mTransactions.get(key);
+        if (previous != null) {
+            cancelTimer(previous);
+        }
+        final Transaction transaction = new Transaction(key, message, seqZero, lowerTransportPdus, mRetransmissionAttempts);
+        mTransactions.put(key, transaction);
+    }
+
+    /**
+     * Starts the acknowledgement timers of the messages whose segments were waiting to be released, invoked once every queued
+     * segment has been written to the proxy
+     */
+    synchronized void onSegmentsReleased() {
+        for (Transaction transaction : mTransactions.values()) {
+            if (!transaction.released) {
+                transaction.released = true;
+                startTimer(transaction);
+            }
+        }
+    }
+
+    /**
+     * Handles a block acknowledgement received from the destination of an outstanding message
+     *
+     * @param src      source address of the acknowledgement
+     * @param seqZero  SeqZero of the acknowledged message
+     * @param blockAck block acknowledgement
+     * @return true if the acknowledgement belonged to an outstanding message
+     */
+    synchronized boolean onBlockAcknowledgement(final int src, final int seqZero, final int blockAck) {
+        final Transaction transaction = mTransactions.get(getKey(src, seqZero));
+        if (transaction == null)
+            return false;
+
+        if (blockAck == 0) {
+            Log.v(TAG, "Segmented message with SeqZero " + seqZero + " was cancelled by the destination");
+            remove(transaction);
+            return true;
+        }
+
+        transaction.acknowledged |= blockAck;
+        if (transaction.isAcknowledged()) {
+            Log.v(TAG, "All segments acknowledged for SeqZero " + seqZero);
+            remove(transaction);
+            return true;
+        }
+        if (!transaction.released) {
+            //The missing segments are still queued and will be sent anyway
+            return true;
+        }
+        if (transaction.retransmissionsLeft == 0) {
+            Log.v(TAG, "Retransmissions used up for SeqZero " + seqZero + ", giving up");
+            remove(transaction);
+            return true;
+        }
+        transaction.retransmissionsLeft--;
+        resendMissingSegments(transaction);
+        return true;
+    }
+
+    /**
+     * Returns the number of messages waiting for an acknowledgement
+     */
+    synchronized int getTransactionCount() {
+        return mTransactions.size();
+    }
+
+    /**
+     * Stops tracking all outstanding messages
+     */
+    synchronized void clear() {
+        for (Transaction transaction : mTransactions.values()) {
+            cancelTimer(transaction);
+        }
+        mTransactions.clear();
+    }
+
+    private static int getKey(final int dst, final int seqZero) {
+        return (dst << 13) | seqZero;
+    }
+
+    private void resendMissingSegments(final Transaction transaction) {
+        //The timer is started again once the segments sent again have been released
+        cancelTimer(transaction);
+        transaction.released = false;
+        final int missing = transaction.getMissingSegments();
+        for (int segO = 0; segO <= transaction.segN; segO++) {
+            if ((missing & (1 << segO)) != 0) {
+                mCallbacks.resendSegment(transaction, segO);
+            }
+        }
+    }
+
+    private void startTimer(final Transaction transaction) {
+        mHandler.removeCallbacks(transaction.timer);
+        mHandler.postDelayed(transaction.timer, 200 + (50 * transaction.message.getTtl()));
+    }
+
+    private void cancelTimer(final Transaction transaction) {
+        mHandler.removeCallbacks(transaction.timer);
+    }
+
+    private synchronized void onTimerExpired(final Transaction transaction) {
+        if (mTransactions.get(transaction.key) != transaction)
+            return;
+
+        if (transaction.retransmissionsLeft == 0) {
+            Log.v(TAG, "No acknowledgement received for SeqZero " + transaction.seqZero + ", giving up");
+            remove(transaction);
+            return;
+        }
+        transaction.retransmissionsLeft--;
+        resendMissingSegments(transaction);
+    }
+
+    private void remove(final Transaction transaction) {
+        cancelTimer(transaction);
+        mTransactions.remove(transaction.key);
+    }
+
+    /**
+     * Outgoing segmented message waiting for an acknowledgement
+     */
+    final class Transaction {
+        private final int key;
+        final Message message;
+        final int seqZero;
+        final int segN;
+        final Map<Integer, byte[]> lowerTransportPdus;
+        private int acknowledged;
+        private int retransmissionsLeft;
+        private boolean released;
+        private final Runnable timer = () -> onTimerExpired(this);
+
+        private Transaction(final int key, final Message message, final int seqZero, final Map<Integer, byte[]> lowerTransportPdus, final int retransmissions) {
+            this.key = key;
+            this.message = message;
+            this.seqZero = seqZero;
+            this.segN = lowerTransportPdus.size() - 1;
+            this.lowerTransportPdus = lowerTransportPdus;
+            this.retransmissionsLeft = retransmissions;
+        }
+
+        private int getMissingSegments() {
+            final int all = segN == 31 ? 0xFFFFFFFF : (1 << (segN + 1)) - 1;
+            return all & ~acknowledged;
+        }
+
+        private boolean isAcknowledged() {
+            return getMissingSegments() == 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import java.util.Arrays;
+
+import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
+
+/**
+ * Receive side table of the network keys known to the provisioner, indexed by the 7-bit NID.
+ * <p>
+ * The network layer uses this table to pick the candidate encryption and privacy keys for a received pdu from the IVI/NID octet,
+ * so that pdus with an unknown NID are dropped before any AES operation and pdus with a known NID are only tried against the keys
+ * sharing that NID.
+ * </p>
+ */
+public final class SubnetTable {
+
+    private static final int NID_MASK = 0x7F;
+    private static final SecureUtils.K2Output[] EMPTY = new SecureUtils.K2Output[0];
+
+    private final SecureUtils.K2Output[][] mSubnets = new SecureUtils.K2Output[NID_MASK + 1][];
+
+    public SubnetTable() {
+        Arrays.fill(mSubnets, EMPTY);
+    }
+
+    /**
+     * Adds the network key material to the table, the same key material is only added once
+     *
+     * @param k2Output key material derived from the network key
+     */
+    public synchronized void add(final SecureUtils.K2Output k2Output) {
+        final int nid = k2Output.getNid() & NID_MASK;
+        final SecureUtils.K2Output[] subnets = mSubnets[nid];
+        for (SecureUtils.K2Output subnet : subnets) {
+            if (Arrays.equals(subnet.getEncryptionKey(), k2Output.getEncryptionKey()))
+                return;
+        }
+        final SecureUtils.K2Output[] newSubnets = Arrays.copyOf(subnets, subnets.length + 1);
+        newSubnets[subnets.length] = k2Output;
+        mSubnets[nid] = newSubnets;
+    }
+
+    /**
+     * Removes all key material from the table
+     */
+    public synchronized void clear() {
+        Arrays.fill(mSubnets, EMPTY);
+    }
+
+    /**
+     * Returns the key material for the network keys matching the given NID.
+     * <p>
+     * The returned array is shared and must not be modified, an empty array is returned if there are no matching keys.
+     * </p>
+     *
+     * @param nid NID of the received pdu
+     */
+    public synchronized SecureUtils.K2Output[] getSubnets(final int nid) {
+        return mSubnets[nid & NID_MASK];
+    }
+}
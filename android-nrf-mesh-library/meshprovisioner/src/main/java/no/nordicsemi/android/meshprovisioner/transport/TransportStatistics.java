@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for pdus dropped on the receive path of the transport layers.
+ * <p>
+ * A high number of mic failures usually points to foreign traffic on the proxy connection, a stale iv index or a wrong key.
+ * </p>
+ */
+public final class TransportStatistics {
+
+    private final AtomicLong mReceivedPdus = new AtomicLong();
+    private final AtomicLong mUnknownNidDrops = new AtomicLong();
+    private final AtomicLong mNetMicFailures = new AtomicLong();
+    private final AtomicLong mTransMicFailures = new AtomicLong();
+    private final AtomicLong mReplayDrops = new AtomicLong();
+
+    void incrementReceivedPdus() {
+        mReceivedPdus.incrementAndGet();
+    }
+
+    void incrementUnknownNidDrops() {
+        mUnknownNidDrops.incrementAndGet();
+    }
+
+    void incrementNetMicFailures() {
+        mNetMicFailures.incrementAndGet();
+    }
+
+    void incrementTransMicFailures() {
+        mTransMicFailures.incrementAndGet();
+    }
+
+    void incrementReplayDrops() {
+        mReplayDrops.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of network pdus that reached the network layer
+     */
+    public long getReceivedPdus() {
+        return mReceivedPdus.get();
+    }
+
+    /**
+     * Returns the number of pdus dropped because their NID did not match any known network key
+     */
+    public long getUnknownNidDrops() {
+        return mUnknownNidDrops.get();
+    }
+
+    /**
+     * Returns the number of pdus dropped because the network mic did not match any candidate network key
+     */
+    public long getNetMicFailures() {
+        return mNetMicFailures.get();
+    }
+
+    /**
+     * Returns the number of access messages dropped because the transport mic did not match
+     */
+    public long getTransMicFailures() {
+        return mTransMicFailures.get();
+    }
+
+    /**
+     * Returns the number of pdus dropped by the replay protection list
+     */
+    public long getReplayDrops() {
+        return mReplayDrops.get();
+    }
+
+    /**
+     * Resets all counters
+     */
+    public void reset() {
+        mReceivedPdus.set(0);
+        mUnknownNidDrops.set(0);
+        mNetMicFailures.set(0);
+        mTransMicFailures.set(0);
+        mReplayDrops.set(0);
+    }
+}
@@ -26,11 +26,13 @@ import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
 import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+import no.nordicsemi.android.meshprovisioner.utils.MeshCipherContext;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
@@ -116,18 +118,51 @@ abstract class UpperTransportLayer extends AccessLayer {
      */
     abstract void reassembleLowerTransportControlPDU(final ControlMessage controlMessage);
 
+    /**
+     * Returns the table used to look up the device key of the node that sent a message
+     *
+     * @return device key table or null if only the device key of the node should be used
+     */
+    abstract DeviceKeyTable getDeviceKeyTable();
+
+    /**
+     * Returns the table used to look up the application keys matching the AID of a message
+     *
+     * @return application key table or null if only the application key returned by the callbacks should be used
+     */
+    abstract ApplicationKeyTable getApplicationKeyTable();
+
     /**
      * Parse upper transport pdu
      *
      * @param message access message containing the upper transport pdu
+     * @return true if the transport mic matched and the access pdu was set
      */
-    final void parseUpperTransportPDU(final AccessMessage message) {
+    final boolean parseUpperTransportPDU(final AccessMessage message) {
         final int ctl = message.getCtl();
         if (ctl == 0) { //Access message
             reassembleLowerTransportAccessPDU(message);
-            final byte[] decryptedUpperTransportControlPdu = decryptUpperTransportPDU(message);
-            message.setAccessPdu(decryptedUpperTransportControlPdu);
+            final byte[] upperTransportPdu = message.getUpperTransportPdu();
+            return parseUpperTransportPDU(message, upperTransportPdu, 0, upperTransportPdu.length);
         }
+        return true;
+    }
+
+    /**
+     * Parse upper transport pdu directly from the buffer it was received in
+     *
+     * @param message access message
+     * @param pdu     buffer containing the upper transport pdu
+     * @param offset  offset of the upper transport pdu
+     * @param length  length of the upper transport pdu including the transport mic
+     * @return true if the transport mic matched and the access pdu was set
+     */
+    final boolean parseUpperTransportPDU(final AccessMessage message, final byte[] pdu, final int offset, final int length) {
+        final byte[] accessPdu = decryptUpperTransportPDU(message, pdu, offset, length);
+        if (accessPdu == null)
+            return false;
+        message.setAccessPdu(accessPdu);
+        return true;
     }
 
     /**
@@ -144,7 +179,7 @@ abstract class UpperTransportLayer extends AccessLayer {
         } else {
             nonce = createApplicationNonce(aszmic, sequenceNumber, src, dst, ivIndex);
         }
-        return SecureUtils.encryptCCM(accessPDU, key, nonce, transMicLength);
+        return MeshCipherContext.obtain(key).encryptCCM(accessPDU, nonce, transMicLength);
     }
 
     /**
@@ -182,49 +217,83 @@ abstract class UpperTransportLayer extends AccessLayer {
             transMicLength = SecureUtils.getTransMicLength(message.getAszmic());
         }
 
-        return SecureUtils.encryptCCM(accessPDU, key, nonce, transMicLength);
+        return MeshCipherContext.obtain(key).encryptCCM(accessPDU, nonce, transMicLength);
     }
 
     /**
      * Decrypts upper transport pdu
      *
-     * @param accessMessage access message object containing the upper transport pdu
-     * @return decrypted upper transport pdu
+     * @param accessMessage access message object
+     * @param pdu           buffer containing the upper transport pdu
+     * @param offset        offset of the upper transport pdu
+     * @param length        length of the upper transport pdu including the transport mic
+     * @return decrypted upper transport pdu or null if the transport mic did not match
      */
-    private byte[] decryptUpperTransportPDU(final AccessMessage accessMessage) {
-        byte[] decryptedUpperTansportPDU;
-        final byte[] key;
+    private byte[] decryptUpperTransportPDU(final AccessMessage accessMessage, final byte[] pdu, final int offset, final int length) {
+        final int transMicLength = accessMessage.getAszmic() == SZMIC ? MAXIMUM_TRANSMIC_LENGTH : MINIMUM_TRANSMIC_LENGTH;
+        if (length < transMicLength)
+            return null;
+
         //Check if the key used for encryption is an application key or a device key
-        final byte[] nonce;
         if(APPLICATION_KEY_IDENTIFIER == accessMessage.getAkf()) {
-            key = mMeshNode.getDeviceKey();
+            final byte[] key = getDeviceKey(accessMessage.getSrc());
             //If its a device key that was used to encrypt the message we need to create a device nonce to decrypt it
-            nonce = createDeviceNonce(accessMessage.getAszmic(), accessMessage.getSequenceNumber(), accessMessage.getSrc(), accessMessage.getDst(), accessMessage.getIvIndex());
-        } else {
-            key = mUpperTransportLayerCallbacks.getApplicationKey();
-            if(key == null)
-                throw new IllegalArgumentException("Unable to find the app key to decrypt the message");
+            final byte[] nonce = createDeviceNonce(accessMessage.getAszmic(), accessMessage.getSequenceNumber(), accessMessage.getSrc(), accessMessage.getDst(), accessMessage.getIvIndex());
+            return decryptUpperTransportPDU(key, nonce, pdu, offset, length, transMicLength);
+        }
 
-            final int aid = SecureUtils.calculateK4(key);
-            if(aid != accessMessage.getAid()) {
-                throw new IllegalArgumentException("Unable to decrypt the message, invalid application key identifier");
+        //If its an application key that was used to encrypt the message we need to create a application nonce to decrypt it
+        final byte[] nonce = createApplicationNonce(accessMessage.getAszmic(), accessMessage.getSequenceNumber(), accessMessage.getSrc(), accessMessage.getDst(), accessMessage.getIvIndex());
+        final int aid = accessMessage.getAid();
+        final ApplicationKeyTable applicationKeyTable = getApplicationKeyTable();
+
+        //The key expected by the message being handled is tried first, followed by any other key sharing the same AID
+        final byte[] expectedKey = mUpperTransportLayerCallbacks != null ? mUpperTransportLayerCallbacks.getApplicationKey() : null;
+        if (expectedKey != null) {
+            if (KeyMaterial.forApplicationKey(expectedKey).getAid() == aid) {
+                final byte[] decryptedUpperTransportPDU = decryptUpperTransportPDU(expectedKey, nonce, pdu, offset, length, transMicLength);
+                if (decryptedUpperTransportPDU != null)
+                    return decryptedUpperTransportPDU;
             }
-            //If its an application key that was used to encrypt the message we need to create a application nonce to decrypt it
-            nonce = createApplicationNonce(accessMessage.getAszmic(), accessMessage.getSequenceNumber(), accessMessage.getSrc(), accessMessage.getDst(), accessMessage.getIvIndex());
         }
 
-        if (accessMessage.getAszmic() == SZMIC) {
-            decryptedUpperTansportPDU = SecureUtils.decryptCCM(accessMessage.getUpperTransportPdu(), key, nonce, MAXIMUM_TRANSMIC_LENGTH);
-        } else {
-            decryptedUpperTansportPDU = SecureUtils.decryptCCM(accessMessage.getUpperTransportPdu(), key, nonce, MINIMUM_TRANSMIC_LENGTH);
+        if (applicationKeyTable != null) {
+            for (byte[] key : applicationKeyTable.getApplicationKeys(aid)) {
+                if (Arrays.equals(key, expectedKey))
+                    continue;
+                final byte[] decryptedUpperTransportPDU = decryptUpperTransportPDU(key, nonce, pdu, offset, length, transMicLength);
+                if (decryptedUpperTransportPDU != null)
+                    return decryptedUpperTransportPDU;
+            }
+        }
+        Log.v(TAG, "No application key with aid " + aid + " could decrypt the message");
+        return null;
+    }
+
+    private static byte[] decryptUpperTransportPDU(final byte[] key, final byte[] nonce, final byte[] pdu, final int offset, final int length,
+                                                   final int transMicLength) {
+        final byte[] decryptedUpperTransportPDU = new byte[length - transMicLength];
+        if (!MeshCipherContext.obtain(key).decryptCCM(pdu, offset, length, nonce, 0, transMicLength, decryptedUpperTransportPDU, 0)) {
+            return null;
+        }
+        return decryptedUpperTransportPDU;
+    }
+
+    /**
+     * Returns the device key of the node owning the source address of a received message
+     *
+     * @param src source address of the message
+     */
+    private byte[] getDeviceKey(final byte[] src) {
+        final DeviceKeyTable deviceKeyTable = getDeviceKeyTable();
+        if (deviceKeyTable != null) {
+            final byte[] deviceKey = deviceKeyTable.get(((src[0] & 0xFF) << 8) | (src[1] & 0xFF));
+            if (deviceKey != null)
+                return deviceKey;
         }
 
-        final byte[] tempBytes = new byte[decryptedUpperTansportPDU.length];
-        ByteBuffer decryptedBuffer = ByteBuffer.wrap(tempBytes);
-        decryptedBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        decryptedBuffer.put(decryptedUpperTansportPDU);
-        decryptedUpperTansportPDU = decryptedBuffer.array();
-        return decryptedUpperTansportPDU;
+        //Fall back to the device key of the node
+        return mMeshNode.getDeviceKey();
     }
 
     /**
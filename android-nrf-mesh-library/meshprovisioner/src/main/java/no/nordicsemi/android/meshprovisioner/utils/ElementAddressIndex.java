@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.utils;
+
+/**
+ * Sorted index of the element address ranges of the provisioned nodes.
+ * <p>
+ * Every node occupies the range [unicast address, unicast address + element count). The ranges are kept in parallel arrays
+ * sorted by their first address so the node owning any element address is found with a binary search instead of scanning
+ * the elements of every node.
+ * </p>
+ */
+public final class ElementAddressIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+    private int[] mEnds = new int[INITIAL_CAPACITY]; //exclusive
+    private int mSize;
+
+    /**
+     * Adds or replaces the range of a node
+     *
+     * @param unicastAddress unicast address of the primary element of the node
+     * @param elementCount   number of elements of the node, a node without composition data is counted as one element
+     */
+    public void put(final int unicastAddress, final int elementCount) {
+        final int end = unicastAddress + Math.max(1, elementCount);
+        final int index = binarySearch(unicastAddress);
+        if (index >= 0) {
+            mEnds[index] = end;
+            return;
+        }
+
+        final int insertion = -(index + 1);
+        if (mSize == mStarts.length) {
+            final int[] starts = new int[mSize * 2];
+            final int[] ends = new int[mSize * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mSize);
+            System.arraycopy(mEnds, 0, ends, 0, mSize);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        System.arraycopy(mStarts, insertion, mStarts, insertion + 1, mSize - insertion);
+        System.arraycopy(mEnds, insertion, mEnds, insertion + 1, mSize - insertion);
+        mStarts[insertion] = unicastAddress;
+        mEnds[insertion] = end;
+        mSize++;
+    }
+
+    /**
+     * Removes the range of a node
+     *
+     * @param unicastAddress unicast address of the primary element of the node
+     */
+    public void remove(final int unicastAddress) {
+        final int index = binarySearch(unicastAddress);
+        if (index < 0)
+            return;
+
+        System.arraycopy(mStarts, index + 1, mStarts, index, mSize - index - 1);
+        System.arraycopy(mEnds, index + 1, mEnds, index, mSize - index - 1);
+        mSize--;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the unicast address of the primary element of the node owning the given element address
+     *
+     * @param elementAddress element address
+     * @return unicast address or -1 if no node owns the address
+     */
+    public int find(final int elementAddress) {
+        int index = binarySearch(elementAddress);
+        if (index < 0) {
+            //Range starting right before the address
+            index = -(index + 1) - 1;
+            if (index < 0 || elementAddress >= mEnds[index])
+                return -1;
+        }
+        return mStarts[index];
+    }
+
+    /**
+     * Returns the first address after the range of the node owning the given element address
+     *
+     * @param elementAddress element address
+     * @return the address following the range or the given address if no node owns it
+     */
+    public int getRangeEnd(final int elementAddress) {
+        final int unicastAddress = find(elementAddress);
+        if (unicastAddress == -1)
+            return elementAddress;
+        return mEnds[binarySearch(unicastAddress)];
+    }
+
+    private int binarySearch(final int address) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] < address) {
+                low = mid + 1;
+            } else if (mStarts[mid] > address) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.utils;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the key material derived from network and application keys.
+ * <p>
+ * Deriving the NID, encryption and privacy keys, network id, identity key, beacon key or AID of a key costs several AES-CMAC
+ * operations, and application keys are stored as hex strings that need to be parsed before use. The derived values are
+ * calculated the first time they are requested and kept until the key is invalidated, e.g. when it is replaced during a key
+ * refresh, so that sending a message does not repeat any of this work.
+ * </p>
+ */
+public final class KeyMaterial {
+
+    private static final int MAX_CACHED_KEYS = 32;
+
+    private static final Map<ByteBuffer, NetworkKeyMaterial> sNetworkKeys = createCache();
+    private static final Map<ByteBuffer, ApplicationKeyMaterial> sApplicationKeys = createCache();
+    private static final Map<String, ApplicationKeyMaterial> sHexApplicationKeys = createCache();
+
+    private KeyMaterial() {
+    }
+
+    private static <K, V> Map<K, V> createCache() {
+        return new LinkedHashMap<K, V>(MAX_CACHED_KEYS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return size() > MAX_CACHED_KEYS;
+            }
+        };
+    }
+
+    /**
+     * Returns the key material of a network key
+     *
+     * @param networkKey network key
+     */
+    public static NetworkKeyMaterial forNetworkKey(final byte[] networkKey) {
+        synchronized (sNetworkKeys) {
+            NetworkKeyMaterial keyMaterial = sNetworkKeys.get(ByteBuffer.wrap(networkKey));
+            if (keyMaterial == null) {
+                keyMaterial = new NetworkKeyMaterial(networkKey.clone());
+                sNetworkKeys.put(ByteBuffer.wrap(keyMaterial.mNetworkKey), keyMaterial);
+            }
+            return keyMaterial;
+        }
+    }
+
+    /**
+     * Returns the key material of an application key
+     *
+     * @param applicationKey application key
+     */
+    public static ApplicationKeyMaterial forApplicationKey(final byte[] applicationKey) {
+        synchronized (sApplicationKeys) {
+            ApplicationKeyMaterial keyMaterial = sApplicationKeys.get(ByteBuffer.wrap(applicationKey));
+            if (keyMaterial == null) {
+                keyMaterial = new ApplicationKeyMaterial(applicationKey.clone());
+                sApplicationKeys.put(ByteBuffer.wrap(keyMaterial.mApplicationKey), keyMaterial);
+            }
+            return keyMaterial;
+        }
+    }
+
+    /**
+     * Returns the key material of an application key stored as a hex string
+     *
+     * @param applicationKey application key as a hex string
+     */
+    public static ApplicationKeyMaterial forApplicationKey(final String applicationKey) {
+        synchronized (sApplicationKeys) {
+            ApplicationKeyMaterial keyMaterial = sHexApplicationKeys.get(applicationKey);
+            if (keyMaterial == null) {
+                keyMaterial = forApplicationKey(MeshParserUtils.toByteArray(applicationKey));
+                sHexApplicationKeys.put(applicationKey, keyMaterial);
+            }
+            return keyMaterial;
+        }
+    }
+
+    /**
+     * Removes the key material of a network or application key, e.g. when the key is replaced during a key refresh.
+     * <p>
+     * The cipher contexts of the key and of the keys derived from it are removed as well.
+     * </p>
+     *
+     * @param key network or application key
+     */
+    public static void invalidate(final byte[] key) {
+        final NetworkKeyMaterial networkKeyMaterial;
+        synchronized (sNetworkKeys) {
+            networkKeyMaterial = sNetworkKeys.remove(ByteBuffer.wrap(key));
+        }
+        if (networkKeyMaterial != null) {
+            networkKeyMaterial.invalidateCipherContexts();
+        }
+        synchronized (sApplicationKeys) {
+            final ApplicationKeyMaterial keyMaterial = sApplicationKeys.remove(ByteBuffer.wrap(key));
+            if (keyMaterial != null) {
+                sHexApplicationKeys.values().remove(keyMaterial);
+            }
+        }
+        MeshCipherContext.invalidate(key);
+    }
+
+    /**
+     * Removes all key material
+     */
+    public static void clear() {
+        synchronized (sNetworkKeys) {
+            sNetworkKeys.clear();
+        }
+        synchronized (sApplicationKeys) {
+            sApplicationKeys.clear();
+            sHexApplicationKeys.clear();
+        }
+    }
+
+    /**
+     * Key material derived from a network key
+     */
+    public static final class NetworkKeyMaterial {
+        private final byte[] mNetworkKey;
+        private SecureUtils.K2Output mK2Output;
+        private byte[] mNetworkId;
+        private byte[] mIdentityKey;
+        private byte[] mBeaconKey;
+
+        private NetworkKeyMaterial(final byte[] networkKey) {
+            mNetworkKey = networkKey;
+        }
+
+        /**
+         * Returns the NID, encryption key and privacy key for the master security credentials
+         */
+        public synchronized SecureUtils.K2Output getK2Output() {
+            if (mK2Output == null) {
+                mK2Output = SecureUtils.calculateK2(mNetworkKey, SecureUtils.K2_MASTER_INPUT);
+            }
+            return mK2Output;
+        }
+
+        /**
+         * Returns a copy of the network id
+         */
+        public synchronized byte[] getNetworkId() {
+            if (mNetworkId == null) {
+                mNetworkId = SecureUtils.calculateK3(mNetworkKey);
+            }
+            return mNetworkId.clone();
+        }
+
+        /**
+         * Returns a copy of the identity key
+         */
+        public synchronized byte[] getIdentityKey() {
+            if (mIdentityKey == null) {
+                mIdentityKey = SecureUtils.calculateIdentityKey(mNetworkKey);
+            }
+            return mIdentityKey.clone();
+        }
+
+        /**
+         * Returns a copy of the beacon key
+         */
+        public synchronized byte[] getBeaconKey() {
+            if (mBeaconKey == null) {
+                mBeaconKey = SecureUtils.calculateBeaconKey(mNetworkKey);
+            }
+            return mBeaconKey.clone();
+        }
+
+        /**
+         * Removes the cipher contexts of the keys derived so far
+         */
+        private synchronized void invalidateCipherContexts() {
+            if (mK2Output != null) {
+                MeshCipherContext.invalidate(mK2Output.getEncryptionKey());
+                MeshCipherContext.invalidate(mK2Output.getPrivacyKey());
+            }
+            MeshCipherContext.invalidate(mIdentityKey);
+            MeshCipherContext.invalidate(mBeaconKey);
+        }
+    }
+
+    /**
+     * Key material derived from an application key
+     */
+    public static final class ApplicationKeyMaterial {
+        private final byte[] mApplicationKey;
+        private final int mAid;
+
+        private ApplicationKeyMaterial(final byte[] applicationKey) {
+            mApplicationKey = applicationKey;
+            mAid = SecureUtils.calculateK4(applicationKey);
+        }
+
+        /**
+         * Returns the application key, the returned array is shared and must not be modified
+         */
+        public byte[] getKey() {
+            return mApplicationKey;
+        }
+
+        /**
+         * Returns the AID of the application key
+         */
+        public int getAid() {
+            return mAid;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.meshprovisioner.utils;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.macs.CMac;
+import org.spongycastle.crypto.modes.CCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keyed AES context used for the mesh pdu hot paths and the key derivation functions.
+ * <p>
+ * The AES key schedule is expanded once when the context is created and the engine is shared by a CMAC and a CCM cipher which
+ * are reused for every subsequent CCM/CMAC/ECB operation with the same key. The CCM cipher is initialised without a key for each
+ * message, so only the nonce and the mic size change, and it keys the engine through {@link ExpandedKeyEngine} which keeps the
+ * expanded key schedule. The network and upper transport layers use a 13 octet nonce and no associated data.
+ * </p>
+ * <p>
+ * Contexts for a given key should be obtained via {@link #obtain(byte[])} so that the expanded key schedules are shared between
+ * the transport layers of all messages using the same network, application or device key.
+ * </p>
+ */
+public final class MeshCipherContext {
+
+    private static final String TAG = MeshCipherContext.class.getSimpleName();
+    private static final int BLOCK_SIZE = 16;
+    private static final int NONCE_LENGTH = 13;
+    public static final int DEFAULT_MAX_CACHED_CONTEXTS = 256;
+
+    private static int sMaxCachedContexts = DEFAULT_MAX_CACHED_CONTEXTS;
+    private static final Map<ByteBuffer, MeshCipherContext> sContexts = new LinkedHashMap<ByteBuffer, MeshCipherContext>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, MeshCipherContext> eldest) {
+            return size() > sMaxCachedContexts;
+        }
+    };
+
+    private final AESEngine mEngine = new AESEngine();
+    private final CMac mCmac = new CMac(mEngine);
+    private final CCMBlockCipher mCcm = new CCMBlockCipher(new ExpandedKeyEngine(mEngine));
+    private final byte[] mNonce = new byte[NONCE_LENGTH];
+
+    /**
+     * Constructs a cipher context and expands the key schedule for the given key
+     *
+     * @param key 128-bit aes key
+     */
+    public MeshCipherContext(final byte[] key) {
+        //Initialising the cmac expands the key schedule of the engine shared with the ccm cipher and derives the cmac subkeys
+        final KeyParameter keyParameter = new KeyParameter(key);
+        mCmac.init(keyParameter);
+        mCcm.init(true, new AEADParameters(keyParameter, 32, mNonce));
+    }
+
+    /**
+     * Returns a shared cipher context for the given key, creating one if it does not exist.
+     *
+     * @param key 128-bit aes key
+     * @return cipher context
+     */
+    public static MeshCipherContext obtain(final byte[] key) {
+        synchronized (sContexts) {
+            MeshCipherContext context = sContexts.get(ByteBuffer.wrap(key));
+            if (context == null) {
+                context = new MeshCipherContext(key);
+                sContexts.put(ByteBuffer.wrap(key.clone()), context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Removes the shared cipher context of a key that is no longer used
+     *
+     * @param key 128-bit aes key
+     */
+    public static void invalidate(final byte[] key) {
+        if (key == null)
+            return;
+        synchronized (sContexts) {
+            sContexts.remove(ByteBuffer.wrap(key));
+        }
+    }
+
+    /**
+     * Removes all shared cipher contexts, e.g. when the mesh network is reset
+     */
+    public static void clear() {
+        synchronized (sContexts) {
+            sContexts.clear();
+        }
+    }
+
+    /**
+     * Sets the number of contexts kept by {@link #obtain(byte[])}.
+     * <p>
+     * Every network, application and device key in use needs a context, so a network with more keys than this limit
+     * expands key schedules again on every message. The least recently used contexts above the limit are dropped.
+     * </p>
+     *
+     * @param maxCachedContexts number of contexts
+     */
+    public static void setMaxCachedContexts(final int maxCachedContexts) {
+        if (maxCachedContexts <= 0)
+            throw new IllegalArgumentException("Number of cached contexts must be greater than zero");
+        synchronized (sContexts) {
+            sMaxCachedContexts = maxCachedContexts;
+            final Iterator<ByteBuffer> iterator = sContexts.keySet().iterator();
+            while (sContexts.size() > maxCachedContexts && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Encrypts a single 16 octet block using AES-ECB
+     *
+     * @param in     input buffer
+     * @param inOff  offset of the block in the input buffer
+     * @param out    output buffer
+     * @param outOff offset in the output buffer
+     */
+    public synchronized void encryptBlock(final byte[] in, final int inOff, final byte[] out, final int outOff) {
+        mEngine.processBlock(in, inOff, out, outOff);
+    }
+
+    /**
+     * Encrypts a single 16 octet block using AES-ECB
+     *
+     * @param data 16 octet block
+     * @return encrypted block
+     */
+    public byte[] encryptWithAES(final byte[] data) {
+        final byte[] encrypted = new byte[data.length];
+        encryptBlock(data, 0, encrypted, 0);
+        return encrypted;
+    }
+
+    /**
+     * Calculates the AES-CMAC of the data as defined in RFC 4493
+     *
+     * @param data data to be authenticated
+     * @return 16 octet cmac
+     */
+    public byte[] calculateCMAC(final byte[] data) {
+        final byte[] cmac = new byte[BLOCK_SIZE];
+        calculateCMAC(data, 0, data.length, cmac, 0);
+        return cmac;
+    }
+
+    /**
+     * Calculates the AES-CMAC of the data as defined in RFC 4493
+     *
+     * @param in     input buffer
+     * @param inOff  offset of the data in the input buffer
+     * @param length length of the data
+     * @param out    output buffer which must have room for 16 octets
+     * @param outOff offset in the output buffer
+     */
+    public synchronized void calculateCMAC(final byte[] in, final int inOff, final int length, final byte[] out, final int outOff) {
+        mCmac.update(in, inOff, length);
+        //The cmac is reset once the mac has been calculated and keeps its subkeys
+        mCmac.doFinal(out, outOff);
+    }
+
+    /**
+     * Encrypts and authenticates the data using AES-CCM
+     *
+     * @param data    data to be encrypted
+     * @param nonce   13 octet nonce
+     * @param micSize size of the message integrity check in octets
+     * @return encrypted data followed by the mic
+     */
+    public byte[] encryptCCM(final byte[] data, final byte[] nonce, final int micSize) {
+        final byte[] ccm = new byte[data.length + micSize];
+        encryptCCM(data, 0, data.length, nonce, 0, micSize, ccm, 0);
+        return ccm;
+    }
+
+    /**
+     * Encrypts and authenticates the data using AES-CCM.
+     * <p>
+     * The output may overlap the input as long as the output offset is not greater than the input offset.
+     * </p>
+     *
+     * @param in       input buffer
+     * @param inOff    offset of the data in the input buffer
+     * @param length   length of the data
+     * @param nonce    nonce buffer
+     * @param nonceOff offset of the 13 octet nonce
+     * @param micSize  size of the message integrity check in octets
+     * @param out      output buffer which must have room for length + micSize octets
+     * @param outOff   offset in the output buffer
+     * @return number of octets written
+     */
+    public synchronized int encryptCCM(final byte[] in, final int inOff, final int length,
+                                       final byte[] nonce, final int nonceOff, final int micSize,
+                                       final byte[] out, final int outOff) {
+        initCCM(true, nonce, nonceOff, micSize);
+        try {
+            return mCcm.processPacket(in, inOff, length, out, outOff);
+        } catch (InvalidCipherTextException e) {
+            //Only thrown when decrypting
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts and verifies the data using AES-CCM
+     *
+     * @param data    encrypted data followed by the mic
+     * @param nonce   13 octet nonce
+     * @param micSize size of the message integrity check in octets
+     * @return decrypted data without the mic or null if the message integrity check failed
+     */
+    public byte[] decryptCCM(final byte[] data, final byte[] nonce, final int micSize) {
+        if (data.length < micSize)
+            return null;
+        final byte[] plainText = new byte[data.length - micSize];
+        if (!decryptCCM(data, 0, data.length, nonce, 0, micSize, plainText, 0)) {
+            return null;
+        }
+        return plainText;
+    }
+
+    /**
+     * Decrypts and verifies the data using AES-CCM.
+     * <p>
+     * The output may overlap the input as long as the output offset is not greater than the input offset.
+     * </p>
+     *
+     * @param in       input buffer
+     * @param inOff    offset of the encrypted data in the input buffer
+     * @param length   length of the encrypted data including the mic
+     * @param nonce    nonce buffer
+     * @param nonceOff offset of the 13 octet nonce
+     * @param micSize  size of the message integrity check in octets
+     * @param out      output buffer which must have room for length - micSize octets
+     * @param outOff   offset in the output buffer
+     * @return true if the message integrity check matched
+     */
+    public synchronized boolean decryptCCM(final byte[] in, final int inOff, final int length,
+                                           final byte[] nonce, final int nonceOff, final int micSize,
+                                           final byte[] out, final int outOff) {
+        if (length < micSize)
+            return false;
+        initCCM(false, nonce, nonceOff, micSize);
+        try {
+            mCcm.processPacket(in, inOff, length, out, outOff);
+            return true;
+        } catch (InvalidCipherTextException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Initialises the ccm cipher for a message without passing the key, so the key schedule expanded by the engine is reused
+     */
+    private void initCCM(final boolean forEncryption, final byte[] nonce, final int nonceOff, final int micSize) {
+        System.arraycopy(nonce, nonceOff, mNonce, 0, NONCE_LENGTH);
+        mCcm.init(forEncryption, new AEADParameters(null, micSize * 8, mNonce));
+    }
+
+    /**
+     * Engine with an expanded key schedule, the ccm cipher initialises its block cipher with the key for every message which is
+     * ignored as ccm only uses the forward cipher
+     */
+    private static final class ExpandedKeyEngine implements BlockCipher {
+        private final AESEngine engine;
+
+        private ExpandedKeyEngine(final AESEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public void init(final boolean forEncryption, final CipherParameters params) {
+            //The key schedule was expanded when the context was created
+        }
+
+        @Override
+        public String getAlgorithmName() {
+            return engine.getAlgorithmName();
+        }
+
+        @Override
+        public int getBlockSize() {
+            return engine.getBlockSize();
+        }
+
+        @Override
+        public int processBlock(final byte[] in, final int inOff, final byte[] out, final int outOff) {
+            return engine.processBlock(in, inOff, out, outOff);
+        }
+
+        @Override
+        public void reset() {
+            engine.reset();
+        }
+    }
+}
@@ -370,6 +370,10 @@ public class MeshParserUtils {
         return (((pdu[3] & 0xFF) << 16) | ((pdu[4] & 0xFF) << 8) | (pdu[5] & 0xFF)); // get sequence number array from pdu
     }
 
+    public static int getIvIndex(final byte[] ivIndex) {
+        return ((ivIndex[0] & 0xFF) << 24) | ((ivIndex[1] & 0xFF) << 16) | ((ivIndex[2] & 0xFF) << 8) | (ivIndex[3] & 0xFF);
+    }
+
     public static int calculateSeqZero(final byte[] sequenceNumber) {
         return ((sequenceNumber[1] & 0x1F) << 8) | (sequenceNumber[2] & 0xFF); // 13 least significant bits
     }
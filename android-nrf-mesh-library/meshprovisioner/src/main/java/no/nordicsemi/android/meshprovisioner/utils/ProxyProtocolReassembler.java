@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.utils;
+
+/**
+ * Reassembles proxy pdus that were segmented at the gatt layer by the proxy protocol.
+ * <p>
+ * One instance is kept per connection and direction. Segments are appended in to a buffer that is reused between messages
+ * and only grown when a larger message is received. The message is complete when a segment with the SAR end marker
+ * arrives, at which point the reassembled pdu, with its SAR bits cleared, can be read from {@link #getBuffer()} up to
+ * {@link #getLength()}.
+ * </p>
+ */
+public final class ProxyProtocolReassembler {
+
+    public static final int SAR_COMPLETE = 0b00;
+    public static final int SAR_START = 0b01;
+    public static final int SAR_CONTINUATION = 0b10;
+    public static final int SAR_END = 0b11;
+    private static final int SAR_BIT_OFFSET = 6;
+    private static final int PDU_TYPE_MASK = 0x3F;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private int mPduType = -1; //-1 while no segmented message is in progress
+
+    /**
+     * Returns the SAR field of a proxy pdu
+     *
+     * @param pdu proxy pdu
+     */
+    public static int getSar(final byte[] pdu) {
+        return (pdu[0] & 0xFF) >> SAR_BIT_OFFSET;
+    }
+
+    /**
+     * Appends a segment received over the gatt layer
+     *
+     * @param pdu segment containing the proxy pdu header
+     * @return true if the segment completed the message
+     */
+    public boolean append(final byte[] pdu) {
+        if (pdu == null || pdu.length == 0)
+            return false;
+
+        final int pduType = pdu[0] & PDU_TYPE_MASK;
+        switch (getSar(pdu)) {
+            case SAR_COMPLETE:
+                mPduType = -1;
+                mLength = 0;
+                put(pdu, 0, pdu.length);
+                mBuffer[0] = (byte) pduType;
+                return true;
+            case SAR_START:
+                mPduType = pduType;
+                mLength = 0;
+                put(pdu, 0, pdu.length);
+                mBuffer[0] = (byte) pduType;
+                return false;
+            case SAR_CONTINUATION:
+                if (mPduType != pduType) {
+                    reset();
+                    return false;
+                }
+                put(pdu, 1, pdu.length - 1);
+                return false;
+            default: //SAR_END
+                if (mPduType != pduType) {
+                    reset();
+                    return false;
+                }
+                put(pdu, 1, pdu.length - 1);
+                mPduType = -1;
+                return true;
+        }
+    }
+
+    /**
+     * Returns the buffer holding the reassembled pdu. The buffer is reused by the next call to {@link #append(byte[])}
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the length of the reassembled pdu
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns a copy of the reassembled pdu
+     */
+    public byte[] toByteArray() {
+        final byte[] pdu = new byte[mLength];
+        System.arraycopy(mBuffer, 0, pdu, 0, mLength);
+        return pdu;
+    }
+
+    /**
+     * Discards the segments received so far
+     */
+    public void reset() {
+        mPduType = -1;
+        mLength = 0;
+    }
+
+    private void put(final byte[] data, final int offset, final int length) {
+        if (mLength + length > mBuffer.length) {
+            final byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + length)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        System.arraycopy(data, offset, mBuffer, mLength, length);
+        mLength += length;
+    }
+}
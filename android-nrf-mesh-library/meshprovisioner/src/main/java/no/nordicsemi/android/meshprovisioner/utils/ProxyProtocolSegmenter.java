@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.utils;
+
+/**
+ * Segments proxy pdus that do not fit in to the mtu of the connection as defined by the proxy protocol.
+ * <p>
+ * Every segment is created with its final size and is copied straight out of the pdu, so it can be written to the
+ * characteristic as is. The first octet of a segment holds the SAR field and the pdu type, followed by up to mtu - 1
+ * octets of the pdu payload.
+ * </p>
+ */
+public final class ProxyProtocolSegmenter {
+
+    private static final int SAR_BIT_OFFSET = 6;
+    private static final int PDU_TYPE_MASK = 0x3F;
+
+    private ProxyProtocolSegmenter() {
+    }
+
+    /**
+     * Returns the number of segments required to send the pdu
+     *
+     * @param pduLength length of the pdu including the pdu type
+     * @param mtuSize   mtu size of the connection
+     */
+    public static int getSegmentCount(final int pduLength, final int mtuSize) {
+        if (mtuSize < 2)
+            throw new IllegalArgumentException("Mtu size must be at least 2 octets");
+        if (pduLength <= mtuSize)
+            return 1;
+        final int payloadLength = mtuSize - 1;
+        return (pduLength - 1 + payloadLength - 1) / payloadLength;
+    }
+
+    /**
+     * Creates a segment of the pdu ready to be written
+     *
+     * @param pdu     proxy pdu starting with the pdu type
+     * @param index   index of the segment
+     * @param mtuSize mtu size of the connection
+     * @return the segment, or the pdu itself if it fits in a single segment
+     */
+    public static byte[] getSegment(final byte[] pdu, final int index, final int mtuSize) {
+        final int count = getSegmentCount(pdu.length, mtuSize);
+        if (index < 0 || index >= count)
+            throw new IllegalArgumentException("Invalid segment index: " + index);
+        if (count == 1)
+            return pdu;
+
+        final int sar;
+        if (index == 0) {
+            sar = ProxyProtocolReassembler.SAR_START;
+        } else if (index == count - 1) {
+            sar = ProxyProtocolReassembler.SAR_END;
+        } else {
+            sar = ProxyProtocolReassembler.SAR_CONTINUATION;
+        }
+        final int payloadLength = mtuSize - 1;
+        final int offset = 1 + index * payloadLength;
+        final int length = Math.min(payloadLength, pdu.length - offset);
+        final byte[] segment = new byte[1 + length];
+        segment[0] = (byte) ((sar << SAR_BIT_OFFSET) | (pdu[0] & PDU_TYPE_MASK));
+        System.arraycopy(pdu, offset, segment, 1, length);
+        return segment;
+    }
+}
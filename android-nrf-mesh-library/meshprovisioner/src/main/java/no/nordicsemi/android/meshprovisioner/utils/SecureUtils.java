@@ -25,14 +25,8 @@ package no.nordicsemi.android.meshprovisioner.utils;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import org.spongycastle.crypto.BlockCipher;
 import org.spongycastle.crypto.CipherParameters;
-import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.engines.AESLightEngine;
-import org.spongycastle.crypto.macs.CMac;
-import org.spongycastle.crypto.modes.CCMBlockCipher;
-import org.spongycastle.crypto.params.AEADParameters;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.nio.ByteBuffer;
@@ -101,6 +95,11 @@ public class SecureUtils {
      */
     private static final byte[] NKIK = "nkik".getBytes(Charset.forName("US-ASCII"));
 
+    /**
+     * Salt input for beacon key
+     */
+    private static final byte[] NKBK = "nkbk".getBytes(Charset.forName("US-ASCII"));
+
     /**
      * Salt input for identity key
      */
@@ -162,81 +161,51 @@ public class SecureUtils {
     }
 
     public static final byte[] calculateCMAC(final byte[] data, final byte[] key) {
-        final byte[] cmac = new byte[16];
-
-        CipherParameters cipherParameters = new KeyParameter(key);
-        BlockCipher blockCipher = new AESEngine();
-        CMac mac = new CMac(blockCipher);
-
-        mac.init(cipherParameters);
-        mac.update(data, 0, data.length);
-        mac.doFinal(cmac, 0);
-        return cmac;
+        return MeshCipherContext.obtain(key).calculateCMAC(data);
     }
 
+    /**
+     * Calculates the AES-CMAC of the data following the given offset
+     *
+     * @param data   data to be authenticated
+     * @param key    128-bit key
+     * @param offset offset of the data to be authenticated
+     * @return 16 octet cmac
+     */
     public static final byte[] calculateCMAC(final byte[] data, final byte[] key, final int offset) {
-        final byte[] cmac = new byte[data.length];
-
-        CipherParameters cipherParameters = new KeyParameter(key);
-        BlockCipher blockCipher = new AESEngine();
-        CMac mac = new CMac(blockCipher);
-
-        mac.init(cipherParameters);
-        mac.update(data, offset, data.length);
-        mac.doFinal(cmac, 0);
+        final byte[] cmac = new byte[16];
+        MeshCipherContext.obtain(key).calculateCMAC(data, offset, data.length - offset, cmac, 0);
         return cmac;
     }
 
     public static final byte[] encryptCCM(final byte[] data, final byte[] key, final byte[] nonce) {
-        final byte[] ccm = new byte[25 + 8];
-        final ByteBuffer buffer = ByteBuffer.allocate(ccm.length + 8);
-        CCMBlockCipher ccmBlockCipher = new CCMBlockCipher(new AESEngine());
-
-        AEADParameters aeadParameters = new AEADParameters(new KeyParameter(key), 64, nonce);
-        ccmBlockCipher.init(true, aeadParameters);
-        ccmBlockCipher.processBytes(data, 0, data.length, ccm, data.length);
-        try {
-            ccmBlockCipher.doFinal(ccm, 0);
-        } catch (InvalidCipherTextException e) {
-            e.printStackTrace();
-        }
-        return ccm;
+        return encryptCCM(data, key, nonce, 8);
     }
 
-
+    /**
+     * Encrypts and authenticates the data using AES-CCM
+     *
+     * @param data    data to be encrypted
+     * @param key     128-bit key
+     * @param nonce   13 octet nonce
+     * @param micSize size of the message integrity check in octets
+     * @return encrypted data followed by the mic
+     */
     public static final byte[] encryptCCM(final byte[] data, final byte[] key, final byte[] nonce, final int micSize) {
-        final byte[] ccm = new byte[data.length + micSize];
-
-        CCMBlockCipher ccmBlockCipher = new CCMBlockCipher(new AESEngine());
-
-        AEADParameters aeadParameters = new AEADParameters(new KeyParameter(key), micSize * 8, nonce);
-        ccmBlockCipher.init(true, aeadParameters);
-        ccmBlockCipher.processBytes(data, 0, data.length, ccm, data.length);
-        try {
-            ccmBlockCipher.doFinal(ccm, 0);
-        } catch (InvalidCipherTextException e) {
-            e.printStackTrace();
-        }
-        return ccm;
+        return MeshCipherContext.obtain(key).encryptCCM(data, nonce, micSize);
     }
 
-
+    /**
+     * Decrypts and authenticates the data using AES-CCM
+     *
+     * @param data    encrypted data followed by the mic
+     * @param key     128-bit key
+     * @param nonce   13 octet nonce
+     * @param micSize size of the message integrity check in octets
+     * @return decrypted data or null if the message integrity check failed
+     */
     public static final byte[] decryptCCM(final byte[] data, final byte[] key, final byte[] nonce, final int micSize) {
-        final byte[] ccm = new byte[data.length];
-
-        CCMBlockCipher ccmBlockCipher = new CCMBlockCipher(new AESEngine());
-        AEADParameters aeadParameters = new AEADParameters(new KeyParameter(key), micSize * 8, nonce);
-        ccmBlockCipher.init(false, aeadParameters);
-        ccmBlockCipher.processBytes(data, 0, data.length, ccm, 0);
-        try {
-            ccmBlockCipher.doFinal(ccm, 0);
-        } catch (InvalidCipherTextException e) {
-            e.printStackTrace();
-        }
-        final int ccmLength = data.length - micSize;
-        final ByteBuffer ccmBuffer = ByteBuffer.allocate(ccmLength).order(ByteOrder.BIG_ENDIAN);
-        ccmBuffer.put(ccm, 0, ccmLength);
-        return ccmBuffer.array();
+        return MeshCipherContext.obtain(key).decryptCCM(data, nonce, micSize);
     }
 
     public static final byte[] calculateK1(final byte[] ecdh, final byte[] confirmationSalt, final byte[] text) {
@@ -251,7 +220,7 @@ public class SecureUtils {
      * @return
      */
     public static K2Output calculateK2(final byte[] data, final byte[] p) {
-        final byte[] salt = calculateSalt(SMK2);
+        final byte[] salt = Salts.SMK2;
         final byte[] t = calculateCMAC(data, salt);
 
         final byte[] t0 = {};
@@ -285,7 +254,7 @@ public class SecureUtils {
      */
     public static byte[] calculateK3(final byte[] n) {
 
-        final byte[] salt = calculateSalt(SMK3);
+        final byte[] salt = Salts.SMK3;
 
         final byte[] t = calculateCMAC(n, salt);
 
@@ -313,7 +282,7 @@ public class SecureUtils {
      */
     public static final byte calculateK4(final byte[] n) {
 
-        byte[] salt = calculateSalt(SMK4);
+        final byte[] salt = Salts.SMK4;
 
         final byte[] t = calculateCMAC(n, salt);
 
@@ -335,7 +304,22 @@ public class SecureUtils {
      * @return hash value
      */
     public static final byte[] calculateIdentityKey(final byte[] n) {
-        final byte[] salt = calculateSalt(NKIK);
+        final byte[] salt = Salts.NKIK;
+        ByteBuffer buffer = ByteBuffer.allocate(ID128.length + 1);
+        buffer.put(ID128);
+        buffer.put((byte) 0x01);
+        final byte[] p = buffer.array();
+        return calculateK1(n, salt, p);
+    }
+
+    /**
+     * Calculates the beacon key
+     *
+     * @param n network key
+     * @return beacon key
+     */
+    public static final byte[] calculateBeaconKey(final byte[] n) {
+        final byte[] salt = Salts.NKBK;
         ByteBuffer buffer = ByteBuffer.allocate(ID128.length + 1);
         buffer.put(ID128);
         buffer.put((byte) 0x01);
@@ -367,13 +351,7 @@ public class SecureUtils {
     }
 
     public static final byte[] encryptWithAES(final byte[] data, final byte[] key) {
-        final byte[] encrypted = new byte[data.length];
-        final CipherParameters cipherParameters = new KeyParameter(key);
-        final AESLightEngine engine = new AESLightEngine();
-        engine.init(true, cipherParameters);
-        engine.processBlock(data, 0, encrypted, 0);
-
-        return encrypted;
+        return MeshCipherContext.obtain(key).encryptWithAES(data);
     }
 
     public static final byte[] decryptWithAES(final byte[] data, final byte[] key) {
@@ -408,6 +386,17 @@ public class SecureUtils {
         }
     }
 
+    /**
+     * Salts of the key derivation functions, these are constant and only calculated once when first used
+     */
+    private static final class Salts {
+        static final byte[] SMK2 = calculateSalt(SecureUtils.SMK2);
+        static final byte[] SMK3 = calculateSalt(SecureUtils.SMK3);
+        static final byte[] SMK4 = calculateSalt(SecureUtils.SMK4);
+        static final byte[] NKIK = calculateSalt(SecureUtils.NKIK);
+        static final byte[] NKBK = calculateSalt(SecureUtils.NKBK);
+    }
+
     public static class K2Output implements Parcelable {
         public static final Creator<K2Output> CREATOR = new Creator<K2Output>() {
             @Override
@@ -423,6 +412,8 @@ public class SecureUtils {
         private byte nid;
         private byte[] encryptionKey;
         private byte[] privacyKey;
+        private transient MeshCipherContext encryptionCipher;
+        private transient MeshCipherContext privacyCipher;
 
         private K2Output(final byte nid, final byte[] encryptionKey, final byte[] privacyKey) {
             this.nid = nid;
@@ -459,5 +450,25 @@ public class SecureUtils {
         public byte[] getPrivacyKey() {
             return privacyKey;
         }
+
+        /**
+         * Returns the cipher context for the encryption key, the key schedule is expanded only once per network key.
+         */
+        public MeshCipherContext getEncryptionCipher() {
+            if (encryptionCipher == null) {
+                encryptionCipher = MeshCipherContext.obtain(encryptionKey);
+            }
+            return encryptionCipher;
+        }
+
+        /**
+         * Returns the cipher context for the privacy key, the key schedule is expanded only once per network key.
+         */
+        public MeshCipherContext getPrivacyCipher() {
+            if (privacyCipher == null) {
+                privacyCipher = MeshCipherContext.obtain(privacyKey);
+            }
+            return privacyCipher;
+        }
     }
 }
@@ -126,4 +126,4 @@ public class AccessLayerTests {
         final byte[] actualAccessMessage = accessMessage.getAccessPdu();
         assertEquals(expectedAccessMessage, MeshParserUtils.bytesToHex(actualAccessMessage, false));
     }
-}
\ No newline at end of file
+}
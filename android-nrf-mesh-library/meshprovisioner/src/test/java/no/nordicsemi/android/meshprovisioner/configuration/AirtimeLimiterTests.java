@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import android.os.Handler;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.AirtimeLimiter;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class AirtimeLimiterTests {
+
+    @Test
+    public void airtime_limiter_pacesAndAdaptsRates() {
+        final AirtimeLimiter limiter = new AirtimeLimiter(10, 2, 5, 1);
+        assertEquals(0, limiter.tryAcquire(0x0002, 0));
+        assertEquals(200, limiter.tryAcquire(0x0002, 0));
+        assertEquals(0, limiter.tryAcquire(0x0003, 0));
+        assertEquals(100, limiter.tryAcquire(0x0004, 0));
+        assertEquals(0, limiter.tryAcquire(0x0004, 100));
+
+        //Losses of the same burst halve the rates once, deliveries increase them again
+        limiter.onLoss(0x0002, 100);
+        limiter.onLoss(0x0002, 500);
+        assertEquals(5, limiter.getRate(), 0.001);
+        assertEquals(2.5, limiter.getRate(0x0002), 0.001);
+        limiter.onDelivered(0x0002, 600);
+        assertEquals(5.5, limiter.getRate(), 0.001);
+        assertEquals(3, limiter.getRate(0x0002), 0.001);
+        assertEquals(5, limiter.getRate(0x0003), 0.001);
+
+        limiter.reset();
+        assertEquals(10, limiter.getRate(), 0.001);
+
+        //Pdus to a destination that used up its rate let pdus to other destinations go first, control pdus are not limited.
+        //All pdus are written to the same proxy node, the rates are those of the destination of each pdu
+        final ProvisionedMeshNode proxy = new Gson().fromJson("{\"unicastAddress\":[0,2]}", ProvisionedMeshNode.class);
+        final Handler handler = mock(Handler.class);
+        final List<Integer> written = new ArrayList<>();
+        final OutgoingPduScheduler scheduler = new OutgoingPduScheduler(handler, (meshNode, pdu) -> written.add((int) pdu[0]));
+        scheduler.setMaxPdusInFlight(4);
+        scheduler.setAirtimeLimiter(new AirtimeLimiter(100, 10, 2, 1));
+        scheduler.enqueue(proxy, 0x0003, new byte[]{1}, OutgoingPduScheduler.Priority.BULK, 0);
+        scheduler.enqueue(proxy, 0x0003, new byte[]{2}, OutgoingPduScheduler.Priority.BULK, 0);
+        scheduler.enqueue(proxy, 0x0004, new byte[]{3}, OutgoingPduScheduler.Priority.BULK, 0);
+        scheduler.enqueue(proxy, 0x0003, new byte[]{4}, OutgoingPduScheduler.Priority.CONTROL, 0);
+        assertEquals(Arrays.asList(1, 3, 4), written);
+        assertEquals(1, scheduler.getQueuedPduCount(OutgoingPduScheduler.Priority.BULK));
+        verify(handler).postDelayed(any(Runnable.class), eq(500L));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import android.os.Handler;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.ConfigurationPlan;
+import no.nordicsemi.android.meshprovisioner.ConfigurationPlanCallbacks;
+import no.nordicsemi.android.meshprovisioner.ConfigurationScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ConfigurationSchedulerTests {
+
+    @Test
+    public void configuration_scheduler_limitsOutstandingRequests() {
+        final Gson gson = new Gson();
+        final ProvisionedMeshNode node2 = gson.fromJson("{\"unicastAddress\":[0,2]}", ProvisionedMeshNode.class);
+        //The application key is already known to have been added to node 4
+        final ProvisionedMeshNode node4 = gson.fromJson("{\"unicastAddress\":[0,4],\"mAddedAppKeys\":{\"0\":\"63964771734FBD76E3B40519D1D94A48\"}}", ProvisionedMeshNode.class);
+        final String appKey = "63964771734FBD76E3B40519D1D94A48";
+        final ConfigurationPlan plan = new ConfigurationPlan.Builder()
+                .addAppKey(0x0002, 0, appKey).bindAppKey(0x0002, 0x0002, 0x1000, 0)
+                .addAppKey(0x0004, 0, appKey).bindAppKey(0x0004, 0x0004, 0x1000, 0)
+                .addAppKey(0x0006, 0, appKey).bindAppKey(0x0006, 0x0006, 0x1000, 0)
+                .build();
+
+        final List<ConfigMessage> sent = new ArrayList<>();
+        final List<String> results = new ArrayList<>();
+        final int[] failedSteps = {-1};
+        final ConfigurationScheduler scheduler = new ConfigurationScheduler(plan, new ConfigurationScheduler.RequestDispatcher() {
+            @Override
+            public ProvisionedMeshNode getNode(final int unicastAddress) {
+                return unicastAddress == 0x0002 ? node2 : unicastAddress == 0x0004 ? node4 : null;
+            }
+
+            @Override
+            public ConfigMessage send(final ProvisionedMeshNode node, final ConfigurationPlan.Step step) {
+                final ConfigMessage request = mock(ConfigMessage.class);
+                sent.add(request);
+                results.add(step + " SENT");
+                return request;
+            }
+        }, mock(Handler.class), 2, 1, 1000, new ConfigurationPlanCallbacks() {
+            @Override
+            public void onConfigurationStepCompleted(final ConfigurationPlan.Step step, final ConfigurationPlan.StepResult result, final int completedSteps, final int totalSteps) {
+                results.add(step + " " + result);
+            }
+
+            @Override
+            public void onConfigurationPlanCompleted(final int failed) {
+                failedSteps[0] = failed;
+            }
+        });
+        scheduler.start();
+
+        //Node 4 skips the key it already has, node 6 is unknown so its binding is cancelled
+        assertEquals(Arrays.asList("APP_KEY_ADD 0x2 SENT", "APP_KEY_ADD 0x4 SKIPPED", "APP_KEY_ADD 0x6 FAILED",
+                "MODEL_APP_BIND 0x6 CANCELLED", "MODEL_APP_BIND 0x4 SENT"), results);
+        assertEquals(2, scheduler.getOutstandingRequestCount());
+
+        //The binding of node 2 waits for its application key to be added
+        scheduler.onTransactionCompleted(sent.get(0), mock(ConfigMessage.class));
+        assertEquals("MODEL_APP_BIND 0x2 SENT", results.get(results.size() - 1));
+        scheduler.onTransactionCompleted(sent.get(1), mock(ConfigMessage.class));
+        //Late or unknown statuses are ignored
+        scheduler.onTransactionCompleted(sent.get(1), mock(ConfigMessage.class));
+        assertEquals(-1, failedSteps[0]);
+        scheduler.onTransactionCompleted(sent.get(2), mock(ConfigMessage.class));
+
+        assertTrue(scheduler.isFinished());
+        assertEquals(2, failedSteps[0]);
+        assertEquals(0, scheduler.getOutstandingRequestCount());
+    }
+
+    @Test
+    public void configuration_scheduler_neverOverlapsStepsOfTheSameType() {
+        final ProvisionedMeshNode node2 = new Gson().fromJson("{\"unicastAddress\":[0,2]}", ProvisionedMeshNode.class);
+        final String appKey = "63964771734FBD76E3B40519D1D94A48";
+        final ConfigurationPlan plan = new ConfigurationPlan.Builder()
+                .addAppKey(0x0002, 0, appKey)
+                .bindAppKey(0x0002, 0x0002, 0x1000, 0).bindAppKey(0x0002, 0x0003, 0x1000, 0)
+                .addSubscription(0x0002, 0x0002, 0x1000, 0xC000).addSubscription(0x0002, 0x0003, 0x1000, 0xC000)
+                .build();
+
+        final List<ConfigMessage> sent = new ArrayList<>();
+        final List<String> results = new ArrayList<>();
+        final ConfigurationScheduler scheduler = new ConfigurationScheduler(plan, new ConfigurationScheduler.RequestDispatcher() {
+            @Override
+            public ProvisionedMeshNode getNode(final int unicastAddress) {
+                return node2;
+            }
+
+            @Override
+            public ConfigMessage send(final ProvisionedMeshNode node, final ConfigurationPlan.Step step) {
+                final ConfigMessage request = mock(ConfigMessage.class);
+                sent.add(request);
+                results.add(step.getType() + " SENT");
+                return request;
+            }
+        }, mock(Handler.class), 4, 3, 1000, null);
+        scheduler.start();
+
+        //Statuses of the same type from the same node can not be told apart so only one of each type is outstanding
+        assertEquals(Arrays.asList("APP_KEY_ADD SENT", "MODEL_SUBSCRIPTION_ADD SENT"), results);
+        assertEquals(2, scheduler.getOutstandingRequestCount());
+
+        scheduler.onTransactionCompleted(sent.get(0), mock(ConfigMessage.class));
+        assertEquals(Arrays.asList("APP_KEY_ADD SENT", "MODEL_SUBSCRIPTION_ADD SENT", "MODEL_APP_BIND SENT"), results);
+        scheduler.onTransactionCompleted(sent.get(1), mock(ConfigMessage.class));
+        assertEquals("MODEL_SUBSCRIPTION_ADD SENT", results.get(results.size() - 1));
+        assertEquals(2, scheduler.getOutstandingRequestCount());
+
+        scheduler.onTransactionCompleted(sent.get(2), mock(ConfigMessage.class));
+        assertEquals("MODEL_APP_BIND SENT", results.get(results.size() - 1));
+        scheduler.onTransactionCompleted(sent.get(3), mock(ConfigMessage.class));
+        //A request given up on by the retransmissions completes its step without waiting for the step timeout
+        scheduler.onTransactionFailed(sent.get(4));
+        assertEquals(5, sent.size());
+        assertEquals(0, scheduler.getOutstandingRequestCount());
+        assertTrue(scheduler.isFinished());
+    }
+}
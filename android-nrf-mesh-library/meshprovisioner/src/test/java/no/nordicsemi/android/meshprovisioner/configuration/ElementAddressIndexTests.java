@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import org.junit.Test;
+
+import no.nordicsemi.android.meshprovisioner.utils.ElementAddressIndex;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ElementAddressIndexTests {
+
+    @Test
+    public void elementAddressIndex_findsOwningNode() {
+        final ElementAddressIndex index = new ElementAddressIndex();
+        for (int i = 0; i < 40; i++) {
+            //Nodes with three elements, inserted out of order
+            index.put(0x0100 - i * 4, 3);
+        }
+        index.put(0x0200, 0);
+
+        assertEquals(40 + 1, index.size());
+        assertEquals(0x0100, index.find(0x0100));
+        assertEquals(0x0100, index.find(0x0102));
+        assertEquals(-1, index.find(0x0103));
+        assertEquals(0x00FC, index.find(0x00FE));
+        assertEquals(-1, index.find(0x0001));
+        assertEquals(0x0200, index.find(0x0200));
+        assertEquals(-1, index.find(0x0201));
+        assertEquals(0x0103, index.getRangeEnd(0x0101));
+
+        //Composition data received for the last node
+        index.put(0x0200, 2);
+        assertEquals(0x0200, index.find(0x0201));
+
+        index.remove(0x0100);
+        assertEquals(-1, index.find(0x0101));
+        assertEquals(40, index.size());
+    }
+}
@@ -23,15 +23,26 @@
 package no.nordicsemi.android.meshprovisioner.configuration;
 
 import org.junit.Test;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.macs.CMac;
+import org.spongycastle.crypto.modes.CCMBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+import no.nordicsemi.android.meshprovisioner.utils.MeshCipherContext;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Example local unit test, which will execute on the development machine (host).
@@ -133,4 +144,118 @@ public class EncryptionTests {
         final String expectedNetworkId = "3ecaff672f673370";
         assertEquals(expectedNetworkId, networkIDText);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void cipher_context_ccm_isCorrect() {
+        final byte[] key = MeshParserUtils.toByteArray("0953fa93e7caac9638f58820220a398e");
+        final byte[] nonce = MeshParserUtils.toByteArray("00800000011201000012345678");
+        final MeshCipherContext cipherContext = new MeshCipherContext(key);
+        for (int length = 0; length <= 40; length++) {
+            final byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i * 31);
+            }
+            for (int micSize = 4; micSize <= 8; micSize += 4) {
+                final byte[] expected = encryptCCM(data, key, nonce, micSize);
+                final byte[] encrypted = cipherContext.encryptCCM(data, nonce, micSize);
+                assertArrayEquals(expected, encrypted);
+
+                final byte[] decrypted = new byte[length];
+                assertTrue(cipherContext.decryptCCM(encrypted, 0, encrypted.length, nonce, 0, micSize, decrypted, 0));
+                assertArrayEquals(data, decrypted);
+
+                encrypted[encrypted.length - 1] ^= 0x01;
+                assertFalse(cipherContext.decryptCCM(encrypted, 0, encrypted.length, nonce, 0, micSize, decrypted, 0));
+            }
+        }
+    }
+
+    @Test
+    public void cipher_context_network_payload_isCorrect() {
+        //8.3.1 Message #1, network layer encryption
+        final byte[] encryptionKey = MeshParserUtils.toByteArray("0953fa93e7caac9638f58820220a398e");
+        final byte[] networkNonce = MeshParserUtils.toByteArray("00800000011201000012345678");
+        final byte[] networkPayload = MeshParserUtils.toByteArray("fffd034b50057e400000010000");
+        final byte[] expected = MeshParserUtils.toByteArray("b5e5bfdacbaf6cb7fb6bff871f035444ce83a670df");
+
+        final MeshCipherContext cipherContext = MeshCipherContext.obtain(encryptionKey);
+        final byte[] buffer = new byte[networkPayload.length + 8];
+        System.arraycopy(networkPayload, 0, buffer, 0, networkPayload.length);
+        cipherContext.encryptCCM(buffer, 0, networkPayload.length, networkNonce, 0, 8, buffer, 0);
+        assertArrayEquals(expected, buffer);
+        assertTrue(cipherContext.decryptCCM(buffer, 0, buffer.length, networkNonce, 0, 8, buffer, 0));
+        assertEquals(MeshParserUtils.bytesToHex(networkPayload, false), MeshParserUtils.bytesToHex(buffer, false).substring(0, networkPayload.length * 2));
+
+        //Contexts are shared until the key is invalidated
+        assertTrue(cipherContext == MeshCipherContext.obtain(encryptionKey));
+        MeshCipherContext.invalidate(encryptionKey);
+        assertFalse(cipherContext == MeshCipherContext.obtain(encryptionKey));
+    }
+
+    @Test
+    public void cipher_context_pecb_isCorrect() {
+        final byte[] privacyKey = MeshParserUtils.toByteArray("8b84eedec100067d670971dd2aa700cf");
+        final byte[] block = MeshParserUtils.toByteArray("000000000012345678b5e5bfdacbaf6c");
+        final AESEngine engine = new AESEngine();
+        engine.init(true, new KeyParameter(privacyKey));
+        final byte[] expected = new byte[block.length];
+        engine.processBlock(block, 0, expected, 0);
+        assertArrayEquals(expected, MeshCipherContext.obtain(privacyKey).encryptWithAES(block));
+    }
+
+    @Test
+    public void cipher_context_cmac_isCorrect() {
+        //RFC 4493 examples 1 to 4
+        final byte[] key = MeshParserUtils.toByteArray("2b7e151628aed2a6abf7158809cf4f3c");
+        final byte[] message = MeshParserUtils.toByteArray("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51" +
+                "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710");
+        final MeshCipherContext cipherContext = new MeshCipherContext(key);
+        assertEquals("BB1D6929E95937287FA37D129B756746", MeshParserUtils.bytesToHex(cipherContext.calculateCMAC(new byte[0]), false));
+        assertEquals("070A16B46B4D4144F79BDD9DD04A287C", MeshParserUtils.bytesToHex(cipherContext.calculateCMAC(Arrays.copyOf(message, 16)), false));
+        assertEquals("DFA66747DE9AE63030CA32611497C827", MeshParserUtils.bytesToHex(cipherContext.calculateCMAC(Arrays.copyOf(message, 40)), false));
+        assertEquals("51F0BEBF7E3B9D92FC49741779363CFE", MeshParserUtils.bytesToHex(cipherContext.calculateCMAC(message), false));
+
+        for (int length = 0; length <= 40; length++) {
+            final CMac mac = new CMac(new AESEngine());
+            mac.init(new KeyParameter(key));
+            mac.update(message, 0, length);
+            final byte[] expected = new byte[16];
+            mac.doFinal(expected, 0);
+            assertArrayEquals(expected, SecureUtils.calculateCMAC(Arrays.copyOf(message, length), key));
+        }
+    }
+
+    private static byte[] encryptCCM(final byte[] data, final byte[] key, final byte[] nonce, final int micSize) {
+        final CCMBlockCipher ccmBlockCipher = new CCMBlockCipher(new AESEngine());
+        ccmBlockCipher.init(true, new AEADParameters(new KeyParameter(key), micSize * 8, nonce));
+        final byte[] ccm = new byte[ccmBlockCipher.getOutputSize(data.length)];
+        final int length = ccmBlockCipher.processBytes(data, 0, data.length, ccm, 0);
+        try {
+            ccmBlockCipher.doFinal(ccm, length);
+        } catch (InvalidCipherTextException e) {
+            throw new IllegalStateException(e);
+        }
+        return ccm;
+    }
+
+    @Test
+    public void key_material_isCachedAndCorrect() {
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final KeyMaterial.NetworkKeyMaterial networkKeyMaterial = KeyMaterial.forNetworkKey(netkey);
+        assertEquals(0x68, networkKeyMaterial.getK2Output().getNid());
+        assertEquals("3ECAFF672F673370", MeshParserUtils.bytesToHex(networkKeyMaterial.getNetworkId(), false));
+        assertEquals("84396C435AC48560B5965385253E210C", MeshParserUtils.bytesToHex(networkKeyMaterial.getIdentityKey(), false));
+        assertEquals("5423D967DA639A99CB02231A83F7D254", MeshParserUtils.bytesToHex(networkKeyMaterial.getBeaconKey(), false));
+        assertTrue(networkKeyMaterial == KeyMaterial.forNetworkKey(netkey.clone()));
+
+        final KeyMaterial.ApplicationKeyMaterial applicationKeyMaterial = KeyMaterial.forApplicationKey("63964771734FBD76E3B40519D1D94A48");
+        assertEquals(0x26, applicationKeyMaterial.getAid());
+        assertTrue(applicationKeyMaterial == KeyMaterial.forApplicationKey(MeshParserUtils.toByteArray("63964771734fbd76e3b40519d1d94a48")));
+
+        //Replaced keys are derived again
+        KeyMaterial.invalidate(netkey);
+        KeyMaterial.invalidate(applicationKeyMaterial.getKey());
+        assertFalse(networkKeyMaterial == KeyMaterial.forNetworkKey(netkey));
+        assertFalse(applicationKeyMaterial == KeyMaterial.forApplicationKey("63964771734FBD76E3B40519D1D94A48"));
+    }
+}
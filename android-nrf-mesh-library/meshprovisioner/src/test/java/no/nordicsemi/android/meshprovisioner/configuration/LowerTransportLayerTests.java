@@ -162,4 +162,19 @@ public class LowerTransportLayerTests {
         meshLayerTestBase.createLowerTransportControlPDU(controlMessage);
         assertEquals(expectedLowerTransportPdu, MeshParserUtils.bytesToHex(controlMessage.getLowerTransportControlPdu().get(0), false));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void sequence_number_isNeverReused() {
+        final int sequenceNumber = SequenceNumber.incrementAndStore(context);
+        Assert.assertTrue(SequenceNumber.incrementAndStore(context) > sequenceNumber);
+
+        //Incrementing from a sequence number that has already been handed out continues from the latest one
+        final int next = SequenceNumber.incrementAndStore(context, MeshParserUtils.getSequenceNumberBytes(sequenceNumber));
+        assertEquals(sequenceNumber + 2, next);
+        assertEquals(next, SequenceNumber.getSequenceNumber());
+
+        //Incrementing from a sequence number ahead of the counter moves the counter forward
+        assertEquals(next + 11, SequenceNumber.incrementAndStore(context, MeshParserUtils.getSequenceNumberBytes(next + 10)));
+        assertEquals(next + 12, SequenceNumber.incrementAndStore(context));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.MeshNodeSummary;
+import no.nordicsemi.android.meshprovisioner.MeshStoreLog;
+import no.nordicsemi.android.meshprovisioner.utils.InterfaceAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class MeshStoreTests {
+
+    private Gson gson;
+    private File file;
+
+    @Before
+    public void setUp() {
+        final GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.enableComplexMapKeySerialization();
+        gsonBuilder.registerTypeAdapter(MeshModel.class, new InterfaceAdapter<MeshModel>());
+        gson = gsonBuilder.create();
+        file = new File(System.getProperty("java.io.tmpdir"), "mesh_nodes_" + System.nanoTime() + ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ProvisionedMeshNode createNode(final int unicastAddress, final String name) {
+        return gson.fromJson("{\"unicastAddress\":[" + (unicastAddress >> 8) + "," + (unicastAddress & 0xFF) + "],\"nodeName\":\"" + name + "\"}",
+                ProvisionedMeshNode.class);
+    }
+
+    @Test
+    public void meshStore_replaysLatestRecords() {
+        final MeshStoreLog store = new MeshStoreLog(file, gson);
+        assertTrue(store.loadNodes().isEmpty());
+
+        store.saveNodes(Arrays.asList(createNode(0x0003, "Node 3"), createNode(0x0001, "Node 1")));
+        store.saveNode(createNode(0x0002, "Node 2"));
+        store.saveNode(createNode(0x0001, "Renamed"));
+        store.deleteNode(createNode(0x0003, "Node 3"));
+
+        final List<ProvisionedMeshNode> nodes = new MeshStoreLog(file, gson).loadNodes();
+        assertEquals(2, nodes.size());
+        assertEquals("Renamed", nodes.get(0).getNodeName());
+        assertEquals("Node 2", nodes.get(1).getNodeName());
+
+        store.clear();
+        assertTrue(new MeshStoreLog(file, gson).isEmpty());
+    }
+
+    @Test
+    public void meshStore_loadsSummariesWithoutNodes() {
+        final MeshStoreLog store = new MeshStoreLog(file, gson);
+        store.saveNode(createNode(0x0005, "Node 5"));
+        store.saveNode(createNode(0x0002, "Node 2"));
+        store.saveNode(createNode(0x0005, "Renamed"));
+
+        final MeshStoreLog reopened = new MeshStoreLog(file, gson);
+        final List<MeshNodeSummary> summaries = reopened.loadSummaries();
+        assertEquals(2, summaries.size());
+        assertEquals(0x0002, summaries.get(0).getUnicastAddress());
+        assertEquals("Renamed", summaries.get(1).getNodeName());
+        assertTrue(summaries.get(1).containsAddress(0x0005));
+
+        //Nodes are read on demand from the offsets recorded while replaying
+        assertEquals("Renamed", reopened.loadNode(0x0005).getNodeName());
+        assertEquals("Node 2", reopened.loadNode(0x0002).getNodeName());
+        assertNull(reopened.loadNode(0x0003));
+
+        //Offsets of records appended after replaying are tracked as well
+        reopened.saveNode(createNode(0x0003, "Node 3"));
+        assertEquals("Node 3", reopened.loadNode(0x0003).getNodeName());
+    }
+
+    @Test
+    public void meshStore_truncatesTornRecord() throws IOException {
+        final MeshStoreLog store = new MeshStoreLog(file, gson);
+        store.loadNodes();
+        store.saveNode(createNode(0x0001, "Node 1"));
+        final long validLength = file.length();
+        store.saveNode(createNode(0x0002, "Node 2"));
+
+        //Simulate a write that was interrupted half way through the last record
+        try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+            log.setLength(validLength + (file.length() - validLength) / 2);
+        }
+
+        final MeshStoreLog reopened = new MeshStoreLog(file, gson);
+        final List<ProvisionedMeshNode> nodes = reopened.loadNodes();
+        assertEquals(1, nodes.size());
+        assertEquals("Node 1", nodes.get(0).getNodeName());
+        assertEquals(validLength, file.length());
+
+        //Records appended after the truncation are read back
+        reopened.saveNode(createNode(0x0003, "Node 3"));
+        assertEquals(2, new MeshStoreLog(file, gson).loadNodes().size());
+    }
+
+    @Test
+    public void meshStore_movesAsideUnreadableLog() throws IOException {
+        try (FileOutputStream log = new FileOutputStream(file)) {
+            log.write(new byte[]{0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07});
+        }
+        final File unreadable = new File(file.getPath() + ".unreadable");
+        try {
+            final MeshStoreLog store = new MeshStoreLog(file, gson);
+            assertTrue(store.loadNodes().isEmpty());
+            assertTrue(unreadable.exists());
+
+            //Nodes saved afterwards are written to a new log with a valid header
+            store.saveNode(createNode(0x0001, "Node 1"));
+            final List<ProvisionedMeshNode> nodes = new MeshStoreLog(file, gson).loadNodes();
+            assertEquals(1, nodes.size());
+            assertEquals("Node 1", nodes.get(0).getNodeName());
+        } finally {
+            unreadable.delete();
+        }
+    }
+
+    @Test
+    public void meshStore_compactsSupersededRecords() {
+        final MeshStoreLog store = new MeshStoreLog(file, gson);
+        store.loadNodes();
+        for (int i = 0; i < 2000; i++) {
+            store.saveNode(createNode(0x0001 + (i % 4), "Node " + i));
+        }
+        assertTrue(file.length() < 128 * 1024);
+
+        final List<ProvisionedMeshNode> nodes = new MeshStoreLog(file, gson).loadNodes();
+        assertEquals(4, nodes.size());
+        assertEquals("Node 1996", nodes.get(0).getNodeName());
+        assertEquals("Node 1999", nodes.get(3).getNodeName());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import no.nordicsemi.android.meshprovisioner.MeshTransactionTable;
+import no.nordicsemi.android.meshprovisioner.opcodes.ApplicationMessageOpCodes;
+import no.nordicsemi.android.meshprovisioner.opcodes.ConfigMessageOpCodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class MeshTransactionTableTests {
+
+    @Test
+    public void transaction_table_correlatesBySrcAndOpCode() {
+        final MeshTransactionTable transactions = new MeshTransactionTable(1000);
+        final ConfigMessage[] requests = {mock(ConfigMessage.class), mock(ConfigMessage.class), mock(ConfigMessage.class)};
+        final ConfigMessage[] responses = {mock(ConfigMessage.class), mock(ConfigMessage.class), mock(ConfigMessage.class)};
+        transactions.add(0x0002, ConfigMessageOpCodes.CONFIG_APPKEY_STATUS, requests[0], responses[0], null, 0);
+        transactions.add(0x0003, ConfigMessageOpCodes.CONFIG_APPKEY_STATUS, requests[1], responses[1], null, 0);
+        transactions.add(0x0002, ConfigMessageOpCodes.CONFIG_MODEL_APP_STATUS, requests[2], responses[2], null, 500);
+        assertEquals(3, transactions.size());
+
+        //Received opcodes are unsigned while the declared two octet opcodes are sign extended
+        assertTrue(responses[1] == transactions.remove(0x0003, 0x8003, 100).getResponse());
+        //A late response to a completed transaction is not correlated with any other transaction
+        assertNull(transactions.remove(0x0003, 0x8003, 100));
+        assertNull(transactions.remove(0x0004, 0x8003, 100));
+
+        assertEquals(Arrays.asList(requests[0], requests[2]), transactions.getRequests(0x0002, 100));
+        //A request that was given up on no longer waits for its status
+        assertTrue(responses[2] == transactions.remove(requests[2]).getResponse());
+        assertNull(transactions.remove(requests[2]));
+        transactions.add(0x0002, ConfigMessageOpCodes.CONFIG_MODEL_APP_STATUS, requests[2], responses[2], null, 500);
+
+        //Transactions without a status are dropped once timed out and reported once
+        assertNull(transactions.remove(0x0002, 0x8003, 1000));
+        assertEquals(1, transactions.pollExpired(1000).size());
+        assertTrue(transactions.pollExpired(1000).isEmpty());
+        assertTrue(responses[2] == transactions.remove(0x0002, 0x803E, 1000).getResponse());
+        assertEquals(0, transactions.size());
+
+        //A request waiting for the same status from the same node is queued instead of replacing the outstanding one
+        final ConfigMessage queuedRequest = mock(ConfigMessage.class);
+        assertTrue(transactions.add(0x0002, ConfigMessageOpCodes.CONFIG_MODEL_APP_STATUS, requests[0], responses[0], null, 2000));
+        assertFalse(transactions.add(0x0002, ConfigMessageOpCodes.CONFIG_MODEL_APP_STATUS, queuedRequest, responses[1], null, 2000));
+        assertEquals(1, transactions.size());
+        assertEquals(1, transactions.getWaitingCount());
+        final MeshTransactionTable.Transaction completed = transactions.remove(0x0002, 0x803E, 2100);
+        assertTrue(responses[0] == completed.getResponse());
+        assertTrue(queuedRequest == transactions.promote(completed, 2100).getRequest());
+        assertNull(transactions.promote(completed, 2100));
+        assertEquals(0, transactions.getWaitingCount());
+        assertTrue(responses[1] == transactions.remove(0x0002, 0x803E, 2200).getResponse());
+
+        //Statuses of a message sent to a group come from the unicast addresses of the nodes in the group
+        final ConfigMessage groupRequest = mock(ConfigMessage.class);
+        assertTrue(transactions.add(0xC000, ApplicationMessageOpCodes.GENERIC_ON_OFF_STATUS, groupRequest, responses[2], null, 3000));
+        assertTrue(transactions.add(0x0002, ApplicationMessageOpCodes.GENERIC_ON_OFF_STATUS, requests[0], responses[0], null, 3000));
+        assertTrue(responses[0] == transactions.remove(0x0002, 0x8204, 3100).getResponse());
+        assertTrue(responses[2] == transactions.remove(0x0002, 0x8204, 3100).getResponse());
+        assertTrue(responses[2] == transactions.remove(0x0005, 0x8204, 3200).getResponse());
+        assertNull(transactions.remove(0x0005, 0x803E, 3200));
+        assertEquals(1, transactions.size());
+        //A group transaction stays outstanding until it expires and is not reported if any node responded
+        assertTrue(transactions.pollExpired(4000).isEmpty());
+        assertNull(transactions.remove(0x0002, 0x8204, 4000));
+
+        assertTrue(transactions.add(0xC000, ApplicationMessageOpCodes.GENERIC_ON_OFF_STATUS, groupRequest, responses[2], null, 5000));
+        assertEquals(1, transactions.pollExpired(6000).size());
+        assertEquals(0, transactions.size());
+    }
+}
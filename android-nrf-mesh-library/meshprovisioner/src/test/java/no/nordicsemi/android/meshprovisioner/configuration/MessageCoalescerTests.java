@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import android.os.Handler;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.MessageCoalescer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class MessageCoalescerTests {
+
+    @Test
+    public void message_coalescer_sendsLatestSetPerState() {
+        final Handler handler = mock(Handler.class);
+        final MessageCoalescer coalescer = new MessageCoalescer(handler, 100);
+        final List<String> sent = new ArrayList<>();
+
+        coalescer.submit(0x0002, 0x1000, 0x8202, () -> sent.add("on"));
+        coalescer.submit(0x0002, 0x1000, 0x8202, () -> sent.add("off"));
+        coalescer.submit(0x0002, 0x1000, 0x8202, () -> sent.add("on again"));
+        coalescer.submit(0x0003, 0x1000, 0x8202, () -> sent.add("other element"));
+        assertEquals(Arrays.asList("on", "other element"), sent);
+        assertEquals(1, coalescer.getPendingCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+
+        final ArgumentCaptor<Runnable> timers = ArgumentCaptor.forClass(Runnable.class);
+        verify(handler, times(2)).postDelayed(timers.capture(), eq(100L));
+        timers.getAllValues().get(0).run();
+        assertEquals("on again", sent.get(sent.size() - 1));
+
+        //Sending the latest set opens a new window which closes without anything to send
+        verify(handler, times(3)).postDelayed(timers.capture(), eq(100L));
+        timers.getValue().run();
+        assertEquals(0, coalescer.getPendingCount());
+        coalescer.submit(0x0002, 0x1000, 0x8202, () -> sent.add("off again"));
+        assertEquals("off again", sent.get(sent.size() - 1));
+
+        coalescer.setWindow(0);
+        coalescer.submit(0x0003, 0x1000, 0x8202, () -> sent.add("unthrottled"));
+        assertEquals("unthrottled", sent.get(sent.size() - 1));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import org.junit.Test;
+
+import no.nordicsemi.android.meshprovisioner.NetworkIdClassifier;
+import no.nordicsemi.android.meshprovisioner.utils.KeyMaterial;
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class NetworkIdClassifierTests {
+
+    @Test
+    public void networkIdClassifier_findsNetworkOfAdvertisement() {
+        final NetworkIdClassifier classifier = new NetworkIdClassifier();
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        for (int i = 0; i < 20; i++) {
+            final byte[] otherNetkey = netkey.clone();
+            otherNetkey[0] = (byte) i;
+            classifier.add(KeyMaterial.forNetworkKey(otherNetkey).getNetworkId(), i + 1);
+        }
+        classifier.add(KeyMaterial.forNetworkKey(netkey).getNetworkId(), 0x0456);
+        assertEquals(21, classifier.size());
+
+        //Service data is the advertisement type followed by the network id
+        final byte[] serviceData = MeshParserUtils.toByteArray("003ECAFF672F673370");
+        assertEquals(0x0456, classifier.classify(serviceData, 1));
+
+        serviceData[8] ^= 0x01;
+        assertEquals(NetworkIdClassifier.UNKNOWN_NETWORK, classifier.classify(serviceData, 1));
+        assertEquals(NetworkIdClassifier.UNKNOWN_NETWORK, classifier.classify(new byte[4], 1));
+
+        classifier.clear();
+        serviceData[8] ^= 0x01;
+        assertEquals(NetworkIdClassifier.UNKNOWN_NETWORK, classifier.classify(serviceData, 1));
+    }
+}
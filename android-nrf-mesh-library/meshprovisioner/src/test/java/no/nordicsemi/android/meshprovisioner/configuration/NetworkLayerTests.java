@@ -32,12 +32,24 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import no.nordicsemi.android.meshprovisioner.messages.AccessMessage;
+import no.nordicsemi.android.meshprovisioner.messages.ControlMessage;
 import no.nordicsemi.android.meshprovisioner.messages.Message;
+import no.nordicsemi.android.meshprovisioner.opcodes.TransportLayerOpCodes;
+import no.nordicsemi.android.meshprovisioner.transport.ApplicationKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.DeviceKeyTable;
+import no.nordicsemi.android.meshprovisioner.transport.LowerTransportLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.NetworkLayer;
+import no.nordicsemi.android.meshprovisioner.transport.NetworkLayerCallbacks;
+import no.nordicsemi.android.meshprovisioner.transport.ReplayProtectionList;
+import no.nordicsemi.android.meshprovisioner.transport.SubnetTable;
+import no.nordicsemi.android.meshprovisioner.transport.TransportStatistics;
 import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
 import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
 
@@ -106,6 +118,32 @@ public class NetworkLayerTests {
         }
     }
 
+    @Test
+    public void encode_network_pdu_into_buffer_isCorrect() throws Exception {
+        //Message #16
+        final String expectedNetworkPdu = "0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228".toUpperCase();
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final byte[] src = MeshParserUtils.toByteArray("1201");
+        final byte[] dst = MeshParserUtils.toByteArray("0003");
+        final byte[] lowerTransportPdu = MeshParserUtils.toByteArray("0089511bf1d1a81c11dcef".toUpperCase());
+        final byte[] ivIndex = MeshParserUtils.toByteArray("12345678");
+
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+
+        final int offset = 3;
+        final byte[] buffer = new byte[64];
+        for (int i = 0; i < 2; i++) {
+            final int length = meshLayerTestBase.encodeNetworkPdu(0x00, 0x00, 0x0b, 0x000006, src, dst, ivIndex,
+                    lowerTransportPdu, 0, lowerTransportPdu.length, buffer, offset);
+            assertEquals(NetworkLayer.getNetworkPduLength(0x00, lowerTransportPdu.length), length);
+            final byte[] actualNetworkPdu = new byte[length];
+            System.arraycopy(buffer, offset, actualNetworkPdu, 0, length);
+            assertEquals(expectedNetworkPdu, MeshParserUtils.bytesToHex(actualNetworkPdu, false));
+        }
+    }
+
     @Test
     public void create_network_pdu_segmented_isCorrect() throws Exception {
         //Message #6
@@ -179,6 +217,197 @@ public class NetworkLayerTests {
 
     }
 
+    @Test
+    public void parseControlMessage() {
+        //Message #1
+        final String expectedTransportControlPdu = "4b50057e400000010000".toUpperCase();
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        final byte[] pdu = MeshParserUtils.toByteArray("0068eca487516765b5e5bfdacbaf6cb7fb6bff871f035444ce83a670df");
+
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        final Message message = meshLayerTestBase.parsePdu(pdu);
+
+        assertEquals(0x03, message.getOpCode());
+        assertEquals("1201", MeshParserUtils.bytesToHex(message.getSrc(), false));
+        assertEquals("FFFD", MeshParserUtils.bytesToHex(message.getDst(), false));
+        assertEquals(expectedTransportControlPdu, MeshParserUtils.bytesToHex(((ControlMessage) message).getTransportControlPdu(), false));
+    }
+
+    @Test
+    public void parseAccessMessage_withSubnetTable() {
+        //Message #16 received on a connection whose node uses a different network key
+        final String expectedAccessPayload = "800300563412";
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final byte[] otherNetkey = MeshParserUtils.toByteArray("f7a2a44f8e8a8029064f173ddc1e2b00");
+
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(otherNetkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        final byte[] pdu = MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228");
+
+        final SubnetTable subnetTable = new SubnetTable();
+        final TransportStatistics statistics = new TransportStatistics();
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(subnetTable, statistics));
+        Assert.assertNull("Pdu with an unknown NID must be dropped", meshLayerTestBase.parsePdu(pdu));
+        assertEquals(1, statistics.getUnknownNidDrops());
+
+        subnetTable.add(SecureUtils.calculateK2(otherNetkey, SecureUtils.K2_MASTER_INPUT));
+        subnetTable.add(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        final Message message = meshLayerTestBase.parsePdu(pdu);
+        assertEquals(expectedAccessPayload, MeshParserUtils.bytesToHex(((AccessMessage) message).getAccessPdu(), false));
+    }
+
+    @Test
+    public void parseAccessMessage_micFailures() {
+        //Message #16
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("00000000000000000000000000000000"));
+
+        final TransportStatistics statistics = new TransportStatistics();
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, statistics));
+
+        //Wrong device key
+        Assert.assertNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228")));
+        assertEquals(1, statistics.getTransMicFailures());
+
+        //Corrupted network mic
+        Assert.assertNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f229")));
+        assertEquals(1, statistics.getNetMicFailures());
+        assertEquals(2, statistics.getReceivedPdus());
+    }
+
+    @Test
+    public void parseAccessMessage_replayed() {
+        //Message #16
+        final String expectedAccessPayload = "800300563412";
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        final byte[] pdu = MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228");
+
+        final TransportStatistics statistics = new TransportStatistics();
+        final ReplayProtectionList replayProtectionList = new ReplayProtectionList(context);
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, statistics, replayProtectionList));
+
+        final Message message = meshLayerTestBase.parsePdu(pdu);
+        assertEquals(expectedAccessPayload, MeshParserUtils.bytesToHex(((AccessMessage) message).getAccessPdu(), false));
+        assertEquals(1, replayProtectionList.size());
+
+        Assert.assertNull("Replayed pdu must be dropped", meshLayerTestBase.parsePdu(pdu));
+        assertEquals(1, statistics.getReplayDrops());
+
+        //A newer iv index resets the sequence number space of the source
+        Assert.assertTrue(replayProtectionList.accept(0x1201, 0x12345679, 0));
+        Assert.assertFalse(replayProtectionList.accept(0x1201, 0x12345678, 0x7FFFFF));
+    }
+
+    @Test
+    public void replayProtectionList_nodeResetKeepsOtherSources() {
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        //Message #16 sent by 0x1201
+        final byte[] pdu = MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228");
+
+        final TransportStatistics statistics = new TransportStatistics();
+        final ReplayProtectionList replayProtectionList = new ReplayProtectionList(context);
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, statistics, replayProtectionList));
+        Assert.assertNotNull(meshLayerTestBase.parsePdu(pdu));
+        for (int src = 1; src <= 40; src++) {
+            Assert.assertTrue(replayProtectionList.accept(src, 0x12345678, 5));
+        }
+
+        //Resetting the node with the elements 0x000A to 0x0014 only forgets those elements
+        replayProtectionList.remove(0x000A, 11);
+        assertEquals(30, replayProtectionList.size());
+        Assert.assertNull("Replayed pdu from another node must still be dropped", meshLayerTestBase.parsePdu(pdu));
+        assertEquals(1, statistics.getReplayDrops());
+        for (int src = 1; src <= 40; src++) {
+            assertEquals(src >= 0x000A && src <= 0x0014, replayProtectionList.accept(src, 0x12345678, 5));
+        }
+    }
+
+    @Test
+    public void parseAccessMessage_deviceKeyFromSrc() {
+        //Message #16, sent by the secondary element 0x1201 of a node other than the one the transport was created for
+        final String expectedAccessPayload = "800300563412";
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final ProvisionedMeshNode proxyNode = new ProvisionedMeshNode();
+        proxyNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        proxyNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        proxyNode.setDeviceKey(MeshParserUtils.toByteArray("00112233445566778899aabbccddeeff"));
+        final byte[] pdu = MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228");
+
+        final TransportStatistics statistics = new TransportStatistics();
+        final MeshTransport proxyTransport = new MeshTransport(context, proxyNode);
+        proxyTransport.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, statistics, null, new DeviceKeyTable()));
+        Assert.assertNull("The device key of the proxy node must not decrypt the message", proxyTransport.parsePdu(pdu));
+        assertEquals(1, statistics.getTransMicFailures());
+
+        final DeviceKeyTable deviceKeyTable = new DeviceKeyTable();
+        deviceKeyTable.put(0x1200, 2, MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        deviceKeyTable.put(0x1202, 1, MeshParserUtils.toByteArray("00112233445566778899aabbccddeeff"));
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, proxyNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, statistics, null, deviceKeyTable));
+
+        final Message message = meshLayerTestBase.parsePdu(pdu);
+        assertEquals(expectedAccessPayload, MeshParserUtils.bytesToHex(((AccessMessage) message).getAccessPdu(), false));
+    }
+
+    @Test
+    public void parseAccessMessage_applicationKeyByAid() {
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final byte[] appKey = MeshParserUtils.toByteArray("63964771734fbd76e3b40519d1d94a48");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+
+        final MeshTransport nodeTransport = new MeshTransport(context, meshNode);
+        final AccessMessage accessMessage = new AccessMessage();
+        accessMessage.setCtl(0);
+        accessMessage.setTtl(4);
+        accessMessage.setPduType(MeshTransport.NETWORK_PDU);
+        accessMessage.setSrc(MeshParserUtils.toByteArray("1201"));
+        accessMessage.setDst(MeshParserUtils.toByteArray("0003"));
+        accessMessage.setSequenceNumber(MeshParserUtils.toByteArray("000007"));
+        accessMessage.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        accessMessage.setKey(appKey);
+        accessMessage.setAkf(1);
+        accessMessage.setAid(SecureUtils.calculateK4(appKey));
+        accessMessage.setAszmic(0);
+        accessMessage.setAccessPdu(MeshParserUtils.toByteArray("8204"));
+        nodeTransport.createUpperTransportPDU(accessMessage);
+        nodeTransport.createLowerTransportAccessPDU(accessMessage);
+        final byte[] pdu = nodeTransport.createNetworkLayerPDU(accessMessage).getNetworkPdu().get(0);
+
+        final ApplicationKeyTable applicationKeyTable = new ApplicationKeyTable();
+        applicationKeyTable.add(MeshParserUtils.toByteArray("00112233445566778899aabbccddeeff"));
+        applicationKeyTable.add(appKey);
+        applicationKeyTable.add(appKey);
+        assertEquals(1, applicationKeyTable.getApplicationKeys(SecureUtils.calculateK4(appKey)).length);
+
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setNetworkLayerCallbacks(new TestNetworkLayerCallbacks(null, null, null, null, applicationKeyTable));
+        final Message message = meshLayerTestBase.parsePdu(pdu);
+        assertEquals("8204", MeshParserUtils.bytesToHex(((AccessMessage) message).getAccessPdu(), false));
+    }
+
     @Test
     public void parseSegmentedAccessMessage() {
         //Message #16
@@ -205,4 +434,241 @@ public class NetworkLayerTests {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parseSegmentedAccessMessage_outOfOrderAndInterleaved() {
+        final String expectedAccessPayload = "0056341263964771734fbd76e3b40519d1d94a48".toUpperCase();
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+
+        //Last segment first, followed by an unsegmented message and a duplicate of the last segment
+        Assert.assertNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("00681615b5dd4a846cae0c032bf0746f44f1b8cc8ce5edc57e55beed49c0")));
+        final Message unsegmented = meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228"));
+        assertEquals("800300563412", MeshParserUtils.bytesToHex(((AccessMessage) unsegmented).getAccessPdu(), false));
+        Assert.assertNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("00681615b5dd4a846cae0c032bf0746f44f1b8cc8ce5edc57e55beed49c0")));
+
+        final Message message = meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("0068cab5c5348a230afba8c63d4e686364979deaf4fd40961145939cda0e"));
+        assertEquals(expectedAccessPayload, MeshParserUtils.bytesToHex(((AccessMessage) message).getAccessPdu(), false));
+    }
+
+    @Test
+    public void parseSegmentedAccessMessage_lateSegmentIsAcknowledgedNotDelivered() {
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(MeshParserUtils.toByteArray("12345678"));
+        meshNode.setDeviceKey(MeshParserUtils.toByteArray("9d6dd0e96eb25dc19a40ed9914f8f03f"));
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        final List<byte[]> acknowledgements = new ArrayList<>();
+        meshLayerTestBase.setLowerTransportLayerCallbacks(new LowerTransportLayerCallbacks() {
+            @Override
+            public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
+                acknowledgements.add(controlMessage.getTransportControlPdu());
+            }
+
+            @Override
+            public void sendSegmentRetransmission(final byte[] networkPdu) {
+            }
+        });
+
+        Assert.assertNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("0068cab5c5348a230afba8c63d4e686364979deaf4fd40961145939cda0e")));
+        Assert.assertNotNull(meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("00681615b5dd4a846cae0c032bf0746f44f1b8cc8ce5edc57e55beed49c0")));
+        assertEquals(1, acknowledgements.size());
+
+        //The sender did not get the acknowledgement and sends the last segment again
+        Assert.assertNull("An already delivered message must not be delivered again",
+                meshLayerTestBase.parsePdu(MeshParserUtils.toByteArray("00681615b5dd4a846cae0c032bf0746f44f1b8cc8ce5edc57e55beed49c0")));
+        assertEquals(2, acknowledgements.size());
+        final byte[] acknowledgement = acknowledgements.get(1);
+        assertEquals("The complete block must be acknowledged again", 0x00000003, ByteBuffer.wrap(acknowledgement, 2, 4).getInt());
+    }
+
+    @Test
+    public void segmentedMessage_retransmitsMissingSegments() {
+        //Message #6 sent from 0x0003 to 0x1201
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final byte[] ivIndex = MeshParserUtils.toByteArray("12345678");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(ivIndex);
+
+        final List<byte[]> retransmissions = new ArrayList<>();
+        final MeshTransport meshLayerTestBase = new MeshTransport(context, meshNode);
+        meshLayerTestBase.setLowerTransportLayerCallbacks(new LowerTransportLayerCallbacks() {
+            @Override
+            public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
+            }
+
+            @Override
+            public void sendSegmentRetransmission(final byte[] networkPdu) {
+                retransmissions.add(networkPdu);
+            }
+        });
+
+        final AccessMessage accessMessage = new AccessMessage();
+        accessMessage.setCtl(0);
+        accessMessage.setTtl(4);
+        accessMessage.setSrc(MeshParserUtils.toByteArray("0003"));
+        accessMessage.setDst(MeshParserUtils.toByteArray("1201"));
+        accessMessage.setSequenceNumber(MeshParserUtils.toByteArray("3129ab"));
+        accessMessage.setIvIndex(ivIndex);
+        accessMessage.setSegmented(true);
+        final HashMap<Integer, byte[]> lowerTransportAccessPdu = new HashMap<>();
+        lowerTransportAccessPdu.put(0, MeshParserUtils.toByteArray("8026ac01ee9dddfd2169326d23f3afdf"));
+        lowerTransportAccessPdu.put(1, MeshParserUtils.toByteArray("8026ac21cfdc18c52fdef772e0e17308"));
+        accessMessage.setLowerTransportAccessPdu(lowerTransportAccessPdu);
+        final byte[] segment1 = meshLayerTestBase.createNetworkLayerPDU(accessMessage).getNetworkPdu().get(1);
+
+        //The second segment is not sent again while it is still waiting to be written to the proxy
+        final MeshTransport nodeTransport = new MeshTransport(context, meshNode);
+        meshLayerTestBase.parsePdu(createBlockAcknowledgement(nodeTransport, ivIndex, 0x09AB, 0x00000001));
+        assertEquals(0, retransmissions.size());
+
+        //Once written, only the second segment is sent again with a new sequence number
+        meshLayerTestBase.onOutgoingSegmentsReleased();
+        meshLayerTestBase.parsePdu(createBlockAcknowledgement(nodeTransport, ivIndex, 0x09AB, 0x00000001));
+        assertEquals(1, retransmissions.size());
+        assertEquals(segment1.length, retransmissions.get(0).length);
+        Assert.assertFalse(MeshParserUtils.bytesToHex(segment1, false).equals(MeshParserUtils.bytesToHex(retransmissions.get(0), false)));
+
+        //Once all segments are acknowledged the message is no longer tracked
+        meshLayerTestBase.parsePdu(createBlockAcknowledgement(nodeTransport, ivIndex, 0x09AB, 0x00000003));
+        meshLayerTestBase.parsePdu(createBlockAcknowledgement(nodeTransport, ivIndex, 0x09AB, 0x00000001));
+        assertEquals(1, retransmissions.size());
+    }
+
+    @Test
+    public void segmentedMessage_limitsRetransmissionsAndSkipsGroups() {
+        final byte[] netkey = MeshParserUtils.toByteArray("7dd7364cd842ad18c17c2b820c84c3d6");
+        final byte[] ivIndex = MeshParserUtils.toByteArray("12345678");
+        final ProvisionedMeshNode meshNode = new ProvisionedMeshNode();
+        meshNode.setK2Ouput(SecureUtils.calculateK2(netkey, SecureUtils.K2_MASTER_INPUT));
+        meshNode.setIvIndex(ivIndex);
+
+        final List<byte[]> retransmissions = new ArrayList<>();
+        final LowerTransportLayerCallbacks callbacks = new LowerTransportLayerCallbacks() {
+            @Override
+            public void sendSegmentAcknowledgementMessage(final ControlMessage controlMessage) {
+            }
+
+            @Override
+            public void sendSegmentRetransmission(final byte[] networkPdu) {
+                retransmissions.add(networkPdu);
+            }
+        };
+        final MeshTransport nodeTransport = new MeshTransport(context, meshNode);
+
+        //A destination that keeps acknowledging part of the message uses up the retransmission budget
+        final MeshTransport unicastTransport = new MeshTransport(context, meshNode);
+        unicastTransport.setLowerTransportLayerCallbacks(callbacks);
+        unicastTransport.setSegmentRetransmissionAttempts(1);
+        unicastTransport.createNetworkLayerPDU(createSegmentedAccessMessage(ivIndex, "1201"));
+        unicastTransport.onOutgoingSegmentsReleased();
+        Assert.assertTrue(unicastTransport.onBlockAcknowledgement(0x1201, 0x09AB, 0x00000001));
+        assertEquals(1, retransmissions.size());
+        unicastTransport.onOutgoingSegmentsReleased();
+        Assert.assertTrue(unicastTransport.onBlockAcknowledgement(0x1201, 0x09AB, 0x00000001));
+        assertEquals(1, retransmissions.size());
+        Assert.assertFalse(unicastTransport.onBlockAcknowledgement(0x1201, 0x09AB, 0x00000001));
+
+        //Group destinations never acknowledge segments, so their messages are not tracked
+        final MeshTransport groupTransport = new MeshTransport(context, meshNode);
+        groupTransport.setLowerTransportLayerCallbacks(callbacks);
+        groupTransport.createNetworkLayerPDU(createSegmentedAccessMessage(ivIndex, "C001"));
+        groupTransport.onOutgoingSegmentsReleased();
+        Assert.assertFalse(groupTransport.onBlockAcknowledgement(0xC001, 0x09AB, 0x00000001));
+        assertEquals(1, retransmissions.size());
+    }
+
+    private static AccessMessage createSegmentedAccessMessage(final byte[] ivIndex, final String dst) {
+        //Segments of message #6 sent from 0x0003, with a lower sequence number of the same SeqZero so that the sequence numbers
+        //expected by the other tests are not handed out
+        final AccessMessage accessMessage = new AccessMessage();
+        accessMessage.setCtl(0);
+        accessMessage.setTtl(4);
+        accessMessage.setSrc(MeshParserUtils.toByteArray("0003"));
+        accessMessage.setDst(MeshParserUtils.toByteArray(dst));
+        accessMessage.setSequenceNumber(MeshParserUtils.toByteArray("0009ab"));
+        accessMessage.setIvIndex(ivIndex);
+        accessMessage.setSegmented(true);
+        final HashMap<Integer, byte[]> lowerTransportAccessPdu = new HashMap<>();
+        lowerTransportAccessPdu.put(0, MeshParserUtils.toByteArray("8026ac01ee9dddfd2169326d23f3afdf"));
+        lowerTransportAccessPdu.put(1, MeshParserUtils.toByteArray("8026ac21cfdc18c52fdef772e0e17308"));
+        accessMessage.setLowerTransportAccessPdu(lowerTransportAccessPdu);
+        return accessMessage;
+    }
+
+    private static byte[] createBlockAcknowledgement(final MeshTransport nodeTransport, final byte[] ivIndex, final int seqZero, final int blockAck) {
+        final ControlMessage controlMessage = new ControlMessage();
+        controlMessage.setOpCode(TransportLayerOpCodes.SAR_ACK_OPCODE);
+        controlMessage.setTransportControlPdu(new byte[]{(byte) ((seqZero >> 6) & 0x7F), (byte) ((seqZero << 2) & 0xFC),
+                (byte) (blockAck >> 24), (byte) (blockAck >> 16), (byte) (blockAck >> 8), (byte) blockAck});
+        controlMessage.setTtl(4);
+        controlMessage.setPduType(MeshTransport.NETWORK_PDU);
+        controlMessage.setSrc(MeshParserUtils.toByteArray("1201"));
+        controlMessage.setDst(MeshParserUtils.toByteArray("0003"));
+        controlMessage.setIvIndex(ivIndex);
+        controlMessage.setSequenceNumber(MeshParserUtils.getSequenceNumberBytes(nodeTransport.incrementSequenceNumber()));
+        return nodeTransport.createSegmentBlockAcknowledgementMessage(controlMessage).getNetworkPdu().get(0);
+    }
+
+    private static final class TestNetworkLayerCallbacks implements NetworkLayerCallbacks {
+        private final SubnetTable subnetTable;
+        private final TransportStatistics statistics;
+        private final ReplayProtectionList replayProtectionList;
+        private final DeviceKeyTable deviceKeyTable;
+        private final ApplicationKeyTable applicationKeyTable;
+
+        TestNetworkLayerCallbacks(final SubnetTable subnetTable, final TransportStatistics statistics) {
+            this(subnetTable, statistics, null);
+        }
+
+        TestNetworkLayerCallbacks(final SubnetTable subnetTable, final TransportStatistics statistics, final ReplayProtectionList replayProtectionList) {
+            this(subnetTable, statistics, replayProtectionList, null);
+        }
+
+        TestNetworkLayerCallbacks(final SubnetTable subnetTable, final TransportStatistics statistics, final ReplayProtectionList replayProtectionList,
+                                  final DeviceKeyTable deviceKeyTable) {
+            this(subnetTable, statistics, replayProtectionList, deviceKeyTable, null);
+        }
+
+        TestNetworkLayerCallbacks(final SubnetTable subnetTable, final TransportStatistics statistics, final ReplayProtectionList replayProtectionList,
+                                  final DeviceKeyTable deviceKeyTable, final ApplicationKeyTable applicationKeyTable) {
+            this.subnetTable = subnetTable;
+            this.statistics = statistics;
+            this.replayProtectionList = replayProtectionList;
+            this.deviceKeyTable = deviceKeyTable;
+            this.applicationKeyTable = applicationKeyTable;
+        }
+
+        @Override
+        public SubnetTable getSubnetTable() {
+            return subnetTable;
+        }
+
+        @Override
+        public TransportStatistics getTransportStatistics() {
+            return statistics;
+        }
+
+        @Override
+        public ReplayProtectionList getReplayProtectionList() {
+            return replayProtectionList;
+        }
+
+        @Override
+        public DeviceKeyTable getDeviceKeyTable() {
+            return deviceKeyTable;
+        }
+
+        @Override
+        public ApplicationKeyTable getApplicationKeyTable() {
+            return applicationKeyTable;
+        }
+    }
+}
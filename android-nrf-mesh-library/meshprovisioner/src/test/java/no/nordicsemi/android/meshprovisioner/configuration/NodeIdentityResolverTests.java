@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.nordicsemi.android.meshprovisioner.NodeIdentityResolver;
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+import no.nordicsemi.android.meshprovisioner.utils.SecureUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class NodeIdentityResolverTests {
+
+    @Test
+    public void nodeIdentityResolver_findsAdvertisingNode() {
+        final Gson gson = new Gson();
+        final byte[] identityKey = MeshParserUtils.toByteArray("84396C435AC48560B5965385253E210C");
+        final List<ProvisionedMeshNode> nodes = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            nodes.add(gson.fromJson("{\"unicastAddress\":[0," + (i * 2) + "],\"identityKey\":" + gson.toJson(identityKey) + "}",
+                    ProvisionedMeshNode.class));
+        }
+        final NodeIdentityResolver resolver = new NodeIdentityResolver(4);
+        resolver.setNodes(nodes);
+
+        //Service data is the advertisement type followed by the hash and the random
+        final byte[] random = MeshParserUtils.toByteArray("34AE608FBBC1F2C6");
+        final byte[] hash = SecureUtils.calculateHash(identityKey, random, new byte[]{0x00, 0x10});
+        final byte[] serviceData = new byte[17];
+        serviceData[0] = 0x01;
+        System.arraycopy(hash, 0, serviceData, 1, hash.length);
+        System.arraycopy(random, 0, serviceData, 9, random.length);
+
+        assertEquals(0x0010, resolver.resolve(serviceData, 1));
+        assertEquals(0x0010, resolver.resolve(serviceData, 1));
+
+        serviceData[1] ^= 0x01;
+        assertEquals(NodeIdentityResolver.NO_MATCH, resolver.resolve(serviceData, 1));
+        assertEquals(NodeIdentityResolver.NO_MATCH, resolver.resolve(new byte[9], 1));
+
+        //Cached results are discarded when the nodes change
+        serviceData[1] ^= 0x01;
+        resolver.setNodes(nodes.subList(0, 4));
+        assertEquals(NodeIdentityResolver.NO_MATCH, resolver.resolve(serviceData, 1));
+
+        //Nodes that have not been loaded are resolved from their unicast address and identity key alone
+        final Map<Integer, byte[]> identityKeys = new LinkedHashMap<>();
+        identityKeys.put(0x0002, identityKey);
+        identityKeys.put(0x0010, identityKey);
+        resolver.setIdentityKeys(identityKeys);
+        assertEquals(0x0010, resolver.resolve(serviceData, 1));
+    }
+}
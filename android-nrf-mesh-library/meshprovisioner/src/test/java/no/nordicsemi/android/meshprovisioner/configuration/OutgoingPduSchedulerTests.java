@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.meshprovisioner.AirtimeLimiter;
+import no.nordicsemi.android.meshprovisioner.OutgoingPduScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class OutgoingPduSchedulerTests {
+
+    @Test
+    public void outgoing_pdu_scheduler_releasesByPriority() {
+        final Handler handler = mock(Handler.class);
+        final List<Integer> written = new ArrayList<>();
+        final OutgoingPduScheduler scheduler = new OutgoingPduScheduler(handler, (meshNode, pdu) -> written.add((int) pdu[0]));
+        scheduler.setMaxPdusInFlight(1);
+        scheduler.setMinInterval(OutgoingPduScheduler.Priority.BULK, 100);
+
+        scheduler.enqueue(null, AirtimeLimiter.NO_DESTINATION, new byte[]{1}, OutgoingPduScheduler.Priority.BULK, 0);
+        final List<Integer> released = new ArrayList<>();
+        scheduler.enqueue(null, AirtimeLimiter.NO_DESTINATION, new byte[]{2}, OutgoingPduScheduler.Priority.BULK, 0, () -> released.add(2));
+        scheduler.enqueue(null, AirtimeLimiter.NO_DESTINATION, new byte[]{10}, OutgoingPduScheduler.Priority.CONTROL, 10);
+        scheduler.enqueue(null, AirtimeLimiter.NO_DESTINATION, new byte[]{20}, OutgoingPduScheduler.Priority.INTERACTIVE, 20);
+        assertEquals(Arrays.asList(1), written);
+
+        //Acknowledgements and interactive messages overtake the queued configuration segment
+        scheduler.onPduWritten(30);
+        scheduler.onPduWritten(40);
+        assertEquals(Arrays.asList(1, 10, 20), written);
+        assertTrue(released.isEmpty());
+
+        //The configuration segment is held back until the interval of its class has passed
+        scheduler.onPduWritten(50);
+        assertEquals(1, scheduler.getQueuedPduCount(OutgoingPduScheduler.Priority.BULK));
+        verify(handler).postDelayed(any(Runnable.class), eq(50L));
+        scheduler.enqueue(null, AirtimeLimiter.NO_DESTINATION, new byte[]{11}, OutgoingPduScheduler.Priority.CONTROL, 60);
+        scheduler.onPduWritten(100);
+        assertEquals(Arrays.asList(1, 10, 20, 11, 2), written);
+        //Timers of a message start when its pdus are released rather than when they are queued
+        assertEquals(Arrays.asList(2), released);
+        assertEquals(0, scheduler.getQueuedPduCount(OutgoingPduScheduler.Priority.BULK));
+        assertEquals(1, scheduler.getPdusInFlight());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import org.junit.Test;
+
+import no.nordicsemi.android.meshprovisioner.utils.MeshParserUtils;
+import no.nordicsemi.android.meshprovisioner.utils.ProxyProtocolReassembler;
+import no.nordicsemi.android.meshprovisioner.utils.ProxyProtocolSegmenter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ProxyProtocolTests {
+
+    @Test
+    public void reassemble_segmented_pdu_isCorrect() {
+        final String expectedPdu = "0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228".toUpperCase();
+        final ProxyProtocolReassembler reassembler = new ProxyProtocolReassembler();
+
+        //Network pdu segmented with an mtu of 10 octets
+        assertFalse(reassembler.append(MeshParserUtils.toByteArray("4068e80e5da5af0e6b9b")));
+        assertFalse(reassembler.append(MeshParserUtils.toByteArray("80e7f5a642f2f98680e6")));
+        assertTrue(reassembler.append(MeshParserUtils.toByteArray("C01c3a8b47f228")));
+        assertEquals(expectedPdu, MeshParserUtils.bytesToHex(reassembler.toByteArray(), false));
+
+        //The buffer is reused for the next message
+        assertTrue(reassembler.append(MeshParserUtils.toByteArray("0300")));
+        assertEquals("0300", MeshParserUtils.bytesToHex(reassembler.toByteArray(), false));
+    }
+
+    @Test
+    public void reassemble_without_start_isDropped() {
+        final ProxyProtocolReassembler reassembler = new ProxyProtocolReassembler();
+        assertFalse(reassembler.append(MeshParserUtils.toByteArray("80e7f5a642f2f98680e6")));
+        assertFalse(reassembler.append(MeshParserUtils.toByteArray("C01c3a8b47f228")));
+        assertEquals(0, reassembler.getLength());
+    }
+
+    @Test
+    public void segment_pdu_isCorrect() {
+        final byte[] pdu = MeshParserUtils.toByteArray("0068e80e5da5af0e6b9be7f5a642f2f98680e61c3a8b47f228");
+        final int mtuSize = 10;
+
+        final int count = ProxyProtocolSegmenter.getSegmentCount(pdu.length, mtuSize);
+        assertEquals(3, count);
+        assertEquals("4068E80E5DA5AF0E6B9B", MeshParserUtils.bytesToHex(ProxyProtocolSegmenter.getSegment(pdu, 0, mtuSize), false));
+        assertEquals("80E7F5A642F2F98680E6", MeshParserUtils.bytesToHex(ProxyProtocolSegmenter.getSegment(pdu, 1, mtuSize), false));
+        assertEquals("C01C3A8B47F228", MeshParserUtils.bytesToHex(ProxyProtocolSegmenter.getSegment(pdu, 2, mtuSize), false));
+
+        //Segments reassemble in to the original pdu
+        final ProxyProtocolReassembler reassembler = new ProxyProtocolReassembler();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i == count - 1, reassembler.append(ProxyProtocolSegmenter.getSegment(pdu, i, mtuSize)));
+        }
+        assertEquals(MeshParserUtils.bytesToHex(pdu, false), MeshParserUtils.bytesToHex(reassembler.toByteArray(), false));
+        assertEquals(1, ProxyProtocolSegmenter.getSegmentCount(pdu.length, pdu.length));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.meshprovisioner.configuration;
+
+import org.junit.Test;
+
+import no.nordicsemi.android.meshprovisioner.RetransmissionManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Example local unit test, which will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class RetransmissionManagerTests {
+
+    @Test
+    public void retransmission_manager_adaptsTimeoutToRoundTrips() {
+        final RetransmissionManager manager = new RetransmissionManager(3);
+        final ConfigMessage[] requests = {mock(ConfigMessage.class), mock(ConfigMessage.class), mock(ConfigMessage.class), mock(ConfigMessage.class)};
+
+        //Until a round trip is measured the timeout covers the default ttl worth of hops
+        assertEquals(1500, manager.onMessageSent(requests[0], 0x0002, 5, 0));
+        assertTrue(manager.onStatusReceived(requests[0], 5, 3, 200));
+        RetransmissionManager.Estimate estimate = manager.getEstimate(0x0002);
+        assertEquals(200, estimate.getSmoothedRoundTripTime());
+        assertEquals(100, estimate.getRoundTripTimeVariation());
+        assertEquals(2, estimate.getHopCount());
+        assertEquals(600, estimate.getTimeout(5));
+
+        assertEquals(600, manager.onMessageSent(requests[1], 0x0002, 5, 1000));
+        assertTrue(manager.onStatusReceived(requests[1], 5, 3, 1400));
+        estimate = manager.getEstimate(0x0002);
+        assertEquals(225, estimate.getSmoothedRoundTripTime());
+        assertEquals(125, estimate.getRoundTripTimeVariation());
+        assertEquals(725, estimate.getTimeout(5));
+
+        //Timeouts back off and the round trip of a retransmitted message is not measured
+        assertEquals(725, manager.onMessageSent(requests[2], 0x0002, 5, 2000));
+        assertEquals(1450, manager.onTimeout(requests[2], 5, 2725));
+        assertFalse(manager.onStatusReceived(requests[2], 5, 3, 3000));
+        estimate = manager.getEstimate(0x0002);
+        assertEquals(2, estimate.getSampleCount());
+        assertEquals(1450, estimate.getTimeout(5));
+
+        assertEquals(1450, manager.onMessageSent(requests[3], 0x0002, 5, 4000));
+        assertEquals(2900, manager.onTimeout(requests[3], 5, 5450));
+        assertEquals(5800, manager.onTimeout(requests[3], 5, 8350));
+        assertEquals(RetransmissionManager.NO_RETRANSMISSION, manager.onTimeout(requests[3], 5, 14150));
+        assertEquals(RetransmissionManager.MAX_TIMEOUT, manager.getEstimate(0x0002).getTimeout(5));
+        assertEquals(0, manager.getPendingMessageCount());
+        assertNull(manager.getEstimate(0x0004));
+    }
+}